@@ -15,6 +15,14 @@ public class UtilityFunction {
         coefficientTypes.put(variableName, coefficientType);
     }
 
+    Map<String, Double> getCoefficients() {
+        return coefficients;
+    }
+
+    LogitCoefficientType getCoefficientType(final String variableName) {
+        return coefficientTypes.get(variableName);
+    }
+
     double evaluateFunction(final Map<String, Double> valueMap) {
         double utility = 0.0d;
 
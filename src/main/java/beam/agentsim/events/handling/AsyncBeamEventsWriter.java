@@ -0,0 +1,118 @@
+package beam.agentsim.events.handling;
+
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.events.algorithms.EventWriter;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the formatting and compression done by a {@link BeamEventsWriterBase} off the events manager thread.
+ * <p>
+ * Events are collected in small batches and handed over through a bounded queue to a dedicated writer thread. When the
+ * queue is full the events manager thread blocks until the writer catches up, so memory stays bounded. {@link #closeFile()}
+ * drains everything that was queued before closing the underlying file.
+ */
+public class AsyncBeamEventsWriter implements EventWriter, BasicEventHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncBeamEventsWriter.class);
+
+    static final int BATCH_SIZE = 1024;
+
+    private static final Event[] END_OF_STREAM = new Event[0];
+
+    private final BeamEventsWriterBase writer;
+    private final BlockingQueue<Event[]> queue;
+    private final Thread writerThread;
+    private Event[] batch = new Event[BATCH_SIZE];
+    private int batchSize = 0;
+    private volatile Throwable writerFailure;
+    private boolean closed = false;
+
+    /**
+     * @param writer        the writer that does the actual serialization, only ever called from the writer thread
+     * @param queueCapacity maximal number of events waiting to be written before the caller is blocked
+     */
+    AsyncBeamEventsWriter(BeamEventsWriterBase writer, int queueCapacity) {
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity / BATCH_SIZE));
+        this.writerThread = new Thread(this::writeQueuedEvents, "async-events-writer-" + writer.getClass().getSimpleName());
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    @Override
+    public synchronized void handleEvent(Event event) {
+        if (closed || !writer.shouldWriteEvent(event)) {
+            return;
+        }
+        batch[batchSize++] = event;
+        if (batchSize == BATCH_SIZE) {
+            enqueue(batch);
+            batch = new Event[BATCH_SIZE];
+            batchSize = 0;
+        }
+    }
+
+    @Override
+    public synchronized void closeFile() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (batchSize > 0) {
+            Event[] lastBatch = new Event[batchSize];
+            System.arraycopy(batch, 0, lastBatch, 0, batchSize);
+            enqueue(lastBatch);
+        }
+        enqueue(END_OF_STREAM);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for events to be written", e);
+        }
+        writer.closeFile();
+        if (writerFailure != null) {
+            throw new IllegalStateException("Writing events failed", writerFailure);
+        }
+    }
+
+    @Override
+    public void reset(int iteration) {
+        writer.reset(iteration);
+    }
+
+    private void enqueue(Event[] events) {
+        try {
+            // keep checking the writer thread: if it died nobody would ever make room in the queue again
+            while (!queue.offer(events, 1, TimeUnit.SECONDS)) {
+                if (!writerThread.isAlive()) {
+                    throw new IllegalStateException("Events writer thread stopped", writerFailure);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing events", e);
+        }
+    }
+
+    private void writeQueuedEvents() {
+        try {
+            Event[] events = queue.take();
+            while (events != END_OF_STREAM) {
+                for (Event event : events) {
+                    writer.writeEvent(event);
+                }
+                events = queue.take();
+            }
+        } catch (Throwable t) {
+            log.error("Failed to write events", t);
+            writerFailure = t;
+        }
+    }
+}
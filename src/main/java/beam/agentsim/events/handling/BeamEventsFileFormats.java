@@ -6,7 +6,7 @@ import java.util.Optional;
  * BEAM
  */
 public enum BeamEventsFileFormats {
-    XML("xml"), CSV("csv"), XML_GZ("xml.gz"), CSV_GZ("csv.gz");
+    XML("xml"), CSV("csv"), XML_GZ("xml.gz"), CSV_GZ("csv.gz"), BINARY("bin");
 
     private final String suffix;
 
@@ -28,6 +28,8 @@ public enum BeamEventsFileFormats {
             fmt = BeamEventsFileFormats.CSV;
         } else if (format.equalsIgnoreCase(CSV_GZ.suffix)) {
             fmt = BeamEventsFileFormats.CSV_GZ;
+        } else if (format.equalsIgnoreCase(BINARY.suffix)) {
+            fmt = BeamEventsFileFormats.BINARY;
         }
         return Optional.ofNullable(fmt);
     }
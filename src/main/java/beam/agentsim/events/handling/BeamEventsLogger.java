@@ -6,6 +6,7 @@ import beam.utils.DebugLib;
 import org.matsim.api.core.v01.events.*;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.controler.MatsimServices;
+import org.matsim.core.events.algorithms.EventWriter;
 
 import java.util.*;
 
@@ -17,21 +18,23 @@ class BeamEventsLogger {
     private final EventsManager eventsManager;
     private final MatsimServices matsimServices;
     private final BeamServices beamServices;
-    private final List<BeamEventsWriterBase> writers = new ArrayList<>();
+    private final List<EventWriter> writers = new ArrayList<>();
     private final Set<Class<?>> eventsToLog = new HashSet<>();
     private final List<BeamEventsFileFormats> eventsFileFormatsArray = new ArrayList<>();
+    private final boolean parallelGzip;
 
     BeamEventsLogger(BeamServices beamServices, MatsimServices matsimServices, EventsManager eventsManager) {
         this.beamServices = beamServices;
         this.matsimServices = matsimServices;
         this.eventsManager = eventsManager;
+        this.parallelGzip = beamServices.beamConfig().beam().outputs().parallelGzip();
         setEventsFileFormats();
         overrideDefaultLoggerSetup();
         createEventsWriters();
     }
 
     void iterationEnds() {
-        for (BeamEventsWriterBase writer : writers) {
+        for (EventWriter writer : writers) {
             writer.closeFile();
             eventsManager.removeHandler(writer);
         }
@@ -45,11 +48,18 @@ class BeamEventsLogger {
         if (writeThisIteration) {
             matsimServices.getControlerIO().createIterationDirectory(iterationNumber);
             String eventsFileBasePath = matsimServices.getControlerIO().getIterationFilename(iterationNumber, "events");
+            final boolean asyncWriter = beamServices.beamConfig().beam().outputs().events().asyncWriter();
+            final int asyncWriterQueueCapacity = beamServices.beamConfig().beam().outputs().events().asyncWriterQueueCapacity();
             for (BeamEventsFileFormats fmt : eventsFileFormatsArray) {
-                BeamEventsWriterBase newWriter;
-                newWriter = createEventWriterForClassAndFormat(eventsFileBasePath, null, fmt);
-                writers.add(newWriter);
-                eventsManager.addHandler(newWriter);
+                BeamEventsWriterBase newWriter = createEventWriterForClassAndFormat(eventsFileBasePath, null, fmt);
+                if (asyncWriter) {
+                    AsyncBeamEventsWriter asyncBeamEventsWriter = new AsyncBeamEventsWriter(newWriter, asyncWriterQueueCapacity);
+                    writers.add(asyncBeamEventsWriter);
+                    eventsManager.addHandler(asyncBeamEventsWriter);
+                } else {
+                    writers.add(newWriter);
+                    eventsManager.addHandler(newWriter);
+                }
             }
         }
     }
@@ -60,7 +70,12 @@ class BeamEventsLogger {
         if (fmt == BeamEventsFileFormats.XML || fmt == BeamEventsFileFormats.XML_GZ) {
             return new BeamEventsWriterXML(path, this, beamServices, theClass);
         } else if (fmt == BeamEventsFileFormats.CSV || fmt == BeamEventsFileFormats.CSV_GZ) {
+            if (beamServices.beamConfig().beam().outputs().events().bufferedCsvWriter()) {
+                return new BufferedBeamEventsWriterCSV(path, this, beamServices, theClass);
+            }
             return new BeamEventsWriterCSV(path, this, beamServices, theClass);
+        } else if (fmt == BeamEventsFileFormats.BINARY) {
+            return new BeamEventsWriterBinary(path, this, beamServices, theClass);
         }
         return null;
     }
@@ -70,6 +85,10 @@ class BeamEventsLogger {
         return eventsToLog.contains(aClass);
     }
 
+    boolean useParallelGzip() {
+        return parallelGzip;
+    }
+
     Set<Class<?>> getAllEventsToLog() {
         return eventsToLog;
     }
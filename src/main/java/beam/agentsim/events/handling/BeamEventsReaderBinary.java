@@ -0,0 +1,110 @@
+package beam.agentsim.events.handling;
+
+import org.matsim.api.core.v01.events.GenericEvent;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static beam.agentsim.events.handling.BinaryEventsFormat.*;
+
+/**
+ * Streams the events of a file written by {@link BeamEventsWriterBinary}.
+ * <p>
+ * Like {@link org.matsim.core.events.MatsimEventsReader} does for event types it does not know, events are replayed as
+ * {@link GenericEvent}s carrying all written attributes.
+ */
+public class BeamEventsReaderBinary implements Closeable {
+
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+
+    private final DataInputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+    private long previousTime = 0;
+    private byte[] stringBuffer = new byte[256];
+
+    public BeamEventsReaderBinary(String filePath) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath), INPUT_BUFFER_SIZE));
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            in.close();
+            throw new IOException("Not a binary events file: " + filePath, e);
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            in.close();
+            throw new IOException("Not a binary events file: " + filePath);
+        }
+    }
+
+    /**
+     * Reads all events of the file and passes them to the handler, in the order they were written.
+     */
+    public static void replay(String filePath, BasicEventHandler handler) throws IOException {
+        try (BeamEventsReaderBinary reader = new BeamEventsReaderBinary(filePath)) {
+            GenericEvent event;
+            while ((event = reader.next()) != null) {
+                handler.handleEvent(event);
+            }
+        }
+    }
+
+    /**
+     * @return the next event, or null if the end of the file was reached
+     */
+    public GenericEvent next() throws IOException {
+        while (true) {
+            int tag = in.read();
+            switch (tag) {
+                case -1:
+                    return null;
+                case DEFINE_STRING:
+                    dictionary.add(readString());
+                    break;
+                case EVENT_INTEGRAL_TIME:
+                    previousTime += zigZagDecode(readVarLong(in));
+                    return readEvent(previousTime);
+                case EVENT_FRACTIONAL_TIME:
+                    return readEvent(in.readDouble());
+                default:
+                    throw new IOException("Unexpected record tag " + tag);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private GenericEvent readEvent(double time) throws IOException {
+        GenericEvent event = new GenericEvent(dictionary.get((int) readVarLong(in)), time);
+        Map<String, String> attributes = event.getAttributes();
+        int numAttributes = (int) readVarLong(in);
+        for (int i = 0; i < numAttributes; i++) {
+            String key = dictionary.get((int) readVarLong(in));
+            int valueId = (int) readVarLong(in);
+            attributes.put(key, valueId == INLINE_VALUE ? readString() : dictionary.get(valueId - 1));
+        }
+        return event;
+    }
+
+    private String readString() throws IOException {
+        int length = (int) readVarLong(in);
+        if (length > stringBuffer.length) {
+            stringBuffer = new byte[Math.max(length, 2 * stringBuffer.length)];
+        }
+        in.readFully(stringBuffer, 0, length);
+        return new String(stringBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -1,12 +1,15 @@
 package beam.agentsim.events.handling;
 
 import beam.sim.BeamServices;
+import beam.utils.ParallelGzipOutputStream;
 import org.matsim.api.core.v01.events.Event;
 import org.matsim.core.events.algorithms.EventWriter;
 import org.matsim.core.events.handler.BasicEventHandler;
 import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.io.UncheckedIOException;
 
 import java.io.BufferedWriter;
+import java.io.IOException;
 
 /**
  * BEAM
@@ -21,17 +24,39 @@ public class BeamEventsWriterBase implements EventWriter, BasicEventHandler {
     public BeamEventsWriterBase(String outfilename, BeamEventsLogger beamEventLogger, BeamServices beamServices, Class<?> eventTypeToLog) {
         this.beamEventLogger = beamEventLogger;
         this.beamServices = beamServices;
-        this.outWriter = IOUtils.getBufferedWriter(outfilename);
+        this.outWriter = beamEventLogger.useParallelGzip() ? getParallelGzipWriter(outfilename) : IOUtils.getBufferedWriter(outfilename);
         this.eventTypeToLog = eventTypeToLog;
     }
 
+    /**
+     * For writers that manage their own (non character based) output, {@link #outWriter} stays null
+     */
+    protected BeamEventsWriterBase(BeamEventsLogger beamEventLogger, BeamServices beamServices, Class<?> eventTypeToLog) {
+        this.beamEventLogger = beamEventLogger;
+        this.beamServices = beamServices;
+        this.outWriter = null;
+        this.eventTypeToLog = eventTypeToLog;
+    }
+
+    private static BufferedWriter getParallelGzipWriter(String outfilename) {
+        try {
+            return ParallelGzipOutputStream.getBufferedWriter(outfilename);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @Override
     public void handleEvent(final Event event) {
-        if ((eventTypeToLog == null && beamEventLogger.shouldLogThisEventType(event.getClass())) || eventTypeToLog == event.getClass()) {
+        if (shouldWriteEvent(event)) {
             writeEvent(event);
         }
     }
 
+    boolean shouldWriteEvent(final Event event) {
+        return (eventTypeToLog == null && beamEventLogger.shouldLogThisEventType(event.getClass())) || eventTypeToLog == event.getClass();
+    }
+
 
     @Override
     public void closeFile() {
@@ -0,0 +1,139 @@
+package beam.agentsim.events.handling;
+
+import beam.sim.BeamServices;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.utils.io.UncheckedIOException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static beam.agentsim.events.handling.BinaryEventsFormat.*;
+
+/**
+ * Writes events in the compact binary format described in {@link BinaryEventsFormat}.
+ * Use {@link BeamEventsReaderBinary} to replay the file.
+ */
+public class BeamEventsWriterBinary extends BeamEventsWriterBase {
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private long previousTime = 0;
+    private int[] keyIds = new int[32];
+    private int[] valueIds = new int[32];
+    private String[] inlineValues = new String[32];
+
+    BeamEventsWriterBinary(String outfilename, BeamEventsLogger eventLogger, BeamServices beamServices, Class<?> eventTypeToLog) {
+        super(eventLogger, beamServices, eventTypeToLog);
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outfilename), OUTPUT_BUFFER_SIZE));
+            this.out.write(MAGIC);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void closeFile() {
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected void writeEvent(Event event) {
+        try {
+            double time = event.getTime();
+            String derivedTime = Double.toString(time);
+            String type = event.getEventType();
+            int typeId = defineIfAbsent(type);
+
+            // dictionary entries have to be defined before the event record referencing them
+            Map<String, String> eventAttributes = event.getAttributes();
+            ensureCapacity(eventAttributes.size());
+            int numAttributes = 0;
+            for (Map.Entry<String, String> attribute : eventAttributes.entrySet()) {
+                String key = attribute.getKey();
+                String value = attribute.getValue();
+                if ((key.equals(Event.ATTRIBUTE_TIME) && derivedTime.equals(value))
+                        || (key.equals(Event.ATTRIBUTE_TYPE) && type.equals(value))) {
+                    continue;
+                }
+                keyIds[numAttributes] = defineIfAbsent(key);
+                valueIds[numAttributes] = valueIdOf(value);
+                inlineValues[numAttributes] = valueIds[numAttributes] == INLINE_VALUE ? value : null;
+                numAttributes++;
+            }
+
+            if (time == Math.rint(time) && Math.abs(time) < (1L << 53)) {
+                long integralTime = (long) time;
+                out.writeByte(EVENT_INTEGRAL_TIME);
+                writeVarLong(out, zigZagEncode(integralTime - previousTime));
+                previousTime = integralTime;
+            } else {
+                out.writeByte(EVENT_FRACTIONAL_TIME);
+                out.writeDouble(time);
+            }
+            writeVarLong(out, typeId);
+            writeVarLong(out, numAttributes);
+            for (int i = 0; i < numAttributes; i++) {
+                writeVarLong(out, keyIds[i]);
+                writeVarLong(out, valueIds[i]);
+                if (valueIds[i] == INLINE_VALUE) {
+                    writeString(inlineValues[i]);
+                    inlineValues[i] = null;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return dictionary id + 1 of the value, or {@link BinaryEventsFormat#INLINE_VALUE} if it is to be written inline
+     */
+    private int valueIdOf(String value) throws IOException {
+        Integer id = dictionary.get(value);
+        if (id != null) {
+            return id + 1;
+        }
+        if (value.length() > MAX_DICTIONARY_VALUE_LENGTH || dictionary.size() >= MAX_DICTIONARY_SIZE) {
+            return INLINE_VALUE;
+        }
+        return defineIfAbsent(value) + 1;
+    }
+
+    private int defineIfAbsent(String str) throws IOException {
+        Integer id = dictionary.get(str);
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.put(str, id);
+            out.writeByte(DEFINE_STRING);
+            writeString(str);
+        }
+        return id;
+    }
+
+    private void writeString(String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private void ensureCapacity(int numAttributes) {
+        if (numAttributes > keyIds.length) {
+            keyIds = Arrays.copyOf(keyIds, numAttributes);
+            valueIds = Arrays.copyOf(valueIds, numAttributes);
+            inlineValues = Arrays.copyOf(inlineValues, numAttributes);
+        }
+    }
+}
@@ -9,7 +9,10 @@ import org.matsim.core.utils.io.UncheckedIOException;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,7 +21,9 @@ import java.util.Set;
  */
 public class BeamEventsWriterCSV extends BeamEventsWriterBase {
 
-    private final LinkedHashMap<String, Integer> attributeToColumnIndexMapping = new LinkedHashMap<>();
+    protected final LinkedHashMap<String, Integer> attributeToColumnIndexMapping = new LinkedHashMap<>();
+    // attributes declared by each registered event class, in declaration order
+    protected final Map<Class<?>, List<String>> registeredClassAttributes = new HashMap<>();
 
     BeamEventsWriterCSV(String outfilename, BeamEventsLogger eventLogger, BeamServices beamServices, Class<?> eventTypeToLog) {
         super(outfilename, eventLogger, beamServices, eventTypeToLog);
@@ -105,6 +110,7 @@ public class BeamEventsWriterCSV extends BeamEventsWriterBase {
     }
 
     private void registerClass(Class cla) {
+        List<String> classAttributes = registeredClassAttributes.computeIfAbsent(cla, c -> new ArrayList<>());
         // ScalaEvent classes are from scala, so we have to have special treatment for them
         // scala's val and var are not actual fields, but methods (getters and setters)
         if (ScalaEvent.class.isAssignableFrom(cla)) {
@@ -117,6 +123,7 @@ public class BeamEventsWriterCSV extends BeamEventsWriterBase {
                         // Call static method
                         String value = (String)method.invoke(null);
                         attributeToColumnIndexMapping.put(value, 0);
+                        classAttributes.add(value);
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
@@ -130,7 +137,9 @@ public class BeamEventsWriterCSV extends BeamEventsWriterBase {
                         (field.getName().startsWith("VERBOSE_") && (eventTypeToLog == null || !field.getName().startsWith("VERBOSE_")))
                 ) {
                     try {
-                        attributeToColumnIndexMapping.put(field.get(null).toString(), 0);
+                        String value = field.get(null).toString();
+                        attributeToColumnIndexMapping.put(value, 0);
+                        classAttributes.add(value);
                     } catch (IllegalArgumentException | IllegalAccessException e) {
                         e.printStackTrace();
                     }
@@ -0,0 +1,76 @@
+package beam.agentsim.events.handling;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Layout of the binary events log written by {@link BeamEventsWriterBinary} and read by {@link BeamEventsReaderBinary}.
+ * <p>
+ * The file starts with {@link #MAGIC} followed by a sequence of records, each introduced by a tag byte:
+ * <ul>
+ * <li>{@link #DEFINE_STRING}: the next dictionary entry, as a length prefixed UTF-8 string. Entries are numbered
+ * in the order they are defined and are always defined before they are first referenced.</li>
+ * <li>{@link #EVENT_INTEGRAL_TIME}: an event whose time is a whole number of seconds, stored as zig-zag varint delta
+ * to the time of the previous integral event.</li>
+ * <li>{@link #EVENT_FRACTIONAL_TIME}: an event whose time is stored as a raw double.</li>
+ * </ul>
+ * After the time, an event holds the dictionary id of its type, the number of attributes and, for every attribute,
+ * the dictionary id of its name and its value. A value is written as varint {@code id + 1} if it is in the dictionary,
+ * or as {@code 0} followed by the length prefixed UTF-8 string otherwise. The "time" and "type" attributes are not
+ * stored unless they differ from what {@link org.matsim.api.core.v01.events.Event#getAttributes()} would derive.
+ */
+final class BinaryEventsFormat {
+
+    static final byte[] MAGIC = {'B', 'E', 'A', 'M', 'E', 'V', 'T', '1'};
+
+    static final int DEFINE_STRING = 1;
+    static final int EVENT_INTEGRAL_TIME = 2;
+    static final int EVENT_FRACTIONAL_TIME = 3;
+
+    static final int INLINE_VALUE = 0;
+
+    /**
+     * Values longer than this (e.g. link id lists) are written inline, since they hardly ever repeat
+     */
+    static final int MAX_DICTIONARY_VALUE_LENGTH = 64;
+
+    /**
+     * Once the dictionary holds this many entries, new attribute values are written inline
+     */
+    static final int MAX_DICTIONARY_SIZE = 1 << 22;
+
+    private BinaryEventsFormat() {
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Malformed varint");
+            }
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,137 @@
+package beam.agentsim.events.handling;
+
+import beam.sim.BeamServices;
+import beam.utils.DebugLib;
+import org.matsim.api.core.v01.events.Event;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CSV events writer that avoids per-event allocations and flushes.
+ * <p>
+ * The column index of every attribute is resolved once per event class (at registration time, and completed on the
+ * first event that carries attributes not declared by its class, e.g. inherited time/type of scala events), the row
+ * buffer is reused across events and the underlying writer is only flushed when {@link #FLUSH_THRESHOLD_CHARS}
+ * characters were written since the last flush, or when the file is closed.
+ */
+public class BufferedBeamEventsWriterCSV extends BeamEventsWriterCSV {
+
+    static final int FLUSH_THRESHOLD_CHARS = 8 * 1024 * 1024;
+
+    private static final int SKIPPED_COLUMN = -1;
+
+    private final Map<Class<?>, ColumnLayout> columnLayouts = new HashMap<>();
+    private final String[] row;
+    private int charsSinceFlush = 0;
+
+    BufferedBeamEventsWriterCSV(String outfilename, BeamEventsLogger eventLogger, BeamServices beamServices, Class<?> eventTypeToLog) {
+        super(outfilename, eventLogger, beamServices, eventTypeToLog);
+        this.row = new String[attributeToColumnIndexMapping.size()];
+        for (Map.Entry<Class<?>, List<String>> entry : registeredClassAttributes.entrySet()) {
+            ColumnLayout layout = new ColumnLayout();
+            for (String attribute : entry.getValue()) {
+                layout.add(attribute, columnIndexOf(attribute, entry.getKey()));
+            }
+            columnLayouts.put(entry.getKey(), layout);
+        }
+    }
+
+    @Override
+    protected void writeEvent(Event event) {
+        Map<String, String> eventAttributes = event.getAttributes();
+        ColumnLayout layout = columnLayouts.computeIfAbsent(event.getClass(), c -> new ColumnLayout());
+
+        Arrays.fill(row, null);
+        int found = 0;
+        for (int i = 0; i < layout.size; i++) {
+            String value = eventAttributes.get(layout.attributes[i]);
+            if (value != null) {
+                found++;
+                if (layout.columns[i] != SKIPPED_COLUMN) {
+                    row[layout.columns[i]] = value;
+                }
+            }
+        }
+        if (found < eventAttributes.size()) {
+            // the event carries attributes its class did not declare: extend the layout once, then write them
+            for (Map.Entry<String, String> attribute : eventAttributes.entrySet()) {
+                if (!layout.contains(attribute.getKey())) {
+                    int column = columnIndexOf(attribute.getKey(), event.getClass());
+                    layout.add(attribute.getKey(), column);
+                    if (column != SKIPPED_COLUMN) {
+                        row[column] = attribute.getValue();
+                    }
+                }
+            }
+        }
+
+        try {
+            for (int i = 0; i < row.length; i++) {
+                String str = row[i];
+                if (str != null) {
+                    if (str.indexOf(',') >= 0) {
+                        this.outWriter.append('"');
+                        this.outWriter.append(str);
+                        this.outWriter.append('"');
+                        charsSinceFlush += str.length() + 2;
+                    } else {
+                        this.outWriter.append(str);
+                        charsSinceFlush += str.length();
+                    }
+                }
+                this.outWriter.append(i < row.length - 1 ? ',' : '\n');
+            }
+            charsSinceFlush += row.length;
+            if (charsSinceFlush >= FLUSH_THRESHOLD_CHARS) {
+                this.outWriter.flush();
+                charsSinceFlush = 0;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private int columnIndexOf(String attribute, Class<?> eventClass) {
+        if (this.eventTypeToLog != null && attribute.equals(Event.ATTRIBUTE_TYPE)) {
+            return SKIPPED_COLUMN;
+        }
+        Integer column = attributeToColumnIndexMapping.get(attribute);
+        if (column == null) {
+            DebugLib.stopSystemAndReportInconsistency("unkown attribute:" + attribute + ";class:" + eventClass);
+            return SKIPPED_COLUMN;
+        }
+        return column;
+    }
+
+    private static final class ColumnLayout {
+        private String[] attributes = new String[8];
+        private int[] columns = new int[8];
+        private int size = 0;
+
+        private void add(String attribute, int column) {
+            if (contains(attribute)) {
+                return;
+            }
+            if (size == attributes.length) {
+                attributes = Arrays.copyOf(attributes, size * 2);
+                columns = Arrays.copyOf(columns, size * 2);
+            }
+            attributes[size] = attribute;
+            columns[size] = column;
+            size++;
+        }
+
+        private boolean contains(String attribute) {
+            for (int i = 0; i < size; i++) {
+                if (attributes[i].equals(attribute)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
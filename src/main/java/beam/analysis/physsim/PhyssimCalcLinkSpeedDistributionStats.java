@@ -11,10 +11,8 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.category.CategoryDataset;
 import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.data.general.DatasetUtilities;
-import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
-import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
 import org.matsim.core.utils.misc.Time;
 
@@ -60,12 +58,22 @@ public class PhyssimCalcLinkSpeedDistributionStats {
      * @param iteration the count of the current iteration
      */
     public void notifyIterationEnds(int iteration,TravelTimeCalculator travelTimeCalculator) {
+        notifyIterationEnds(iteration, travelTimeCalculator, null);
+    }
+
+    /**
+     * Iteration stop notification event listener
+     * @param iteration the count of the current iteration
+     * @param linkSpeedRatios speed ratios shared with the other physsim statistics, computed here if null or computed
+     *                        for other bins
+     */
+    public void notifyIterationEnds(int iteration,TravelTimeCalculator travelTimeCalculator,PhyssimLinkSpeedRatios linkSpeedRatios) {
         //generate the graph input for the free flow speed distribution
         Map<Integer, Integer> processedSpeedDistributionData = generateInputDataForFreeFlowSpeedGraph(noOfBins,this.network);
         //generate  data matrix for the free flow speed distribution
         double[][] speedDataMatrix = buildDataSetFromSpeedData(processedSpeedDistributionData);
         //generate the graph input for the link efficiencies
-        Map<Double, Integer> processedSpeedDistributionAsPercentageData = generateInputDataForLinkEfficiencies(travelTimeCalculator);
+        Map<Double, Integer> processedSpeedDistributionAsPercentageData = generateInputDataForLinkEfficiencies(travelTimeCalculator, linkSpeedRatios);
         //generate category data set for free flow speed distribution
         CategoryDataset dataSetForSpeed = DatasetUtilities.createCategoryDataset("Free Speed", "", speedDataMatrix);
         //generate the category data set for link efficiencies
@@ -178,24 +186,27 @@ public class PhyssimCalcLinkSpeedDistributionStats {
 
     /**
      * Generates input data used to generate frequencies of link efficiencies
-     * @return input generated data as map ( speed in m/s -> frequency )
+     * @return input generated data as map ( efficiency in % -> frequency ), sorted by efficiency
      */
-    private Map<Double, Integer> generateInputDataForLinkEfficiencies(TravelTimeCalculator travelTimeCalculator) {
+    private Map<Double, Integer> generateInputDataForLinkEfficiencies(TravelTimeCalculator travelTimeCalculator, PhyssimLinkSpeedRatios linkSpeedRatios) {
         int binSize = 3600;
-        TravelTime travelTime = travelTimeCalculator.getLinkTravelTimes();
-        Map<Double, Integer> frequencyOfEfficiencies = new HashMap<>();
-        //for each bin
-        for (int idx = 0; idx < noOfBins; idx++) {
-            //for each link
-            for (Link link : this.network.getLinks().values()) {
-                double freeSpeed = link.getFreespeed(idx * binSize);
-                double linkLength = link.getLength();
-                double averageTime = travelTime.getLinkTravelTime(link, idx * binSize, null, null);
-                double averageSpeed = linkLength / averageTime;
-                //calculate the average speed of the link
-                double averageSpeedToFreeSpeedRatio = averageSpeed / freeSpeed;
-                Integer frequencyCount1 = frequencyOfEfficiencies.getOrDefault(averageSpeedToFreeSpeedRatio*100,0);
-                frequencyOfEfficiencies.put(averageSpeedToFreeSpeedRatio*100,frequencyCount1+1);
+        if (linkSpeedRatios == null || !linkSpeedRatios.hasBins(noOfBins, binSize)) {
+            linkSpeedRatios = PhyssimLinkSpeedRatios.compute(network, travelTimeCalculator.getLinkTravelTimes(), noOfBins, binSize);
+        }
+        //efficiencies of every link in every bin, sorted so that equal values are next to each other
+        double[] efficiencies = new double[linkSpeedRatios.getNumberOfLinks() * noOfBins];
+        for (int linkIndex = 0; linkIndex < linkSpeedRatios.getNumberOfLinks(); linkIndex++) {
+            for (int idx = 0; idx < noOfBins; idx++) {
+                efficiencies[linkIndex * noOfBins + idx] = linkSpeedRatios.getRatio(linkIndex, idx) * 100;
+            }
+        }
+        Arrays.parallelSort(efficiencies);
+        Map<Double, Integer> frequencyOfEfficiencies = new LinkedHashMap<>();
+        int start = 0;
+        for (int i = 1; i <= efficiencies.length; i++) {
+            if (i == efficiencies.length || Double.compare(efficiencies[i], efficiencies[start]) != 0) {
+                frequencyOfEfficiencies.put(efficiencies[start], i - start);
+                start = i;
             }
         }
         return frequencyOfEfficiencies;
@@ -6,10 +6,8 @@ import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.category.CategoryDataset;
 import org.jfree.data.general.DatasetUtilities;
-import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
-import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
 import org.matsim.core.utils.misc.Time;
 
@@ -19,12 +17,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * @author Bhavya Latha Bandaru.
@@ -64,7 +60,15 @@ public class PhyssimCalcLinkSpeedStats {
 
     // implement the iteration start notification class
     public void notifyIterationEnds(int iteration, TravelTimeCalculator travelTimeCalculator) {
-        Map<Integer, Double> processedData = generateInputDataForGraph(travelTimeCalculator);
+        notifyIterationEnds(iteration, travelTimeCalculator, null);
+    }
+
+    /**
+     * @param linkSpeedRatios speed ratios shared with the other physsim statistics, computed here if null or computed
+     *                        for other bins
+     */
+    public void notifyIterationEnds(int iteration, TravelTimeCalculator travelTimeCalculator, PhyssimLinkSpeedRatios linkSpeedRatios) {
+        Map<Integer, Double> processedData = generateInputDataForGraph(travelTimeCalculator, linkSpeedRatios);
         CategoryDataset dataSet = generateGraphCategoryDataSet(processedData);
         if (this.outputDirectoryHierarchy != null) {
             //If not running in test mode , write output to a csv file
@@ -100,30 +104,28 @@ public class PhyssimCalcLinkSpeedStats {
     }
 
     // generate the data required as input to generate a graph
-    private Map<Integer, Double> generateInputDataForGraph(TravelTimeCalculator travelTimeCalculator) {
-        TravelTime travelTime = travelTimeCalculator.getLinkTravelTimes();
-
-        return IntStream.range(0, noOfBins).parallel().boxed()
-                .collect(Collectors.toMap(Function.identity(),
-                        idx -> calcLinkAvgSpeedPercentage(travelTime, idx)));
-    }
-
-    private double calcLinkAvgSpeedPercentage(TravelTime travelTime, int idx) {
-        List<Double> avgSpeeds = this.network.getLinks().values().parallelStream()
-                .filter(link -> IntStream.range(0, noOfBins).parallel() // filter links with average speed >= freeSpeed
-                        .anyMatch(i -> calcSpeedRatio(i, link, travelTime) >= 1))
-                .map(link -> calcSpeedRatio(idx, link, travelTime))
-                .collect(Collectors.toList());
-        return (avgSpeeds.stream().mapToDouble(Double::doubleValue).sum() / avgSpeeds.size()) * 100;
+    private Map<Integer, Double> generateInputDataForGraph(TravelTimeCalculator travelTimeCalculator, PhyssimLinkSpeedRatios linkSpeedRatios) {
+        if (linkSpeedRatios == null || !linkSpeedRatios.hasBins(noOfBins, binSize)) {
+            linkSpeedRatios = PhyssimLinkSpeedRatios.compute(network, travelTimeCalculator.getLinkTravelTimes(), noOfBins, binSize);
+        }
+        Map<Integer, Double> processedData = new HashMap<>();
+        for (int idx = 0; idx < noOfBins; idx++) {
+            processedData.put(idx, calcLinkAvgSpeedPercentage(linkSpeedRatios, idx));
+        }
+        return processedData;
     }
 
-    private double calcSpeedRatio(int idx, Link link, TravelTime travelTime) {
-
-        double freeSpeed = link.getFreespeed(idx * binSize);
-        double linkLength = link.getLength();
-        double averageTime = travelTime.getLinkTravelTime(link, idx * binSize, null, null);
-        double averageSpeed = linkLength / averageTime;
-        return averageSpeed / freeSpeed;
+    // average over the links with average speed >= freeSpeed in any bin
+    private double calcLinkAvgSpeedPercentage(PhyssimLinkSpeedRatios linkSpeedRatios, int idx) {
+        double sum = 0;
+        int count = 0;
+        for (int linkIndex = 0; linkIndex < linkSpeedRatios.getNumberOfLinks(); linkIndex++) {
+            if (linkSpeedRatios.reachesFreeSpeed(linkIndex)) {
+                sum += linkSpeedRatios.getRatio(linkIndex, idx);
+                count++;
+            }
+        }
+        return (sum / count) * 100;
     }
 
     //create the Category Data set
@@ -197,7 +199,7 @@ public class PhyssimCalcLinkSpeedStats {
 
     public double getAverageSpeedPercentageOfBin(int bin, TravelTimeCalculator travelTimeCalculator) {
         try {
-            Map<Integer, Double> processedData = generateInputDataForGraph(travelTimeCalculator);
+            Map<Integer, Double> processedData = generateInputDataForGraph(travelTimeCalculator, null);
             double[][] dataSet = buildDataSetFromProcessedData(processedData);
             double[] averageSpeedPercentages = dataSet[0];
             return averageSpeedPercentages[bin];
@@ -208,7 +210,7 @@ public class PhyssimCalcLinkSpeedStats {
     }
 
     public double[] getAverageSpeedPercentagesOfAllBins(TravelTimeCalculator travelTimeCalculator) {
-        Map<Integer, Double> processedData = generateInputDataForGraph(travelTimeCalculator);
+        Map<Integer, Double> processedData = generateInputDataForGraph(travelTimeCalculator, null);
         double[][] dataSet = buildDataSetFromProcessedData(processedData);
         return dataSet[0];
     }
@@ -2,6 +2,7 @@ package beam.analysis.physsim;
 
 import beam.sim.config.BeamConfig;
 import beam.utils.BeamCalcLinkStats;
+import beam.utils.ParallelGzipOutputStream;
 import beam.utils.VolumesAnalyzerFixed;
 import org.jfree.chart.*;
 import org.jfree.chart.plot.CategoryPlot;
@@ -9,12 +10,10 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.category.CategoryDataset;
 import org.jfree.data.general.DatasetUtilities;
 import org.matsim.analysis.VolumesAnalyzer;
-import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
-import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
 import org.matsim.core.utils.misc.Time;
 import org.slf4j.Logger;
@@ -34,6 +33,11 @@ public class PhyssimCalcLinkStats {
     private static int noOfBins = 24;
     private static int binSize = 3600;
 
+    /**
+     * Relative speed categories from 0 up to this value are counted in plain arrays, the rare other ones in the map.
+     */
+    private static final int DENSE_RELATIVE_SPEED_CATEGORIES = 64;
+
     // Static Initializer
     static {
         colors.add(Color.GREEN);
@@ -48,10 +52,10 @@ public class PhyssimCalcLinkStats {
     }
 
     /**
-     * The outer map contains the relativeSpeed a double value as the key that defines a relativeSpeed category.
-     * The inner map contains the bin id as the key and the frequency as the value for the particular relativeSpeed category.
+     * The map contains the relativeSpeed a double value as the key that defines a relativeSpeed category.
+     * The array contains the frequency per bin for the particular relativeSpeed category.
      */
-    private Map<Double, Map<Integer, Integer>> relativeSpeedFrequenciesPerBin = new HashMap<>();
+    private Map<Double, int[]> relativeSpeedFrequenciesPerBin = new HashMap<>();
     private BeamConfig beamConfig;
     private Network network;
     private OutputDirectoryHierarchy controllerIO;
@@ -78,13 +82,24 @@ public class PhyssimCalcLinkStats {
     }
 
     public void notifyIterationEnds(int iteration, TravelTimeCalculator travelTimeCalculator) {
+        notifyIterationEnds(iteration, travelTimeCalculator, null);
+    }
+
+    /**
+     * @param linkSpeedRatios speed ratios shared with the other physsim statistics, computed here if null or computed
+     *                        for other bins
+     */
+    public void notifyIterationEnds(int iteration, TravelTimeCalculator travelTimeCalculator, PhyssimLinkSpeedRatios linkSpeedRatios) {
 
         linkStats.addData(volumes, travelTimeCalculator.getLinkTravelTimes());
-        processData(iteration, travelTimeCalculator);
+        if (linkSpeedRatios == null || !linkSpeedRatios.hasBins(noOfBins, binSize)) {
+            linkSpeedRatios = PhyssimLinkSpeedRatios.compute(network, travelTimeCalculator.getLinkTravelTimes(), noOfBins, binSize);
+        }
+        processData(linkSpeedRatios);
         CategoryDataset dataset = buildAndGetGraphCategoryDataset();
         if (this.controllerIO != null) {
             if (isNotTestMode() && writeLinkStats(iteration)) {
-                linkStats.writeFile(this.controllerIO.getIterationFilename(iteration, "linkstats.csv.gz"));
+                writeLinkStatsFile(this.controllerIO.getIterationFilename(iteration, "linkstats.csv.gz"));
             }
             if (beamConfig.beam().outputs().writeGraphs()){
                 createModesFrequencyGraph(dataset, iteration);
@@ -93,6 +108,21 @@ public class PhyssimCalcLinkStats {
 
     }
 
+    private void writeLinkStatsFile(String filePath) {
+        if (beamConfig.beam().outputs().parallelGzip()) {
+            // BeamCalcLinkStats only takes a file name, so write it uncompressed and compress it on all cores afterwards
+            String uncompressedFilePath = filePath.substring(0, filePath.length() - ".gz".length());
+            linkStats.writeFile(uncompressedFilePath);
+            try {
+                ParallelGzipOutputStream.compressFile(uncompressedFilePath);
+            } catch (IOException e) {
+                log.error("Could not compress " + uncompressedFilePath, e);
+            }
+        } else {
+            linkStats.writeFile(filePath);
+        }
+    }
+
     private boolean isNotTestMode() {
         return controllerIO != null;
     }
@@ -106,39 +136,38 @@ public class PhyssimCalcLinkStats {
         return interval == 1 || (interval > 0 && iterationNumber % interval == 0);
     }
 
-    private void processData(int iteration, TravelTimeCalculator travelTimeCalculator) {
-
+    private void processData(PhyssimLinkSpeedRatios linkSpeedRatios) {
+        int[][] denseFrequencies = new int[DENSE_RELATIVE_SPEED_CATEGORIES][];
 
-        TravelTime travelTime = travelTimeCalculator.getLinkTravelTimes();
+        for (int linkIndex = 0; linkIndex < linkSpeedRatios.getNumberOfLinks(); linkIndex++) {
+            for (int idx = 0; idx < noOfBins; idx++) {
 
-        for (int idx = 0; idx < noOfBins; idx++) {
+                double averageSpeedToFreeSpeedRatio = linkSpeedRatios.getRatio(linkIndex, idx);
 
+                long relativeSpeed = Math.round(averageSpeedToFreeSpeedRatio * 10) / 10;
 
-            for (Link link : this.network.getLinks().values()) {
-
-
-                double freeSpeed = link.getFreespeed(idx * binSize);
-
-                double linkLength = link.getLength();
-
-                double averageTime = travelTime.getLinkTravelTime(link, idx * binSize, null, null);
-
-                double averageSpeed = linkLength / averageTime;
-
-                double averageSpeedToFreeSpeedRatio = averageSpeed / freeSpeed;
-
-                double relativeSpeed = Math.round(averageSpeedToFreeSpeedRatio * 10) / 10;
-
-                Map<Integer, Integer> hoursDataMap = relativeSpeedFrequenciesPerBin.get(relativeSpeed);
-
-                if (hoursDataMap != null) {
-                    hoursDataMap.merge(idx, 1, (a, b) -> a + b);
+                int[] frequencies;
+                if (relativeSpeed >= 0 && relativeSpeed < DENSE_RELATIVE_SPEED_CATEGORIES) {
+                    frequencies = denseFrequencies[(int) relativeSpeed];
+                    if (frequencies == null) {
+                        frequencies = new int[noOfBins];
+                        denseFrequencies[(int) relativeSpeed] = frequencies;
+                    }
                 } else {
-                    hoursDataMap = new HashMap<>();
-                    hoursDataMap.put(idx, 1);
+                    frequencies = relativeSpeedFrequenciesPerBin.computeIfAbsent((double) relativeSpeed, k -> new int[noOfBins]);
                 }
+                frequencies[idx]++;
+            }
+        }
 
-                relativeSpeedFrequenciesPerBin.put(relativeSpeed, hoursDataMap);
+        for (int relativeSpeed = 0; relativeSpeed < DENSE_RELATIVE_SPEED_CATEGORIES; relativeSpeed++) {
+            if (denseFrequencies[relativeSpeed] != null) {
+                relativeSpeedFrequenciesPerBin.merge((double) relativeSpeed, denseFrequencies[relativeSpeed], (a, b) -> {
+                    for (int idx = 0; idx < a.length; idx++) {
+                        a[idx] += b[idx];
+                    }
+                    return a;
+                });
             }
         }
     }
@@ -181,19 +210,12 @@ public class PhyssimCalcLinkStats {
         for (int i = 0; i < relativeSpeedsCategoriesList.size(); i++) {
 
             Double relativeSpeedCategory = relativeSpeedsCategoriesList.get(i);
-            Map<Integer, Integer> relativeSpeedBins = relativeSpeedFrequenciesPerBin.get(relativeSpeedCategory);
+            int[] relativeSpeedBins = relativeSpeedFrequenciesPerBin.get(relativeSpeedCategory);
 
             double[] relativeSpeedFrequencyPerHour = new double[noOfBins];
-            int index = 0;
 
-            for (int binIndex = 0; binIndex < noOfBins; binIndex++) {
-                Integer hourFrequency = relativeSpeedBins.get(binIndex);
-                if (hourFrequency != null) {
-                    relativeSpeedFrequencyPerHour[index] = hourFrequency;
-                } else {
-                    relativeSpeedFrequencyPerHour[index] = 0;
-                }
-                index = index + 1;
+            for (int binIndex = 0; binIndex < noOfBins && binIndex < relativeSpeedBins.length; binIndex++) {
+                relativeSpeedFrequencyPerHour[binIndex] = relativeSpeedBins[binIndex];
             }
             dataset[i] = relativeSpeedFrequencyPerHour;
         }
@@ -0,0 +1,75 @@
+package beam.analysis.physsim;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * Ratio of average speed to free speed of every network link in every time bin.
+ * <p>
+ * The physsim link statistics all need this ratio; computing it once in a single pass over the links means the travel
+ * time of every link and bin is looked up only once per iteration instead of once per statistic. The pass runs on one
+ * thread because the matsim travel time calculator changes its data while it is read. Ratios are stored in a flat array
+ * at {@code linkIndex * noOfBins + bin}, links are numbered in the iteration order of the network.
+ */
+public class PhyssimLinkSpeedRatios {
+
+    private final int noOfBins;
+    private final int binSize;
+    private final double[] ratios;
+    private final boolean[] reachesFreeSpeed;
+
+    private PhyssimLinkSpeedRatios(int noOfLinks, int noOfBins, int binSize) {
+        this.noOfBins = noOfBins;
+        this.binSize = binSize;
+        this.ratios = new double[noOfLinks * noOfBins];
+        this.reachesFreeSpeed = new boolean[noOfLinks];
+    }
+
+    public static PhyssimLinkSpeedRatios compute(Network network, TravelTime travelTime, int noOfBins, int binSize) {
+        Link[] links = network.getLinks().values().toArray(new Link[0]);
+        PhyssimLinkSpeedRatios result = new PhyssimLinkSpeedRatios(links.length, noOfBins, binSize);
+        for (int linkIndex = 0; linkIndex < links.length; linkIndex++) {
+            Link link = links[linkIndex];
+            double linkLength = link.getLength();
+            int offset = linkIndex * noOfBins;
+            for (int idx = 0; idx < noOfBins; idx++) {
+                double freeSpeed = link.getFreespeed(idx * binSize);
+                double averageTime = travelTime.getLinkTravelTime(link, idx * binSize, null, null);
+                double averageSpeed = linkLength / averageTime;
+                double averageSpeedToFreeSpeedRatio = averageSpeed / freeSpeed;
+                result.ratios[offset + idx] = averageSpeedToFreeSpeedRatio;
+                if (averageSpeedToFreeSpeedRatio >= 1) {
+                    result.reachesFreeSpeed[linkIndex] = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if these ratios were computed for the given bins and can be used instead of computing them again
+     */
+    public boolean hasBins(int noOfBins, int binSize) {
+        return this.noOfBins == noOfBins && this.binSize == binSize;
+    }
+
+    public int getNumberOfLinks() {
+        return reachesFreeSpeed.length;
+    }
+
+    public int getNumberOfBins() {
+        return noOfBins;
+    }
+
+    public double getRatio(int linkIndex, int bin) {
+        return ratios[linkIndex * noOfBins + bin];
+    }
+
+    /**
+     * @return true if the average speed of the link is at least its free speed in any bin
+     */
+    public boolean reachesFreeSpeed(int linkIndex) {
+        return reachesFreeSpeed[linkIndex];
+    }
+}
@@ -7,19 +7,23 @@ import beam.analysis.IterationStatsProvider;
 import beam.analysis.physsim.PhyssimCalcLinkSpeedDistributionStats;
 import beam.analysis.physsim.PhyssimCalcLinkSpeedStats;
 import beam.analysis.physsim.PhyssimCalcLinkStats;
+import beam.analysis.physsim.PhyssimLinkSpeedRatios;
 import beam.analysis.via.EventWriterXML_viaCompatible;
 import beam.calibration.impl.example.CountsObjectiveFunction;
 import beam.physsim.jdeqsim.cacc.CACCSettings;
 import beam.physsim.jdeqsim.cacc.roadCapacityAdjustmentFunctions.Hao2018CaccRoadCapacityAdjustmentFunction;
 import beam.physsim.jdeqsim.cacc.roadCapacityAdjustmentFunctions.RoadCapacityAdjustmentFunction;
 import beam.physsim.jdeqsim.cacc.sim.JDEQSimulation;
+import beam.physsim.jdeqsim.parallel.PartitionedJDEQSimulation;
 import beam.router.BeamRouter;
 import beam.router.r5.R5RoutingWorker$;
 import beam.sim.BeamServices;
 import beam.sim.config.BeamConfig;
 import beam.sim.metrics.MetricsSupport;
 import beam.utils.DebugLib;
+import beam.utils.ParallelGzipOutputStream;
 import beam.utils.TravelTimeCalculatorHelper;
+import beam.utils.TravelTimeTable;
 import com.conveyal.r5.transit.TransportNetwork;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
@@ -31,6 +35,7 @@ import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
 import org.matsim.core.controler.events.IterationEndsEvent;
 import org.matsim.core.events.EventsManagerImpl;
+import org.matsim.core.events.ParallelEventsManagerImpl;
 import org.matsim.core.events.handler.BasicEventHandler;
 import org.matsim.core.gbl.MatsimRandom;
 import org.matsim.core.mobsim.jdeqsim.JDEQSimConfigGroup;
@@ -47,6 +52,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -70,6 +76,7 @@ public class AgentSimToPhysSimPlanConverter implements BasicEventHandler, Metric
     private final Logger log = LoggerFactory.getLogger(AgentSimToPhysSimPlanConverter.class);
     private final Scenario agentSimScenario;
     private Population jdeqsimPopulation;
+    private TravelTimeTable previousTravelTimeTable;
     private TravelTime previousTravelTime;
     private BeamServices beamServices;
 
@@ -122,7 +129,11 @@ public class AgentSimToPhysSimPlanConverter implements BasicEventHandler, Metric
         MutableScenario jdeqSimScenario = (MutableScenario) ScenarioUtils.createScenario(agentSimScenario.getConfig());
         jdeqSimScenario.setNetwork(agentSimScenario.getNetwork());
         jdeqSimScenario.setPopulation(jdeqsimPopulation);
-        EventsManager jdeqsimEvents = new EventsManagerImpl();
+        int numberOfEventHandlerThreads = beamConfig.beam().physsim().jdeqsim().numberOfEventHandlerThreads();
+        if (numberOfEventHandlerThreads > 1) {
+            log.info("Physsim events are handled on {} threads", numberOfEventHandlerThreads);
+        }
+        EventsManager jdeqsimEvents = createPhysSimEventsManager(numberOfEventHandlerThreads);
         TravelTimeCalculator travelTimeCalculator = new TravelTimeCalculator(agentSimScenario.getNetwork(), agentSimScenario.getConfig().travelTimeCalculator());
         jdeqsimEvents.addHandler(travelTimeCalculator);
         jdeqsimEvents.addHandler(new JDEQSimMemoryFootprint(beamConfig.beam().debug().debugEnabled()));
@@ -134,7 +145,7 @@ public class AgentSimToPhysSimPlanConverter implements BasicEventHandler, Metric
         EventWriterXML_viaCompatible eventsWriterXML = null;
         if (shouldWritePhysSimEvents(iterationNumber)) {
 
-            eventsWriterXML = new EventWriterXML_viaCompatible(controlerIO.getIterationFilename(iterationNumber, "physSimEvents.xml.gz"), beamConfig.beam().physsim().eventsForFullVersionOfVia());
+            eventsWriterXML = new EventWriterXML_viaCompatible(getCompressedOutputFilename(iterationNumber, "physSimEvents.xml.gz"), beamConfig.beam().physsim().eventsForFullVersionOfVia());
             jdeqsimEvents.addHandler(eventsWriterXML);
         }
 
@@ -179,33 +190,41 @@ public class AgentSimToPhysSimPlanConverter implements BasicEventHandler, Metric
         Collection<? extends Link> links = agentSimScenario.getNetwork().getLinks().values();
         int maxHour = (int) TimeUnit.SECONDS.toHours(agentSimScenario.getConfig().travelTimeCalculator().getMaxTime());
         TravelTime travelTimes = travelTimeCalculator.getLinkTravelTimes();
-        Map<String, double[]> map = TravelTimeCalculatorHelper.GetLinkIdToTravelTimeArray(links,
-                travelTimes, maxHour);
+        TravelTimeTable travelTimeTable;
 
         Integer startingIterationForTravelTimesMSA = beamConfig.beam().routing().startingIterationForTravelTimesMSA();
         if (startingIterationForTravelTimesMSA <= iterationNumber) {
-            map = processTravelTime(links, map, maxHour);
+            travelTimeTable = processTravelTime(links, travelTimes, maxHour,
+                    iterationNumber - startingIterationForTravelTimesMSA + 1);
             travelTimes = previousTravelTime;
+        } else {
+            travelTimeTable = TravelTimeCalculatorHelper.GetLinkTravelTimeTable(links, travelTimes, maxHour);
         }
 
-        router.tell(new BeamRouter.TryToSerialize(map), ActorRef.noSender());
-        router.tell(new BeamRouter.UpdateTravelTimeRemote(map), ActorRef.noSender());
+        router.tell(new BeamRouter.TryToSerialize(travelTimeTable), ActorRef.noSender());
+        router.tell(new BeamRouter.UpdateTravelTimeRemote(travelTimeTable), ActorRef.noSender());
         //################################################################################################################
         router.tell(new BeamRouter.UpdateTravelTimeLocal(travelTimes), ActorRef.noSender());
 
-        completableFutures.add(CompletableFuture.runAsync(() -> {
-            linkStatsGraph.notifyIterationEnds(iterationNumber, travelTimeCalculator);
+        // the speed ratios of all links and bins are computed once and shared by the three link statistics below
+        CompletableFuture<PhyssimLinkSpeedRatios> linkSpeedRatios = CompletableFuture.supplyAsync(() ->
+                PhyssimLinkSpeedRatios.compute(agentSimScenario.getNetwork(), travelTimeCalculator.getLinkTravelTimes(),
+                        linkSpeedStatsGraph.getNumberOfBins(), beamConfig.beam().physsim().linkStatsBinSize()));
+
+        completableFutures.add(linkSpeedRatios.thenAcceptAsync(ratios -> {
+            linkStatsGraph.notifyIterationEnds(iterationNumber, travelTimeCalculator, ratios);
             linkStatsGraph.clean();
         }));
 
-        completableFutures.add(CompletableFuture.runAsync(() -> linkSpeedStatsGraph.notifyIterationEnds(iterationNumber, travelTimeCalculator)));
+        completableFutures.add(linkSpeedRatios.thenAcceptAsync(ratios -> linkSpeedStatsGraph.notifyIterationEnds(iterationNumber, travelTimeCalculator, ratios)));
 
 
-        completableFutures.add(CompletableFuture.runAsync(() -> linkSpeedDistributionStatsGraph.notifyIterationEnds(iterationNumber, travelTimeCalculator)));
+        completableFutures.add(linkSpeedRatios.thenAcceptAsync(ratios -> linkSpeedDistributionStatsGraph.notifyIterationEnds(iterationNumber, travelTimeCalculator, ratios)));
 
         if (shouldWritePhysSimEvents(iterationNumber)) {
             assert eventsWriterXML != null;
             eventsWriterXML.closeFile();
+            compressOutputFileAsync(iterationNumber, "physSimEvents.xml.gz");
         }
 
         Road.setAllRoads(null);
@@ -227,6 +246,17 @@ public class AgentSimToPhysSimPlanConverter implements BasicEventHandler, Metric
 
     }
 
+    /**
+     * With more than one event handler thread, every handler still receives all events in simulation order, so results
+     * do not depend on the number of threads.
+     */
+    public static EventsManager createPhysSimEventsManager(int numberOfEventHandlerThreads) {
+        if (numberOfEventHandlerThreads > 1) {
+            return new ParallelEventsManagerImpl(numberOfEventHandlerThreads);
+        }
+        return new EventsManagerImpl();
+    }
+
     public org.matsim.core.mobsim.jdeqsim.JDEQSimulation getJDEQSimulation(MutableScenario jdeqSimScenario, BeamConfig beamConfig, EventsManager jdeqsimEvents) {
         JDEQSimConfigGroup config = new JDEQSimConfigGroup();
         config.setFlowCapacityFactor(beamConfig.beam().physsim().flowCapacityFactor());
@@ -258,6 +288,14 @@ public class AgentSimToPhysSimPlanConverter implements BasicEventHandler, Metric
             double speedAdjustmentFactor = beamConfig.beam().physsim().jdeqsim().cacc().speedAdjustmentFactor();
 
             jdeqSimulation = new JDEQSimulation(config, jdeqSimScenario, jdeqsimEvents, caccSettings, speedAdjustmentFactor);
+            if (beamConfig.beam().physsim().jdeqsim().numberOfPartitions() > 1) {
+                log.warn("The CACC physsim is not partitioned, it runs on one thread");
+            }
+        } else if (beamConfig.beam().physsim().jdeqsim().numberOfPartitions() > 1) {
+            log.info("CACC disabled, partitioned JDEQSim");
+            jdeqSimulation = new PartitionedJDEQSimulation(config, jdeqSimScenario, jdeqsimEvents,
+                    beamConfig.beam().physsim().jdeqsim().numberOfPartitions(),
+                    beamConfig.beam().physsim().jdeqsim().minimumLookaheadInSeconds());
         } else {
             log.info("CACC disabled");
             jdeqSimulation = new org.matsim.core.mobsim.jdeqsim.JDEQSimulation(config, jdeqSimScenario, jdeqsimEvents);
@@ -288,8 +326,35 @@ public class AgentSimToPhysSimPlanConverter implements BasicEventHandler, Metric
 
     private void writePhyssimPlans(IterationEndsEvent event) {
         if (shouldWritePlans(event.getIteration())) {
-            final String plansFilename = controlerIO.getIterationFilename(event.getIteration(), "physsimPlans.xml.gz");
-            completableFutures.add(CompletableFuture.runAsync(() -> new PopulationWriter(jdeqsimPopulation).write(plansFilename)));
+            final String plansFilename = getCompressedOutputFilename(event.getIteration(), "physsimPlans.xml.gz");
+            completableFutures.add(CompletableFuture.runAsync(() -> new PopulationWriter(jdeqsimPopulation).write(plansFilename))
+                    .thenRun(() -> compressOutputFile(event.getIteration(), "physsimPlans.xml.gz")));
+        }
+    }
+
+    /**
+     * With beam.outputs.parallelGzip the matsim writers, which only accept file names, write uncompressed files that
+     * are gzipped afterwards by {@link #compressOutputFile}
+     */
+    private String getCompressedOutputFilename(int iterationNumber, String gzFilename) {
+        String filename = controlerIO.getIterationFilename(iterationNumber, gzFilename);
+        return beamConfig.beam().outputs().parallelGzip() ? filename.substring(0, filename.length() - ".gz".length()) : filename;
+    }
+
+    private void compressOutputFileAsync(int iterationNumber, String gzFilename) {
+        if (beamConfig.beam().outputs().parallelGzip()) {
+            completableFutures.add(CompletableFuture.runAsync(() -> compressOutputFile(iterationNumber, gzFilename)));
+        }
+    }
+
+    private void compressOutputFile(int iterationNumber, String gzFilename) {
+        if (beamConfig.beam().outputs().parallelGzip()) {
+            String filename = getCompressedOutputFilename(iterationNumber, gzFilename);
+            try {
+                ParallelGzipOutputStream.compressFile(filename);
+            } catch (IOException e) {
+                log.error("Could not compress " + filename, e);
+            }
         }
     }
 
@@ -415,19 +480,24 @@ public class AgentSimToPhysSimPlanConverter implements BasicEventHandler, Metric
 
 
     ////
-    public Map<String, double[]> processTravelTime(Collection<? extends Link> links, Map<String, double[]> currentTravelTimeMap, int maxHour) {
+    /**
+     * Blends the current travel times into the ones of the previous iterations in a single pass over the links.
+     *
+     * @param numberOfAveragedIterations number of iterations averaged including the current one, used for the classic
+     *                                   MSA step size 1/n when {@code beam.routing.travelTimesMSAWeight} is not positive
+     */
+    public TravelTimeTable processTravelTime(Collection<? extends Link> links, TravelTime currentTravelTime, int maxHour,
+                                             int numberOfAveragedIterations) {
         int binSize = beamConfig.beam().agentsim().timeBinSize();
-        TravelTime currentTravelTime = TravelTimeCalculatorHelper.CreateTravelTimeCalculator(binSize, currentTravelTimeMap);
-
-        if (previousTravelTime == null) {
-            previousTravelTime = currentTravelTime;
-            return currentTravelTimeMap;
-        } else {
-            Map<String, double[]> map = TravelTimeCalculatorHelper.GetLinkIdToTravelTimeAvgArray(links, currentTravelTime, previousTravelTime, maxHour);
-            TravelTime averageTravelTimes = TravelTimeCalculatorHelper.CreateTravelTimeCalculator(binSize, map);
-
-            previousTravelTime = averageTravelTimes;
-            return map;
+        double weightOfCurrent = beamConfig.beam().routing().travelTimesMSAWeight();
+        if (weightOfCurrent <= 0) {
+            weightOfCurrent = 1.0 / numberOfAveragedIterations;
         }
+
+        TravelTimeTable table = TravelTimeCalculatorHelper.GetLinkTravelTimeMSATable(links, currentTravelTime,
+                previousTravelTimeTable, weightOfCurrent, maxHour);
+        previousTravelTimeTable = table;
+        previousTravelTime = TravelTimeCalculatorHelper.CreateTravelTimeCalculator(binSize, table);
+        return table;
     }
 }
\ No newline at end of file
@@ -1,21 +1,20 @@
 package beam.physsim.jdeqsim.cacc.sim;
 
 import beam.physsim.jdeqsim.cacc.roadCapacityAdjustmentFunctions.RoadCapacityAdjustmentFunction;
-import beam.utils.DebugLib;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.core.mobsim.jdeqsim.DeadlockPreventionMessage;
 import org.matsim.core.mobsim.jdeqsim.Scheduler;
 
 import java.lang.reflect.Field;
-import java.util.HashMap;
 import java.util.LinkedList;
 
 public class Road extends org.matsim.core.mobsim.jdeqsim.Road {
 
     public double CACC;
     private static RoadCapacityAdjustmentFunction roadCapacityAdjustmentFunction;
-    private HashMap<Vehicle,Double> caccShareEncounteredByVehicle=new HashMap<>();
     private double speedAdjustmentFactor;
+    // number of CACC vehicles in carsOnTheRoad, kept up to date on enter and leave
+    private int numCACCOnTheRoad = 0;
 
 
     public Road(Scheduler scheduler, Link link , double speedAdjustmentFactor) {
@@ -31,53 +30,14 @@ public class Road extends org.matsim.core.mobsim.jdeqsim.Road {
     }
 
     public void updateCACCShareEncounteredByVehicle(Vehicle vehicle) {
-
-        double numCACC = 0;
-        for (org.matsim.core.mobsim.jdeqsim.Vehicle veh : carsOnTheRoad) {
-            if (((Vehicle) veh).isCACCVehicle()) {
-                numCACC++;
-            }
-        }
-
-        if (carsOnTheRoad.size()>=2 & vehicle.getOwnerPerson().getId().toString().contains("SF")){
-            DebugLib.emptyFunctionForSettingBreakPoint();
-        }
-
-        if (carsOnTheRoad.size()>=2 & carsOnTheRoad.size()!=numCACC && numCACC!=0){
-            DebugLib.emptyFunctionForSettingBreakPoint();
-        }
-
-        if (carsOnTheRoad.size()>0 && !vehicle.getOwnerPerson().getId().toString().contains("bus")){
-            DebugLib.emptyFunctionForSettingBreakPoint();
-        }
-
         // if we would set this to 0, no car would be worse than CACC and have a worse road capacity, which does not make sense
         double caccShare=getInitialCACCShare(vehicle);
 
         if (carsOnTheRoad.size()!= 1) {
-            caccShare = (1.0 * numCACC / carsOnTheRoad.size());
+            caccShare = (1.0 * numCACCOnTheRoad / carsOnTheRoad.size());
         }
 
-        if (caccShare>0 && caccShare<1.0){
-            DebugLib.emptyFunctionForSettingBreakPoint();
-            //System.out.println("updateCACCShareEncounteredByVehicle - linkId:" + getLink().getId() + ";vehicle:" + vehicle.getOwnerPerson().getId() + ";carsOnTheRoad.size():" + carsOnTheRoad.size() + "numCACC:" + numCACC + ";caccShare:" + caccShare);
-
-        }
-
-        //System.out.println("linkId:" + getLink().getId() + ";vehicle:" + vehicle.getOwnerPerson().getId() + ";carsOnTheRoad.size():" + carsOnTheRoad.size() + "numCACC:" + numCACC + ";caccShare:" + caccShare);
-        //System.out.print("carsOnTheRoad: " );
-
-
-        for (org.matsim.core.mobsim.jdeqsim.Vehicle v: carsOnTheRoad){
-            //System.out.print(v.getOwnerPerson().getId() + ", ");
-        }
-
-
-        //System.out.println();
-        //System.out.println();
-
-        caccShareEncounteredByVehicle.put(vehicle,caccShare);
-
+        vehicle.setCACCShareEncountered(caccShare);
     }
 
 
@@ -111,11 +71,7 @@ public class Road extends org.matsim.core.mobsim.jdeqsim.Road {
 
 
     private double getInverseCapacity(org.matsim.core.mobsim.jdeqsim.Vehicle vehicle){
-        double caccShare=getInitialCACCShare((Vehicle) vehicle);
-
-        if (caccShareEncounteredByVehicle.containsKey(vehicle)){
-            caccShare=caccShareEncounteredByVehicle.remove(vehicle);
-        }
+        double caccShare=((Vehicle) vehicle).takeCACCShareEncountered(getInitialCACCShare((Vehicle) vehicle));
 
         return (1/roadCapacityAdjustmentFunction.getCapacityWithCACCPerSecond(link,caccShare)*config.getFlowCapacityFactor());
     }
@@ -124,41 +80,54 @@ public class Road extends org.matsim.core.mobsim.jdeqsim.Road {
 
 
 
+    // private state of org.matsim.core.mobsim.jdeqsim.Road needed by preLeaveRoad, looked up once per class instead
+    // of once per leaving vehicle
+    private static final Field GAP_FIELD = getParentField("gap");
+    private static final Field INTERESTED_IN_ENTERING_ROAD_FIELD = getParentField("interestedInEnteringRoad");
+    private static final Field DEADLOCK_PREVENTION_MESSAGES_FIELD = getParentField("deadlockPreventionMessages");
+    private static final Field TIME_OF_LAST_ENTERING_VEHICLE_FIELD = getParentField("timeOfLastEnteringVehicle");
+    private static final Field GAP_TRAVEL_TIME_FIELD = getParentField("gapTravelTime");
+
     private LinkedList<Double> gap_;
     private LinkedList<org.matsim.core.mobsim.jdeqsim.Vehicle> interestedInEnteringRoad_;
     LinkedList<DeadlockPreventionMessage> deadlockPreventionMessages_;
     private double timeOfLastEnteringVehicle_ = Double.MIN_VALUE;
     private double gapTravelTime_ = 0;
-    private double inverseInFlowCapacity_ = 0;
 
 
-    private Object getField(Object obj, String fieldName){
-        Field field= null;
+    private static Field getParentField(String fieldName) {
         try {
-            field = org.matsim.core.mobsim.jdeqsim.Road.class.getDeclaredField(fieldName);
+            Field field = org.matsim.core.mobsim.jdeqsim.Road.class.getDeclaredField(fieldName);
             field.setAccessible(true);
-            return field.get(obj);
-        } catch (Exception e) {
-            e.printStackTrace();
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("org.matsim.core.mobsim.jdeqsim.Road has no field " + fieldName, e);
         }
+    }
 
-        return null;
-
+    @SuppressWarnings("unchecked")
+    void readParentState() {
+        try {
+            gap_ = (LinkedList<Double>) GAP_FIELD.get(this);
+            interestedInEnteringRoad_ = (LinkedList<org.matsim.core.mobsim.jdeqsim.Vehicle>) INTERESTED_IN_ENTERING_ROAD_FIELD.get(this);
+            deadlockPreventionMessages_ = (LinkedList<DeadlockPreventionMessage>) DEADLOCK_PREVENTION_MESSAGES_FIELD.get(this);
+            timeOfLastEnteringVehicle_ = TIME_OF_LAST_ENTERING_VEHICLE_FIELD.getDouble(this);
+            gapTravelTime_ = GAP_TRAVEL_TIME_FIELD.getDouble(this);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
 
     private void preLeaveRoad(org.matsim.core.mobsim.jdeqsim.Vehicle vehicle, double simTime){
-        gap_= (LinkedList<Double>) getField(this , "gap");
-        interestedInEnteringRoad_=(LinkedList<org.matsim.core.mobsim.jdeqsim.Vehicle>) getField(this,"interestedInEnteringRoad");
-        deadlockPreventionMessages_=(LinkedList<DeadlockPreventionMessage>) getField(this,"deadlockPreventionMessages");
-        timeOfLastEnteringVehicle_ =(Double) getField(this,"timeOfLastEnteringVehicle");
-        gapTravelTime_ =(Double)getField(this,"gapTravelTime");
-        inverseInFlowCapacity_ =(Double)getField(this,"inverseInFlowCapacity");
+        readParentState();
 
         assert (this.carsOnTheRoad.getFirst() == vehicle);
         assert (this.interestedInEnteringRoad_.size()==this.deadlockPreventionMessages_.size());
 
-        this.carsOnTheRoad.removeFirst();
+        if (((Vehicle) this.carsOnTheRoad.removeFirst()).isCACCVehicle()) {
+            numCACCOnTheRoad--;
+        }
         this.earliestDepartureTimeOfCar.removeFirst();
         this.timeOfLastLeavingVehicle = simTime;
 
@@ -214,6 +183,9 @@ public class Road extends org.matsim.core.mobsim.jdeqsim.Road {
     private void markCarAsProcessed(Vehicle vehicle){
         this.noOfCarsPromisedToEnterRoad--;
         this.carsOnTheRoad.add(vehicle);
+        if (vehicle.isCACCVehicle()) {
+            numCACCOnTheRoad++;
+        }
     }
 
 
@@ -21,7 +21,9 @@ import org.matsim.core.population.routes.NetworkRoute;
 public class Vehicle extends org.matsim.core.mobsim.jdeqsim.Vehicle {
 
 	private static final Logger log = Logger.getLogger(Vehicle.class);
-    private final Boolean isCACCVehicle;
+    private final boolean isCACCVehicle;
+    // CACC share the vehicle encountered when entering its current road, NaN if not set or already used
+    private double caccShareEncountered = Double.NaN;
 
 	//CACC : Cooperative Adaptive Cruise Control
 	public Vehicle(Scheduler scheduler, Person ownerPerson, PlansConfigGroup.ActivityDurationInterpretation activityDurationInterpretation, Boolean isCACCVehicle) {
@@ -30,7 +32,20 @@ public class Vehicle extends org.matsim.core.mobsim.jdeqsim.Vehicle {
 		this.isCACCVehicle=isCACCVehicle;
 	}
 
-	public Boolean isCACCVehicle() {
+	public boolean isCACCVehicle() {
 		return isCACCVehicle;
 	}
+
+	void setCACCShareEncountered(double caccShare) {
+		this.caccShareEncountered = caccShare;
+	}
+
+	/**
+	 * @return the CACC share set when entering the current road, or defaultShare if it was already taken
+	 */
+	double takeCACCShareEncountered(double defaultShare) {
+		double caccShare = Double.isNaN(caccShareEncountered) ? defaultShare : caccShareEncountered;
+		caccShareEncountered = Double.NaN;
+		return caccShare;
+	}
 }
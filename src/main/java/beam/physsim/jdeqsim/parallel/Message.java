@@ -0,0 +1,186 @@
+package beam.physsim.jdeqsim.parallel;
+
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+
+/**
+ * What happens at a time in a partition. Messages of the same time are handled by priority, the same ones as in the
+ * matsim JDEQSim, and then in the order they were scheduled in, so every run handles them in the same order.
+ */
+abstract class Message implements Comparable<Message> {
+
+    static final int PRIORITY_LEAVE_ROAD = 200;
+    static final int PRIORITY_END_LEG = 150;
+    static final int PRIORITY_START_LEG = 125;
+    static final int PRIORITY_ENTER_ROAD = 100;
+
+    // may be moved to the start of the next window when sent to another partition
+    double time;
+    final int partition;
+    private final int priority;
+    long sequenceNumber;
+    private boolean cancelled = false;
+
+    Message(double time, int partition, int priority) {
+        this.time = time;
+        this.partition = partition;
+        this.priority = priority;
+    }
+
+    abstract void handle(Partition partition);
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public int compareTo(Message other) {
+        int byTime = Double.compare(time, other.time);
+        if (byTime != 0) {
+            return byTime;
+        }
+        int byPriority = Integer.compare(other.priority, priority);
+        if (byPriority != 0) {
+            return byPriority;
+        }
+        return Long.compare(sequenceNumber, other.sequenceNumber);
+    }
+
+    static final class StartLeg extends Message {
+        private final Vehicle vehicle;
+
+        StartLeg(double time, int partition, Vehicle vehicle) {
+            super(time, partition, PRIORITY_START_LEG);
+            this.vehicle = vehicle;
+        }
+
+        @Override
+        void handle(Partition partition) {
+            vehicle.startLeg(partition, time);
+        }
+    }
+
+    static final class EnterRoad extends Message {
+        private final Vehicle vehicle;
+        private final Road road;
+
+        EnterRoad(double time, Vehicle vehicle, Road road) {
+            super(time, road.entryPartition, PRIORITY_ENTER_ROAD);
+            this.vehicle = vehicle;
+            this.road = road;
+        }
+
+        @Override
+        void handle(Partition partition) {
+            if (vehicle.isOnFirstRoadOfLeg()) {
+                partition.processEvent(new VehicleEntersTrafficEvent(time, vehicle.person.getId(), road.link.getId(),
+                        vehicle.id, vehicle.getLegMode(), 1.0));
+            } else {
+                partition.processEvent(new LinkEnterEvent(time, vehicle.id, road.link.getId()));
+            }
+            vehicle.enterRoad(partition, time, road);
+        }
+    }
+
+    /**
+     * The car reaches the exit side of a road between two partitions
+     */
+    static final class ReachRoadEnd extends Message {
+        private final Vehicle vehicle;
+        private final Road road;
+
+        ReachRoadEnd(double earliestDepartureTime, Vehicle vehicle, Road road) {
+            super(earliestDepartureTime, road.exitPartition, PRIORITY_ENTER_ROAD);
+            this.vehicle = vehicle;
+            this.road = road;
+        }
+
+        @Override
+        void handle(Partition partition) {
+            road.reachRoadEnd(partition, vehicle, time);
+        }
+    }
+
+    static final class EndRoad extends Message {
+        private final Vehicle vehicle;
+
+        EndRoad(double time, Vehicle vehicle, Road road) {
+            super(time, road.exitPartition, PRIORITY_ENTER_ROAD);
+            this.vehicle = vehicle;
+        }
+
+        @Override
+        void handle(Partition partition) {
+            vehicle.endRoad(partition, time);
+        }
+    }
+
+    static final class LeaveRoad extends Message {
+        private final Vehicle vehicle;
+        private final Road road;
+
+        LeaveRoad(double time, Vehicle vehicle, Road road) {
+            super(time, road.exitPartition, PRIORITY_LEAVE_ROAD);
+            this.vehicle = vehicle;
+            this.road = road;
+        }
+
+        @Override
+        void handle(Partition partition) {
+            partition.processEvent(new LinkLeaveEvent(time, vehicle.id, road.link.getId()));
+            road.leaveRoad(partition, vehicle, time);
+        }
+    }
+
+    /**
+     * The space of a car that left a road between two partitions reaches the entry side of the road
+     */
+    static final class FreeSpace extends Message {
+        private final Road road;
+
+        FreeSpace(double arrivalTimeOfGap, Road road) {
+            super(arrivalTimeOfGap, road.entryPartition, PRIORITY_LEAVE_ROAD);
+            this.road = road;
+        }
+
+        @Override
+        void handle(Partition partition) {
+            road.freeSpace(partition, time);
+        }
+    }
+
+    static final class DeadlockPrevention extends Message {
+        final Vehicle vehicle;
+        private final Road road;
+
+        DeadlockPrevention(double time, Vehicle vehicle, Road road) {
+            super(time, road.entryPartition, PRIORITY_ENTER_ROAD);
+            this.vehicle = vehicle;
+            this.road = road;
+        }
+
+        @Override
+        void handle(Partition partition) {
+            road.preventDeadlock(partition, this);
+        }
+    }
+
+    static final class EndLeg extends Message {
+        private final Vehicle vehicle;
+
+        EndLeg(double time, int partition, Vehicle vehicle) {
+            super(time, partition, PRIORITY_END_LEG);
+            this.vehicle = vehicle;
+        }
+
+        @Override
+        void handle(Partition partition) {
+            vehicle.endLeg(partition, time);
+        }
+    }
+}
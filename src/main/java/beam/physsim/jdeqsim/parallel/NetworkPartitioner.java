@@ -0,0 +1,153 @@
+package beam.physsim.jdeqsim.parallel;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.population.routes.NetworkRoute;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the nodes of a network into regions of about the same number of nodes, cutting across the longer side of the
+ * bounding box again and again. The nodes at both ends of a link are kept in the same region if cars would cross the
+ * link faster than the minimum lookahead, and so are the nodes where a route jumps from one link to another one that
+ * doesn't start there.
+ */
+public final class NetworkPartitioner {
+
+    private NetworkPartitioner() {
+    }
+
+    /**
+     * The time it takes at the least for a car to reach the end of the link, or for its space to get back to the start
+     */
+    public static double lookahead(Link link, double gapTravelSpeed) {
+        return Math.min(link.getLength() / link.getFreespeed(), link.getLength() / gapTravelSpeed);
+    }
+
+    public static Map<Id<Node>, Integer> partition(Network network, Collection<? extends Person> persons,
+                                                   int numberOfPartitions, double minimumLookahead,
+                                                   double gapTravelSpeed) {
+        List<Node> nodes = new ArrayList<>(network.getNodes().values());
+        nodes.sort(Comparator.comparing(Node::getId));
+        Map<Id<Node>, Integer> indexOfNode = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            indexOfNode.put(nodes.get(i).getId(), i);
+        }
+
+        int[] regionOfNode = new int[nodes.size()];
+        cut(nodes, indexOfNode, 0, numberOfPartitions, regionOfNode);
+
+        int[] groupOfNode = new int[nodes.size()];
+        for (int i = 0; i < groupOfNode.length; i++) {
+            groupOfNode[i] = i;
+        }
+        for (Link link : network.getLinks().values()) {
+            if (lookahead(link, gapTravelSpeed) < minimumLookahead) {
+                join(groupOfNode, indexOfNode.get(link.getFromNode().getId()),
+                        indexOfNode.get(link.getToNode().getId()));
+            }
+        }
+        for (Person person : persons) {
+            for (PlanElement planElement : person.getSelectedPlan().getPlanElements()) {
+                if (planElement instanceof Leg && ((Leg) planElement).getRoute() instanceof NetworkRoute) {
+                    joinJumps(network, (NetworkRoute) ((Leg) planElement).getRoute(), indexOfNode, groupOfNode);
+                }
+            }
+        }
+
+        // a group goes to the region most of its nodes are in
+        Map<Integer, int[]> numberOfNodesPerRegion = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            numberOfNodesPerRegion.computeIfAbsent(groupOf(groupOfNode, i), group -> new int[numberOfPartitions])
+                    [regionOfNode[i]]++;
+        }
+        Map<Id<Node>, Integer> partitionOfNode = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            int[] numberOfNodes = numberOfNodesPerRegion.get(groupOf(groupOfNode, i));
+            int region = 0;
+            for (int r = 1; r < numberOfPartitions; r++) {
+                if (numberOfNodes[r] > numberOfNodes[region]) {
+                    region = r;
+                }
+            }
+            partitionOfNode.put(nodes.get(i).getId(), region);
+        }
+        return partitionOfNode;
+    }
+
+    private static void cut(List<Node> nodes, Map<Id<Node>, Integer> indexOfNode, int firstRegion,
+                            int numberOfRegions, int[] regionOfNode) {
+        if (numberOfRegions == 1 || nodes.size() <= 1) {
+            for (Node node : nodes) {
+                regionOfNode[indexOfNode.get(node.getId())] = firstRegion;
+            }
+            return;
+        }
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (Node node : nodes) {
+            minX = Math.min(minX, node.getCoord().getX());
+            maxX = Math.max(maxX, node.getCoord().getX());
+            minY = Math.min(minY, node.getCoord().getY());
+            maxY = Math.max(maxY, node.getCoord().getY());
+        }
+        Comparator<Node> byCoordinate = maxX - minX >= maxY - minY
+                ? Comparator.comparingDouble(node -> node.getCoord().getX())
+                : Comparator.comparingDouble(node -> node.getCoord().getY());
+        List<Node> sortedNodes = new ArrayList<>(nodes);
+        sortedNodes.sort(byCoordinate.thenComparing(Node::getId));
+        int numberOfFirstRegions = numberOfRegions / 2;
+        int numberOfFirstNodes = (int) ((long) sortedNodes.size() * numberOfFirstRegions / numberOfRegions);
+        cut(sortedNodes.subList(0, numberOfFirstNodes), indexOfNode, firstRegion, numberOfFirstRegions, regionOfNode);
+        cut(sortedNodes.subList(numberOfFirstNodes, sortedNodes.size()), indexOfNode,
+                firstRegion + numberOfFirstRegions, numberOfRegions - numberOfFirstRegions, regionOfNode);
+    }
+
+    private static void joinJumps(Network network, NetworkRoute route, Map<Id<Node>, Integer> indexOfNode,
+                                  int[] groupOfNode) {
+        List<Id<Link>> linkIds = new ArrayList<>();
+        linkIds.add(route.getStartLinkId());
+        linkIds.addAll(route.getLinkIds());
+        // like the vehicles, which only drive on the one link of a route that starts and ends on it
+        if (!route.getLinkIds().isEmpty() || !route.getEndLinkId().equals(route.getStartLinkId())) {
+            linkIds.add(route.getEndLinkId());
+        }
+        for (int i = 1; i < linkIds.size(); i++) {
+            Node end = network.getLinks().get(linkIds.get(i - 1)).getToNode();
+            Node start = network.getLinks().get(linkIds.get(i)).getFromNode();
+            if (end != start) {
+                join(groupOfNode, indexOfNode.get(end.getId()), indexOfNode.get(start.getId()));
+            }
+        }
+    }
+
+    private static int groupOf(int[] groupOfNode, int node) {
+        int group = node;
+        while (groupOfNode[group] != group) {
+            group = groupOfNode[group];
+        }
+        // shorten the way for the next time
+        while (groupOfNode[node] != group) {
+            int next = groupOfNode[node];
+            groupOfNode[node] = group;
+            node = next;
+        }
+        return group;
+    }
+
+    private static void join(int[] groupOfNode, int node, int otherNode) {
+        int group = groupOf(groupOfNode, node);
+        int otherGroup = groupOf(groupOfNode, otherNode);
+        groupOfNode[Math.max(group, otherGroup)] = Math.min(group, otherGroup);
+    }
+}
@@ -0,0 +1,88 @@
+package beam.physsim.jdeqsim.parallel;
+
+import org.matsim.api.core.v01.events.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The messages and the events of one region of the network. It is simulated by one thread at a time, window by
+ * window; messages for other partitions are kept until the window is over.
+ */
+final class Partition {
+
+    final int index;
+
+    private final PriorityQueue<Message> queue = new PriorityQueue<>();
+    private long numberOfScheduledMessages = 0;
+    private final List<List<Message>> outboxes = new ArrayList<>();
+    private List<Event> events = new ArrayList<>();
+    private double windowEnd = Double.NEGATIVE_INFINITY;
+
+    Partition(int index, int numberOfPartitions) {
+        this.index = index;
+        for (int i = 0; i < numberOfPartitions; i++) {
+            outboxes.add(new ArrayList<>());
+        }
+    }
+
+    void schedule(Message message) {
+        if (message.partition == index) {
+            message.sequenceNumber = numberOfScheduledMessages++;
+            queue.add(message);
+        } else {
+            // the other partition may be simulating this window right now, so it gets the message in the next one
+            if (message.time < windowEnd) {
+                message.time = windowEnd;
+            }
+            outboxes.get(message.partition).add(message);
+        }
+    }
+
+    void processEvent(Event event) {
+        events.add(event);
+    }
+
+    /**
+     * Handles the messages before the end of the window
+     */
+    void simulateUntil(double windowEnd) {
+        this.windowEnd = windowEnd;
+        while (!queue.isEmpty() && queue.peek().time < windowEnd) {
+            Message message = queue.poll();
+            if (!message.isCancelled()) {
+                message.handle(this);
+            }
+        }
+    }
+
+    double nextMessageTime() {
+        while (!queue.isEmpty() && queue.peek().isCancelled()) {
+            queue.poll();
+        }
+        return queue.isEmpty() ? Double.POSITIVE_INFINITY : queue.peek().time;
+    }
+
+    boolean hasMessagesBefore(double time) {
+        return nextMessageTime() < time;
+    }
+
+    /**
+     * @return the events of the last window, in the order of their time
+     */
+    List<Event> takeEvents() {
+        List<Event> eventsOfWindow = events;
+        events = new ArrayList<>();
+        return eventsOfWindow;
+    }
+
+    /**
+     * @return the messages for the partition, in the order they were sent in
+     */
+    List<Message> takeMessagesFor(int partition) {
+        List<Message> messages = outboxes.get(partition);
+        outboxes.set(partition, new ArrayList<>());
+        return messages;
+    }
+}
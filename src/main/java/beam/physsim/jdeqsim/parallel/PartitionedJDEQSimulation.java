@@ -0,0 +1,170 @@
+package beam.physsim.jdeqsim.parallel;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.mobsim.jdeqsim.JDEQSimConfigGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * JDEQSim with the network split into regions that are simulated on their own threads.
+ * <p>
+ * The regions are synchronized conservatively: they all simulate a window of time that starts at the earliest message
+ * of any region and is as long as the lookahead, the shortest time a car or a gap takes to cross a link between two
+ * regions. Whatever a region sends to another one in a window happens after the window, so the regions don't wait for
+ * each other within a window. The events of a window are passed on in the order of their time once all regions are
+ * done with it, while the next window is being simulated.
+ * <p>
+ * Within a region a road works exactly like in the matsim JDEQSim. On a road between regions a car that left frees its
+ * space at the start of the road only once the gap has traveled back, see {@link Road}. A car that starts its next leg
+ * in another region within the same window departs at the end of the window. Results don't depend on the threads: the
+ * same plans and number of regions always give the same events.
+ */
+public class PartitionedJDEQSimulation extends org.matsim.core.mobsim.jdeqsim.JDEQSimulation {
+
+    private static final Logger log = LoggerFactory.getLogger(PartitionedJDEQSimulation.class);
+
+    private final EventsManager eventsManager;
+    private final double simulationEndTime;
+    private final List<Partition> partitions = new ArrayList<>();
+    private final double lookahead;
+
+    public PartitionedJDEQSimulation(JDEQSimConfigGroup config, Scenario scenario, EventsManager events,
+                                     int numberOfPartitions, double minimumLookahead) {
+        super(config, scenario, events);
+        if (minimumLookahead <= 0) {
+            throw new IllegalArgumentException("The regions need a positive lookahead, not " + minimumLookahead);
+        }
+        this.eventsManager = events;
+        this.simulationEndTime = config.getSimulationEndTime();
+
+        List<Person> persons = new ArrayList<>(scenario.getPopulation().getPersons().values());
+        persons.sort(Comparator.comparing(Person::getId));
+        Map<Id<Node>, Integer> partitionOfNode = NetworkPartitioner.partition(scenario.getNetwork(), persons,
+                numberOfPartitions, minimumLookahead, config.getGapTravelSpeed());
+
+        double capacityPeriod = scenario.getNetwork().getCapacityPeriod();
+        Map<Id<Link>, Road> roads = new HashMap<>();
+        double shortestLookahead = Double.POSITIVE_INFINITY;
+        int numberOfRoadsBetweenPartitions = 0;
+        for (Link link : scenario.getNetwork().getLinks().values()) {
+            Road road = new Road(link, partitionOfNode.get(link.getFromNode().getId()),
+                    partitionOfNode.get(link.getToNode().getId()), capacityPeriod, config);
+            roads.put(link.getId(), road);
+            if (road.isBetweenPartitions()) {
+                shortestLookahead = Math.min(shortestLookahead,
+                        NetworkPartitioner.lookahead(link, config.getGapTravelSpeed()));
+                numberOfRoadsBetweenPartitions++;
+            }
+        }
+        this.lookahead = shortestLookahead;
+
+        for (int i = 0; i < numberOfPartitions; i++) {
+            partitions.add(new Partition(i, numberOfPartitions));
+        }
+        for (Person person : persons) {
+            Message.StartLeg departure = new Vehicle(person, roads, activityDurationInterpretation).firstDeparture();
+            if (departure != null) {
+                partitions.get(departure.partition).schedule(departure);
+            }
+        }
+        log.info("Partitioned JDEQSim with {} regions, {} links between them and a lookahead of {} s",
+                numberOfPartitions, numberOfRoadsBetweenPartitions, lookahead);
+    }
+
+    @Override
+    public void run() {
+        eventsManager.initProcessing();
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(partitions.size(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("physsim-partition-%d").build());
+        try {
+            List<List<Event>> eventsOfPreviousWindow = new ArrayList<>();
+            int numberOfWindows = 0;
+            double windowStart;
+            while ((windowStart = nextMessageTime()) < simulationEndTime) {
+                double windowEnd = Math.min(windowStart + lookahead, simulationEndTime);
+                List<Future<?>> simulatedPartitions = new ArrayList<>();
+                for (Partition partition : partitions) {
+                    if (partition.hasMessagesBefore(windowEnd)) {
+                        simulatedPartitions.add(executor.submit(() -> partition.simulateUntil(windowEnd)));
+                    }
+                }
+                processInTimeOrder(eventsOfPreviousWindow);
+                for (Future<?> simulatedPartition : simulatedPartitions) {
+                    simulatedPartition.get();
+                }
+                eventsOfPreviousWindow = takeEventsAndDeliverMessages();
+                numberOfWindows++;
+            }
+            processInTimeOrder(eventsOfPreviousWindow);
+            log.info("Time needed for one iteration (only JDEQSimulation part): {} [ms] in {} windows",
+                    System.currentTimeMillis() - start, numberOfWindows);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while simulating the physsim", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not simulate a partition of the physsim", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        eventsManager.finishProcessing();
+    }
+
+    private double nextMessageTime() {
+        double nextMessageTime = Double.POSITIVE_INFINITY;
+        for (Partition partition : partitions) {
+            nextMessageTime = Math.min(nextMessageTime, partition.nextMessageTime());
+        }
+        return nextMessageTime;
+    }
+
+    // Messages are delivered by partition they come from, so they are scheduled in the same order in every run
+    private List<List<Event>> takeEventsAndDeliverMessages() {
+        List<List<Event>> eventsOfWindow = new ArrayList<>();
+        for (Partition from : partitions) {
+            eventsOfWindow.add(from.takeEvents());
+            for (Partition to : partitions) {
+                if (to != from) {
+                    from.takeMessagesFor(to.index).forEach(to::schedule);
+                }
+            }
+        }
+        return eventsOfWindow;
+    }
+
+    // Events of the same time are passed on by partition
+    private void processInTimeOrder(List<List<Event>> eventsOfPartitions) {
+        int[] next = new int[eventsOfPartitions.size()];
+        while (true) {
+            int earliest = -1;
+            for (int i = 0; i < eventsOfPartitions.size(); i++) {
+                if (next[i] < eventsOfPartitions.get(i).size() && (earliest < 0
+                        || eventsOfPartitions.get(i).get(next[i]).getTime()
+                        < eventsOfPartitions.get(earliest).get(next[earliest]).getTime())) {
+                    earliest = i;
+                }
+            }
+            if (earliest < 0) {
+                return;
+            }
+            eventsManager.processEvent(eventsOfPartitions.get(earliest).get(next[earliest]++));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package beam.physsim.jdeqsim.parallel;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.mobsim.jdeqsim.JDEQSimConfigGroup;
+
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+
+/**
+ * A road of the JDEQSim queue model, with its state split into the side where cars enter it and the side where they
+ * leave it. Each side belongs to the partition of the node at that end of the link.
+ * <p>
+ * On a road within a partition both sides learn of each other at once, exactly like in the matsim Road. On a road
+ * between two partitions a car reaches the exit side when it could leave the road at free speed at the earliest, and a
+ * car leaving the road frees its space at the entry side once the gap has traveled back, which is when the matsim Road
+ * lets the next waiting car enter as well. These delays are the lookahead of the partitions.
+ */
+final class Road {
+
+    final Link link;
+    final int entryPartition;
+    final int exitPartition;
+    final double gapTravelTime;
+
+    private final double inverseInFlowCapacity;
+    private final double inverseOutFlowCapacity;
+    private final int maxNumberOfCarsOnRoad;
+    private final double squeezeTime;
+
+    // Entry side
+    private int numberOfCarsOnRoad = 0;
+    private int numberOfCarsPromisedToEnterRoad = 0;
+    private double timeOfLastEnteringVehicle = Double.MIN_VALUE;
+    // only kept while the road has been full recently, see spaceFreed
+    private LinkedList<Double> gap = null;
+    private final LinkedList<Vehicle> interestedInEnteringRoad = new LinkedList<>();
+    private final LinkedList<Message.DeadlockPrevention> deadlockPreventionMessages = new LinkedList<>();
+
+    // Exit side
+    private final ArrayDeque<Vehicle> carsOnTheRoad = new ArrayDeque<>();
+    private final ArrayDeque<Double> earliestDepartureTimeOfCar = new ArrayDeque<>();
+    private double timeOfLastLeavingVehicle = Double.MIN_VALUE;
+
+    Road(Link link, int entryPartition, int exitPartition, double capacityPeriod, JDEQSimConfigGroup config) {
+        this.link = link;
+        this.entryPartition = entryPartition;
+        this.exitPartition = exitPartition;
+        int numberOfLanes = numberOfLanes(link);
+        this.maxNumberOfCarsOnRoad = Math.max(1, (int) Math.round(
+                link.getLength() * numberOfLanes * config.getStorageCapacityFactor() / config.getCarSize()));
+        double maxInverseInFlowCapacity = 3600
+                / (config.getMinimumInFlowCapacity() * config.getFlowCapacityFactor() * numberOfLanes);
+        this.inverseOutFlowCapacity = capacityPeriod / (link.getCapacity() * config.getFlowCapacityFactor());
+        this.inverseInFlowCapacity = Math.min(inverseOutFlowCapacity, maxInverseInFlowCapacity);
+        this.gapTravelTime = link.getLength() / config.getGapTravelSpeed();
+        this.squeezeTime = config.getSqueezeTime();
+    }
+
+    static int numberOfLanes(Link link) {
+        return Math.max(1, (int) Math.round(link.getNumberOfLanes()));
+    }
+
+    boolean isBetweenPartitions() {
+        return entryPartition != exitPartition;
+    }
+
+    void enterRequest(Partition partition, Vehicle vehicle, double simTime) {
+        if (numberOfCarsOnRoad + numberOfCarsPromisedToEnterRoad < maxNumberOfCarsOnRoad) {
+            // if the road has been full recently, the car can't enter before the next gap arrives
+            double arrivalTimeOfGap = Double.MIN_VALUE;
+            if (gap != null && !gap.isEmpty()) {
+                arrivalTimeOfGap = gap.remove();
+            }
+            numberOfCarsPromisedToEnterRoad++;
+            double nextAvailableTimeForEnteringStreet = Math.max(
+                    Math.max(timeOfLastEnteringVehicle + inverseInFlowCapacity, simTime), arrivalTimeOfGap);
+            timeOfLastEnteringVehicle = nextAvailableTimeForEnteringStreet;
+            vehicle.scheduleEnterRoadMessage(partition, nextAvailableTimeForEnteringStreet, this);
+        } else {
+            // from now on the gaps are kept track of, until the road is empty again
+            if (gap == null) {
+                gap = new LinkedList<>();
+            } else {
+                gap.clear();
+            }
+            interestedInEnteringRoad.add(vehicle);
+            // every car waiting behind the first one waits another squeeze time
+            double deadlockPreventionTime = deadlockPreventionMessages.isEmpty()
+                    ? simTime + squeezeTime
+                    : deadlockPreventionMessages.getLast().time + squeezeTime;
+            Message.DeadlockPrevention message = new Message.DeadlockPrevention(deadlockPreventionTime, vehicle, this);
+            deadlockPreventionMessages.add(message);
+            partition.schedule(message);
+        }
+    }
+
+    void enterRoad(Partition partition, Vehicle vehicle, double simTime) {
+        numberOfCarsPromisedToEnterRoad--;
+        numberOfCarsOnRoad++;
+        double earliestDepartureTime = simTime + link.getLength() / link.getFreespeed(simTime);
+        if (isBetweenPartitions()) {
+            partition.schedule(new Message.ReachRoadEnd(earliestDepartureTime, vehicle, this));
+        } else {
+            reachRoadEnd(partition, vehicle, earliestDepartureTime);
+        }
+    }
+
+    /**
+     * The car will not enter the road after all, as its leg ends here
+     */
+    void giveBackPromisedSpaceToRoad() {
+        numberOfCarsPromisedToEnterRoad--;
+    }
+
+    void reachRoadEnd(Partition partition, Vehicle vehicle, double earliestDepartureTime) {
+        carsOnTheRoad.add(vehicle);
+        earliestDepartureTimeOfCar.add(earliestDepartureTime);
+        // the car in front leaves at free speed, the ones behind it are scheduled once the car ahead of them leaves
+        if (carsOnTheRoad.size() == 1) {
+            vehicle.scheduleEndRoadMessage(partition,
+                    Math.max(earliestDepartureTime, timeOfLastLeavingVehicle + inverseOutFlowCapacity), this);
+        }
+    }
+
+    void leaveRoad(Partition partition, Vehicle vehicle, double simTime) {
+        assert carsOnTheRoad.getFirst() == vehicle;
+        carsOnTheRoad.removeFirst();
+        earliestDepartureTimeOfCar.removeFirst();
+        timeOfLastLeavingVehicle = simTime;
+
+        if (isBetweenPartitions()) {
+            partition.schedule(new Message.FreeSpace(simTime + gapTravelTime, this));
+        } else {
+            freeSpace(partition, simTime + gapTravelTime);
+        }
+
+        if (!carsOnTheRoad.isEmpty()) {
+            double nextAvailableTimeForLeavingStreet = Math.max(earliestDepartureTimeOfCar.getFirst(),
+                    timeOfLastLeavingVehicle + inverseOutFlowCapacity);
+            carsOnTheRoad.getFirst().scheduleEndRoadMessage(partition, nextAvailableTimeForLeavingStreet, this);
+        }
+    }
+
+    /**
+     * @param arrivalTimeOfGap when the space of the car that left reaches the entry of the road
+     */
+    void freeSpace(Partition partition, double arrivalTimeOfGap) {
+        numberOfCarsOnRoad--;
+        if (!interestedInEnteringRoad.isEmpty()) {
+            Vehicle nextVehicle = interestedInEnteringRoad.removeFirst();
+            Message.DeadlockPrevention message = deadlockPreventionMessages.removeFirst();
+            assert message.vehicle == nextVehicle;
+            message.cancel();
+            double nextAvailableTimeForEnteringStreet = Math.max(timeOfLastEnteringVehicle + inverseInFlowCapacity,
+                    arrivalTimeOfGap);
+            numberOfCarsPromisedToEnterRoad++;
+            nextVehicle.scheduleEnterRoadMessage(partition, nextAvailableTimeForEnteringStreet, this);
+        } else if (gap != null) {
+            gap.add(arrivalTimeOfGap);
+            if (numberOfCarsOnRoad == 0) {
+                gap = null;
+            }
+        }
+    }
+
+    /**
+     * The first waiting car has waited long enough, it enters the road even if it is full
+     */
+    void preventDeadlock(Partition partition, Message.DeadlockPrevention message) {
+        assert deadlockPreventionMessages.getFirst() == message;
+        deadlockPreventionMessages.removeFirst();
+        interestedInEnteringRoad.removeFirst();
+        numberOfCarsPromisedToEnterRoad++;
+        timeOfLastEnteringVehicle = message.time;
+        message.vehicle.scheduleEnterRoadMessage(partition, message.time, this);
+    }
+}
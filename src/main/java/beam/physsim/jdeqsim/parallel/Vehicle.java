@@ -0,0 +1,197 @@
+package beam.physsim.jdeqsim.parallel;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.groups.PlansConfigGroup.ActivityDurationInterpretation;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.utils.misc.Time;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The car of a person, driving the legs of its selected plan like the matsim JDEQSim Vehicle: it enters the first link
+ * of a car leg, drives along the route and arrives once it may enter the last link. Legs of other modes take their
+ * planned travel time.
+ */
+final class Vehicle {
+
+    final Person person;
+    final Id<org.matsim.vehicles.Vehicle> id;
+
+    private final List<PlanElement> planElements;
+    private final Map<Id<Link>, Road> roads;
+    private final ActivityDurationInterpretation activityDurationInterpretation;
+
+    // index of the current leg in the plan elements, activities and legs alternate
+    private int legIndex = 1;
+    // roads of the current leg, empty unless it is a car leg
+    private List<Road> path;
+    // index in the path of the road the vehicle is on or asks to enter
+    private int pathIndex;
+    private Road currentRoad;
+
+    Vehicle(Person person, Map<Id<Link>, Road> roads, ActivityDurationInterpretation activityDurationInterpretation) {
+        this.person = person;
+        this.id = Id.create(person.getId(), org.matsim.vehicles.Vehicle.class);
+        this.planElements = person.getSelectedPlan().getPlanElements();
+        this.roads = roads;
+        this.activityDurationInterpretation = activityDurationInterpretation;
+    }
+
+    /**
+     * @return the departure from the first activity, if the plan has a leg that departs at all
+     */
+    Message.StartLeg firstDeparture() {
+        if (planElements.size() < 2) {
+            return null;
+        }
+        Activity firstActivity = (Activity) planElements.get(0);
+        return departureAfter(firstActivity, 0.0);
+    }
+
+    private Message.StartLeg departureAfter(Activity activity, double now) {
+        double departureTime = endTimeOf(activity, now);
+        if (departureTime == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+        path = pathOf((Leg) planElements.get(legIndex));
+        int partition = path.isEmpty() ? roads.get(activity.getLinkId()).entryPartition : path.get(0).entryPartition;
+        // departures can't be in the past
+        return new Message.StartLeg(Math.max(departureTime, now), partition, this);
+    }
+
+    private double endTimeOf(Activity activity, double now) {
+        double endTime = activity.getEndTime() == Time.UNDEFINED_TIME
+                ? Double.POSITIVE_INFINITY
+                : activity.getEndTime();
+        double durationEndTime = activity.getMaximumDuration() == Time.UNDEFINED_TIME
+                ? Double.POSITIVE_INFINITY
+                : now + activity.getMaximumDuration();
+        switch (activityDurationInterpretation) {
+            case endTimeOnly:
+                return endTime;
+            case tryEndTimeThenDuration:
+                return endTime != Double.POSITIVE_INFINITY ? endTime : durationEndTime;
+            default:
+                return Math.min(endTime, durationEndTime);
+        }
+    }
+
+    // The first link, the links of the route and the last link, which is not driven on
+    private List<Road> pathOf(Leg leg) {
+        List<Road> legPath = new ArrayList<>();
+        if (leg.getMode().equals(TransportMode.car) && leg.getRoute() instanceof NetworkRoute) {
+            NetworkRoute route = (NetworkRoute) leg.getRoute();
+            legPath.add(roads.get(route.getStartLinkId()));
+            for (Id<Link> linkId : route.getLinkIds()) {
+                legPath.add(roads.get(linkId));
+            }
+            if (!route.getLinkIds().isEmpty() || !route.getEndLinkId().equals(route.getStartLinkId())) {
+                legPath.add(roads.get(route.getEndLinkId()));
+            }
+        }
+        return legPath;
+    }
+
+    String getLegMode() {
+        return ((Leg) planElements.get(legIndex)).getMode();
+    }
+
+    boolean isOnFirstRoadOfLeg() {
+        return pathIndex == 0;
+    }
+
+    // A car leg ends when the vehicle may enter its last link, unless it only drives on one link
+    private boolean isLastRoadOfLeg() {
+        return pathIndex > 0 && pathIndex == path.size() - 1;
+    }
+
+    void startLeg(Partition partition, double simTime) {
+        Activity previousActivity = (Activity) planElements.get(legIndex - 1);
+        partition.processEvent(new ActivityEndEvent(simTime, person.getId(), previousActivity.getLinkId(),
+                previousActivity.getFacilityId(), previousActivity.getType()));
+        partition.processEvent(new PersonDepartureEvent(simTime, person.getId(), previousActivity.getLinkId(),
+                getLegMode()));
+        if (path.isEmpty()) {
+            Leg leg = (Leg) planElements.get(legIndex);
+            double travelTime = leg.getTravelTime() == Time.UNDEFINED_TIME ? 0.0 : leg.getTravelTime();
+            Activity nextActivity = (Activity) planElements.get(legIndex + 1);
+            partition.schedule(new Message.EndLeg(simTime + travelTime,
+                    roads.get(nextActivity.getLinkId()).entryPartition, this));
+        } else {
+            pathIndex = 0;
+            path.get(0).enterRequest(partition, this, simTime);
+        }
+    }
+
+    /**
+     * Called by the road once the vehicle may enter it
+     */
+    void scheduleEnterRoadMessage(Partition partition, double scheduleTime, Road road) {
+        // the road the vehicle is on ends where the next one starts, so it is left in the same partition
+        if (currentRoad != null) {
+            partition.schedule(new Message.LeaveRoad(scheduleTime, this, currentRoad));
+        }
+        if (isLastRoadOfLeg()) {
+            road.giveBackPromisedSpaceToRoad();
+            partition.schedule(new Message.EndLeg(scheduleTime, road.entryPartition, this));
+        } else {
+            partition.schedule(new Message.EnterRoad(scheduleTime, this, road));
+        }
+    }
+
+    void scheduleEndRoadMessage(Partition partition, double scheduleTime, Road road) {
+        partition.schedule(new Message.EndRoad(scheduleTime, this, road));
+    }
+
+    void enterRoad(Partition partition, double simTime, Road road) {
+        currentRoad = road;
+        road.enterRoad(partition, this, simTime);
+    }
+
+    /**
+     * The vehicle is at the front of the current road and may leave it
+     */
+    void endRoad(Partition partition, double simTime) {
+        if (pathIndex == path.size() - 1) {
+            // a leg on a single link ends at the end of that link
+            partition.schedule(new Message.LeaveRoad(simTime, this, currentRoad));
+            partition.schedule(new Message.EndLeg(simTime, currentRoad.exitPartition, this));
+        } else {
+            pathIndex++;
+            path.get(pathIndex).enterRequest(partition, this, simTime);
+        }
+    }
+
+    void endLeg(Partition partition, double simTime) {
+        Activity nextActivity = (Activity) planElements.get(legIndex + 1);
+        if (!path.isEmpty()) {
+            partition.processEvent(new VehicleLeavesTrafficEvent(simTime, person.getId(), nextActivity.getLinkId(), id,
+                    getLegMode(), 1.0));
+        }
+        partition.processEvent(new PersonArrivalEvent(simTime, person.getId(), nextActivity.getLinkId(),
+                getLegMode()));
+        partition.processEvent(new ActivityStartEvent(simTime, person.getId(), nextActivity.getLinkId(),
+                nextActivity.getFacilityId(), nextActivity.getType()));
+        currentRoad = null;
+        legIndex += 2;
+        if (legIndex < planElements.size()) {
+            Message.StartLeg departure = departureAfter(nextActivity, simTime);
+            if (departure != null) {
+                partition.schedule(departure);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package beam.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream that compresses blocks of its input on several threads.
+ * <p>
+ * Like pigz, every block is deflated independently (primed with the last 32 KB of the previous block as dictionary),
+ * terminated with a sync flush and appended to a single gzip member, so the result is a regular gzip file that any
+ * gunzip or {@link java.util.zip.GZIPInputStream} can read. The CRC of the whole input is computed by the writing
+ * thread. At most {@code maxPendingBlocks} blocks are compressed at a time; a writer producing data faster than it
+ * can be compressed is blocked until the oldest block is written.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private static volatile ExecutorService sharedExecutor;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private byte[] block;
+    private byte[] previousBlock = null;
+    private int blockLength = 0;
+    private long totalLength = 0;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out) throws IOException {
+        this(out, getSharedExecutor(), DEFAULT_BLOCK_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int blockSize, int maxPendingBlocks) throws IOException {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("blockSize has to be at least " + DICTIONARY_SIZE);
+        }
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        this.block = new byte[blockSize];
+        out.write(GZIP_HEADER);
+    }
+
+    /**
+     * @return a writer for the given file that compresses on several threads if the file name ends with ".gz"
+     */
+    public static BufferedWriter getBufferedWriter(String filename) throws IOException {
+        OutputStream fileStream = new FileOutputStream(filename);
+        OutputStream stream = filename.endsWith(".gz") ? new ParallelGzipOutputStream(fileStream) : fileStream;
+        return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replaces a file by its gzipped version with the additional suffix ".gz". Meant for files written uncompressed by
+     * writers that only accept file names.
+     */
+    public static void compressFile(String uncompressedFilename) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(uncompressedFilename));
+             OutputStream gzip = new ParallelGzipOutputStream(new FileOutputStream(uncompressedFilename + ".gz"))) {
+            byte[] buffer = new byte[DEFAULT_BLOCK_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                gzip.write(buffer, 0, read);
+            }
+        }
+        Files.delete(Paths.get(uncompressedFilename));
+    }
+
+    private static ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            synchronized (ParallelGzipOutputStream.class) {
+                if (sharedExecutor == null) {
+                    AtomicInteger threadNumber = new AtomicInteger();
+                    sharedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                        Thread thread = new Thread(runnable, "parallel-gzip-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return sharedExecutor;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        block[blockLength++] = (byte) b;
+        crc.update(b);
+        totalLength++;
+        if (blockLength == blockSize) {
+            submitBlock(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        crc.update(b, off, len);
+        totalLength += len;
+        while (len > 0) {
+            int toCopy = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, toCopy);
+            blockLength += toCopy;
+            off += toCopy;
+            len -= toCopy;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Writes all blocks that finished compressing; data of the block being filled stays buffered.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pendingBlocks.isEmpty() && pendingBlocks.peekFirst().isDone()) {
+            writeOldestBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            submitBlock(true);
+            while (!pendingBlocks.isEmpty()) {
+                writeOldestBlock();
+            }
+            writeIntLittleEndian((int) crc.getValue());
+            writeIntLittleEndian((int) totalLength);
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        final byte[] input = block;
+        final int length = blockLength;
+        final byte[] dictionary = previousBlock;
+        pendingBlocks.addLast(executor.submit(() -> deflate(input, length, dictionary, last)));
+        previousBlock = input;
+        block = new byte[blockSize];
+        blockLength = 0;
+        while (pendingBlocks.size() >= maxPendingBlocks) {
+            writeOldestBlock();
+        }
+    }
+
+    private void writeOldestBlock() throws IOException {
+        try {
+            out.write(pendingBlocks.pollFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compressed block");
+        } catch (ExecutionException e) {
+            throw new IOException("Compressing block failed", e.getCause());
+        }
+    }
+
+    private static byte[] deflate(byte[] input, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        }
+        deflater.setInput(input, 0, length);
+        if (last) {
+            deflater.finish();
+        }
+        byte[] output = new byte[length / 2 + 64];
+        int outputLength = 0;
+        while (true) {
+            if (outputLength == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            int written = last
+                    ? deflater.deflate(output, outputLength, output.length - outputLength)
+                    : deflater.deflate(output, outputLength, output.length - outputLength, Deflater.SYNC_FLUSH);
+            outputLength += written;
+            if (last ? deflater.finished() : outputLength < output.length) {
+                // with SYNC_FLUSH all pending output was written once deflate does not fill the buffer
+                break;
+            }
+        }
+        return Arrays.copyOf(output, outputLength);
+    }
+
+    private void writeIntLittleEndian(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package beam.utils;
 
 import beam.utils.logging.ExponentialLoggerWrapperImpl;
-import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.core.router.util.TravelTime;
@@ -10,44 +9,47 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
 public class TravelTimeCalculatorHelper {
     public static class TravelTimePerHour implements TravelTime {
         private Logger log = LoggerFactory.getLogger(TravelTimePerHour.class);
 
-        private final Map<Id<Link>, double[]> _linkIdToTravelTimeArray;
+        private final TravelTimeTable _travelTimeTable;
         private final int _timeBinSizeInSeconds;
         private int numWarnings = 0;
 
-        public TravelTimePerHour(int timeBinSizeInSeconds, Map<String, double[]> linkIdToTravelTimeData) {
+        public TravelTimePerHour(int timeBinSizeInSeconds, TravelTimeTable travelTimeTable) {
             _timeBinSizeInSeconds = timeBinSizeInSeconds;
-            _linkIdToTravelTimeArray = new HashMap<>();
-            linkIdToTravelTimeData.forEach((key, value) -> {
-                Id<Link> linkId = Id.createLinkId(key);
-                _linkIdToTravelTimeArray.put(linkId, value);
-            });
+            _travelTimeTable = travelTimeTable;
         }
         @Override
         public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
-            Id<Link> linkId = link.getId();
-            double[] timePerHour = _linkIdToTravelTimeArray.get(linkId);
-            if (null == timePerHour){
+            return getLinkTravelTime(_travelTimeTable.linkIndex(link.getId()), time, link);
+        }
+
+        /**
+         * Same as {@link #getLinkTravelTime(Link, double, Person, Vehicle)} for callers that already know the index of the
+         * link in the table, see {@link TravelTimeTable#linkIndex}. Links without travel times take their free-flow time.
+         */
+        public double getLinkTravelTime(int linkIndex, double time, Link link) {
+            if (!_travelTimeTable.containsLink(linkIndex)){
                 if(ExponentialLoggerWrapperImpl.isNumberPowerOfTwo(++numWarnings)){
-                    log.warn("Can't find travel times for link '{}'", linkId);
+                    log.warn("Can't find travel times for link '{}'", link.getId());
                 }
-                return link.getFreespeed();
+                return link.getLength() / link.getFreespeed();
             }
             int idx = getOffset(time);
-            if (idx >= timePerHour.length) {
+            if (idx >= _travelTimeTable.getNumberOfBins()) {
                 if(ExponentialLoggerWrapperImpl.isNumberPowerOfTwo(++numWarnings)) {
                     log.warn("Got offset which is outWriter of array for the link {}. Something wrong. idx: {}, time: {},  _timeBinSizeInSeconds: '{}'",
-                            linkId, idx, time, _timeBinSizeInSeconds);
+                            link.getId(), idx, time, _timeBinSizeInSeconds);
                 }
-                return link.getFreespeed();
+                return link.getLength() / link.getFreespeed();
             }
-            return timePerHour[idx];
+            return _travelTimeTable.get(linkIndex, idx);
+        }
+        public TravelTimeTable getTravelTimeTable() {
+            return _travelTimeTable;
         }
         private int getOffset(double time){
             return (int)Math.round(Math.floor(time / _timeBinSizeInSeconds));
@@ -55,55 +57,42 @@ public class TravelTimeCalculatorHelper {
     }
     private static Logger log = LoggerFactory.getLogger(TravelTimeCalculatorHelper.class);
 
-    public static Map<String, double[]> GetLinkIdToTravelTimeArray(Collection<? extends Link> links, TravelTime travelTime, int maxHour) {
+    public static TravelTimeTable GetLinkTravelTimeTable(Collection<? extends Link> links, TravelTime travelTime, int maxHour) {
+        return GetLinkTravelTimeMSATable(links, travelTime, null, 1.0, maxHour);
+    }
+
+    /**
+     * Reads the travel times of all links at the start of every hour and, in the same pass, blends them with the
+     * travel times of the previous iteration: {@code weightOfCurrent * current + (1 - weightOfCurrent) * previous}.
+     * The links are read on the calling thread: the travel time calculator of matsim consolidates and caches its data
+     * while it is read, so it must not be read from several threads at once.
+     *
+     * @param previous travel times of the previous iteration, or null to take the current travel times as they are
+     */
+    public static TravelTimeTable GetLinkTravelTimeMSATable(Collection<? extends Link> links, TravelTime travelTime,
+                                                            TravelTimeTable previous, double weightOfCurrent, int maxHour) {
         long start = System.currentTimeMillis();
-        Map<String, double[]> result = new HashMap<>();
+        TravelTimeTable result = TravelTimeTable.forLinks(links, maxHour);
+        assert previous == null || previous.getNumberOfBins() == maxHour;
         for (Link link : links) {
-            Id<Link> linkId = link.getId();
-            double[] times = new double[maxHour];
+            int linkIndex = result.linkIndex(link.getId());
+            int previousLinkIndex = previous == null ? -1 : previous.linkIndex(link.getId());
+            boolean hasPrevious = previous != null && previous.containsLink(previousLinkIndex);
             for (int hour = 0; hour < maxHour; hour++) {
                 int hourInSeconds = hour * 3600;
-                times[hour] = travelTime.getLinkTravelTime(link, hourInSeconds, null, null);
+                double current = travelTime.getLinkTravelTime(link, hourInSeconds, null, null);
+                result.set(linkIndex, hour, hasPrevious
+                        ? weightOfCurrent * current + (1 - weightOfCurrent) * previous.get(previousLinkIndex, hour)
+                        : current);
             }
-            result.put(linkId.toString(), times);
-
         }
         long end = System.currentTimeMillis();
         long diff = end - start;
-        log.info("GetLinkIdToTravelTimeArray for {} links with maxHour = {} executed in {} ms", links.size(), maxHour, diff);
-        return result;
-    }
-
-    public static Map<String, double[]> GetLinkIdToTravelTimeAvgArray(Collection<? extends Link> links, TravelTime travelTime1, TravelTime travelTime2, int maxHour) {
-        long start = System.currentTimeMillis();
-        Map<String, double[]> res1 = GetLinkIdToTravelTimeArray(links, travelTime1, maxHour);
-        Map<String, double[]> res2 = GetLinkIdToTravelTimeArray(links, travelTime2, maxHour);
-        assert res1.size() == res2.size();
-
-        Map<String, double[]> result = AverageTravelTimesMap(res1, res2, maxHour);
-        long end = System.currentTimeMillis();
-        long diff = end - start;
-        log.info("GetLinkIdToTravelTimeAvgArray for {} links with maxHour = {} executed in {} ms", links.size(), maxHour, diff);
-        return result;
-    }
-
-    public static Map<String, double[]> AverageTravelTimesMap(Map<String, double[]> res1, Map<String, double[]> res2, int maxHour) {
-        Map<String, double[]> result = new HashMap<>();
-        for (String linkId : res1.keySet()) {
-            double[] times1 = res1.get(linkId);
-            double[] times2 = res2.get(linkId);
-            double[] times = new double[maxHour];
-            for (int hour = 0; hour < maxHour; hour++) {
-                double t1 = times1[hour];
-                double t2 = times2[hour];
-                times[hour] = (t1 + t2) / 2;
-            }
-            result.put(linkId, times);
-        }
+        log.info("GetLinkTravelTimeMSATable for {} links with maxHour = {} executed in {} ms", links.size(), maxHour, diff);
         return result;
     }
 
-    public static TravelTime CreateTravelTimeCalculator(int timeBinSizeInSeconds, Map<String, double[]> linkIdToTravelTimeData) {
-        return new TravelTimePerHour(timeBinSizeInSeconds, linkIdToTravelTimeData);
+    public static TravelTimePerHour CreateTravelTimeCalculator(int timeBinSizeInSeconds, TravelTimeTable travelTimeTable) {
+        return new TravelTimePerHour(timeBinSizeInSeconds, travelTimeTable);
     }
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Travel times of all links for consecutive time bins, stored in a single array at {@code linkIndex * numberOfBins + bin}.
+ * <p>
+ * If all link ids are numbers, like the R5 edge indices of networks converted from R5, the link index is the number
+ * itself, the same index NetworkHelper uses, so a lookup costs one multiplication instead of a hash map access and the
+ * table has no per-link object overhead. Otherwise the links are numbered in the order they are given in and the index
+ * of a link is looked up by its id. Links without travel times are marked with {@link Double#NaN}.
+ */
+public class TravelTimeTable implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final int numberOfBins;
+    private final double[] travelTimes;
+    // null if the link ids are the link indices
+    private final Map<String, Integer> indexOfLinkId;
+
+    public TravelTimeTable(int numberOfLinkIndices, int numberOfBins) {
+        this(numberOfLinkIndices, numberOfBins, null);
+    }
+
+    private TravelTimeTable(int numberOfLinkIndices, int numberOfBins, Map<String, Integer> indexOfLinkId) {
+        this.numberOfBins = numberOfBins;
+        this.travelTimes = new double[numberOfLinkIndices * numberOfBins];
+        this.indexOfLinkId = indexOfLinkId;
+        Arrays.fill(travelTimes, Double.NaN);
+    }
+
+    /**
+     * @return a table sized to hold every link of the collection
+     */
+    public static TravelTimeTable forLinks(Collection<? extends Link> links, int numberOfBins) {
+        int maxLinkIndex = -1;
+        for (Link link : links) {
+            int linkIndex = parseLinkIndex(link.getId().toString());
+            if (linkIndex < 0) {
+                return forLinksWithOtherIds(links, numberOfBins);
+            }
+            maxLinkIndex = Math.max(maxLinkIndex, linkIndex);
+        }
+        return new TravelTimeTable(maxLinkIndex + 1, numberOfBins);
+    }
+
+    private static TravelTimeTable forLinksWithOtherIds(Collection<? extends Link> links, int numberOfBins) {
+        Map<String, Integer> indexOfLinkId = new HashMap<>();
+        for (Link link : links) {
+            indexOfLinkId.putIfAbsent(link.getId().toString(), indexOfLinkId.size());
+        }
+        return new TravelTimeTable(indexOfLinkId.size(), numberOfBins, indexOfLinkId);
+    }
+
+    /**
+     * @return the number of a link id made of digits only, or -1
+     */
+    private static int parseLinkIndex(String linkId) {
+        if (linkId.isEmpty() || linkId.length() > 9) {
+            return -1;
+        }
+        int linkIndex = 0;
+        for (int i = 0; i < linkId.length(); i++) {
+            char c = linkId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            linkIndex = linkIndex * 10 + (c - '0');
+        }
+        return linkIndex;
+    }
+
+    /**
+     * @return the index of the link in this table, or -1 if the table has no place for it
+     */
+    public int linkIndex(Id<Link> linkId) {
+        if (indexOfLinkId == null) {
+            return parseLinkIndex(linkId.toString());
+        }
+        return indexOfLinkId.getOrDefault(linkId.toString(), -1);
+    }
+
+    /**
+     * @return whether the index of a link is its id, so callers may use R5 edge indices as link indices
+     */
+    public boolean isIndexedByLinkId() {
+        return indexOfLinkId == null;
+    }
+
+    public int getNumberOfBins() {
+        return numberOfBins;
+    }
+
+    public int getNumberOfLinkIndices() {
+        return numberOfBins == 0 ? 0 : travelTimes.length / numberOfBins;
+    }
+
+    /**
+     * @return number of links that have travel times
+     */
+    public int getNumberOfLinks() {
+        int count = 0;
+        for (int offset = 0; offset < travelTimes.length; offset += numberOfBins) {
+            if (!Double.isNaN(travelTimes[offset])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean containsLink(int linkIndex) {
+        return linkIndex >= 0 && linkIndex < getNumberOfLinkIndices() && !Double.isNaN(travelTimes[linkIndex * numberOfBins]);
+    }
+
+    public double get(int linkIndex, int bin) {
+        return travelTimes[linkIndex * numberOfBins + bin];
+    }
+
+    public void set(int linkIndex, int bin, double travelTime) {
+        travelTimes[linkIndex * numberOfBins + bin] = travelTime;
+    }
+
+    /**
+     * @return copy of the travel times of one link, one element per bin
+     */
+    public double[] getLinkTravelTimes(int linkIndex) {
+        int offset = linkIndex * numberOfBins;
+        return Arrays.copyOfRange(travelTimes, offset, offset + numberOfBins);
+    }
+}
@@ -0,0 +1,321 @@
+package beam.agentsim.agents.choice.logit
+
+import beam.agentsim.agents.choice.logit.CompiledLogit._
+import beam.agentsim.agents.choice.logit.UtilityParam.{Intercept, Multiplier}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+
+/**
+  * A nested logit model with the names of its alternatives and variables resolved to indices once, so that evaluating
+  * it reads the values of the variables from an array of doubles, and sampling from it allocates nothing.
+  *
+  * The nodes are kept in pre-order: the root nest is node 0, and every nest comes before the nests and alternatives in
+  * it. A multinomial logit model is a root nest with elasticity 1 around its alternatives.
+  */
+class CompiledLogit private (
+  val alternativeNames: IndexedSeq[String],
+  val variableNames: IndexedSeq[String],
+  nodeParents: Array[Int],
+  nodeElasticities: Array[Double],
+  nodeAlternatives: Array[Int],
+  intercepts: Array[Double],
+  termOffsets: Array[Int],
+  termVariables: Array[Int],
+  termCoefficients: Array[Double],
+  termIsMultiplier: Array[Boolean],
+  termValuesIfMissing: Array[Double]
+) {
+
+  private val alternativeIndices: Map[String, Int] = alternativeNames.zipWithIndex.toMap
+  private val variableIndices: Map[String, Int] = variableNames.zipWithIndex.toMap
+  private val numberOfNodes = nodeParents.length
+
+  /** The index of the alternative, or -1 if the model does not have it */
+  def alternativeIndex(alternativeName: String): Int = alternativeIndices.getOrElse(alternativeName, -1)
+
+  /** The index of the variable, or -1 if no utility function uses it */
+  def variableIndex(variableName: String): Int = variableIndices.getOrElse(variableName, -1)
+
+  def newInput(): Input = new Input(alternativeNames.size, variableNames.size, numberOfNodes)
+
+  def utilityOf(input: Input, alternative: Int): Double = {
+    val values = input.values
+    val firstValue = alternative * variableNames.size
+    var utility = intercepts(alternative)
+    var term = termOffsets(alternative)
+    val end = termOffsets(alternative + 1)
+    while (term < end) {
+      val value = values(firstValue + termVariables(term))
+      if (java.lang.Double.isNaN(value)) {
+        if (java.lang.Double.isNaN(termValuesIfMissing(term))) {
+          throw new RuntimeException(
+            s"Expecting variable ${variableNames(termVariables(term))} but not contained in the input data"
+          )
+        }
+        utility += termValuesIfMissing(term)
+      } else if (termIsMultiplier(term)) {
+        utility += termCoefficients(term) * value
+      } else {
+        utility += termCoefficients(term)
+      }
+      term += 1
+    }
+    utility
+  }
+
+  /**
+    * Fills the probabilities of the input with the marginal probability of each alternative, like
+    * [[NestedLogit.evaluateProbabilities]] does, and returns the expected maximum utility of the root nest.
+    * Alternatives that are not available in the input get no probability.
+    */
+  def evaluateProbabilities(input: Input): Double = {
+    val values = input.nodeValues
+    val sums = input.nodeSums
+    val infinities = input.nodeInfinities
+    java.util.Arrays.fill(sums, 0.0)
+    java.util.Arrays.fill(infinities, 0)
+
+    // Children come after their nest, so going backwards sums up the children of a nest before reaching it
+    var node = numberOfNodes - 1
+    while (node >= 0) {
+      val alternative = nodeAlternatives(node)
+      values(node) = if (alternative < 0) {
+        math.pow(sums(node), nodeElasticities(node))
+      } else if (!input.available(alternative)) {
+        0.0
+      } else {
+        // Keep a very small probability for alternatives with a utility of -Inf, like NestedLogit
+        val utility = math.max(utilityOf(input, alternative), -Double.MaxValue)
+        math.max(java.lang.Double.MIN_VALUE, math.exp(utility / nodeElasticities(node)))
+      }
+      val parent = nodeParents(node)
+      if (parent >= 0) {
+        sums(parent) += values(node)
+        if (values(node) == Double.PositiveInfinity) infinities(parent) += 1
+      }
+      node -= 1
+    }
+
+    val marginals = input.nodeProbabilities
+    marginals(0) = 1.0
+    node = 1
+    while (node < numberOfNodes) {
+      val parent = nodeParents(node)
+      val sum = sums(parent)
+      val conditional = if (!(sum > 0.0)) {
+        values(node)
+      } else if (sum < Double.PositiveInfinity) {
+        values(node) / sum
+      } else if (values(node) == Double.PositiveInfinity) {
+        1.0 / infinities(parent)
+      } else {
+        0.0
+      }
+      marginals(node) = marginals(parent) * conditional
+      val alternative = nodeAlternatives(node)
+      if (alternative >= 0) input.probabilities(alternative) = marginals(node)
+      node += 1
+    }
+    input.expectedMaximumUtility = math.log(sums(0)) * nodeElasticities(0)
+    input.expectedMaximumUtility
+  }
+
+  /**
+    * Evaluates the probabilities of the input and draws an alternative with a linear scan over their cumulative sum.
+    * Returns -1 if no alternative has a probability.
+    */
+  def sample(input: Input, random: Random): Int = {
+    evaluateProbabilities(input)
+    val probabilities = input.probabilities
+    var total = 0.0
+    var alternative = 0
+    while (alternative < probabilities.length) {
+      total += probabilities(alternative)
+      alternative += 1
+    }
+    if (!(total > 0.0)) {
+      -1
+    } else {
+      val draw = random.nextDouble() * total
+      var cumulative = 0.0
+      var chosen = -1
+      var lastPossible = -1
+      alternative = 0
+      while (chosen < 0 && alternative < probabilities.length) {
+        if (probabilities(alternative) > 0.0) {
+          cumulative += probabilities(alternative)
+          lastPossible = alternative
+          if (draw < cumulative) chosen = alternative
+        }
+        alternative += 1
+      }
+      // Rounding can leave the draw just above the cumulative sum
+      if (chosen < 0) lastPossible else chosen
+    }
+  }
+}
+
+object CompiledLogit {
+
+  /**
+    * The values of the variables of each alternative, and the room to evaluate a model on them. After [[clear]] it can
+    * be filled and evaluated again without allocating.
+    */
+  final class Input private[logit] (numberOfAlternatives: Int, numberOfVariables: Int, numberOfNodes: Int) {
+    // NaN for a variable that is not set
+    private[logit] val values: Array[Double] = Array.fill(numberOfAlternatives * numberOfVariables)(Double.NaN)
+    private[logit] val available: Array[Boolean] = new Array[Boolean](numberOfAlternatives)
+    private[logit] val nodeValues: Array[Double] = new Array[Double](numberOfNodes)
+    private[logit] val nodeSums: Array[Double] = new Array[Double](numberOfNodes)
+    private[logit] val nodeInfinities: Array[Int] = new Array[Int](numberOfNodes)
+    private[logit] val nodeProbabilities: Array[Double] = new Array[Double](numberOfNodes)
+
+    /** The marginal probability of each alternative, after evaluating */
+    val probabilities: Array[Double] = new Array[Double](numberOfAlternatives)
+
+    /** The expected maximum utility of the root nest, after evaluating */
+    var expectedMaximumUtility: Double = Double.NaN
+
+    def setAvailable(alternative: Int): Unit = available(alternative) = true
+
+    /** Makes the alternative available and sets its value of the variable, unless the variable index is -1 */
+    def set(alternative: Int, variable: Int, value: Double): Unit = {
+      available(alternative) = true
+      if (variable >= 0) values(alternative * numberOfVariables + variable) = value
+    }
+
+    def clear(): Unit = {
+      java.util.Arrays.fill(values, Double.NaN)
+      java.util.Arrays.fill(available, false)
+      java.util.Arrays.fill(probabilities, 0.0)
+      expectedMaximumUtility = Double.NaN
+    }
+  }
+
+  /**
+    * Compiles a nested logit tree. Like [[UtilityFunction]], a missing variable of a multiplier is an error and
+    * categorical coefficients are ignored.
+    */
+  def apply(tree: NestedLogit): CompiledLogit = {
+    require(tree.children != null, s"The root of the nested logit model ${tree.getName} is not a nest")
+    val builder = new Builder
+    def addNode(node: NestedLogit, parent: Int): Unit = {
+      val elasticity = node.data.getElasticity.doubleValue()
+      if (node.children == null) {
+        var intercept = 0.0
+        val terms = ArrayBuffer[Term]()
+        Option(node.data.getUtility).foreach { utility =>
+          utility.getCoefficients.asScala.foreach {
+            case (variableName, coefficient) =>
+              utility.getCoefficientType(variableName) match {
+                case LogitCoefficientType.INTERCEPT =>
+                  intercept += coefficient.doubleValue()
+                case LogitCoefficientType.MULTIPLIER =>
+                  terms += Term(
+                    variableName,
+                    coefficient.doubleValue(),
+                    isMultiplier = true,
+                    valueIfMissing = Double.NaN
+                  )
+                case _ =>
+              }
+          }
+        }
+        builder.addAlternative(parent, elasticity, node.getName, intercept, terms)
+      } else {
+        val nest = builder.addNest(parent, elasticity)
+        node.children.asScala.foreach(addNode(_, nest))
+      }
+    }
+    addNode(tree, -1)
+    builder.build()
+  }
+
+  /**
+    * Compiles a multinomial logit model, with the utility of [[MultinomialLogit.getUtilityOfAlternative]]: a missing
+    * variable counts as its coefficient if it is called intercept or asc, and as -1E100 otherwise. Unlike
+    * [[MultinomialLogit.sampleAlternative]], several alternatives with a utility of +Inf share the probability.
+    */
+  def apply(model: MultinomialLogit): CompiledLogit = {
+    val builder = new Builder
+    val root = builder.addNest(-1, 1.0)
+    val commonParams = model.alternativeParams.getOrElse("COMMON", AlternativeParams.empty).params
+    model.alternativeParams.keys.filterNot(_ == "COMMON").toSeq.sorted.foreach { alternativeName =>
+      var intercept = 0.0
+      val terms = ArrayBuffer[Term]()
+      (commonParams ++ model.alternativeParams(alternativeName).params).foreach {
+        case (variableName, param) =>
+          val isIntercept = variableName.equalsIgnoreCase("intercept") || variableName.equalsIgnoreCase("asc")
+          if (isIntercept && param.paramType == Intercept) {
+            intercept += param.paramValue
+          } else {
+            terms += Term(
+              variableName,
+              param.paramValue,
+              isMultiplier = param.paramType == Multiplier,
+              valueIfMissing = if (isIntercept) param.paramValue else -1E100
+            )
+          }
+      }
+      builder.addAlternative(root, 1.0, alternativeName, intercept, terms)
+    }
+    builder.build()
+  }
+
+  // NaN as the value if missing makes a missing variable an error
+  private case class Term(variableName: String, coefficient: Double, isMultiplier: Boolean, valueIfMissing: Double)
+
+  private class Builder {
+    private val alternativeNames = ArrayBuffer[String]()
+    private val variableIndices = mutable.LinkedHashMap[String, Int]()
+    private val nodeParents = ArrayBuffer[Int]()
+    private val nodeElasticities = ArrayBuffer[Double]()
+    private val nodeAlternatives = ArrayBuffer[Int]()
+    private val intercepts = ArrayBuffer[Double]()
+    private val termOffsets = ArrayBuffer[Int](0)
+    private val terms = ArrayBuffer[Term]()
+
+    def addNest(parent: Int, elasticity: Double): Int = addNode(parent, elasticity, -1)
+
+    def addAlternative(
+      parent: Int,
+      elasticity: Double,
+      alternativeName: String,
+      intercept: Double,
+      alternativeTerms: Seq[Term]
+    ): Unit = {
+      addNode(parent, elasticity, alternativeNames.size)
+      alternativeNames += alternativeName
+      intercepts += intercept
+      alternativeTerms.foreach { term =>
+        variableIndices.getOrElseUpdate(term.variableName, variableIndices.size)
+        terms += term
+      }
+      termOffsets += terms.size
+    }
+
+    private def addNode(parent: Int, elasticity: Double, alternative: Int): Int = {
+      nodeParents += parent
+      nodeElasticities += elasticity
+      nodeAlternatives += alternative
+      nodeParents.size - 1
+    }
+
+    def build(): CompiledLogit = new CompiledLogit(
+      alternativeNames.toIndexedSeq,
+      variableIndices.keys.toIndexedSeq,
+      nodeParents.toArray,
+      nodeElasticities.toArray,
+      nodeAlternatives.toArray,
+      intercepts.toArray,
+      termOffsets.toArray,
+      terms.map(term => variableIndices(term.variableName)).toArray,
+      terms.map(_.coefficient).toArray,
+      terms.map(_.isMultiplier).toArray,
+      terms.map(_.valueIfMissing).toArray
+    )
+  }
+}
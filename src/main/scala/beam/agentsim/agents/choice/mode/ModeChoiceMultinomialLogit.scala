@@ -1,7 +1,7 @@
 package beam.agentsim.agents.choice.mode
 
 import beam.agentsim.agents.choice.logit.MultinomialLogit.MnlData
-import beam.agentsim.agents.choice.logit.{AlternativeAttributes, MultinomialLogit}
+import beam.agentsim.agents.choice.logit.{AlternativeAttributes, CompiledLogit, MultinomialLogit}
 import beam.agentsim.agents.choice.mode.ModeChoiceMultinomialLogit.ModeCostTimeTransfer
 import beam.agentsim.agents.modalbehaviors.ModeChoiceCalculator
 import beam.router.Modes.BeamMode
@@ -25,13 +25,22 @@ import scala.util.Random
 /**
   * BEAM
   */
-class ModeChoiceMultinomialLogit(val beamServices: BeamServices, val model: MultinomialLogit)
-    extends ModeChoiceCalculator
+class ModeChoiceMultinomialLogit(
+  val beamServices: BeamServices,
+  val model: MultinomialLogit,
+  val compiledModel: CompiledLogit
+) extends ModeChoiceCalculator
     with ExponentialLazyLogging {
 
+  def this(beamServices: BeamServices, model: MultinomialLogit) = this(beamServices, model, CompiledLogit(model))
+
   var expectedMaximumUtility: Double = 0.0
   val modalBehaviors: ModalBehaviors = beamServices.getModalBehaviors()
 
+  private val costVariable = compiledModel.variableIndex("cost")
+  private val transferVariable = compiledModel.variableIndex("transfer")
+  private val modelInput = compiledModel.newInput()
+
   override def apply(
     alternatives: IndexedSeq[EmbodiedBeamTrip],
     attributesOfIndividual: AttributesOfIndividual,
@@ -45,19 +54,21 @@ class ModeChoiceMultinomialLogit(val beamServices: BeamServices, val model: Mult
       modeCostTimeTransfers groupBy (_.mode) map {
         case (_, group) => group minBy timeAndCost
       }
-      val inputData = bestInGroup.map { mct =>
-        val theParams: Map[String, Double] =
-          Map("cost" -> (mct.cost + mct.scaledTime))
-        val transferParam: Map[String, Double] = if (mct.mode.isTransit) {
-          Map("transfer" -> mct.numTransfers)
-        } else {
-          Map()
+      modelInput.clear()
+      bestInGroup.foreach { mct =>
+        val alternative = compiledModel.alternativeIndex(mct.mode.value)
+        if (alternative >= 0) {
+          modelInput.set(alternative, costVariable, mct.cost + mct.scaledTime)
+          if (mct.mode.isTransit) {
+            modelInput.set(alternative, transferVariable, mct.numTransfers)
+          }
         }
-        AlternativeAttributes(mct.mode.value, theParams ++ transferParam)
-      }.toVector
+      }
 
-      val chosenModeOpt = model.sampleAlternative(inputData, new Random())
-      expectedMaximumUtility = model.getExpectedMaximumUtility(inputData)
+      val chosenAlternative = compiledModel.sample(modelInput, new Random())
+      val chosenModeOpt =
+        if (chosenAlternative < 0) None else Some(compiledModel.alternativeNames(chosenAlternative))
+      expectedMaximumUtility = modelInput.expectedMaximumUtility
 
       chosenModeOpt match {
         case Some(chosenMode) =>
@@ -26,7 +26,7 @@ import beam.agentsim.agents.{Dropoff, Pickup}
 import beam.agentsim.events.SpaceTime
 import beam.agentsim.infrastructure.ParkingManager.{ParkingInquiry, ParkingInquiryResponse}
 import beam.agentsim.infrastructure.ParkingStall.NoNeed
-import beam.agentsim.scheduler.BeamAgentScheduler.{CompletionNotice, ScheduleTrigger}
+import beam.agentsim.scheduler.BeamAgentScheduler.{CompletionNotice, ScheduleTrigger, ScheduleTriggers}
 import beam.agentsim.scheduler.Trigger.TriggerWithId
 import beam.router.BeamRouter.RoutingResponse
 import beam.router.Modes.BeamMode.CAV
@@ -170,6 +170,8 @@ object HouseholdActor {
     override def receive: Receive = {
 
       case TriggerWithId(InitializeTrigger(tick), triggerId) =>
+        // the initialize triggers of all actors created here go to the scheduler in one message
+        val initializeTriggers = Vector.newBuilder[ScheduleTrigger]
         val vehiclesByCategory =
           vehicles.filter(_._2.beamVehicleType.automationLevel <= 3).groupBy(_._2.beamVehicleType.vehicleCategory)
         val fleetManagers = vehiclesByCategory.map {
@@ -177,7 +179,7 @@ object HouseholdActor {
             val fleetManager =
               context.actorOf(Props(new HouseholdFleetManager(parkingManager, vs, homeCoord)), category.toString)
             context.watch(fleetManager)
-            schedulerRef ! ScheduleTrigger(InitializeTrigger(0), fleetManager)
+            initializeTriggers += ScheduleTrigger(InitializeTrigger(0), fleetManager)
             fleetManager
         }
         // If any of my vehicles are CAVs then go through scheduling process
@@ -201,7 +203,7 @@ object HouseholdActor {
             )
             context.watch(cavDriverRef)
             cav.spaceTime = SpaceTime(homeCoord, 0)
-            schedulerRef ! ScheduleTrigger(InitializeTrigger(0), cavDriverRef)
+            initializeTriggers += ScheduleTrigger(InitializeTrigger(0), cavDriverRef)
             cav.manager = Some(self)
             cav.driver = Some(cavDriverRef)
           }
@@ -303,8 +305,9 @@ object HouseholdActor {
             personRef
           ))
 
-          schedulerRef ! ScheduleTrigger(InitializeTrigger(0), personRef)
+          initializeTriggers += ScheduleTrigger(InitializeTrigger(0), personRef)
         }
+        schedulerRef ! ScheduleTriggers(initializeTriggers.result())
         if (cavs.isEmpty) completeInitialization(triggerId, Vector())
 
       case RoutingResponses(tick, routingResponses) =>
@@ -1,6 +1,6 @@
 package beam.agentsim.agents.modalbehaviors
 
-import beam.agentsim.agents.choice.logit.LatentClassChoiceModel
+import beam.agentsim.agents.choice.logit.{CompiledLogit, LatentClassChoiceModel}
 import beam.agentsim.agents.choice.logit.LatentClassChoiceModel.Mandatory
 import beam.agentsim.agents.choice.mode._
 import beam.router.Modes.BeamMode
@@ -70,12 +70,16 @@ object ModeChoiceCalculator {
     classname match {
       case "ModeChoiceLCCM" =>
         val lccm = new LatentClassChoiceModel(beamServices)
+        val compiledModels = lccm.modeChoiceModels(Mandatory).map {
+          case (modalityStyle, model) => modalityStyle -> CompiledLogit(model)
+        }
         (attributesOfIndividual: AttributesOfIndividual) =>
           attributesOfIndividual match {
             case AttributesOfIndividual(_, Some(modalityStyle), _, _, _, _, _) =>
               new ModeChoiceMultinomialLogit(
                 beamServices,
-                lccm.modeChoiceModels(Mandatory)(modalityStyle)
+                lccm.modeChoiceModels(Mandatory)(modalityStyle),
+                compiledModels(modalityStyle)
               )
             case _ =>
               throw new RuntimeException("LCCM needs people to have modality styles")
@@ -96,8 +100,9 @@ object ModeChoiceCalculator {
         val logit = ModeChoiceMultinomialLogit.buildModelFromConfig(
           beamServices.beamConfig.beam.agentsim.agents.modalBehaviors.mulitnomialLogit
         )
+        val compiledLogit = CompiledLogit(logit)
         _ =>
-          new ModeChoiceMultinomialLogit(beamServices, logit)
+          new ModeChoiceMultinomialLogit(beamServices, logit, compiledLogit)
     }
   }
   sealed trait ModeVotMultiplier
@@ -19,6 +19,10 @@ import org.matsim.core.utils.collections.QuadTree
 
 import scala.collection.JavaConverters._
 import scala.collection.immutable.List
+import scala.collection.mutable
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, Future}
 
 class AlonsoMoraPoolingAlgForRideHail(
   spatialDemand: QuadTree[CustomerRequest],
@@ -28,170 +32,147 @@ class AlonsoMoraPoolingAlgForRideHail(
   beamServices: BeamServices
 )(implicit val skimmer: BeamSkimmer) {
 
+  private val searchRadius = timeWindow(Pickup) * BeamSkimmer.speedMeterPerSec(BeamMode.CAV)
+
   // Request Vehicle Graph
   def pairwiseRVGraph: RVGraph = {
-    val rvG = RVGraph(classOf[RideHailTrip])
-    for {
-      r1: CustomerRequest <- spatialDemand.values().asScala
-      r2: CustomerRequest <- spatialDemand
-        .getDisk(
-          r1.pickup.activity.getCoord.getX,
-          r1.pickup.activity.getCoord.getY,
-          timeWindow(Pickup) * BeamSkimmer.speedMeterPerSec(BeamMode.CAV)
-        )
+    val requests = spatialDemand.values().asScala.toIndexedSeq
+    val requestIndices = requests.zipWithIndex.toMap
+    // every pair of requests is checked once, by the one that comes first
+    val requestPairs = inParallel(requests.indices) { i =>
+      val r1 = requests(i)
+      spatialDemand
+        .getDisk(r1.pickup.activity.getCoord.getX, r1.pickup.activity.getCoord.getY, searchRadius)
         .asScala
-        .withFilter(x => r1 != x && !rvG.containsEdge(r1, x))
-    } yield {
-      AlonsoMoraPoolingAlgForRideHail
-        .getRidehailSchedule(timeWindow, List(r1.pickup, r1.dropoff, r2.pickup, r2.dropoff), beamServices)
-        .map { schedule =>
-          rvG.addVertex(r2)
-          rvG.addVertex(r1)
-          rvG.addEdge(r1, r2, RideHailTrip(List(r1, r2), schedule))
+        .withFilter(r2 => requestIndices(r2) > i)
+        .flatMap { r2 =>
+          getRidehailSchedule(timeWindow, List(r1.pickup, r1.dropoff, r2.pickup, r2.dropoff), beamServices)
+            .map(schedule => RideHailTrip(List(r1, r2), schedule))
         }
     }
-
-    for {
-      v: VehicleAndSchedule <- supply.withFilter(_.getFreeSeats >= 1)
-      r: CustomerRequest <- spatialDemand
-        .getDisk(
-          v.getLastDropoff.activity.getCoord.getX,
-          v.getLastDropoff.activity.getCoord.getY,
-          timeWindow(Pickup) * BeamSkimmer.speedMeterPerSec(BeamMode.CAV)
-        )
+    val vehicleRequests = inParallel(supply.filter(_.getFreeSeats >= 1)) { v =>
+      spatialDemand
+        .getDisk(v.getLastDropoff.activity.getCoord.getX, v.getLastDropoff.activity.getCoord.getY, searchRadius)
         .asScala
         .take(maxRequestsPerVehicle)
-    } yield {
-      getRidehailSchedule(timeWindow, v.schedule ++ List(r.pickup, r.dropoff), beamServices).map { schedule =>
+        .flatMap { r =>
+          getRidehailSchedule(timeWindow, v.schedule ++ List(r.pickup, r.dropoff), beamServices)
+            .map(schedule => (v, RideHailTrip(List(r), schedule)))
+        }
+    }
+
+    val rvG = RVGraph(classOf[RideHailTrip])
+    requestPairs.flatten.foreach { trip =>
+      val (r1, r2) = (trip.requests.head, trip.requests.last)
+      rvG.addVertex(r2)
+      rvG.addVertex(r1)
+      rvG.addEdge(r1, r2, trip)
+    }
+    vehicleRequests.flatten.foreach {
+      case (v, trip) =>
         rvG.addVertex(v)
-        rvG.addVertex(r)
-        rvG.addEdge(v, r, RideHailTrip(List(r), schedule))
-      }
+        rvG.addVertex(trip.requests.head)
+        rvG.addEdge(v, trip.requests.head, trip)
     }
     rvG
   }
 
   // Request Trip Vehicle Graph
   def rTVGraph(rvG: RVGraph, beamServices: BeamServices): RTVGraph = {
+    val vehicleTrips = inParallel(supply.filter(rvG.containsVertex)) { v =>
+      (v, feasibleTrips(v, rvG, beamServices))
+    }
     val rTvG = RTVGraph(classOf[DefaultEdge])
-    supply.withFilter(x => rvG.containsVertex(x)).foreach { v =>
-      rTvG.addVertex(v)
-
-      import scala.collection.mutable.{ListBuffer => MListBuffer}
-      val individualRequestsList = MListBuffer.empty[RideHailTrip]
-      for (t <- rvG.outgoingEdgesOf(v).asScala) {
-        individualRequestsList.append(t)
-        rTvG.addVertex(t)
-        rTvG.addVertex(t.requests.head)
-        rTvG.addEdge(t.requests.head, t)
-        rTvG.addEdge(t, v)
-      }
-
-      if (v.getFreeSeats > 1) {
-        val pairRequestsList = MListBuffer.empty[RideHailTrip]
-        for {
-          t1 <- individualRequestsList
-          t2 <- individualRequestsList
-            .drop(individualRequestsList.indexOf(t1))
-            .withFilter(x => rvG.containsEdge(t1.requests.head, x.requests.head))
-        } yield {
-          getRidehailSchedule(
-            timeWindow,
-            v.schedule ++ (t1.requests ++ t2.requests).flatMap(x => List(x.pickup, x.dropoff)),
-            beamServices
-          ) map { schedule =>
-            val t = RideHailTrip(t1.requests ++ t2.requests, schedule)
-            pairRequestsList append t
-            rTvG.addVertex(t)
-            rTvG.addEdge(t1.requests.head, t)
-            rTvG.addEdge(t2.requests.head, t)
-            rTvG.addEdge(t, v)
-          }
-        }
-
-        val finalRequestsList: MListBuffer[RideHailTrip] = individualRequestsList ++ pairRequestsList
-        for (k <- 3 until v.getFreeSeats + 1) {
-          val kRequestsList = MListBuffer.empty[RideHailTrip]
-          for {
-            t1 <- finalRequestsList
-            t2 <- finalRequestsList
-              .drop(finalRequestsList.indexOf(t1))
-              .withFilter(
-                x => !(x.requests exists (s => t1.requests contains s)) && (t1.requests.size + x.requests.size) == k
-              )
-          } yield {
-            getRidehailSchedule(
-              timeWindow,
-              v.schedule ++ (t1.requests ++ t2.requests).flatMap(x => List(x.pickup, x.dropoff)),
-              beamServices
-            ).map { schedule =>
-              val t = RideHailTrip(t1.requests ++ t2.requests, schedule)
-              kRequestsList.append(t)
-              rTvG.addVertex(t)
-              t.requests.foldLeft(()) { case (_, r) => rTvG.addEdge(r, t) }
-              rTvG.addEdge(t, v)
-            }
+    vehicleTrips.foreach {
+      case (v, trips) =>
+        rTvG.addVertex(v)
+        trips.foreach { t =>
+          rTvG.addVertex(t)
+          t.requests.foreach { r =>
+            rTvG.addVertex(r)
+            rTvG.addEdge(r, t)
           }
-
-          finalRequestsList.appendAll(kRequestsList)
+          rTvG.addEdge(t, v)
         }
-      }
     }
-
     rTvG
   }
 
   // a greedy assignment using a cost function
-  def greedyAssignment(rtvG: RTVGraph): List[(RideHailTrip, VehicleAndSchedule, Int)] = {
-    val V: Int = supply.foldLeft(0) { case (maxCapacity, v) => Math max (maxCapacity, v.getFreeSeats) }
-    val C0: Int = timeWindow.foldLeft(0)(_ + _._2)
-    import scala.collection.mutable.{ListBuffer => MListBuffer}
-    val Rok = MListBuffer.empty[CustomerRequest]
-    val Vok = MListBuffer.empty[VehicleAndSchedule]
-    val greedyAssignmentList = MListBuffer.empty[(RideHailTrip, VehicleAndSchedule, Int)]
-    for (k <- V to 1 by -1) {
-      rtvG
-        .vertexSet()
-        .asScala
-        .filter(t => t.isInstanceOf[RideHailTrip] && t.asInstanceOf[RideHailTrip].requests.size == k)
-        .map { t =>
-          val trip = t.asInstanceOf[RideHailTrip]
-          val vehicle = rtvG
-            .getEdgeTarget(
-              rtvG
-                .outgoingEdgesOf(trip)
-                .asScala
-                .filter(e => rtvG.getEdgeTarget(e).isInstanceOf[VehicleAndSchedule])
-                .head
-            )
-            .asInstanceOf[VehicleAndSchedule]
-          val cost = trip.cost + C0 * rtvG
-            .outgoingEdgesOf(trip)
-            .asScala
-            .filter(e => rtvG.getEdgeTarget(e).isInstanceOf[CustomerRequest])
-            .count(y => !trip.requests.contains(y.asInstanceOf[CustomerRequest]))
+  def greedyAssignment(rtvG: RTVGraph): List[(RideHailTrip, VehicleAndSchedule, Int)] =
+    AlonsoMoraPoolingAlgForRideHail.greedyAssignment(rtvG)
 
-          (trip, vehicle, cost)
-        }
-        .toList
-        .sortBy(_._3)
-        .foldLeft(()) {
-          case (_, (trip, vehicle, cost)) =>
-            if (!(trip.requests exists (r => Rok contains r)) &&
-                !(Vok contains vehicle)) {
-              Rok.appendAll(trip.requests)
-              Vok.append(vehicle)
-              greedyAssignmentList.append((trip, vehicle, cost))
-            }
-        }
+  // Trips of the vehicle with up to as many requests as it has free seats. Two requests only share a trip if they
+  // can share a ride in the request graph, and a larger trip is only tried if all of its trips with one request less
+  // are feasible: leaving out a request never makes the others later as long as travel times obey the triangle
+  // inequality.
+  private def feasibleTrips(v: VehicleAndSchedule, rvG: RVGraph, beamServices: BeamServices): Vector[RideHailTrip] = {
+    val individualTrips = rvG.outgoingEdgesOf(v).asScala.toVector
+    val requests = individualTrips.map(_.requests.head)
+    val trips = Vector.newBuilder[RideHailTrip] ++= individualTrips
+    // trips of the last size, by the ascending indices of their requests
+    var smallerTrips = individualTrips.zipWithIndex.map { case (t, i) => (Vector(i), t) }
+    var k = 2
+    while (k <= v.getFreeSeats && smallerTrips.nonEmpty) {
+      val feasible = smallerTrips.map(_._1).toSet
+      smallerTrips = for {
+        (indices, t) <- smallerTrips
+        next         <- (indices.last + 1) until requests.size
+        if k > 2 || rvG.containsEdge(requests(indices.head), requests(next))
+        if indices.indices.forall(i => feasible.contains(indices.patch(i, Nil, 1) :+ next))
+        schedule <- getRidehailSchedule(
+          timeWindow,
+          v.schedule ++ (t.requests :+ requests(next)).flatMap(x => List(x.pickup, x.dropoff)),
+          beamServices
+        )
+      } yield (indices :+ next, RideHailTrip(t.requests :+ requests(next), schedule))
+      trips ++= smallerTrips.map(_._2)
+      k += 1
     }
-    greedyAssignmentList.toList
+    trips.result()
   }
-
 }
 
 object AlonsoMoraPoolingAlgForRideHail {
 
+  /**
+    * Assigns the trips with the most requests first, and the cheapest first among those, to their vehicles, skipping
+    * trips with a request or vehicle that is assigned already.
+    */
+  def greedyAssignment(rtvG: RTVGraph): List[(RideHailTrip, VehicleAndSchedule, Int)] = {
+    val trips = rtvG.vertexSet().asScala.toVector.collect {
+      case trip: RideHailTrip =>
+        val vehicle = rtvG
+          .outgoingEdgesOf(trip)
+          .asScala
+          .map(rtvG.getEdgeTarget)
+          .collectFirst { case v: VehicleAndSchedule => v }
+          .get
+        (trip, vehicle, trip.cost)
+    }
+    val assignedRequests = mutable.HashSet.empty[CustomerRequest]
+    val assignedVehicles = mutable.HashSet.empty[VehicleAndSchedule]
+    trips
+      .sortBy { case (trip, _, cost) => (-trip.requests.size, cost) }
+      .filter {
+        case (trip, vehicle, _) =>
+          val available = !assignedVehicles.contains(vehicle) && !trip.requests.exists(assignedRequests.contains)
+          if (available) {
+            assignedRequests ++= trip.requests
+            assignedVehicles += vehicle
+          }
+          available
+      }
+      .toList
+  }
+
+  // Applies f to parts of the items on the global execution context, the results are in the order of the items
+  private def inParallel[A, B](items: Seq[A])(f: A => B): Vector[B] = {
+    val partSize = math.max(items.size / (4 * Runtime.getRuntime.availableProcessors()), 1)
+    val parts = items.grouped(partSize).map(part => Future(part.map(f))).toVector
+    Await.result(Future.sequence(parts), Duration.Inf).flatten
+  }
+
   // ************ Helper functions ************
   def getTimeDistanceAndCost(src: MobilityRequest, dst: MobilityRequest, beamServices: BeamServices)(
     implicit skimmer: BeamSkimmer
@@ -98,52 +98,6 @@ class AsyncAlonsoMoraAlgForRideHail(
       }
   }
 
-  def greedyAssignment(): Future[List[(RideHailTrip, VehicleAndSchedule, Int)]] = {
-    val rTvGFuture = asyncBuildOfRTVGraph()
-    val V: Int = supply.foldLeft(0) { case (maxCapacity, v) => Math max (maxCapacity, v.getFreeSeats) }
-    val C0: Int = timeWindow.foldLeft(0)(_ + _._2)
-    import scala.collection.mutable.{ListBuffer => MListBuffer}
-    rTvGFuture.map { rTvG =>
-      val greedyAssignmentList = MListBuffer.empty[(RideHailTrip, VehicleAndSchedule, Int)]
-      val Rok = MListBuffer.empty[CustomerRequest]
-      val Vok = MListBuffer.empty[VehicleAndSchedule]
-      for (k <- V to 1 by -1) {
-        rTvG
-          .vertexSet()
-          .asScala
-          .filter(t => t.isInstanceOf[RideHailTrip] && t.asInstanceOf[RideHailTrip].requests.size == k)
-          .map { t =>
-            val trip = t.asInstanceOf[RideHailTrip]
-            val vehicle = rTvG
-              .getEdgeTarget(
-                rTvG
-                  .outgoingEdgesOf(trip)
-                  .asScala
-                  .filter(e => rTvG.getEdgeTarget(e).isInstanceOf[VehicleAndSchedule])
-                  .head
-              )
-              .asInstanceOf[VehicleAndSchedule]
-            val cost = trip.cost + C0 * rTvG
-              .outgoingEdgesOf(trip)
-              .asScala
-              .filter(e => rTvG.getEdgeTarget(e).isInstanceOf[CustomerRequest])
-              .count(y => !trip.requests.contains(y.asInstanceOf[CustomerRequest]))
-
-            (trip, vehicle, cost)
-          }
-          .toList
-          .sortBy(_._3)
-          .foldLeft(()) {
-            case (_, (trip, vehicle, cost)) =>
-              if (!(trip.requests exists (r => Rok contains r)) &&
-                  !(Vok contains vehicle)) {
-                Rok.appendAll(trip.requests)
-                Vok.append(vehicle)
-                greedyAssignmentList.append((trip, vehicle, cost))
-              }
-          }
-      }
-      greedyAssignmentList.toList
-    }
-  }
+  def greedyAssignment(): Future[List[(RideHailTrip, VehicleAndSchedule, Int)]] =
+    asyncBuildOfRTVGraph().map(AlonsoMoraPoolingAlgForRideHail.greedyAssignment)
 }
@@ -0,0 +1,256 @@
+package beam.agentsim.agents.ridehail
+
+import beam.agentsim.agents.ridehail.RideHailVehicleManager.{RideHailAgentETA, RideHailAgentLocation}
+import beam.router.BeamRouter.Location
+import com.vividsolutions.jts.geom.Envelope
+import org.matsim.api.core.v01.Id
+import org.matsim.vehicles.Vehicle
+
+import scala.collection.mutable
+
+/**
+  * Spatial index of the idle ride hail vehicles, to find the ones that get to a customer first without looking at
+  * every vehicle within the search radius.
+  *
+  * Vehicles are bucketed in a uniform grid over the bounding box, which is searched ring by ring around the customer.
+  * The ETA of a vehicle is never less than its distance times the seconds per meter, so once the best vehicles found
+  * so far arrive before any vehicle of the next ring could, the search stops. A vehicle keeps its slot while it is in
+  * the index: moving it updates its coordinates in place and only changes its bucket when it crosses a cell border.
+  * Vehicles outside of the bounding box are kept in a bucket of their own that every search looks at.
+  *
+  * @param minCellSize cells are at least this wide; wider if the bounding box would have too many of them
+  */
+class IdleVehicleIndex(boundingBox: Envelope, minCellSize: Double = IdleVehicleIndex.defaultCellSize) {
+  import IdleVehicleIndex._
+
+  private val minX = boundingBox.getMinX
+  private val minY = boundingBox.getMinY
+  private val maxX = boundingBox.getMaxX
+  private val maxY = boundingBox.getMaxY
+  private val cellSize = math.max(minCellSize, math.sqrt(boundingBox.getArea / maxNumberOfCells))
+  private val numberOfColumns = (boundingBox.getWidth / cellSize).toInt + 1
+  private val numberOfRows = (boundingBox.getHeight / cellSize).toInt + 1
+
+  // Slots of the vehicles in every cell, created when the first vehicle enters the cell
+  private val cells = new Array[mutable.ArrayBuffer[Int]](numberOfColumns * numberOfRows)
+  private val outside = mutable.ArrayBuffer[Int]()
+
+  private val slotOfVehicle = mutable.HashMap[Id[Vehicle], Int]()
+  private val freeSlots = mutable.ArrayBuffer[Int]()
+  private var numberOfSlots = 0
+  private var locations = new Array[RideHailAgentLocation](initialCapacity)
+  private var xs = new Array[Double](initialCapacity)
+  private var ys = new Array[Double](initialCapacity)
+  private var cellOfSlot = new Array[Int](initialCapacity)
+  private var positionInCell = new Array[Int](initialCapacity)
+
+  def size: Int = slotOfVehicle.size
+
+  def contains(vehicleId: Id[Vehicle]): Boolean = slotOfVehicle.contains(vehicleId)
+
+  /**
+    * Adds the vehicle, or moves it to its new location if it is in the index already.
+    */
+  def put(agentLocation: RideHailAgentLocation): Unit = {
+    val x = agentLocation.currentLocationUTM.loc.getX
+    val y = agentLocation.currentLocationUTM.loc.getY
+    val cell = cellOf(x, y)
+    val slot = slotOfVehicle.get(agentLocation.vehicleId) match {
+      case Some(existing) =>
+        if (cellOfSlot(existing) != cell) {
+          removeFromCell(existing)
+          addToCell(existing, cell)
+        }
+        existing
+      case None =>
+        val added = newSlot()
+        addToCell(added, cell)
+        slotOfVehicle.put(agentLocation.vehicleId, added)
+        added
+    }
+    locations(slot) = agentLocation
+    xs(slot) = x
+    ys(slot) = y
+  }
+
+  def remove(vehicleId: Id[Vehicle]): Unit =
+    slotOfVehicle.remove(vehicleId).foreach { slot =>
+      removeFromCell(slot)
+      locations(slot) = null
+      freeSlots += slot
+    }
+
+  /**
+    * @return the vehicles within the radius and their distances, in no particular order
+    */
+  def withinRadius(location: Location, radius: Double): Vector[(RideHailAgentLocation, Double)] = {
+    val x = location.getX
+    val y = location.getY
+    val result = Vector.newBuilder[(RideHailAgentLocation, Double)]
+
+    def visit(bucket: mutable.ArrayBuffer[Int]): Unit =
+      if (bucket != null) {
+        var i = 0
+        while (i < bucket.size) {
+          val slot = bucket(i)
+          val dx = xs(slot) - x
+          val dy = ys(slot) - y
+          if (dx * dx + dy * dy <= radius * radius) result += ((locations(slot), math.sqrt(dx * dx + dy * dy)))
+          i += 1
+        }
+      }
+
+    visit(outside)
+    val firstColumn = math.max(column(x - radius), 0)
+    val lastColumn = math.min(column(x + radius), numberOfColumns - 1)
+    val firstRow = math.max(row(y - radius), 0)
+    val lastRow = math.min(row(y + radius), numberOfRows - 1)
+    for {
+      r <- firstRow to lastRow
+      c <- firstColumn to lastColumn
+    } visit(cells(cell(c, r)))
+    result.result()
+  }
+
+  /**
+    * @param pickupLocation   where the customer waits
+    * @param radius           maximum distance of a vehicle from the customer
+    * @param requestTime      vehicles that are busy until later need the difference on top of their travel time
+    * @param secondsPerMeter  travel time of one meter of distance to the customer
+    * @param k                number of vehicles to return
+    * @param exclude          vehicles not to return
+    * @return the up to `k` vehicles with the lowest ETA, lowest first
+    */
+  def nearestByETA(
+    pickupLocation: Location,
+    radius: Double,
+    requestTime: Long,
+    secondsPerMeter: Double,
+    k: Int,
+    exclude: Set[Id[Vehicle]] = Set()
+  ): Vector[RideHailAgentETA] = {
+    val best = mutable.PriorityQueue[RideHailAgentETA]()(Ordering.by(_.timeToCustomer))
+    val x = pickupLocation.getX
+    val y = pickupLocation.getY
+    val pickupColumn = column(x)
+    val pickupRow = row(y)
+    // farthest ring that still contains a cell of the grid
+    val lastRing = Seq(pickupColumn, numberOfColumns - 1 - pickupColumn, pickupRow, numberOfRows - 1 - pickupRow)
+      .map(math.abs)
+      .max + 1
+
+    def visit(bucket: mutable.ArrayBuffer[Int]): Unit =
+      if (bucket != null) {
+        var i = 0
+        while (i < bucket.size) {
+          val slot = bucket(i)
+          val dx = xs(slot) - x
+          val dy = ys(slot) - y
+          if (dx * dx + dy * dy <= radius * radius) {
+            val agentLocation = locations(slot)
+            val distance = math.sqrt(dx * dx + dy * dy)
+            // the time to travel to the customer and the time before the vehicle is actually ready (due to already
+            // moving or dropping off a customer, etc.)
+            val extra = math.max(agentLocation.currentLocationUTM.time - requestTime, 0)
+            val timeToCustomer = distance * secondsPerMeter + extra
+            if ((best.size < k || timeToCustomer < best.head.timeToCustomer) &&
+                !exclude.contains(agentLocation.vehicleId)) {
+              best += RideHailAgentETA(agentLocation, distance, timeToCustomer)
+              if (best.size > k) best.dequeue()
+            }
+          }
+          i += 1
+        }
+      }
+
+    def visitCell(c: Int, r: Int): Unit =
+      if (c >= 0 && c < numberOfColumns && r >= 0 && r < numberOfRows) visit(cells(cell(c, r)))
+
+    // vehicles in ring n are more than (n - 1) cells away from the customer
+    def couldImprove(ring: Int): Boolean =
+      best.size < k || secondsPerMeter < 0 || best.head.timeToCustomer > secondsPerMeter * (ring - 1) * cellSize
+
+    visit(outside)
+    var ring = 0
+    while (k > 0 && ring <= lastRing && (ring - 1) * cellSize <= radius && couldImprove(ring)) {
+      if (ring == 0) {
+        visitCell(pickupColumn, pickupRow)
+      } else {
+        // only the part of the ring that overlaps the grid
+        val firstColumn = math.max(pickupColumn - ring, 0)
+        val lastColumn = math.min(pickupColumn + ring, numberOfColumns - 1)
+        val firstRow = math.max(pickupRow - ring + 1, 0)
+        val lastRow = math.min(pickupRow + ring - 1, numberOfRows - 1)
+        (firstColumn to lastColumn).foreach { c =>
+          visitCell(c, pickupRow - ring)
+          visitCell(c, pickupRow + ring)
+        }
+        (firstRow to lastRow).foreach { r =>
+          visitCell(pickupColumn - ring, r)
+          visitCell(pickupColumn + ring, r)
+        }
+      }
+      ring += 1
+    }
+    best.dequeueAll.reverse.toVector
+  }
+
+  private def newSlot(): Int =
+    if (freeSlots.nonEmpty) {
+      freeSlots.remove(freeSlots.size - 1)
+    } else {
+      if (numberOfSlots == locations.length) {
+        val capacity = 2 * numberOfSlots
+        locations = java.util.Arrays.copyOf(locations, capacity)
+        xs = java.util.Arrays.copyOf(xs, capacity)
+        ys = java.util.Arrays.copyOf(ys, capacity)
+        cellOfSlot = java.util.Arrays.copyOf(cellOfSlot, capacity)
+        positionInCell = java.util.Arrays.copyOf(positionInCell, capacity)
+      }
+      numberOfSlots += 1
+      numberOfSlots - 1
+    }
+
+  private def bucket(cellIndex: Int): mutable.ArrayBuffer[Int] =
+    if (cellIndex == outsideCell) {
+      outside
+    } else {
+      if (cells(cellIndex) == null) cells(cellIndex) = mutable.ArrayBuffer[Int]()
+      cells(cellIndex)
+    }
+
+  private def addToCell(slot: Int, cellIndex: Int): Unit = {
+    val slots = bucket(cellIndex)
+    cellOfSlot(slot) = cellIndex
+    positionInCell(slot) = slots.size
+    slots += slot
+  }
+
+  // the last slot of the cell takes the place of the removed one
+  private def removeFromCell(slot: Int): Unit = {
+    val slots = bucket(cellOfSlot(slot))
+    val last = slots.remove(slots.size - 1)
+    if (last != slot) {
+      slots(positionInCell(slot)) = last
+      positionInCell(last) = positionInCell(slot)
+    }
+  }
+
+  private def cellOf(x: Double, y: Double): Int =
+    if (x < minX || x > maxX || y < minY || y > maxY) outsideCell else cell(column(x), row(y))
+
+  private def column(x: Double): Int = math.floor((x - minX) / cellSize).toInt
+
+  private def row(y: Double): Int = math.floor((y - minY) / cellSize).toInt
+
+  private def cell(column: Int, row: Int): Int = row * numberOfColumns + column
+}
+
+object IdleVehicleIndex {
+
+  val defaultCellSize = 500.0
+
+  private val maxNumberOfCells = 1 << 20
+  private val initialCapacity = 16
+  private val outsideCell = -1
+}
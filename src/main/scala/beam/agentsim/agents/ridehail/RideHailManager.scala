@@ -32,7 +32,7 @@ import beam.agentsim.agents.vehicles.{PassengerSchedule, _}
 import beam.agentsim.events.SpaceTime
 import beam.agentsim.infrastructure.ParkingManager.{DepotParkingInquiry, DepotParkingInquiryResponse}
 import beam.agentsim.infrastructure.ParkingStall
-import beam.agentsim.scheduler.BeamAgentScheduler.ScheduleTrigger
+import beam.agentsim.scheduler.BeamAgentScheduler.{ScheduleTrigger, ScheduleTriggers}
 import beam.agentsim.scheduler.Trigger
 import beam.agentsim.scheduler.Trigger.TriggerWithId
 import beam.analysis.plots.GraphsStatsAgentSimEventsListener
@@ -318,102 +318,113 @@ class RideHailManager(
   private val rand = new Random(beamServices.beamConfig.matsim.modules.global.randomSeed)
   private val rideHailinitialLocationSpatialPlot = new SpatialPlot(1100, 1100, 50)
   val resources: mutable.Map[Id[BeamVehicle], BeamVehicle] = mutable.Map[Id[BeamVehicle], BeamVehicle]()
-
-  beamServices.beamConfig.beam.agentsim.agents.rideHail.initialization.initType match {
-    case "PROCEDURAL" =>
-      val averageOnDutyHoursPerDay = 3.52 // Measured from Austin Data, assuming drivers took at least 4 trips
-      val meanLogShiftDurationHours = 1.02
-      val stdLogShiftDurationHours = 0.44
-      var equivalentNumberOfDrivers = 0.0
-      val persons: List[Person] = RandomUtils
-        .shuffle(scenario.getPopulation.getPersons.values().asScala, rand)
-        .toList
-      val activityEndTimes: ArrayBuffer[Int] = new ArrayBuffer[Int]()
-      scenario.getPopulation.getPersons.asScala.foreach(
-        _._2.getSelectedPlan.getPlanElements.asScala
-          .collect {
-            case activity: Activity if activity.getEndTime.toInt > 0 => activity.getEndTime.toInt
-          }
-          .foreach(activityEndTimes += _)
-      )
-      val fleetData: ArrayBuffer[RideHailFleetInitializer.RideHailAgentInputData] = new ArrayBuffer
-      var idx = 0
-      while (equivalentNumberOfDrivers < numRideHailAgents.toDouble) {
-        if (idx >= persons.length) {
-          log.error(
-            "Can't have more ridehail drivers than total population"
-          )
-        } else {
-          try {
-            val person = persons(idx)
-            val vehicleType = VehiclesAdjustment
-              .getVehicleAdjustment(beamServices)
-              .sampleRideHailVehicleTypes(
-                numVehicles = 1,
-                vehicleCategory = VehicleCategory.Car
-              )
-              .head
-            if (beamServices.beamConfig.beam.agentsim.agents.rideHail.refuelThresholdInMeters >=
-                  (vehicleType.primaryFuelCapacityInJoule / vehicleType.primaryFuelConsumptionInJoulePerMeter) * 0.8) {
-              log.error(
-                "Ride Hail refuel threshold is higher than state of energy of a vehicle fueled by a DC fast charger. This will cause an infinite loop"
-              )
+  // The initialize triggers of the ride hail agents go to the scheduler in one message
+  scheduler ! ScheduleTriggers(createRideHailFleet())
+
+  private def createRideHailFleet(): Vector[ScheduleTrigger] = {
+    val initializeTriggers = mutable.ArrayBuffer[ScheduleTrigger]()
+    beamServices.beamConfig.beam.agentsim.agents.rideHail.initialization.initType match {
+      case "PROCEDURAL" =>
+        val averageOnDutyHoursPerDay = 3.52 // Measured from Austin Data, assuming drivers took at least 4 trips
+        val meanLogShiftDurationHours = 1.02
+        val stdLogShiftDurationHours = 0.44
+        var equivalentNumberOfDrivers = 0.0
+        val persons: List[Person] = RandomUtils
+          .shuffle(scenario.getPopulation.getPersons.values().asScala, rand)
+          .toList
+        val activityEndTimes: ArrayBuffer[Int] = new ArrayBuffer[Int]()
+        scenario.getPopulation.getPersons.asScala.foreach(
+          _._2.getSelectedPlan.getPlanElements.asScala
+            .collect {
+              case activity: Activity if activity.getEndTime.toInt > 0 => activity.getEndTime.toInt
             }
-            val rideInitialLocation: Location = getRideInitLocation(person)
-            if (vehicleType.automationLevel < 4) {
-              val shiftDuration =
-                math.round(math.exp(rand.nextGaussian() * stdLogShiftDurationHours + meanLogShiftDurationHours) * 3600)
-              val shiftMidPointTime = activityEndTimes(rand.nextInt(activityEndTimes.length))
-              val shiftStartTime = max(shiftMidPointTime - (shiftDuration / 2).toInt, 10)
-              val shiftEndTime = min(shiftMidPointTime + (shiftDuration / 2).toInt, 30 * 3600)
-              equivalentNumberOfDrivers += (shiftEndTime - shiftStartTime) / (averageOnDutyHoursPerDay * 3600)
-
-              val shiftString = convertToShiftString(ArrayBuffer(shiftStartTime), ArrayBuffer(shiftEndTime))
-              fleetData += createRideHailVehicleAndAgent(
-                person.getId.toString,
-                vehicleType,
-                rideInitialLocation,
-                shiftString,
-                None
-              )
-            } else {
-              val shiftString = None
-              fleetData += createRideHailVehicleAndAgent(
-                person.getId.toString,
-                vehicleType,
-                rideInitialLocation,
-                shiftString,
-                None
-              )
-              equivalentNumberOfDrivers += 1.0
+            .foreach(activityEndTimes += _)
+        )
+        val fleetData: ArrayBuffer[RideHailFleetInitializer.RideHailAgentInputData] = new ArrayBuffer
+        var idx = 0
+        while (equivalentNumberOfDrivers < numRideHailAgents.toDouble) {
+          if (idx >= persons.length) {
+            log.error(
+              "Can't have more ridehail drivers than total population"
+            )
+          } else {
+            try {
+              val person = persons(idx)
+              val vehicleType = VehiclesAdjustment
+                .getVehicleAdjustment(beamServices)
+                .sampleRideHailVehicleTypes(
+                  numVehicles = 1,
+                  vehicleCategory = VehicleCategory.Car
+                )
+                .head
+              if (beamServices.beamConfig.beam.agentsim.agents.rideHail.refuelThresholdInMeters >=
+                    (vehicleType.primaryFuelCapacityInJoule / vehicleType.primaryFuelConsumptionInJoulePerMeter) *
+                    0.8) {
+                log.error(
+                  "Ride Hail refuel threshold is higher than state of energy of a vehicle fueled by a DC fast charger. This will cause an infinite loop"
+                )
+              }
+              val rideInitialLocation: Location = getRideInitLocation(person)
+              if (vehicleType.automationLevel < 4) {
+                val shiftDuration = math.round(
+                  math.exp(rand.nextGaussian() * stdLogShiftDurationHours + meanLogShiftDurationHours) * 3600
+                )
+                val shiftMidPointTime = activityEndTimes(rand.nextInt(activityEndTimes.length))
+                val shiftStartTime = max(shiftMidPointTime - (shiftDuration / 2).toInt, 10)
+                val shiftEndTime = min(shiftMidPointTime + (shiftDuration / 2).toInt, 30 * 3600)
+                equivalentNumberOfDrivers += (shiftEndTime - shiftStartTime) / (averageOnDutyHoursPerDay * 3600)
+
+                val shiftString = convertToShiftString(ArrayBuffer(shiftStartTime), ArrayBuffer(shiftEndTime))
+                fleetData += createRideHailVehicleAndAgent(
+                  person.getId.toString,
+                  vehicleType,
+                  rideInitialLocation,
+                  shiftString,
+                  None,
+                  initializeTriggers
+                )
+              } else {
+                val shiftString = None
+                fleetData += createRideHailVehicleAndAgent(
+                  person.getId.toString,
+                  vehicleType,
+                  rideInitialLocation,
+                  shiftString,
+                  None,
+                  initializeTriggers
+                )
+                equivalentNumberOfDrivers += 1.0
+              }
+            } catch {
+              case ex: Throwable =>
+                log.error(ex, s"Could not createRideHailVehicleAndAgent: ${ex.getMessage}")
+                throw ex
             }
-          } catch {
-            case ex: Throwable =>
-              log.error(ex, s"Could not createRideHailVehicleAndAgent: ${ex.getMessage}")
-              throw ex
+            idx += 1
           }
-          idx += 1
         }
-      }
 
-      new RideHailFleetInitializer().writeFleetData(beamServices, fleetData)
-      log.info("Initialized {} ride hailing shifts", idx)
-
-    case "FILE" =>
-      new RideHailFleetInitializer().init(beamServices) foreach { fleetData =>
-        createRideHailVehicleAndAgent(
-          fleetData.id.split("-").toList.tail.mkString("-"),
-          BeamVehicleType.defaultCarBeamVehicleType,
-          new Coord(fleetData.initialLocationX, fleetData.initialLocationY),
-          fleetData.shifts,
-          fleetData.toGeofence
+        new RideHailFleetInitializer().writeFleetData(beamServices, fleetData)
+        log.info("Initialized {} ride hailing shifts", idx)
+
+      case "FILE" =>
+        new RideHailFleetInitializer().init(beamServices) foreach { fleetData =>
+          createRideHailVehicleAndAgent(
+            fleetData.id.split("-").toList.tail.mkString("-"),
+            BeamVehicleType.defaultCarBeamVehicleType,
+            new Coord(fleetData.initialLocationX, fleetData.initialLocationY),
+            fleetData.shifts,
+            fleetData.toGeofence,
+            initializeTriggers
+          )
+        }
+      case _ =>
+        log.error(
+          "Unidentified initialization type : " +
+          beamServices.beamConfig.beam.agentsim.agents.rideHail.initialization
         )
-      }
-    case _ =>
-      log.error(
-        "Unidentified initialization type : " +
-        beamServices.beamConfig.beam.agentsim.agents.rideHail.initialization
-      )
+    }
+    initializeTriggers.toVector
   }
 
   if (beamServices.matsimServices != null) {
@@ -1093,12 +1104,13 @@ class RideHailManager(
     }
   }
 
-  def createRideHailVehicleAndAgent(
+  private def createRideHailVehicleAndAgent(
     rideHailAgentIdentifier: String,
     rideHailBeamVehicleType: BeamVehicleType,
     rideInitialLocation: Coord,
     shifts: Option[String],
-    geofence: Option[Geofence]
+    geofence: Option[Geofence],
+    initializeTriggers: mutable.Buffer[ScheduleTrigger]
   ): RideHailAgentInputData = {
     val rideHailAgentName = s"rideHailAgent-${rideHailAgentIdentifier}"
     val rideHailVehicleId = BeamVehicle.createId(rideHailAgentIdentifier, Some("rideHailVehicle"))
@@ -1142,7 +1154,7 @@ class RideHailManager(
     val rideHailAgentRef: ActorRef =
       context.actorOf(rideHailAgentProps, rideHailAgentName)
     context.watch(rideHailAgentRef)
-    scheduler ! ScheduleTrigger(InitializeTrigger(0), rideHailAgentRef)
+    initializeTriggers += ScheduleTrigger(InitializeTrigger(0), rideHailAgentRef)
 
     val agentLocation = RideHailAgentLocation(
       rideHailAgentRef,
@@ -1328,51 +1340,65 @@ class RideHailManager(
       modifyPassengerScheduleManager.setNumberOfRepositioningsToProcess(repositionVehicles.size)
     }
 
-    for ((vehicleId, destinationLocation) <- repositionVehicles) {
-      if (vehicleManager.getIdleVehicles.contains(vehicleId)) {
-        val rideHailAgentLocation = vehicleManager.getIdleVehicles(vehicleId)
-
-        val rideHailVehicleAtOrigin = StreetVehicle(
-          rideHailAgentLocation.vehicleId,
-          rideHailAgentLocation.vehicleTypeId,
-          SpaceTime((rideHailAgentLocation.currentLocationUTM.loc, tick)),
-          CAR,
-          asDriver = false
-        )
-        val routingRequest = RoutingRequest(
-          originUTM = rideHailAgentLocation.currentLocationUTM.loc,
-          destinationUTM = destinationLocation,
-          departureTime = tick,
-          transitModes = Vector(),
-          streetVehicles = Vector(rideHailVehicleAtOrigin)
-        )
-        val futureRideHailAgent2CustomerResponse = router ? routingRequest
-
-        for {
-          rideHailAgent2CustomerResponse <- futureRideHailAgent2CustomerResponse
-            .mapTo[RoutingResponse]
-        } {
-          val itins2Cust = rideHailAgent2CustomerResponse.itineraries.filter(
-            x => x.tripClassifier.equals(RIDE_HAIL)
+    val repositionings = repositionVehicles.flatMap {
+      case (vehicleId, destinationLocation) =>
+        if (vehicleManager.getIdleVehicles.contains(vehicleId)) {
+          val rideHailAgentLocation = vehicleManager.getIdleVehicles(vehicleId)
+
+          val rideHailVehicleAtOrigin = StreetVehicle(
+            rideHailAgentLocation.vehicleId,
+            rideHailAgentLocation.vehicleTypeId,
+            SpaceTime((rideHailAgentLocation.currentLocationUTM.loc, tick)),
+            CAR,
+            asDriver = false
+          )
+          val routingRequest = RoutingRequest(
+            originUTM = rideHailAgentLocation.currentLocationUTM.loc,
+            destinationUTM = destinationLocation,
+            departureTime = tick,
+            transitModes = Vector(),
+            streetVehicles = Vector(rideHailVehicleAtOrigin)
           )
+          Some((rideHailAgentLocation, routingRequest))
+        } else {
+          modifyPassengerScheduleManager.cancelRepositionAttempt()
+          None
+        }
+    }
 
-          if (itins2Cust.nonEmpty) {
-            val modRHA2Cust: IndexedSeq[EmbodiedBeamTrip] =
-              itins2Cust.map(l => l.copy(legs = l.legs.map(c => c.copy(asDriver = true)))).toIndexedSeq
-            val rideHailAgent2CustomerResponseMod = RoutingResponse(modRHA2Cust, routingRequest.requestId)
+    // The wave is routed in one batch, in which vehicles waiting at the same place share the street search from there
+    if (repositionings.nonEmpty) {
+      val futureRideHailAgent2CustomerResponses = router ? BatchRoutingRequest(repositionings.map(_._2))
 
-            // TODO: extract creation of route to separate method?
-            val passengerSchedule = PassengerSchedule().addLegs(
-              rideHailAgent2CustomerResponseMod.itineraries.head.toBeamTrip.legs
+      for {
+        rideHailAgent2CustomerResponses <- futureRideHailAgent2CustomerResponses
+          .mapTo[BatchRoutingResponse]
+      } {
+        repositionings.zip(rideHailAgent2CustomerResponses.responses).foreach {
+          case ((rideHailAgentLocation, routingRequest), rideHailAgent2CustomerResponse) =>
+            val itins2Cust = rideHailAgent2CustomerResponse.itineraries.filter(
+              x => x.tripClassifier.equals(RIDE_HAIL)
             )
-            self ! RepositionVehicleRequest(passengerSchedule, tick, vehicleId, rideHailAgentLocation.rideHailAgent)
-          } else {
-            self ! ReduceAwaitingRepositioningAckMessagesByOne
-          }
-        }
 
-      } else {
-        modifyPassengerScheduleManager.cancelRepositionAttempt()
+            if (itins2Cust.nonEmpty) {
+              val modRHA2Cust: IndexedSeq[EmbodiedBeamTrip] =
+                itins2Cust.map(l => l.copy(legs = l.legs.map(c => c.copy(asDriver = true)))).toIndexedSeq
+              val rideHailAgent2CustomerResponseMod = RoutingResponse(modRHA2Cust, routingRequest.requestId)
+
+              // TODO: extract creation of route to separate method?
+              val passengerSchedule = PassengerSchedule().addLegs(
+                rideHailAgent2CustomerResponseMod.itineraries.head.toBeamTrip.legs
+              )
+              self ! RepositionVehicleRequest(
+                passengerSchedule,
+                tick,
+                rideHailAgentLocation.vehicleId,
+                rideHailAgentLocation.rideHailAgent
+              )
+            } else {
+              self ! ReduceAwaitingRepositioningAckMessagesByOne
+            }
+        }
       }
     }
 
@@ -12,13 +12,11 @@ import com.typesafe.scalalogging.LazyLogging
 import com.vividsolutions.jts.geom.Envelope
 import org.matsim.api.core.v01.{Coord, Id}
 import org.matsim.core.utils.collections.QuadTree
-import org.matsim.core.utils.geometry.CoordUtils
 import org.matsim.vehicles.Vehicle
 import beam.agentsim.agents.ridehail.RideHailVehicleManager._
 import beam.agentsim.agents.vehicles.BeamVehicleType
 
 import scala.collection.mutable
-import collection.JavaConverters._
 
 /**
   * BEAM
@@ -28,14 +26,7 @@ class RideHailVehicleManager(val rideHailManager: RideHailManager, boundingBox:
   val vehicleState: mutable.Map[Id[Vehicle], BeamVehicleState] =
     mutable.Map[Id[Vehicle], BeamVehicleState]()
 
-  val availableRideHailAgentSpatialIndex = {
-    new QuadTree[RideHailAgentLocation](
-      boundingBox.getMinX,
-      boundingBox.getMinY,
-      boundingBox.getMaxX,
-      boundingBox.getMaxY
-    )
-  }
+  val availableRideHailAgentSpatialIndex = new IdleVehicleIndex(boundingBox)
 
   val inServiceRideHailAgentSpatialIndex = {
     new QuadTree[RideHailAgentLocation](
@@ -65,17 +56,7 @@ class RideHailVehicleManager(val rideHailManager: RideHailManager, boundingBox:
     pickupLocation: Location,
     radius: Double
   ): Iterable[(RideHailAgentLocation, Double)] = {
-    val nearbyRideHailAgents = availableRideHailAgentSpatialIndex
-      .getDisk(pickupLocation.getX, pickupLocation.getY, radius)
-      .asScala
-      .view
-    val distances2RideHailAgents =
-      nearbyRideHailAgents.map(rideHailAgentLocation => {
-        val distance = CoordUtils
-          .calcProjectedEuclideanDistance(pickupLocation, rideHailAgentLocation.currentLocationUTM.loc)
-        (rideHailAgentLocation, distance)
-      })
-    distances2RideHailAgents.filter(x => availableRideHailVehicles.contains(x._1.vehicleId))
+    availableRideHailAgentSpatialIndex.withinRadius(pickupLocation, radius)
   }
 
   def getRideHailAgentLocation(vehicleId: Id[Vehicle]): RideHailAgentLocation = {
@@ -89,40 +70,32 @@ class RideHailVehicleManager(val rideHailManager: RideHailManager, boundingBox:
     }
   }
 
+  /**
+    * @param maxNumberOfVehicles number of vehicles to return, callers that only need the closest few should limit it
+    * @return the closest idle vehicles by ETA, closest first
+    */
   def getClosestIdleVehiclesWithinRadiusByETA(
     pickupLocation: Coord,
     radius: Double,
     customerRequestTime: Long,
     excludeRideHailVehicles: Set[Id[Vehicle]] = Set(),
-    secondsPerEuclideanMeterFactor: Double = 0.1 // (~13.4m/s)^-1 * 1.4
+    secondsPerEuclideanMeterFactor: Double = 0.1, // (~13.4m/s)^-1 * 1.4
+    maxNumberOfVehicles: Int = Int.MaxValue
   ): Vector[RideHailAgentETA] = {
-    var start = System.currentTimeMillis()
-    val nearbyAvailableRideHailAgents = availableRideHailAgentSpatialIndex
-      .getDisk(pickupLocation.getX, pickupLocation.getY, radius)
-      .asScala
-      .filter(x => availableRideHailVehicles.contains(x.vehicleId) && !excludeRideHailVehicles.contains(x.vehicleId))
-    var end = System.currentTimeMillis()
-    val diff1 = end - start
-
-    start = System.currentTimeMillis()
-    val times2RideHailAgents = nearbyAvailableRideHailAgents
-      .map { rideHailAgentLocation =>
-        val distance =
-          CoordUtils.calcProjectedEuclideanDistance(pickupLocation, rideHailAgentLocation.currentLocationUTM.loc)
-        // we consider the time to travel to the customer and the time before the vehicle is actually ready (due to
-        // already moving or dropping off a customer, etc.)
-        val extra = Math.max(rideHailAgentLocation.currentLocationUTM.time - customerRequestTime, 0)
-        val timeToCustomer = distance * secondsPerEuclideanMeterFactor + extra
-        RideHailAgentETA(rideHailAgentLocation, distance, timeToCustomer)
-      }
-      .toVector
-      .sortBy(_.timeToCustomer)
-    end = System.currentTimeMillis()
-    val diff2 = end - start
+    val start = System.currentTimeMillis()
+    val times2RideHailAgents = availableRideHailAgentSpatialIndex.nearestByETA(
+      pickupLocation,
+      radius,
+      customerRequestTime,
+      secondsPerEuclideanMeterFactor,
+      maxNumberOfVehicles,
+      excludeRideHailVehicles
+    )
+    val diff = System.currentTimeMillis() - start
 
-    if (diff1 + diff2 > 100)
+    if (diff > 100)
       logger.debug(
-        s"getClosestIdleVehiclesWithinRadiusByETA for $pickupLocation with $radius nearbyAvailableRideHailAgents: $diff1, diff2: $diff2. Total: ${diff1 + diff2} ms"
+        s"getClosestIdleVehiclesWithinRadiusByETA for $pickupLocation with $radius took $diff ms"
       )
 
     times2RideHailAgents
@@ -176,16 +149,7 @@ class RideHailVehicleManager(val rideHailManager: RideHailManager, boundingBox:
         availableRideHailVehicles.get(vehicleId) match {
           case Some(prevLocation) =>
             val newLocation = prevLocation.copy(currentLocationUTM = whenWhere)
-            availableRideHailAgentSpatialIndex.remove(
-              prevLocation.currentLocationUTM.loc.getX,
-              prevLocation.currentLocationUTM.loc.getY,
-              prevLocation
-            )
-            availableRideHailAgentSpatialIndex.put(
-              newLocation.currentLocationUTM.loc.getX,
-              newLocation.currentLocationUTM.loc.getY,
-              newLocation
-            )
+            availableRideHailAgentSpatialIndex.put(newLocation)
             availableRideHailVehicles.put(newLocation.vehicleId, newLocation)
           case None =>
         }
@@ -228,11 +192,7 @@ class RideHailVehicleManager(val rideHailManager: RideHailManager, boundingBox:
 
   def makeAvailable(agentLocation: RideHailAgentLocation) = {
     availableRideHailVehicles.put(agentLocation.vehicleId, agentLocation)
-    availableRideHailAgentSpatialIndex.put(
-      agentLocation.currentLocationUTM.loc.getX,
-      agentLocation.currentLocationUTM.loc.getY,
-      agentLocation
-    )
+    availableRideHailAgentSpatialIndex.put(agentLocation)
     inServiceRideHailVehicles.remove(agentLocation.vehicleId)
     inServiceRideHailAgentSpatialIndex.remove(
       agentLocation.currentLocationUTM.loc.getX,
@@ -249,11 +209,7 @@ class RideHailVehicleManager(val rideHailManager: RideHailManager, boundingBox:
 
   def putIntoService(agentLocation: RideHailAgentLocation) = {
     availableRideHailVehicles.remove(agentLocation.vehicleId)
-    availableRideHailAgentSpatialIndex.remove(
-      agentLocation.currentLocationUTM.loc.getX,
-      agentLocation.currentLocationUTM.loc.getY,
-      agentLocation
-    )
+    availableRideHailAgentSpatialIndex.remove(agentLocation.vehicleId)
     outOfServiceRideHailVehicles.remove(agentLocation.vehicleId)
     outOfServiceRideHailAgentSpatialIndex.remove(
       agentLocation.currentLocationUTM.loc.getX,
@@ -270,11 +226,7 @@ class RideHailVehicleManager(val rideHailManager: RideHailManager, boundingBox:
 
   def putOutOfService(agentLocation: RideHailAgentLocation) = {
     availableRideHailVehicles.remove(agentLocation.vehicleId)
-    availableRideHailAgentSpatialIndex.remove(
-      agentLocation.currentLocationUTM.loc.getX,
-      agentLocation.currentLocationUTM.loc.getY,
-      agentLocation
-    )
+    availableRideHailAgentSpatialIndex.remove(agentLocation.vehicleId)
     inServiceRideHailVehicles.remove(agentLocation.vehicleId)
     inServiceRideHailAgentSpatialIndex.remove(
       agentLocation.currentLocationUTM.loc.getX,
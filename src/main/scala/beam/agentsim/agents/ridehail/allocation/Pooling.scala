@@ -21,7 +21,8 @@ class Pooling(val rideHailManager: RideHailManager) extends RideHailResourceAllo
       .getClosestIdleVehiclesWithinRadiusByETA(
         inquiry.pickUpLocationUTM,
         rideHailManager.radiusInMeters,
-        inquiry.departAt
+        inquiry.departAt,
+        maxNumberOfVehicles = 1
       )
       .headOption match {
       case Some(agentETA) =>
@@ -96,7 +97,8 @@ class Pooling(val rideHailManager: RideHailManager) extends RideHailResourceAllo
               request1.pickUpLocationUTM,
               rideHailManager.radiusInMeters,
               tick,
-              excludeRideHailVehicles = alreadyAllocated
+              excludeRideHailVehicles = alreadyAllocated,
+              maxNumberOfVehicles = 1
             )
             .headOption match {
             case Some(agentETA) =>
@@ -204,7 +206,8 @@ object Pooling {
         request.pickUpLocationUTM,
         rideHailManager.radiusInMeters,
         pickUpTime,
-        excludeRideHailVehicles = alreadyAllocated
+        excludeRideHailVehicles = alreadyAllocated,
+        maxNumberOfVehicles = 1
       )
       .headOption match {
       case Some(agentETA) =>
@@ -39,7 +39,8 @@ class PoolingAlonsoMora(val rideHailManager: RideHailManager)
       .getClosestIdleVehiclesWithinRadiusByETA(
         inquiry.pickUpLocationUTM,
         rideHailManager.radiusInMeters,
-        inquiry.departAt
+        inquiry.departAt,
+        maxNumberOfVehicles = 1
       )
       .headOption match {
       case Some(agentETA) =>
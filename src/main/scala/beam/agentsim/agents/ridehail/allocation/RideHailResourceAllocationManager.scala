@@ -125,7 +125,8 @@ abstract class RideHailResourceAllocationManager(private val rideHailManager: Ri
           .getClosestIdleVehiclesWithinRadiusByETA(
             request.pickUpLocationUTM,
             rideHailManager.radiusInMeters,
-            tick
+            tick,
+            maxNumberOfVehicles = 1
           )
           .headOption match {
           case Some(agentETA) =>
@@ -150,7 +151,8 @@ abstract class RideHailResourceAllocationManager(private val rideHailManager: Ri
             request.pickUpLocationUTM,
             rideHailManager.radiusInMeters,
             tick,
-            excludeRideHailVehicles = alreadyAllocated
+            excludeRideHailVehicles = alreadyAllocated,
+            maxNumberOfVehicles = 1
           )
           .headOption match {
           case Some(agentETA) =>
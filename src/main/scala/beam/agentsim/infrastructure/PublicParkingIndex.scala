@@ -0,0 +1,181 @@
+package beam.agentsim.infrastructure
+
+import beam.agentsim.infrastructure.ParkingStall._
+import beam.agentsim.infrastructure.TAZTreeMap.TAZ
+import beam.agentsim.infrastructure.ZonalParkingManager.ParkingAlternative
+import beam.router.BeamRouter.Location
+
+import scala.collection.mutable
+
+/**
+  * Index of the public parking stalls (not reserved for anybody) of every TAZ, to find the best stalls near a location
+  * without looking at all TAZs of a search radius.
+  *
+  * TAZ centers are bucketed in a uniform grid, which is searched ring by ring around the location. The ranking of a
+  * stall is its cost plus a non-negative weight per meter of walking, so once the best stalls found so far rank better
+  * than any stall of the next ring could, the search stops. The stall values are the ones of the pooled resources, so
+  * reserving and releasing stalls updates the index in place.
+  *
+  * Like [[IndexerForZonalParkingManager.find]], a TAZ offers one alternative per pricing model: the first free stall
+  * value of the pricing model that has stalls left. It only counts if stalls without charger are left as well, since
+  * that is what the parking stall is created with.
+  *
+  * @param stallReach maximum distance of a stall of a TAZ from its center
+  */
+class PublicParkingIndex(
+  tazs: IndexedSeq[TAZ],
+  resources: collection.Map[StallAttributes, StallValues],
+  stallReach: TAZ => Double
+) {
+  import PublicParkingIndex._
+
+  private val numberOfTazs = tazs.size
+  private val tazX = tazs.map(_.coord.getX).toArray
+  private val tazY = tazs.map(_.coord.getY).toArray
+  private val maxStallReach = if (tazs.isEmpty) 0.0 else tazs.map(stallReach).max
+
+  private val minX = if (tazs.isEmpty) 0.0 else tazX.min
+  private val minY = if (tazs.isEmpty) 0.0 else tazY.min
+  // about one TAZ per cell
+  private val cellSize: Double = if (tazs.isEmpty) {
+    1.0
+  } else {
+    val area = math.max(tazX.max - minX, 1.0) * math.max(tazY.max - minY, 1.0)
+    math.max(math.sqrt(area / numberOfTazs), 1.0)
+  }
+  private val numberOfColumns = if (tazs.isEmpty) 1 else ((tazX.max - minX) / cellSize).toInt + 1
+  private val numberOfRows = if (tazs.isEmpty) 1 else ((tazY.max - minY) / cellSize).toInt + 1
+
+  // TAZ indices sorted by cell, the TAZs of cell c are at cellStart(c) until cellStart(c + 1)
+  private val (cellStart, tazsByCell) = {
+    val cellOfTaz = Array.tabulate(numberOfTazs)(taz => cell(column(tazX(taz)), row(tazY(taz))))
+    val start = new Array[Int](numberOfColumns * numberOfRows + 1)
+    cellOfTaz.foreach(c => start(c + 1) += 1)
+    (1 until start.length).foreach(c => start(c) += start(c - 1))
+    val next = start.clone()
+    val sorted = new Array[Int](numberOfTazs)
+    (0 until numberOfTazs).foreach { taz =>
+      sorted(next(cellOfTaz(taz))) = taz
+      next(cellOfTaz(taz)) += 1
+    }
+    (start, sorted)
+  }
+
+  // Public stall values and the ones without charger, per TAZ and pricing model
+  private val (publicStalls, publicStallsWithoutCharger) = {
+    val tazIndices = tazs.map(_.tazId).zipWithIndex.toMap
+    val grouped = mutable.Map[Int, mutable.ArrayBuffer[StallValues]]()
+    val withoutCharger = new Array[StallValues](numberOfTazs * numberOfPricingModels)
+    resources.foreach {
+      case (attributes, values) if attributes.parkingType == Public && attributes.reservedFor == Any =>
+        tazIndices.get(attributes.tazId).foreach { taz =>
+          val slot = taz * numberOfPricingModels + pricingModelIndex(attributes.pricingModel)
+          grouped.getOrElseUpdate(slot, mutable.ArrayBuffer()) += values
+          if (attributes.chargingType == NoCharger) withoutCharger(slot) = values
+        }
+      case _ =>
+    }
+    val all = new Array[Array[StallValues]](numberOfTazs * numberOfPricingModels)
+    grouped.foreach { case (slot, values) => all(slot) = values.toArray }
+    (all, withoutCharger)
+  }
+
+  /**
+    * @param location            where the stall is needed
+    * @param maxDistance         maximum distance of the center of the TAZ of a stall from the location
+    * @param k                   number of stalls to return
+    * @param weightPerMeter      lower bound of the ranking weight of one meter between location and stall
+    * @param rankAlternative     creates the alternative of a stall value of a TAZ and pricing model; its ranking
+    *                            weight has to be at least `weightPerMeter` times its distance from the location
+    * @return the up to `k` best ranked alternatives, best first
+    */
+  def findBest(location: Location, maxDistance: Double, k: Int, weightPerMeter: Double)(
+    rankAlternative: (TAZ, PricingModel, StallValues) => ParkingAlternative
+  ): Vector[ParkingAlternative] = {
+    val best = mutable.PriorityQueue[ParkingAlternative]()(Ordering.by(_.rankingWeight))
+    val x = location.getX
+    val y = location.getY
+    val locationColumn = column(x)
+    val locationRow = row(y)
+    // farthest ring that still contains a cell of the grid
+    val lastRing = Seq(
+      locationColumn,
+      numberOfColumns - 1 - locationColumn,
+      locationRow,
+      numberOfRows - 1 - locationRow
+    ).map(math.abs).max + 1
+
+    def visitCell(c: Int, r: Int): Unit = {
+      if (c >= 0 && c < numberOfColumns && r >= 0 && r < numberOfRows) {
+        val cellIndex = cell(c, r)
+        var i = cellStart(cellIndex)
+        while (i < cellStart(cellIndex + 1)) {
+          val taz = tazsByCell(i)
+          val dx = tazX(taz) - x
+          val dy = tazY(taz) - y
+          if (dx * dx + dy * dy <= maxDistance * maxDistance) visitTaz(taz)
+          i += 1
+        }
+      }
+    }
+
+    def visitTaz(taz: Int): Unit = {
+      var pricingModel = 0
+      while (pricingModel < numberOfPricingModels) {
+        val slot = taz * numberOfPricingModels + pricingModel
+        val withoutCharger = publicStallsWithoutCharger(slot)
+        val candidates = publicStalls(slot)
+        if (candidates != null && withoutCharger != null && withoutCharger.numStalls > 0) {
+          val found = candidates.find(values => values.numStalls > 0 && values.feeInCents == 0)
+          found.foreach { values =>
+            best += rankAlternative(tazs(taz), IndexerForZonalParkingManager.allPricingModels(pricingModel), values)
+            if (best.size > k) best.dequeue()
+          }
+        }
+        pricingModel += 1
+      }
+    }
+
+    // stalls in ring n are at least (n - 1) cells minus the reach of a stall away from the location
+    def couldImprove(ring: Int): Boolean =
+      best.size < k || weightPerMeter < 0 ||
+      best.head.rankingWeight > weightPerMeter * math.max((ring - 1) * cellSize - maxStallReach, 0.0)
+
+    var ring = 0
+    while (ring <= lastRing && (ring - 1) * cellSize <= maxDistance && couldImprove(ring)) {
+      if (ring == 0) {
+        visitCell(locationColumn, locationRow)
+      } else {
+        // only the part of the ring that overlaps the grid
+        val firstColumn = math.max(locationColumn - ring, 0)
+        val lastColumn = math.min(locationColumn + ring, numberOfColumns - 1)
+        val firstRow = math.max(locationRow - ring + 1, 0)
+        val lastRow = math.min(locationRow + ring - 1, numberOfRows - 1)
+        (firstColumn to lastColumn).foreach { c =>
+          visitCell(c, locationRow - ring)
+          visitCell(c, locationRow + ring)
+        }
+        (firstRow to lastRow).foreach { r =>
+          visitCell(locationColumn - ring, r)
+          visitCell(locationColumn + ring, r)
+        }
+      }
+      ring += 1
+    }
+    best.dequeueAll.reverse.toVector
+  }
+
+  private def column(x: Double): Int = math.floor((x - minX) / cellSize).toInt
+
+  private def row(y: Double): Int = math.floor((y - minY) / cellSize).toInt
+
+  private def cell(column: Int, row: Int): Int = row * numberOfColumns + column
+}
+
+object PublicParkingIndex {
+
+  private val numberOfPricingModels = IndexerForZonalParkingManager.allPricingModels.length
+
+  private def pricingModelIndex(pricingModel: PricingModel): Int =
+    IndexerForZonalParkingManager.allPricingModels.indexOf(pricingModel)
+}
@@ -0,0 +1,237 @@
+package beam.agentsim.infrastructure
+
+import akka.actor.SupervisorStrategy.Escalate
+import akka.actor.{Actor, ActorLogging, ActorRef, OneForOneStrategy, Props, SupervisorStrategy}
+import beam.agentsim.Resource.ReleaseParkingStall
+import beam.agentsim.infrastructure.ParkingManager._
+import beam.agentsim.infrastructure.ShardedParkingManager._
+import beam.agentsim.infrastructure.TAZTreeMap.TAZ
+import beam.router.BeamRouter.Location
+import beam.sim.BeamServices
+import org.matsim.api.core.v01.Id
+
+import scala.collection.mutable
+import scala.util.Try
+
+object ShardedParkingManager {
+
+  /**
+    * Asks a shard for the stall it would give for the inquiry, without reserving it.
+    */
+  case class OfferParkingStall(inquiry: ParkingInquiry)
+
+  case class OfferDepotParkingStall(inquiry: DepotParkingInquiry)
+
+  /**
+    * @param rankingWeight the lower, the better the stall; distance of its TAZ for depot stalls
+    */
+  case class ParkingStallOffer(requestId: Int, stall: Option[ParkingStall], rankingWeight: Double)
+
+  /**
+    * Tells a shard to give the stall it offered (or, if it is gone by now, its next best one) to `replyTo`.
+    */
+  case class AcceptParkingStall(inquiry: ParkingInquiry, stall: ParkingStall, replyTo: ActorRef)
+
+  case class AcceptDepotParkingStall(inquiry: DepotParkingInquiry, stall: ParkingStall, replyTo: ActorRef)
+
+  // Maximum distance of the TAZs the zonal parking manager looks at for depot inquiries
+  val maxDepotSearchRadius = 20e3
+
+  def props(
+    beamServices: BeamServices,
+    beamRouter: ActorRef,
+    parkingStockAttributes: ParkingStockAttributes,
+    numberOfShards: Int
+  ): Props =
+    Props(
+      new ShardedParkingManager(
+        beamServices,
+        numberOfShards,
+        (shard, servesTaz) =>
+          ZonalParkingManager
+            .shardProps(beamServices, beamRouter, parkingStockAttributes, shard, numberOfShards, servesTaz)
+      )
+    )
+
+  /**
+    * Splits the TAZs into compact regions with about the same number of TAZs by cutting them alternately along x and y.
+    *
+    * @return the region of every TAZ
+    */
+  def spatialRegions(tazs: IndexedSeq[TAZ], numberOfRegions: Int): Map[Id[TAZ], Int] = {
+    def split(tazs: IndexedSeq[TAZ], firstRegion: Int, regions: Int, alongX: Boolean): Seq[(Id[TAZ], Int)] = {
+      if (regions == 1) {
+        tazs.map(_.tazId -> firstRegion)
+      } else {
+        val sorted = tazs.sortBy(taz => if (alongX) taz.coord.getX else taz.coord.getY)
+        val lowerRegions = regions / 2
+        val (lower, upper) = sorted.splitAt(tazs.size * lowerRegions / regions)
+        split(lower, firstRegion, lowerRegions, !alongX) ++
+        split(upper, firstRegion + lowerRegions, regions - lowerRegions, !alongX)
+      }
+    }
+    split(tazs, 0, numberOfRegions, alongX = true).toMap
+  }
+
+  /**
+    * @param askedRegions the region of the nearest TAZ, then also the regions that may have a better stall than it
+    */
+  private case class PendingInquiry(
+    inquiry: Any,
+    replyTo: ActorRef,
+    offerRequest: Any,
+    var askedRegions: Set[Int],
+    var awaitedOffers: Int,
+    var bestOffer: Option[(ActorRef, ParkingStall, Double)]
+  )
+}
+
+/**
+  * Parking manager that splits the TAZs into spatial regions, each served by a [[ZonalParkingManager]] shard that
+  * only manages the stalls of its TAZs, so inquiries are answered on several cores.
+  *
+  * Inquiries whose search area lies within one region are forwarded to its shard. Near the borders of regions, the
+  * shard of the nearest TAZ offers its best stall without reserving it first. Only the shards of regions closer than
+  * the walk that offer is worth are then asked for theirs, and the best offer is accepted at the shard that made it,
+  * which answers the agent. Stall ids carry the shard, so releases go straight to it.
+  *
+  * Parking statistics are collected from the events of the agents, so they are the same as with a single manager.
+  */
+class ShardedParkingManager(
+  beamServices: BeamServices,
+  numberOfShards: Int,
+  shardProps: (Int, Id[TAZ] => Boolean) => Props
+) extends Actor
+    with ActorLogging {
+
+  private val regionOfTaz: Map[Id[TAZ], Int] =
+    spatialRegions(beamServices.tazTreeMap.getTAZs.toIndexedSeq, numberOfShards)
+
+  private val shards: IndexedSeq[ActorRef] = (0 until numberOfShards).map { shard =>
+    context.actorOf(shardProps(shard, tazId => regionOfTaz.get(tazId).contains(shard)), s"shard-$shard")
+  }
+
+  // Bounding boxes of the TAZ centers of every region
+  private val (regionMinX, regionMinY, regionMaxX, regionMaxY) = {
+    val minX = Array.fill(numberOfShards)(Double.PositiveInfinity)
+    val minY = Array.fill(numberOfShards)(Double.PositiveInfinity)
+    val maxX = Array.fill(numberOfShards)(Double.NegativeInfinity)
+    val maxY = Array.fill(numberOfShards)(Double.NegativeInfinity)
+    beamServices.tazTreeMap.getTAZs.foreach { taz =>
+      val region = regionOfTaz(taz.tazId)
+      minX(region) = math.min(minX(region), taz.coord.getX)
+      minY(region) = math.min(minY(region), taz.coord.getY)
+      maxX(region) = math.max(maxX(region), taz.coord.getX)
+      maxY(region) = math.max(maxY(region), taz.coord.getY)
+    }
+    (minX, minY, maxX, maxY)
+  }
+
+  // Stalls are sampled around the TAZ centers, so they can be this much closer than the boxes of the regions
+  private val maxStallDistanceFromTazCenter =
+    beamServices.tazTreeMap.getTAZs.map(ZonalParkingManager.maxStallDistanceFromTazCenter).foldLeft(0.0)(math.max)
+
+  private val pendingInquiries = mutable.HashMap[Int, PendingInquiry]()
+
+  override val supervisorStrategy: SupervisorStrategy = OneForOneStrategy() {
+    case _ => Escalate
+  }
+
+  def receive: Receive = {
+    case release @ ReleaseParkingStall(stallId) =>
+      Try(stallId.toString.toLong).toOption match {
+        case Some(stallNumber) =>
+          shards(Math.floorMod(stallNumber, numberOfShards.toLong).toInt) forward release
+        case None =>
+          log.warning("Cannot release stall {} that no shard gave", stallId)
+      }
+
+    case inquiry: ParkingInquiry =>
+      // the stall of the nearest TAZ is preferred if it matches the activity, only its shard knows
+      val nearestTazRegion = regionOfNearestTaz(inquiry.destinationUtm)
+      if (regionsWithin(inquiry.destinationUtm, ZonalParkingManager.maxSearchRadius).forall(_ == nearestTazRegion)) {
+        shards(nearestTazRegion) forward inquiry
+      } else {
+        askForOffers(inquiry.requestId, inquiry, nearestTazRegion, OfferParkingStall(inquiry))
+      }
+
+    case inquiry: DepotParkingInquiry =>
+      val nearestTazRegion = regionOfNearestTaz(inquiry.customerLocationUtm)
+      if (regionsWithin(inquiry.customerLocationUtm, maxDepotSearchRadius).forall(_ == nearestTazRegion)) {
+        shards(nearestTazRegion) forward inquiry
+      } else {
+        askForOffers(inquiry.requestId, inquiry, nearestTazRegion, OfferDepotParkingStall(inquiry))
+      }
+
+    case ParkingStallOffer(requestId, offeredStall, rankingWeight) =>
+      val pending = pendingInquiries(requestId)
+      offeredStall.foreach { stall =>
+        if (pending.bestOffer.forall(_._3 > rankingWeight)) pending.bestOffer = Some((sender(), stall, rankingWeight))
+      }
+      pending.awaitedOffers -= 1
+      if (pending.awaitedOffers == 0) {
+        val regionsThatMayBeBetter =
+          if (pending.askedRegions.size == 1) regionsThatMayBeatBestOffer(pending) -- pending.askedRegions else Set()
+        if (regionsThatMayBeBetter.nonEmpty) {
+          pending.askedRegions ++= regionsThatMayBeBetter
+          pending.awaitedOffers = regionsThatMayBeBetter.size
+          regionsThatMayBeBetter.foreach(region => shards(region) ! pending.offerRequest)
+        } else {
+          pendingInquiries.remove(requestId)
+          acceptBestOffer(pending)
+        }
+      }
+  }
+
+  private def askForOffers(requestId: Int, inquiry: Any, nearestTazRegion: Int, offerRequest: Any): Unit = {
+    pendingInquiries.put(requestId, PendingInquiry(inquiry, sender(), offerRequest, Set(nearestTazRegion), 1, None))
+    shards(nearestTazRegion) ! offerRequest
+  }
+
+  private def acceptBestOffer(pending: PendingInquiry): Unit =
+    (pending.inquiry, pending.bestOffer) match {
+      case (inquiry: ParkingInquiry, Some((shard, stall, _))) =>
+        shard ! AcceptParkingStall(inquiry, stall, pending.replyTo)
+      case (inquiry: DepotParkingInquiry, Some((shard, stall, _))) =>
+        shard ! AcceptDepotParkingStall(inquiry, stall, pending.replyTo)
+      case (inquiry: DepotParkingInquiry, None) =>
+        pending.replyTo ! DepotParkingInquiryResponse(None, inquiry.requestId)
+      case (inquiry: ParkingInquiry, None) =>
+        // the shard of the nearest TAZ falls back to its expensive default stall
+        shards(regionOfNearestTaz(inquiry.destinationUtm)).tell(inquiry, pending.replyTo)
+    }
+
+  /**
+    * The regions with a TAZ that may have a better stall than the best offer. Parking costs nothing or more, so a
+    * stall ranks at least at the value of the time of walking from it; the stall of the nearest TAZ that matches the
+    * activity (ranked negative infinity) beats all others. Depot stalls are ranked by the distance of their TAZ.
+    */
+  private def regionsThatMayBeatBestOffer(pending: PendingInquiry): Set[Int] =
+    (pending.inquiry, pending.bestOffer.map(_._3)) match {
+      case (_, Some(Double.NegativeInfinity)) =>
+        Set()
+      case (inquiry: ParkingInquiry, rankingWeight) =>
+        val valueOfTimePerMeterWalking = inquiry.attributesOfIndividual.valueOfTime / 1.4 / 3600.0 // 1.4 m/s avg. walk
+        val walkingBound = rankingWeight
+          .filter(_ => valueOfTimePerMeterWalking > 0.0)
+          .fold(Double.PositiveInfinity)(_ / valueOfTimePerMeterWalking)
+        regionsWithin(
+          inquiry.destinationUtm,
+          math.min(walkingBound + maxStallDistanceFromTazCenter, ZonalParkingManager.maxSearchRadius)
+        )
+      case (inquiry: DepotParkingInquiry, tazDistance) =>
+        val searchRadius = tazDistance.fold(maxDepotSearchRadius)(math.min(_, maxDepotSearchRadius))
+        regionsWithin(inquiry.customerLocationUtm, searchRadius)
+    }
+
+  private def regionOfNearestTaz(location: Location): Int =
+    regionOfTaz(beamServices.tazTreeMap.getTAZ(location.getX, location.getY).tazId)
+
+  // Regions with a TAZ center that may be within the distance
+  private def regionsWithin(location: Location, distance: Double): Set[Int] =
+    (0 until numberOfShards).filter { region =>
+      val dx = math.max(math.max(regionMinX(region) - location.getX, location.getX - regionMaxX(region)), 0.0)
+      val dy = math.max(math.max(regionMinY(region) - location.getY, location.getY - regionMaxY(region)), 0.0)
+      dx * dx + dy * dy <= distance * distance
+    }.toSet
+}
@@ -8,6 +8,7 @@ import akka.actor.{ActorLogging, ActorRef, Props}
 import beam.agentsim.Resource._
 import beam.agentsim.infrastructure.ParkingManager._
 import beam.agentsim.infrastructure.ParkingStall._
+import beam.agentsim.infrastructure.ShardedParkingManager._
 import beam.agentsim.infrastructure.TAZTreeMap.TAZ
 import beam.agentsim.infrastructure.ZonalParkingManager.ParkingAlternative
 import beam.router.BeamRouter.Location
@@ -24,10 +25,18 @@ import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.util.Random
 
+/**
+  * @param shard          number of this manager if it is one of the shards of a [[ShardedParkingManager]]
+  * @param numberOfShards number of shards, stall ids of a shard are in the residue class of its number
+  * @param servesTaz      whether this manager manages the stalls of a TAZ
+  */
 class ZonalParkingManager(
   override val beamServices: BeamServices,
   val beamRouter: ActorRef,
-  parkingStockAttributes: ParkingStockAttributes
+  parkingStockAttributes: ParkingStockAttributes,
+  shard: Int = 0,
+  numberOfShards: Int = 1,
+  servesTaz: Id[TAZ] => Boolean = _ => true
 ) extends ParkingManager(parkingStockAttributes)
     with HasServices
     with ActorLogging {
@@ -103,9 +112,16 @@ class ZonalParkingManager(
 
   fillInDefaultPooledResources()
   updatePooledResources()
+  pooledResources.retain((attrib, _) => attrib == defaultStallAttributes || servesTaz(attrib.tazId))
 
   val indexer: IndexerForZonalParkingManager = new IndexerForZonalParkingManager(pooledResources.toMap)
 
+  val publicParkingIndex: PublicParkingIndex = new PublicParkingIndex(
+    beamServices.tazTreeMap.tazQuadTree.values().asScala.toVector.filter(taz => servesTaz(taz.tazId)),
+    pooledResources,
+    ZonalParkingManager.maxStallDistanceFromTazCenter
+  )
+
   log.info("Zonal Parking Manager loaded with {} total stalls", pooledResources.map(_._2._numStalls).sum)
 
   override def receive: Receive = {
@@ -126,34 +142,8 @@ class ZonalParkingManager(
       if (log.isDebugEnabled) {
         log.debug("DepotParkingInquiry with {} available stalls ", getAvailableStalls)
       }
-      val tAZsWithDists = findTAZsWithinDistance(inquiry.customerLocationUtm, 10000.0, 20000.0)
-      val maybeFoundStalls = indexer.filter(tAZsWithDists, inquiry.reservedFor)
-
-      val maybeParkingAttributes = maybeFoundStalls.flatMap {
-        _.keys.toVector
-          .sortBy { attrs =>
-            ChargingType.getChargerPowerInKW(attrs.chargingType)
-          }
-          .reverse
-          .headOption
-      }
-      val maybeParkingStall = maybeParkingAttributes.flatMap { attrib =>
-        // Location is either TAZ center or random withing 5km of driver location
-        val newLocation = depotStallLocationType match {
-          case AtTAZCenter if beamServices.tazTreeMap.getTAZ(attrib.tazId).isDefined =>
-            beamServices.tazTreeMap.getTAZ(attrib.tazId).get.coord
-          case _ =>
-            inquiry.customerLocationUtm
-        }
-        maybeCreateNewStall(attrib, newLocation, 0.0, maybeFoundStalls.get.get(attrib))
-      }
-
-      maybeParkingStall.foreach { stall =>
-        stalls.put(stall.id, stall)
-        val stallValues = pooledResources(stall.attributes)
-        totalStallsInUse += 1
-        stallValues._numStalls -= 1
-      }
+      val maybeParkingStall = selectDepotStall(inquiry).map(_._1)
+      maybeParkingStall.foreach(reserveStall)
       if (log.isDebugEnabled) {
         log.debug("DepotParkingInquiry reserved stall: {}", maybeParkingStall)
         log.debug("DepotParkingInquiry {} available stalls ", getAvailableStalls)
@@ -163,56 +153,107 @@ class ZonalParkingManager(
       sender() ! response
 
     case inquiry: ParkingInquiry =>
-      val nearbyTAZsWithDistances = findTAZsWithinDistance(inquiry.destinationUtm, 500.0, 16000.0)
-      val preferredType = inquiry.activityType match {
-        case act if act.equalsIgnoreCase("home") => Residential
-        case act if act.equalsIgnoreCase("work") => Workplace
-        case _                                   => Public
-      }
+      respondWithStall(selectStall(inquiry)._1, inquiry.requestId, inquiry.reserveStall)
+
+    case OfferParkingStall(inquiry) =>
+      val (stall, rankingWeight) = selectStall(inquiry)
+      sender() ! ParkingStallOffer(inquiry.requestId, Some(stall), rankingWeight)
+
+    case OfferDepotParkingStall(inquiry) =>
+      val offer = selectDepotStall(inquiry)
+      sender() ! ParkingStallOffer(inquiry.requestId, offer.map(_._1), offer.fold(Double.PositiveInfinity)(_._2))
+
+    case AcceptParkingStall(inquiry, stall, replyTo) =>
+      // the stall may have been given to somebody else since it was offered
+      val chosenStall = if (pooledResources(stall.attributes).numStalls > 0) stall else selectStall(inquiry)._1
+      respondWithStall(chosenStall, inquiry.requestId, inquiry.reserveStall, replyTo)
+
+    case AcceptDepotParkingStall(inquiry, stall, replyTo) =>
+      val chosenStall =
+        if (pooledResources(stall.attributes).numStalls > 0) Some(stall) else selectDepotStall(inquiry).map(_._1)
+      chosenStall.foreach(reserveStall)
+      replyTo ! DepotParkingInquiryResponse(chosenStall, inquiry.requestId)
+  }
 
-      /*
-       * To save time avoiding route calculations, we look for the trivial case: nearest TAZ with activity type matching available parking type.
-       */
-      val maybeFoundStall = nearbyTAZsWithDistances.size match {
-        case 0 =>
-          None
-        case _ =>
-          val tazId = nearbyTAZsWithDistances.head._1.tazId
-          indexer.find(tazId, preferredType, inquiry.reservedFor).headOption
-      }
-      val maybeDominantSpot = maybeFoundStall match {
-        case Some((idx, stallValue)) if inquiry.chargingPreference == NoNeed =>
-          maybeCreateNewStall(
-            StallAttributes(
-              nearbyTAZsWithDistances.head._1.tazId,
-              preferredType,
-              idx.pricingModel,
-              NoCharger,
-              inquiry.reservedFor
-            ),
-            inquiry.destinationUtm,
-            0.0,
-            Some(stallValue.copy()) // let's send a copy to be in safe
-          )
+  /**
+    * @return the stall for the depot inquiry and the distance of its TAZ
+    */
+  private def selectDepotStall(inquiry: DepotParkingInquiry): Option[(ParkingStall, Double)] = {
+    val tAZsWithDists = findTAZsWithinDistance(inquiry.customerLocationUtm, 10000.0, 20000.0)
+    val maybeFoundStalls = indexer.filter(tAZsWithDists, inquiry.reservedFor)
+
+    val maybeParkingAttributes = maybeFoundStalls.flatMap {
+      _.keys.toVector
+        .sortBy { attrs =>
+          ChargingType.getChargerPowerInKW(attrs.chargingType)
+        }
+        .reverse
+        .headOption
+    }
+    maybeParkingAttributes.flatMap { attrib =>
+      // Location is either TAZ center or random withing 5km of driver location
+      val newLocation = depotStallLocationType match {
+        case AtTAZCenter if beamServices.tazTreeMap.getTAZ(attrib.tazId).isDefined =>
+          beamServices.tazTreeMap.getTAZ(attrib.tazId).get.coord
         case _ =>
-          None
+          inquiry.customerLocationUtm
       }
+      val tazDistance = tAZsWithDists.find(_._1.tazId == attrib.tazId).fold(Double.PositiveInfinity)(_._2)
+      maybeCreateNewStall(attrib, newLocation, 0.0, maybeFoundStalls.get.get(attrib)).map((_, tazDistance))
+    }
+  }
 
-      respondWithStall(
-        maybeDominantSpot match {
-          case Some(stall) =>
-            stall
-          case None =>
-            inquiry.chargingPreference match {
-              case NoNeed =>
-                selectPublicStall(inquiry, 500.0)
-              case _ =>
-                selectStallWithCharger(inquiry, 500.0)
-            }
-        },
-        inquiry.requestId,
-        inquiry.reserveStall
-      )
+  /**
+    * @return the stall for the inquiry and its ranking weight, which is negative infinity for the stall of the
+    *         nearest TAZ that matches the activity type, since it is taken without comparing it to any other
+    */
+  private def selectStall(inquiry: ParkingInquiry): (ParkingStall, Double) = {
+    val nearbyTAZsWithDistances = findTAZsWithinDistance(inquiry.destinationUtm, 500.0, 16000.0)
+    val preferredType = inquiry.activityType match {
+      case act if act.equalsIgnoreCase("home") => Residential
+      case act if act.equalsIgnoreCase("work") => Workplace
+      case _                                   => Public
+    }
+
+    /*
+     * To save time avoiding route calculations, we look for the trivial case: nearest TAZ with activity type matching available parking type.
+     */
+    val maybeFoundStall = nearbyTAZsWithDistances.size match {
+      case 0 =>
+        None
+      case _ =>
+        val tazId = nearbyTAZsWithDistances.head._1.tazId
+        indexer.find(tazId, preferredType, inquiry.reservedFor).headOption
+    }
+    val maybeDominantSpot = maybeFoundStall match {
+      case Some((idx, stallValue)) if inquiry.chargingPreference == NoNeed =>
+        maybeCreateNewStall(
+          StallAttributes(
+            nearbyTAZsWithDistances.head._1.tazId,
+            preferredType,
+            idx.pricingModel,
+            NoCharger,
+            inquiry.reservedFor
+          ),
+          inquiry.destinationUtm,
+          0.0,
+          Some(stallValue.copy()) // let's send a copy to be in safe
+        )
+      case _ =>
+        None
+    }
+
+    maybeDominantSpot match {
+      case Some(stall) =>
+        (stall, Double.NegativeInfinity)
+      case None =>
+        inquiry.chargingPreference match {
+          case NoNeed =>
+            selectRankedPublicStall(inquiry)
+          case _ =>
+            (selectStallWithCharger(inquiry, 500.0), 0.0)
+        }
+    }
   }
 
   private def maybeCreateNewStall(
@@ -223,10 +264,9 @@ class ZonalParkingManager(
     reservedFor: ReservedParkingType = ParkingStall.Any
   ): Option[ParkingStall] = {
     if (pooledResources(attrib).numStalls > 0) {
-      stallNum = stallNum + 1
       Some(
         new ParkingStall(
-          Id.create(stallNum, classOf[ParkingStall]),
+          nextStallId(),
           attrib,
           atLocation,
           withCost,
@@ -238,15 +278,30 @@ class ZonalParkingManager(
     }
   }
 
-  def respondWithStall(stall: ParkingStall, requestId: Int, reserveStall: Boolean): Unit = {
+  // Stall ids of all shards are distinct, so releases can be routed by id
+  private def nextStallId(): Id[ParkingStall] = {
+    stallNum = stallNum + 1
+    Id.create(stallNum.toLong * numberOfShards + shard, classOf[ParkingStall])
+  }
+
+  private def reserveStall(stall: ParkingStall): Unit = {
+    stalls.put(stall.id, stall)
+    val stallValues = pooledResources(stall.attributes)
+    totalStallsInUse += 1
+    stallValues._numStalls -= 1
+  }
+
+  def respondWithStall(
+    stall: ParkingStall,
+    requestId: Int,
+    reserveStall: Boolean,
+    replyTo: ActorRef = sender()
+  ): Unit = {
     if (reserveStall) {
-      stalls.put(stall.id, stall)
-      val stallValues = pooledResources(stall.attributes)
-      totalStallsInUse += 1
+      this.reserveStall(stall)
       if (totalStallsInUse % 1000 == 0) log.debug(s"Parking stalls in use: {}", totalStallsInUse)
-      stallValues._numStalls -= 1
     }
-    sender() ! ParkingInquiryResponse(stall, requestId)
+    replyTo ! ParkingInquiryResponse(stall, requestId)
   }
 
   // TODO make these distributions more custom to the TAZ and stall type
@@ -276,55 +331,46 @@ class ZonalParkingManager(
     }
   }
 
-  def selectPublicStall(inquiry: ParkingInquiry, startSearchRadius: Double): ParkingStall = {
-    val nearbyTAZsWithDistances =
-      findTAZsWithinDistance(inquiry.destinationUtm, startSearchRadius, ZonalParkingManager.maxSearchRadius)
-    val allOptions: Vector[ParkingAlternative] = nearbyTAZsWithDistances.flatMap { taz =>
-      val found = indexer.find(taz._1.tazId, Public, ParkingStall.Any)
-      val foundAfter = found.map {
-        case (indexForFind, stallValues) =>
-          val attrib =
-            StallAttributes(indexForFind.tazId, indexForFind.parkingType, indexForFind.pricingModel, NoCharger, Any)
-          val stallLoc = sampleLocationForStall(taz._1, attrib)
+  def selectPublicStall(inquiry: ParkingInquiry): ParkingStall = selectRankedPublicStall(inquiry)._1
+
+  private def selectRankedPublicStall(inquiry: ParkingInquiry): (ParkingStall, Double) = {
+    val valueOfTimePerMeterWalking = inquiry.attributesOfIndividual.valueOfTime / 1.4 / 3600.0 // 1.4 m/s avg. walk
+    val bestAlternative = publicParkingIndex
+      .findBest(inquiry.destinationUtm, ZonalParkingManager.maxSearchRadius, 1, valueOfTimePerMeterWalking) {
+        (taz, pricingModel, stallValues) =>
+          val attrib = StallAttributes(taz.tazId, Public, pricingModel, NoCharger, Any)
+          val stallLoc = sampleLocationForStall(taz, attrib)
           val walkingDistance = beamServices.geo.distUTMInMeters(stallLoc, inquiry.destinationUtm)
-          val valueOfTimeSpentWalking = walkingDistance / 1.4 / 3600.0 * inquiry.attributesOfIndividual.valueOfTime // 1.4 m/s avg. walk
           val cost = calculateCost(
             attrib,
             stallValues.feeInCents,
             inquiry.arrivalTime,
             inquiry.parkingDuration
           )
-          ParkingAlternative(attrib, stallLoc, cost, cost + valueOfTimeSpentWalking, stallValues)
-      }.toVector
-      foundAfter
-    }
-    val chosenStall = allOptions.sortBy(_.rankingWeight).headOption match {
-      case Some(alternative) =>
-        maybeCreateNewStall(
-          alternative.stallAttributes,
-          alternative.location,
-          alternative.cost,
-          Some(alternative.stallValues)
-        )
-      case None => None
+          ParkingAlternative(attrib, stallLoc, cost, cost + walkingDistance * valueOfTimePerMeterWalking, stallValues)
+      }
+      .headOption
+    val chosenStall = bestAlternative.flatMap { alternative =>
+      maybeCreateNewStall(
+        alternative.stallAttributes,
+        alternative.location,
+        alternative.cost,
+        Some(alternative.stallValues)
+      ).map((_, alternative.rankingWeight))
     }
-    // Finally, if no stall found, repeat with larger search distance for TAZs or create one very expensive
+    // Finally, if no stall found within the maximum search radius, create one very expensive
     chosenStall match {
-      case Some(stall) => stall
+      case Some(stallWithRankingWeight) => stallWithRankingWeight
       case None =>
-        if (startSearchRadius * 2.0 > ZonalParkingManager.maxSearchRadius) {
-//          log.error("No stall found for inquiry: {}",inquiry)
-          stallNum = stallNum + 1
-          new ParkingStall(
-            Id.create(stallNum, classOf[ParkingStall]),
-            defaultStallAttributes,
-            inquiry.destinationUtm,
-            1000.0,
-            Some(defaultStallValues)
-          )
-        } else {
-          selectPublicStall(inquiry, startSearchRadius * 2.0)
-        }
+//        log.error("No stall found for inquiry: {}",inquiry)
+        val stall = new ParkingStall(
+          nextStallId(),
+          defaultStallAttributes,
+          inquiry.destinationUtm,
+          1000.0,
+          Some(defaultStallValues)
+        )
+        (stall, Double.PositiveInfinity)
     }
   }
 
@@ -464,5 +510,21 @@ object ZonalParkingManager {
     Props(new ZonalParkingManager(beamServices, beamRouter, parkingStockAttributes))
   }
 
+  def shardProps(
+    beamServices: BeamServices,
+    beamRouter: ActorRef,
+    parkingStockAttributes: ParkingStockAttributes,
+    shard: Int,
+    numberOfShards: Int,
+    servesTaz: Id[TAZ] => Boolean
+  ): Props = {
+    Props(
+      new ZonalParkingManager(beamServices, beamRouter, parkingStockAttributes, shard, numberOfShards, servesTaz)
+    )
+  }
+
   val maxSearchRadius = 10e3
+
+  // Stalls are sampled up to half the size of a TAZ away from its center in both directions
+  def maxStallDistanceFromTazCenter(taz: TAZ): Double = math.sqrt(taz.areaInSquareMeters) / 2 * math.sqrt(2)
 }
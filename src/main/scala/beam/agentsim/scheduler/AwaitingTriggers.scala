@@ -0,0 +1,50 @@
+package beam.agentsim.scheduler
+
+import beam.agentsim.scheduler.BeamAgentScheduler.ScheduledTrigger
+
+import scala.collection.mutable
+
+/**
+  * Triggers that were sent to their agents and are not completed yet, by trigger id. The number of awaited triggers is
+  * also counted per tick, to find the earliest tick that is not completed yet without going through all of them.
+  */
+class AwaitingTriggers {
+
+  private val byTriggerId: mutable.LongMap[ScheduledTrigger] = mutable.LongMap.empty
+  private val countPerTick = new java.util.TreeMap[java.lang.Integer, Array[Int]]()
+
+  def isEmpty: Boolean = byTriggerId.isEmpty
+
+  def size: Int = byTriggerId.size
+
+  def values: Iterable[ScheduledTrigger] = byTriggerId.values
+
+  def add(scheduledTrigger: ScheduledTrigger): Unit = {
+    byTriggerId.put(scheduledTrigger.triggerWithId.triggerId, scheduledTrigger)
+    val tick = scheduledTrigger.triggerWithId.trigger.tick
+    val count = countPerTick.get(tick)
+    if (count == null) {
+      countPerTick.put(tick, Array(1))
+    } else {
+      count(0) += 1
+    }
+  }
+
+  def remove(triggerId: Long): Option[ScheduledTrigger] = {
+    val removed = byTriggerId.remove(triggerId)
+    removed.foreach { scheduledTrigger =>
+      val tick = scheduledTrigger.triggerWithId.trigger.tick
+      val count = countPerTick.get(tick)
+      count(0) -= 1
+      if (count(0) == 0) {
+        countPerTick.remove(tick)
+      }
+    }
+    removed
+  }
+
+  /**
+    * @return earliest tick of the awaited triggers, only defined if there are any
+    */
+  def firstTick: Int = countPerTick.firstKey()
+}
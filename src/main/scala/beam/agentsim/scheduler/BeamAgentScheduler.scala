@@ -15,9 +15,9 @@ import beam.agentsim.agents.ridehail.RideHailManager.{
 import beam.agentsim.scheduler.BeamAgentScheduler._
 import beam.agentsim.scheduler.Trigger.TriggerWithId
 import beam.sim.config.BeamConfig
+import beam.sim.metrics.{Metrics, MetricsSupport}
 import beam.utils.StuckFinder
 import beam.utils.logging.LogActorState
-import com.google.common.collect.TreeMultimap
 
 import scala.annotation.tailrec
 import scala.collection.JavaConverters._
@@ -56,6 +56,22 @@ object BeamAgentScheduler {
 
   case class ScheduleTrigger(trigger: Trigger, agent: ActorRef, priority: Int = 0) extends SchedulerMessage
 
+  /**
+    * Several triggers to schedule in one message, e.g. the initialize triggers of all actors an actor creates.
+    *
+    * Only scheduling is batched. Every trigger is still sent to its agent as one TriggerWithId and answered with one
+    * CompletionNotice, because agents are FSMs that handle one trigger per message. Actors that complete triggers for
+    * many agents, like the ride hail manager for a repositioning wave, already answer with one CompletionNotice that
+    * carries the new triggers of all of them.
+    */
+  case class ScheduleTriggers(triggers: Seq[ScheduleTrigger]) extends SchedulerMessage
+
+  /**
+    * Sent by the scheduler to itself to measure its mailbox depth: all messages processed between sending and receiving
+    * the probe were waiting in the mailbox when it was sent. A probe sent in an earlier iteration is ignored.
+    */
+  private case class MailboxProbe(iteration: Int, processedMessagesAtSend: Long) extends SchedulerMessage
+
   case class ScheduleKillTrigger(agent: ActorRef) extends SchedulerMessage
 
   case class KillTrigger(tick: Int) extends Trigger
@@ -125,20 +141,15 @@ class BeamAgentScheduler(
   val maxWindow: Int,
   val stuckFinder: StuckFinder
 ) extends Actor
-    with ActorLogging {
+    with ActorLogging
+    with MetricsSupport {
   // Used to set a limit on the total time to process messages (we want this to be quite large).
   private implicit val timeout: Timeout = Timeout(50000, TimeUnit.SECONDS)
 
   private var started = false
 
-  private val triggerQueue =
-    new java.util.PriorityQueue[ScheduledTrigger](ScheduledTriggerComparator)
-  private val awaitingResponse: TreeMultimap[java.lang.Integer, ScheduledTrigger] = TreeMultimap
-    .create[java.lang.Integer, ScheduledTrigger]() //com.google.common.collect.Ordering.natural(), com.google.common.collect.Ordering.arbitrary())
-  private val triggerIdToTick: mutable.Map[Long, Integer] =
-    scala.collection.mutable.Map[Long, java.lang.Integer]()
-  private val triggerIdToScheduledTrigger: mutable.Map[Long, ScheduledTrigger] =
-    scala.collection.mutable.Map[Long, ScheduledTrigger]()
+  private val triggerQueue = new TriggerCalendarQueue()
+  private val awaitingResponse = new AwaitingTriggers()
 
   private var idCount: Long = 0L
   private var startSender: ActorRef = _
@@ -167,6 +178,16 @@ class BeamAgentScheduler(
   private val initialDelay = beamConfig.beam.agentsim.scheduleMonitorTask.initialDelay
   private val interval = beamConfig.beam.agentsim.scheduleMonitorTask.interval
 
+  // Message statistics of the current iteration, reported as metrics and summarized when the iteration ends.
+  // All processed messages count for the mailbox depth, only the ones of the simulation for the messages per tick.
+  private var processedMessages: Long = 0L
+  private var simulationMessages: Long = 0L
+  private var messagesInCurrentTick: Long = 0L
+  private var maxMessagesPerTick: Long = 0L
+  private var ticksWithMessages: Long = 0L
+  private var mailboxProbeInFlight = false
+  private var maxMailboxDepth: Long = 0L
+
   def scheduleTrigger(triggerToSchedule: ScheduleTrigger): Unit = {
     this.idCount += 1
 
@@ -179,11 +200,21 @@ class BeamAgentScheduler(
       triggerQueue.add(
         ScheduledTrigger(triggerWithId, triggerToSchedule.agent, triggerToSchedule.priority)
       )
-      triggerIdToTick += (triggerWithId.triggerId -> triggerToSchedule.trigger.tick)
       //    log.info(s"recieved trigger to schedule $triggerToSchedule")
     }
   }
 
+  override def aroundReceive(receive: Receive, msg: Any): Unit = {
+    processedMessages += 1
+    msg match {
+      case _: MailboxProbe | Monitor | SkipOverBadActors =>
+      case _ =>
+        simulationMessages += 1
+        messagesInCurrentTick += 1
+    }
+    super.aroundReceive(receive, msg)
+  }
+
   override def aroundPostStop(): Unit = {
     log.info("aroundPostStop. Stopping all scheduled tasks...")
     stuckAgentChecker.foreach(_.cancel())
@@ -198,6 +229,7 @@ class BeamAgentScheduler(
       this.currentIter = it
       started = true
       startedAt = Deadline.now
+      resetMessageStatistics()
       stuckAgentChecker = scheduleStuckAgentCheck
       monitorTask = scheduleMonitorTask
       doSimStep(0)
@@ -205,29 +237,8 @@ class BeamAgentScheduler(
     case DoSimStep(newNow: Int) =>
       doSimStep(newNow)
 
-    case notice @ CompletionNotice(triggerId: Long, newTriggers: Seq[ScheduleTrigger]) =>
-      // if (!newTriggers.filter(x=>x.agent.path.toString.contains("RideHailManager")).isEmpty){
-      // DebugLib.emptyFunctionForSettingBreakPoint()
-      // }
-
-      newTriggers.foreach {
-        scheduleTrigger
-      }
-      val completionTickOpt = triggerIdToTick.get(triggerId)
-      if (completionTickOpt.isEmpty || !triggerIdToTick
-            .contains(triggerId) || !awaitingResponse
-            .containsKey(completionTickOpt.get)) {
-        log.error(s"Received bad completion notice $notice from ${sender().path}")
-      } else {
-        val trigger = triggerIdToScheduledTrigger(triggerId)
-        awaitingResponse.remove(completionTickOpt.get, trigger)
-        val st = triggerIdToScheduledTrigger(triggerId)
-        awaitingResponse.remove(completionTickOpt.get, st)
-        stuckFinder.removeByKey(st)
-        triggerIdToScheduledTrigger -= triggerId
-        maybeTriggerMeasurer.foreach(_.resolved(trigger.triggerWithId))
-      }
-      triggerIdToTick -= triggerId
+    case notice: CompletionNotice =>
+      completeTrigger(notice)
       if (started) doSimStep(nowInSeconds)
 
     case triggerToSchedule: ScheduleTrigger =>
@@ -235,6 +246,22 @@ class BeamAgentScheduler(
       scheduleTrigger(triggerToSchedule)
       if (started) doSimStep(nowInSeconds)
 
+    case ScheduleTriggers(triggersToSchedule) =>
+      triggersToSchedule.foreach { triggerToSchedule =>
+        context.watch(triggerToSchedule.agent)
+        scheduleTrigger(triggerToSchedule)
+      }
+      if (started) doSimStep(nowInSeconds)
+
+    case MailboxProbe(iteration, processedMessagesAtSend) =>
+      if (iteration == currentIter) {
+        // the probe itself is not counted
+        val mailboxDepth = processedMessages - processedMessagesAtSend - 1
+        maxMailboxDepth = math.max(maxMailboxDepth, mailboxDepth)
+        record("scheduler-mailbox-depth", Metrics.RegularLevel, mailboxDepth)
+        mailboxProbeInFlight = false
+      }
+
     case ScheduleKillTrigger(agent: ActorRef) =>
       context.watch(agent)
       scheduleTrigger(ScheduleTrigger(KillTrigger(nowInSeconds + maxWindow), agent))
@@ -247,14 +274,15 @@ class BeamAgentScheduler(
         val logStr =
           s"""
              |\tnowInSeconds=$nowInSeconds
-             |\tawaitingResponse.size=${awaitingResponse.size()}
+             |\tawaitingResponse.size=${awaitingResponse.size}
              |\ttriggerQueue.size=${triggerQueue.size}
              |\ttriggerQueue.head=${Option(triggerQueue.peek())}
              |\tawaitingResponse.head=$awaitingToString""".stripMargin
         log.info(logStr)
 
         // if RidehailManager at first position in queue, it is very likely, that we are stuck
-        awaitingResponse.values().asScala.take(1).foreach { x =>
+        val awaitingResponseInOrder = awaitingResponseSorted
+        awaitingResponseInOrder.take(1).foreach { x =>
           if (x.agent.path.name.contains("RideHailManager")) {
             rideHailManagerStuckDetectionLog match {
               case RideHailManagerStuckDetectionLog(Some(tick), true) if tick == nowInSeconds  => // still stuck, no need to print state again
@@ -270,8 +298,8 @@ class BeamAgentScheduler(
           } else {
             monitorStuckDetectionState match {
               case Some(MonitorStuckDetectionState(tick, awaitingReponseSize, triggerQueueSize, Some(triggerQueueHead)))
-                  if ((tick == nowInSeconds && awaitingReponseSize == awaitingResponse
-                    .size()) && (triggerQueueSize == triggerQueue.size() && triggerQueueHead == triggerQueue.peek())) =>
+                  if ((tick == nowInSeconds && awaitingReponseSize == awaitingResponse.size)
+                    && (triggerQueueSize == triggerQueue.size() && triggerQueueHead == triggerQueue.peek())) =>
                 log.info("monitorStuckDetection removing agent: " + x.agent.path)
                 terminateActor(x.agent)
 
@@ -283,13 +311,13 @@ class BeamAgentScheduler(
         monitorStuckDetectionState = Some(
           MonitorStuckDetectionState(
             nowInSeconds,
-            awaitingResponse.size(),
+            awaitingResponse.size,
             triggerQueue.size,
             Some(triggerQueue.peek())
           )
         )
 
-        awaitingResponse.values().asScala.take(10).foreach(x => log.info("awaitingResponse:" + x.toString))
+        awaitingResponseInOrder.take(10).foreach(x => log.info("awaitingResponse:" + x.toString))
 
       }
 
@@ -334,12 +362,51 @@ class BeamAgentScheduler(
       if (started) doSimStep(nowInSeconds)
   }
 
+  private def completeTrigger(notice: CompletionNotice): Unit = {
+    // if (!newTriggers.filter(x=>x.agent.path.toString.contains("RideHailManager")).isEmpty){
+    // DebugLib.emptyFunctionForSettingBreakPoint()
+    // }
+
+    notice.newTriggers.foreach {
+      scheduleTrigger
+    }
+    awaitingResponse.remove(notice.id) match {
+      case Some(trigger) =>
+        stuckFinder.removeByKey(trigger)
+        maybeTriggerMeasurer.foreach(_.resolved(trigger.triggerWithId))
+      case None =>
+        log.error(s"Received bad completion notice $notice from ${sender().path}")
+    }
+  }
+
+  private def resetMessageStatistics(): Unit = {
+    processedMessages = 0L
+    simulationMessages = 0L
+    messagesInCurrentTick = 0L
+    maxMessagesPerTick = 0L
+    ticksWithMessages = 0L
+    mailboxProbeInFlight = false
+    maxMailboxDepth = 0L
+  }
+
+  // Called whenever the simulation time advances: records the messages of the tick that ended and probes the mailbox
+  private def onTickAdvanced(): Unit = {
+    if (messagesInCurrentTick > 0) {
+      record("scheduler-messages-per-tick", Metrics.RegularLevel, messagesInCurrentTick)
+      maxMessagesPerTick = math.max(maxMessagesPerTick, messagesInCurrentTick)
+      ticksWithMessages += 1
+      messagesInCurrentTick = 0L
+    }
+    if (!mailboxProbeInFlight) {
+      mailboxProbeInFlight = true
+      self ! MailboxProbe(currentIter, processedMessages)
+    }
+  }
+
   private def terminateActor(actor: ActorRef): Unit = {
-    awaitingResponse
-      .values()
-      .stream()
+    awaitingResponse.values
       .filter(trigger => trigger.agent == actor)
-      .forEach(trigger => {
+      .foreach(trigger => {
         // We do not need to remove it from `awaitingResponse` or `stuckFunder`.
         // We will do it a bit later when `CompletionNotice` will be received
         self ! CompletionNotice(trigger.triggerWithId.triggerId, Nil)
@@ -347,6 +414,14 @@ class BeamAgentScheduler(
       })
   }
 
+  // Only used for logging: the awaited triggers ordered by tick
+  private def awaitingResponseSorted: Seq[ScheduledTrigger] =
+    awaitingResponse.values.toSeq.sortWith { (st1, st2) =>
+      val tick1 = st1.triggerWithId.trigger.tick
+      val tick2 = st2.triggerWithId.trigger.tick
+      if (tick1 != tick2) tick1 < tick2 else st1 < st2
+    }
+
   @tailrec
   private def doSimStep(newNow: Int): Unit = {
     if (newNow <= stopTick || !triggerQueue.isEmpty && triggerQueue
@@ -354,13 +429,12 @@ class BeamAgentScheduler(
           .triggerWithId
           .trigger
           .tick <= stopTick) {
+      if (newNow != nowInSeconds) onTickAdvanced()
       nowInSeconds = newNow
 
       // println("doSimStep:" + newNow)
 
-      if (awaitingResponse.isEmpty || nowInSeconds - awaitingResponse
-            .keySet()
-            .first() + 1 < maxWindow) {
+      if (awaitingResponse.isEmpty || nowInSeconds - awaitingResponse.firstTick + 1 < maxWindow) {
         while (!triggerQueue.isEmpty && triggerQueue
                  .peek()
                  .triggerWithId
@@ -369,16 +443,13 @@ class BeamAgentScheduler(
           val scheduledTrigger = this.triggerQueue.poll()
           val triggerWithId = scheduledTrigger.triggerWithId
           //log.info(s"dispatching $triggerWithId")
-          awaitingResponse.put(triggerWithId.trigger.tick, scheduledTrigger)
+          awaitingResponse.add(scheduledTrigger)
           stuckFinder.add(System.currentTimeMillis(), scheduledTrigger, true)
 
-          triggerIdToScheduledTrigger.put(triggerWithId.triggerId, scheduledTrigger)
           maybeTriggerMeasurer.foreach(_.sent(triggerWithId, scheduledTrigger.agent))
           scheduledTrigger.agent ! triggerWithId
         }
-        if (awaitingResponse.isEmpty || (nowInSeconds + 1) - awaitingResponse
-              .keySet()
-              .first() + 1 < maxWindow) {
+        if (awaitingResponse.isEmpty || (nowInSeconds + 1) - awaitingResponse.firstTick + 1 < maxWindow) {
           if (nowInSeconds > 0 && nowInSeconds % 1800 == 0) {
             log.info(
               "Hour " + nowInSeconds / 3600.0 + " completed. " + math.round(
@@ -393,6 +464,7 @@ class BeamAgentScheduler(
       }
 
     } else {
+      if (newNow != nowInSeconds) onTickAdvanced()
       nowInSeconds = newNow
       if (awaitingResponse.isEmpty) {
         val duration = Deadline.now - startedAt
@@ -400,6 +472,11 @@ class BeamAgentScheduler(
         log.info(
           s"Stopping BeamAgentScheduler @ tick $nowInSeconds. Iteration $currentIter executed in ${duration.toSeconds} seconds"
         )
+        log.info(
+          s"BeamAgentScheduler processed $simulationMessages messages in $ticksWithMessages ticks " +
+          s"(${simulationMessages / math.max(ticksWithMessages, 1L)} per tick on average, at most $maxMessagesPerTick), " +
+          s"mailbox depth was at most $maxMailboxDepth"
+        )
         maybeTriggerMeasurer.foreach { triggerMeasurer =>
           if (beamConfig.beam.outputs.displayPerformanceTimings) {
             log.info(s"Statistics about trigger: ${System.lineSeparator()} ${triggerMeasurer.getStat}")
@@ -436,10 +513,11 @@ class BeamAgentScheduler(
   }
 
   def awaitingToString: String = {
-    if (awaitingResponse.keySet().isEmpty) {
+    if (awaitingResponse.isEmpty) {
       "empty"
     } else {
-      s"${awaitingResponse.get(awaitingResponse.keySet().first()).asScala.take(10)}"
+      val firstTick = awaitingResponse.firstTick
+      s"${awaitingResponseSorted.filter(_.triggerWithId.trigger.tick == firstTick).take(10)}"
     }
   }
 
@@ -0,0 +1,404 @@
+package beam.agentsim.scheduler
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+import akka.actor.SupervisorStrategy.Escalate
+import akka.actor.{Actor, ActorLogging, ActorRef, ActorSystem, OneForOneStrategy, Props, SupervisorStrategy, Terminated}
+import akka.dispatch.Dispatchers
+import akka.routing.{Group, Routee, Router, RoutingLogic}
+import beam.agentsim.agents.BeamAgent.Finish
+import beam.agentsim.scheduler.BeamAgentScheduler._
+import beam.agentsim.scheduler.ShardedBeamAgentScheduler._
+import beam.agentsim.scheduler.Trigger.TriggerWithId
+
+import scala.collection.immutable
+import scala.collection.mutable
+import scala.concurrent.duration.Deadline
+
+object ShardedBeamAgentScheduler {
+
+  /**
+    * Summary of a shard, as far as the coordinator needs to know it to advance the window.
+    *
+    * @param receivedReleases number of [[ReleaseTriggers]] the shard processed
+    * @param receivedRouted number of [[RoutedMessage]]s the shard processed
+    * @param firstAwaitingTick earliest tick of the triggers the shard waits for, Int.MaxValue if none
+    * @param firstPendingTick earliest tick of the triggers the shard did not release yet, Int.MaxValue if none
+    */
+  case class ShardStatus(
+    shard: Int,
+    receivedReleases: Long,
+    receivedRouted: Long,
+    firstAwaitingTick: Int,
+    firstPendingTick: Int
+  )
+
+  /**
+    * A trigger to schedule with the id it got when it was sent.
+    */
+  case class TriggerToSchedule(scheduleTrigger: ScheduleTrigger, triggerId: Long)
+
+  /**
+    * What a shard gets through the [[ShardRoutes]], the schedule requests and completion notices of agents.
+    */
+  sealed trait RoutedMessage
+
+  case class ScheduleWithIds(triggers: Vector[TriggerToSchedule]) extends RoutedMessage
+
+  case class CompleteWithIds(triggerId: Long, newTriggers: Vector[TriggerToSchedule]) extends RoutedMessage
+
+  case class ScheduleKillWithId(agent: ActorRef, triggerId: Long) extends RoutedMessage
+
+  case class ShardsCreated(routes: ShardRoutes)
+
+  case class ReleaseTriggers(upToTick: Int)
+
+  case object FinishShard
+
+  /**
+    * Asks the coordinator for the scheduler agents talk to, which is replied to with an [[ActorRef]].
+    */
+  case object GetShardRouter
+
+  def props(stopTick: Int, maxWindow: Int, numberOfShards: Int): Props =
+    Props(new ShardedBeamAgentScheduler(stopTick, maxWindow, numberOfShards))
+
+  /**
+    * Agents of a household (the household actor and everything it creates) share a shard, other agents are assigned
+    * by name.
+    */
+  def shardKey(agent: ActorRef): String = {
+    val elements = agent.path.elements.toIndexedSeq
+    val populationIndex = elements.indexOf("population")
+    if (populationIndex >= 0 && populationIndex + 1 < elements.size) elements(populationIndex + 1)
+    else agent.path.name
+  }
+
+  def shardOf(agent: ActorRef, numberOfShards: Int): Int = Math.floorMod(shardKey(agent).hashCode, numberOfShards)
+
+  /**
+    * The ways to the shards, shared by the router, the shards and the coordinator. Triggers get their ids here, from
+    * one sequence and in the order they are sent in, like in the single scheduler. Every message to a shard is counted
+    * before it is sent, so the coordinator can tell whether one is still on its way.
+    */
+  class ShardRoutes(shards: IndexedSeq[ActorRef]) {
+
+    private val lastTriggerId = new AtomicLong(0L)
+    private val sent = new AtomicLongArray(shards.size)
+
+    def numberOfShards: Int = shards.size
+
+    def sentTo(shard: Int): Long = sent.get(shard)
+
+    def send(shard: Int, message: RoutedMessage, sender: ActorRef): Unit = {
+      sent.incrementAndGet(shard)
+      shards(shard).tell(message, sender)
+    }
+
+    /**
+      * @return ids for a number of triggers, which follow each other like the ones of a message to the single scheduler
+      */
+    def nextTriggerIds(numberOfTriggers: Int): Long = lastTriggerId.getAndAdd(numberOfTriggers) + 1
+
+    /**
+      * Gives the triggers their ids and sends them to the shards of their agents, except the ones of `keptShard`, which
+      * are returned.
+      */
+    def schedule(triggers: Seq[ScheduleTrigger], sender: ActorRef, keptShard: Int = -1): Vector[TriggerToSchedule] = {
+      val firstTriggerId = nextTriggerIds(triggers.size)
+      val triggersByShard = Array.fill(numberOfShards)(Vector.newBuilder[TriggerToSchedule])
+      triggers.zipWithIndex.foreach {
+        case (trigger, index) =>
+          triggersByShard(shardOf(trigger.agent, numberOfShards)) += TriggerToSchedule(trigger, firstTriggerId + index)
+      }
+      triggersByShard.indices.foreach { shard =>
+        val triggersOfShard = triggersByShard(shard).result()
+        if (shard != keptShard && triggersOfShard.nonEmpty) send(shard, ScheduleWithIds(triggersOfShard), sender)
+      }
+      if (keptShard >= 0) triggersByShard(keptShard).result() else Vector()
+    }
+  }
+
+  /**
+    * Sends schedule requests to the shard of the agent the trigger is for, and completion notices to the shard of their
+    * sender, which is the agent that got the trigger. The new triggers of a completion notice that are for other shards
+    * are sent before the notice. All other messages go to the coordinator.
+    */
+  private[scheduler] class ShardRoutee(coordinator: ActorRef, routes: ShardRoutes) extends Routee {
+
+    override def send(message: Any, sender: ActorRef): Unit = message match {
+      case triggerToSchedule: ScheduleTrigger =>
+        routes.schedule(Vector(triggerToSchedule), sender)
+      case ScheduleTriggers(triggersToSchedule) =>
+        routes.schedule(triggersToSchedule, sender)
+      case CompletionNotice(triggerId, newTriggers) =>
+        val shard = shardOf(sender, routes.numberOfShards)
+        routes.send(shard, CompleteWithIds(triggerId, routes.schedule(newTriggers, sender, shard)), sender)
+      case ScheduleKillTrigger(agent) =>
+        routes.send(shardOf(agent, routes.numberOfShards), ScheduleKillWithId(agent, routes.nextTriggerIds(1)), sender)
+      case _ =>
+        coordinator.tell(message, sender)
+    }
+  }
+
+  private[scheduler] class ShardRoutingLogic(routee: Routee) extends RoutingLogic {
+    override def select(message: Any, routees: immutable.IndexedSeq[Routee]): Routee = routee
+  }
+
+  /**
+    * A router without routees of its own: like every router, it routes in the thread of the sender, so agents reach
+    * their shard without a hop through an actor.
+    */
+  private[scheduler] case class ShardGroup(coordinator: ActorRef, routes: ShardRoutes) extends Group {
+
+    override def paths(system: ActorSystem): immutable.Iterable[String] = Nil
+
+    override def createRouter(system: ActorSystem): Router =
+      new Router(new ShardRoutingLogic(new ShardRoutee(coordinator, routes)))
+
+    override def routerDispatcher: String = Dispatchers.DefaultDispatcherId
+  }
+}
+
+/**
+  * Scheduler that spreads the triggers over several [[SchedulerShard]]s, each of which keeps the queue and the awaited
+  * triggers of a disjoint set of agents (by household), so the bookkeeping of the time loop runs on several cores.
+  *
+  * Agents talk to the shards directly: the scheduler they are given is a router (see [[GetShardRouter]]) that sends
+  * every trigger to the shard of its agent and every completion notice to the shard of the agent that sends it, and
+  * shards send triggers with themselves as sender. The router numbers the triggers in the order they are sent in, so
+  * triggers of the same tick and priority are released in the same order as by the single scheduler. This coordinator
+  * only receives a summary from a shard when its earliest awaited or pending tick changed, or when it processed all
+  * messages sent to it so far, and advances the window over all shards with the same rule as the single scheduler once
+  * no message to a shard is on its way. So, like with the single scheduler, a trigger scheduled before the completion
+  * notice that lets the window advance is never late, whichever actor scheduled it.
+  *
+  * Stuck agent detection and the trigger measurer are only available with the single scheduler.
+  */
+class ShardedBeamAgentScheduler(stopTick: Int, maxWindow: Int, numberOfShards: Int) extends Actor with ActorLogging {
+
+  private val shards: IndexedSeq[ActorRef] = (0 until numberOfShards).map { shard =>
+    context.actorOf(SchedulerShard.props(shard, maxWindow, self), s"shard-$shard")
+  }
+  private val routes = new ShardRoutes(shards)
+  shards.foreach(_ ! ShardsCreated(routes))
+
+  // Stopping the router, which is what agents know as the scheduler, stops the shards as well
+  private val router: ActorRef = context.actorOf(ShardGroup(self, routes).props(), "router")
+  context.watch(router)
+
+  private val sentReleases = new Array[Long](numberOfShards)
+  private val statuses: Array[ShardStatus] = Array.tabulate(numberOfShards) { shard =>
+    ShardStatus(shard, 0L, 0L, Int.MaxValue, Int.MaxValue)
+  }
+
+  private var started = false
+  private var startSender: ActorRef = _
+  private var startedAt: Deadline = _
+  private var currentIter: Int = -1
+  private var nowInSeconds: Int = 0
+  private var releasedUpTo: Int = Int.MinValue
+
+  override val supervisorStrategy: SupervisorStrategy = OneForOneStrategy() {
+    case _ => Escalate
+  }
+
+  def receive: Receive = {
+    case GetShardRouter =>
+      sender() ! router
+
+    case StartSchedule(it) =>
+      log.info(s"starting scheduler with $numberOfShards shards at iteration $it")
+      startSender = sender()
+      currentIter = it
+      started = true
+      startedAt = Deadline.now
+      releaseTriggers()
+
+    case status: ShardStatus =>
+      statuses(status.shard) = status
+      releaseTriggers()
+
+    case Monitor =>
+      log.info(s"nowInSeconds=$nowInSeconds, shards=${statuses.mkString(", ")}")
+
+    case Terminated(_) =>
+      context.stop(self)
+  }
+
+  // Every release and every schedule request and completion notice sent to a shard is processed
+  private def noMessageOnItsWay: Boolean =
+    statuses.forall { status =>
+      status.receivedReleases == sentReleases(status.shard) && status.receivedRouted == routes.sentTo(status.shard)
+    }
+
+  /**
+    * Releases the triggers the window allows, like `doSimStep` of the single scheduler: the triggers up to now and the
+    * ones up to `maxWindow - 2` ticks past the earliest awaited or just released trigger. Shards release triggers that
+    * are scheduled up to the released tick later on their own.
+    */
+  private def releaseTriggers(): Unit = {
+    if (started && noMessageOnItsWay) {
+      val firstAwaitingTick = statuses.map(_.firstAwaitingTick).min
+      val firstPendingTick = statuses.map(_.firstPendingTick).min
+      if (firstAwaitingTick == Int.MaxValue && firstPendingTick > stopTick) {
+        finish()
+      } else {
+        // like the single scheduler, release nothing (not even triggers of past ticks) while time has to stand still
+        if (firstAwaitingTick == Int.MaxValue || nowInSeconds <= firstAwaitingTick + maxWindow - 2) {
+          // triggers up to now are released in any case and start the window if they are earlier
+          val windowStart =
+            if (firstPendingTick <= nowInSeconds || firstAwaitingTick == Int.MaxValue)
+              math.min(firstAwaitingTick, firstPendingTick)
+            else firstAwaitingTick
+          val releaseUpTo = math.max(math.max(nowInSeconds, windowStart), windowStart + maxWindow - 2)
+          val limit = math.min(releaseUpTo, stopTick)
+          nowInSeconds = math.max(nowInSeconds, limit)
+          if (limit > releasedUpTo) {
+            releasedUpTo = limit
+            shards.indices.foreach { shard =>
+              sentReleases(shard) += 1
+              shards(shard) ! ReleaseTriggers(limit)
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private def finish(): Unit = {
+    started = false
+    val duration = Deadline.now - startedAt
+    log.info(
+      s"Stopping ShardedBeamAgentScheduler @ tick $nowInSeconds. Iteration $currentIter executed in ${duration.toSeconds} seconds"
+    )
+    shards.foreach(_ ! FinishShard)
+    startSender ! CompletionNotice(0L)
+  }
+}
+
+object SchedulerShard {
+
+  def props(shard: Int, maxWindow: Int, coordinator: ActorRef): Props =
+    Props(new SchedulerShard(shard, maxWindow, coordinator))
+}
+
+/**
+  * Queue and awaited triggers of the agents of one shard of a [[ShardedBeamAgentScheduler]]. Agents send their schedule
+  * requests and completion notices here, and the shard releases triggers up to the tick the coordinator released last.
+  */
+class SchedulerShard(shard: Int, maxWindow: Int, coordinator: ActorRef) extends Actor with ActorLogging {
+
+  private val triggerQueue = new TriggerCalendarQueue()
+  private val awaitingResponse = new AwaitingTriggers()
+  private val terminatedAgents = mutable.HashSet[ActorRef]()
+
+  private var routes: ShardRoutes = _
+  private var receivedReleases: Long = 0L
+  private var receivedRouted: Long = 0L
+  private var nowInSeconds: Int = 0
+  private var releasedUpTo: Int = Int.MinValue
+
+  private var releasesChanged = false
+  private var reportedRouted: Long = 0L
+  private var reportedFirstAwaitingTick = Int.MaxValue
+  private var reportedFirstPendingTick = Int.MaxValue
+
+  def receive: Receive = {
+    case ShardsCreated(shardRoutes) =>
+      routes = shardRoutes
+
+    case ScheduleWithIds(triggersToSchedule) =>
+      receivedRouted += 1
+      triggersToSchedule.foreach(addTrigger)
+      processed()
+
+    case CompleteWithIds(triggerId, newTriggers) =>
+      receivedRouted += 1
+      newTriggers.foreach(addTrigger)
+      completeTrigger(triggerId)
+      processed()
+
+    case ScheduleKillWithId(agent, triggerId) =>
+      receivedRouted += 1
+      addTrigger(TriggerToSchedule(ScheduleTrigger(KillTrigger(nowInSeconds + maxWindow), agent), triggerId))
+      processed()
+
+    // from actors that answer the shard that sent the trigger instead of the router
+    case CompletionNotice(triggerId, newTriggers) =>
+      routes.schedule(newTriggers, self, shard).foreach(addTrigger)
+      completeTrigger(triggerId)
+      processed()
+
+    case ReleaseTriggers(upToTick) =>
+      receivedReleases += 1
+      releasesChanged = true
+      nowInSeconds = math.max(nowInSeconds, upToTick)
+      releasedUpTo = upToTick
+      processed()
+
+    case FinishShard =>
+      // Ride hail agents receive their Finish from BeamMobsim
+      triggerQueue.forEach { scheduledTrigger =>
+        if (!scheduledTrigger.agent.path.toString.contains("rideHailAgent"))
+          scheduledTrigger.agent ! Finish
+      }
+
+    case Terminated(actor) =>
+      terminatedAgents += actor
+      awaitingResponse.values.filter(_.agent == actor).toList.foreach { trigger =>
+        log.error("Clearing trigger because agent died: " + trigger)
+        awaitingResponse.remove(trigger.triggerWithId.triggerId)
+      }
+      processed()
+  }
+
+  private def addTrigger(triggerToSchedule: TriggerToSchedule): Unit = {
+    val TriggerToSchedule(scheduleTrigger, triggerId) = triggerToSchedule
+    if (nowInSeconds - scheduleTrigger.trigger.tick > maxWindow) {
+      scheduleTrigger.agent ! IllegalTriggerGoToError(
+        s"Cannot schedule an event $scheduleTrigger at tick ${scheduleTrigger.trigger.tick} when 'nowInSeconds' is at $nowInSeconds}"
+      )
+    } else {
+      context.watch(scheduleTrigger.agent)
+      val triggerWithId = TriggerWithId(scheduleTrigger.trigger, triggerId)
+      triggerQueue.add(ScheduledTrigger(triggerWithId, scheduleTrigger.agent, scheduleTrigger.priority))
+    }
+  }
+
+  private def completeTrigger(triggerId: Long): Unit = {
+    if (awaitingResponse.remove(triggerId).isEmpty) {
+      log.error(s"Received bad completion notice $triggerId from ${sender().path}")
+    }
+  }
+
+  private def processed(): Unit = {
+    releaseTriggers()
+    reportStatus()
+  }
+
+  private def releaseTriggers(): Unit = {
+    while (!triggerQueue.isEmpty && triggerQueue.peek().triggerWithId.trigger.tick <= releasedUpTo) {
+      val scheduledTrigger = triggerQueue.poll()
+      if (!terminatedAgents.contains(scheduledTrigger.agent)) {
+        awaitingResponse.add(scheduledTrigger)
+        scheduledTrigger.agent ! scheduledTrigger.triggerWithId
+      }
+    }
+  }
+
+  // The number of processed messages only matters to the coordinator once it is the number of messages sent here
+  private def reportStatus(): Unit = {
+    val firstAwaitingTick = if (awaitingResponse.isEmpty) Int.MaxValue else awaitingResponse.firstTick
+    val firstPendingTick = if (triggerQueue.isEmpty) Int.MaxValue else triggerQueue.peek().triggerWithId.trigger.tick
+    val caughtUp = receivedRouted != reportedRouted && receivedRouted == routes.sentTo(shard)
+    if (releasesChanged || caughtUp || firstAwaitingTick != reportedFirstAwaitingTick ||
+        firstPendingTick != reportedFirstPendingTick) {
+      releasesChanged = false
+      reportedRouted = receivedRouted
+      reportedFirstAwaitingTick = firstAwaitingTick
+      reportedFirstPendingTick = firstPendingTick
+      coordinator ! ShardStatus(shard, receivedReleases, receivedRouted, firstAwaitingTick, firstPendingTick)
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package beam.agentsim.scheduler
+
+import java.util
+
+import beam.agentsim.scheduler.BeamAgentScheduler.{ScheduledTrigger, ScheduledTriggerComparator}
+
+/**
+  * Priority queue of [[ScheduledTrigger]]s in the order of [[ScheduledTriggerComparator]] (tick, then priority, then
+  * trigger id), organized as a calendar queue: triggers are put into one bucket per integer tick.
+  *
+  * The buckets of the `bucketCount` ticks starting at the earliest pending tick form a ring, buckets of later ticks wait
+  * in an overflow tree map until time reaches them. Inside a bucket the order is kept on insertion; since trigger ids
+  * only grow, a new trigger nearly always goes to the end of its bucket, so adding and polling cost O(1) instead of the
+  * O(log n) comparisons of a binary heap, and no per-trigger node is allocated.
+  *
+  * @param bucketCount number of ticks covered by the ring, has to be a power of two
+  */
+class TriggerCalendarQueue(bucketCount: Int = TriggerCalendarQueue.DefaultBucketCount)
+    extends util.AbstractQueue[ScheduledTrigger] {
+  import TriggerCalendarQueue._
+
+  require(Integer.bitCount(bucketCount) == 1, s"bucketCount has to be a power of two, but was $bucketCount")
+
+  private val mask = bucketCount - 1
+  private val ring = new Array[TickBucket](bucketCount)
+  private val overflow = new util.TreeMap[Integer, TickBucket]()
+
+  // No pending trigger has a smaller tick. The ring holds the ticks [firstTick, firstTick + bucketCount).
+  private var firstTick: Int = 0
+  private var count: Int = 0
+  private var overflowCount: Int = 0
+
+  override def offer(scheduledTrigger: ScheduledTrigger): Boolean = {
+    val tick = scheduledTrigger.triggerWithId.trigger.tick
+    if (count == 0) {
+      firstTick = tick
+    } else if (tick < firstTick) {
+      moveFirstTickBack(tick)
+    }
+    val bucket = if (tick.toLong - firstTick >= bucketCount) {
+      var overflowBucket = overflow.get(tick)
+      if (overflowBucket == null) {
+        overflowBucket = new TickBucket(tick)
+        overflow.put(tick, overflowBucket)
+      }
+      overflowCount += 1
+      overflowBucket
+    } else {
+      var ringBucket = ring(tick & mask)
+      if (ringBucket == null) {
+        ringBucket = new TickBucket(tick)
+        ring(tick & mask) = ringBucket
+      } else if (ringBucket.isEmpty) {
+        ringBucket.tick = tick
+      }
+      ringBucket
+    }
+    bucket.add(scheduledTrigger)
+    count += 1
+    true
+  }
+
+  override def poll(): ScheduledTrigger = {
+    val bucket = firstBucket()
+    if (bucket == null) {
+      null
+    } else {
+      count -= 1
+      bucket.poll()
+    }
+  }
+
+  override def peek(): ScheduledTrigger = {
+    val bucket = firstBucket()
+    if (bucket == null) null else bucket.peek()
+  }
+
+  override def size(): Int = count
+
+  override def clear(): Unit = {
+    util.Arrays.fill(ring.asInstanceOf[Array[AnyRef]], null)
+    overflow.clear()
+    count = 0
+    overflowCount = 0
+  }
+
+  /**
+    * @return an iterator over a snapshot of all triggers, in no particular order (like [[java.util.PriorityQueue]])
+    */
+  override def iterator(): util.Iterator[ScheduledTrigger] = {
+    val snapshot = new util.ArrayList[ScheduledTrigger](count)
+    ring.foreach(bucket => if (bucket != null) bucket.addTo(snapshot))
+    overflow.values().forEach(bucket => bucket.addTo(snapshot))
+    util.Collections.unmodifiableList(snapshot).iterator()
+  }
+
+  private def firstBucket(): TickBucket = {
+    if (count == 0) {
+      null
+    } else {
+      if (count == overflowCount) {
+        // the ring is empty, jump to the earliest tick waiting in the overflow
+        firstTick = overflow.firstKey().intValue
+        pullFromOverflow()
+      }
+      var bucket = ring(firstTick & mask)
+      while (bucket == null || bucket.isEmpty) {
+        firstTick += 1
+        pullFromOverflow()
+        bucket = ring(firstTick & mask)
+      }
+      bucket
+    }
+  }
+
+  private def pullFromOverflow(): Unit = {
+    while (!overflow.isEmpty && overflow.firstKey().longValue - firstTick < bucketCount) {
+      val entry = overflow.pollFirstEntry()
+      // the slot belongs to a tick before firstTick, so it can only hold an empty bucket
+      ring(entry.getKey.intValue & mask) = entry.getValue
+      overflowCount -= entry.getValue.size
+    }
+  }
+
+  private def moveFirstTickBack(newFirstTick: Int): Unit = {
+    // ticks that no longer fit into the ring move to the overflow
+    val movedTicks = math.min(firstTick.toLong - newFirstTick, bucketCount.toLong).toInt
+    var i = 0
+    while (i < movedTicks) {
+      val tick = firstTick + bucketCount - 1 - i
+      val bucket = ring(tick & mask)
+      if (bucket != null && !bucket.isEmpty) {
+        overflow.put(bucket.tick, bucket)
+        overflowCount += bucket.size
+        ring(tick & mask) = null
+      }
+      i += 1
+    }
+    firstTick = newFirstTick
+  }
+}
+
+object TriggerCalendarQueue {
+
+  val DefaultBucketCount: Int = 4096
+
+  /**
+    * Triggers of one tick in [[ScheduledTriggerComparator]] order, stored in `items(head until end)`.
+    */
+  private class TickBucket(var tick: Int) {
+    private var items = new Array[ScheduledTrigger](4)
+    private var head = 0
+    private var end = 0
+
+    def isEmpty: Boolean = head == end
+
+    def size: Int = end - head
+
+    def peek(): ScheduledTrigger = items(head)
+
+    def poll(): ScheduledTrigger = {
+      val scheduledTrigger = items(head)
+      items(head) = null
+      head += 1
+      if (head == end) {
+        head = 0
+        end = 0
+      }
+      scheduledTrigger
+    }
+
+    def add(scheduledTrigger: ScheduledTrigger): Unit = {
+      if (end == items.length) {
+        if (head > items.length / 2) {
+          System.arraycopy(items, head, items, 0, end - head)
+          util.Arrays.fill(items.asInstanceOf[Array[AnyRef]], end - head, end, null)
+        } else {
+          items = util.Arrays.copyOfRange(items, head, head + items.length * 2)
+        }
+        end -= head
+        head = 0
+      }
+      var position = end
+      while (position > head && ScheduledTriggerComparator.compare(items(position - 1), scheduledTrigger) > 0) {
+        position -= 1
+      }
+      System.arraycopy(items, position, items, position + 1, end - position)
+      items(position) = scheduledTrigger
+      end += 1
+    }
+
+    def addTo(collection: util.Collection[ScheduledTrigger]): Unit = {
+      var i = head
+      while (i < end) {
+        collection.add(items(i))
+        i += 1
+      }
+    }
+  }
+}
@@ -4,7 +4,7 @@ import java.time.{ZoneOffset, ZonedDateTime}
 import java.util.UUID
 import java.util.concurrent.TimeUnit
 
-import akka.actor.Status.{Status, Success}
+import akka.actor.Status.{Failure, Status, Success}
 import akka.actor.{
   Actor,
   ActorLogging,
@@ -33,8 +33,9 @@ import beam.router.model._
 import beam.router.osm.TollCalculator
 import beam.router.r5.R5RoutingWorker
 import beam.sim.BeamServices
+import beam.sim.config.BeamConfig
 import beam.sim.population.AttributesOfIndividual
-import beam.utils.IdGeneratorImpl
+import beam.utils.{IdGeneratorImpl, TravelTimeTable}
 import com.conveyal.r5.profile.StreetMode
 import com.conveyal.r5.transit.{RouteInfo, TransportNetwork}
 import com.romix.akka.serialization.kryo.KryoSerializer
@@ -75,9 +76,23 @@ class BeamRouter(
   val secondsToWaitToClearRoutedOutstandingWork: Int =
     services.beamConfig.beam.debug.secondsToWaitToClearRoutedOutstandingWork
 
+  val workPullConfig: BeamConfig.Beam.Routing.WorkPull = services.beamConfig.beam.routing.workPull
+
   val availableWorkWithOriginalSender: mutable.Queue[WorkWithOriginalSender] =
     mutable.Queue.empty[WorkWithOriginalSender]
-  val availableWorkers: mutable.Set[Worker] = mutable.Set.empty[Worker]
+
+  // Work each worker has asked for and not received yet
+  val workerCredits: mutable.Map[Worker, Int] = mutable.Map.empty[Worker, Int]
+
+  // Work sent to each worker so far, to tell how much of it the worker hadn't received when it asked for work
+  val numberOfWorkSentToWorker: mutable.Map[Worker, Long] = mutable.Map.empty[Worker, Long]
+
+  // Set when the workers are told about work, so that they are told once until one of them asks for work
+  private var workersNotifiedOfAvailableWork = false
+
+  val workerStatuses: mutable.Map[Worker, WorkerStatus] = mutable.Map.empty[Worker, WorkerStatus]
+
+  val workersBeingStolenFrom: mutable.Set[Worker] = mutable.Set.empty[Worker]
 
   val outstandingWorkIdToOriginalSenderMap: mutable.Map[WorkId, OriginalSender] =
     mutable.Map.empty[WorkId, OriginalSender]
@@ -159,7 +174,9 @@ class BeamRouter(
 
   override def receive: PartialFunction[Any, Unit] = {
     case `tick` =>
+      //Workers that have room are told again, in case the router lost track of them
       if (isWorkAndNoAvailableWorkers) notifyWorkersOfAvailableWork()
+      logWorkerStatuses()
       logExcessiveOutstandingWorkAndClearIfEnabledAndOver
     case t: TryToSerialize =>
       if (log.isDebugEnabled) {
@@ -169,12 +186,12 @@ class BeamRouter(
     case msg: UpdateTravelTimeLocal =>
       traveTimeOpt = Some(msg.travelTime)
       localNodes.foreach(_.forward(msg))
-    case UpdateTravelTimeRemote(map) =>
+    case UpdateTravelTimeRemote(travelTimeTable) =>
       val nodes = remoteNodes
       nodes.foreach { address =>
         resolveAddressBlocking(address).foreach { serviceActor =>
           log.info("Sending UpdateTravelTime_v2 to  {}", serviceActor)
-          serviceActor.ask(UpdateTravelTimeRemote(map))(updateTravelTimeTimeout)
+          serviceActor.ask(UpdateTravelTimeRemote(travelTimeTable))(updateTravelTimeTimeout)
         }
       }
     case InitTransit(scheduler, parkingManager, _) =>
@@ -226,44 +243,57 @@ class BeamRouter(
         m.address,
         receivePath = "ReachableMember[compute]"
       )
-    case GimmeWork =>
+    case GimmeWork(room, numberOfReceivedWork, throughput, queueDepth) =>
       val worker = context.sender
-      if (!isWorkAvailable)
-        availableWorkers.add(worker) //Request must have been delayed since no work, but will send when something comes in
-      else {
-        val (work, originalSender) = availableWorkWithOriginalSender.dequeue()
-        sendWorkTo(worker, work, originalSender, receivePath = "GimmeWork")
+      //Work sent that the worker hadn't received when it asked takes up some of its room
+      val credits = room - (numberOfWorkSentToWorker.getOrElse(worker, 0L) - numberOfReceivedWork)
+      if (credits > 0) {
+        workerCredits.put(worker, credits.toInt)
+        workersNotifiedOfAvailableWork = false
+      } else {
+        workerCredits.remove(worker)
       }
+      workerStatuses.put(worker, WorkerStatus(throughput, queueDepth, getCurrentTime))
+      dispatchAvailableWork()
+      //Credits that are left wait for work to come in, or for work stolen from a busy worker
+      if (queueDepth == 0 && workerCredits.contains(worker)) stealWorkFor(worker)
+    case StolenWork(stolenWork) =>
+      workersBeingStolenFrom.remove(sender)
+      log.debug("Got back {} queued requests from {}", stolenWork.size, sender)
+      //Stolen work was sent before the work waiting here, so it goes first. It comes with its original sender.
+      stolenWork.reverse.foreach(_ +=: availableWorkWithOriginalSender)
+      dispatchAvailableWork()
     case routingResp: RoutingResponse =>
-      pipeResponseToOriginalSender(routingResp)
-      logIfResponseTookExcessiveTime(routingResp)
+      passResponseToOriginalSender(routingResp.requestId, routingResp)
+      logIfResponseTookExcessiveTime(routingResp.requestId)
+    case batchRoutingResp: BatchRoutingResponse =>
+      passResponseToOriginalSender(batchRoutingResp.requestId, batchRoutingResp)
+      logIfResponseTookExcessiveTime(batchRoutingResp.requestId)
+    case WorkFailed(workId, cause) =>
+      removeOutstandingWorkBy(workId)
+      sender ! Failure(cause)
+    case failure: Failure =>
+      // Work that failed at a worker, which has no id to stop tracking it by
+      sender ! failure
     case ClearRoutedWorkerTracker(workIdToClear) =>
       //TODO: Maybe do this for all tracker removals?
       removeOutstandingWorkBy(workIdToClear)
     case work =>
       val originalSender = context.sender
-      if (!isWorkAvailable) { //No existing work
-        if (!isWorkerAvailable) {
-          notifyWorkersOfAvailableWork()
-          availableWorkWithOriginalSender.enqueue((work, originalSender))
-        } else {
-          val worker: Worker = removeAndReturnFirstAvailableWorker()
-          sendWorkTo(worker, work, originalSender, "Receive CatchAll")
-        }
-      } else { //Use existing work first
-        if (!isWorkerAvailable) notifyWorkersOfAvailableWork() //Shouldn't need this but it should be relatively idempotent
-        availableWorkWithOriginalSender.enqueue((work, originalSender))
-      }
+      availableWorkWithOriginalSender.enqueue((work, originalSender))
+      dispatchAvailableWork()
+      if (isWorkAndNoAvailableWorkers && !workersNotifiedOfAvailableWork) notifyWorkersOfAvailableWork()
   }
 
   private def isWorkAvailable: Boolean = availableWorkWithOriginalSender.nonEmpty
 
-  private def isWorkerAvailable: Boolean = availableWorkers.nonEmpty
+  private def isWorkerAvailable: Boolean = workerCredits.nonEmpty
 
   private def isWorkAndNoAvailableWorkers: Boolean =
     isWorkAvailable && !isWorkerAvailable
 
   private def notifyWorkersOfAvailableWork(): Unit = {
+    workersNotifiedOfAvailableWork = true
     remoteNodes.foreach(workerAddress => workerFrom(workerAddress) ! WorkAvailable)
     localNodes.foreach(_ ! WorkAvailable)
   }
@@ -300,16 +330,60 @@ class BeamRouter(
   private def removeUnavailableMemberFromAvailableWorkers(
     member: Member
   ): Unit = {
-    try {
-      val worker = Await.result(workerFrom(member.address).resolveOne, 60.seconds)
-      if (availableWorkers.contains(worker)) { availableWorkers.remove(worker) }
-      //TODO: If there is work outstanding then it needs handled
-    } catch {
-      case ex: Throwable =>
-        log.error(ex, s"removeUnavailableMemberFromAvailableWorkers failed with: ${ex.getMessage}")
+    //TODO: If there is work outstanding then it needs handled
+    val workers = workerStatuses.keySet.filter(_.path.address == member.address)
+    workerCredits --= workers
+    numberOfWorkSentToWorker --= workers
+    workerStatuses --= workers
+    workersBeingStolenFrom --= workers
+  }
+
+  /**
+    * Sends the work waiting here to the workers, one piece at a time to the worker with the most credits left.
+    */
+  private def dispatchAvailableWork(): Unit =
+    while (isWorkAvailable && isWorkerAvailable) {
+      val (worker, credits) = workerCredits.maxBy(_._2)
+      if (credits > 1) workerCredits.put(worker, credits - 1) else workerCredits.remove(worker)
+      val (work, originalSender) = availableWorkWithOriginalSender.dequeue()
+      sendWorkTo(worker, work, originalSender, receivePath = "dispatchAvailableWork")
+    }
+
+  /**
+    * Asks the worker with the longest queue to give back up to half of it, to be sent to a worker that has no work.
+    */
+  private def stealWorkFor(thief: Worker): Unit = {
+    val victims = workerStatuses.filter {
+      case (worker, status) =>
+        worker != thief && !workersBeingStolenFrom.contains(worker) &&
+        status.queueDepth >= math.max(workPullConfig.minQueuedWorkToSteal, 1)
+    }
+    if (victims.nonEmpty) {
+      val (victim, status) = victims.maxBy(_._2.queueDepth)
+      val numberOfWork = math.min(math.max(status.queueDepth / 2, 1), workerCredits.getOrElse(thief, 0))
+      log.debug("Stealing {} queued requests from {} for {}", numberOfWork, victim, thief)
+      workersBeingStolenFrom.add(victim)
+      workerStatuses.put(victim, status.copy(queueDepth = status.queueDepth - numberOfWork))
+      victim ! StealWork(numberOfWork)
     }
   }
 
+  private def logWorkerStatuses(): Unit =
+    if (workerStatuses.nonEmpty) {
+      log.info(
+        "Routing workers: {}. {} requests waiting, {} outstanding",
+        workerStatuses
+          .map {
+            case (worker, status) =>
+              f"${worker.path} ${status.throughput}%.1f/s, ${status.queueDepth} queued, " +
+              s"${workerCredits.getOrElse(worker, 0)} credits"
+          }
+          .mkString("; "),
+        availableWorkWithOriginalSender.size,
+        outstandingWorkIdToOriginalSenderMap.size
+      )
+    }
+
   private def notifyNewWorkerIfWorkAvailable(
     workerAddress: => Address,
     receivePath: => String
@@ -331,53 +405,44 @@ class BeamRouter(
       case routingRequest: RoutingRequest =>
         outstandingWorkIdToOriginalSenderMap.put(routingRequest.requestId, originalSender) //TODO: Add a central Id trait so can just match on that and combine logic
         outstandingWorkIdToTimeSent.put(routingRequest.requestId, getCurrentTime)
-        worker ! work
+      case batchRoutingRequest: BatchRoutingRequest =>
+        outstandingWorkIdToOriginalSenderMap.put(batchRoutingRequest.requestId, originalSender)
+        outstandingWorkIdToTimeSent.put(batchRoutingRequest.requestId, getCurrentTime)
       case embodyWithCurrentTravelTime: EmbodyWithCurrentTravelTime =>
         outstandingWorkIdToOriginalSenderMap.put(
           embodyWithCurrentTravelTime.requestId,
           originalSender
         )
         outstandingWorkIdToTimeSent.put(embodyWithCurrentTravelTime.requestId, getCurrentTime)
-        worker ! work
       case _ =>
-        log.warning(
-          "Forwarding work via {} instead of telling because it isn't a handled type - {}",
-          receivePath,
-          work
-        )
-        worker.forward(work)
+        log.warning("Sending work via {} that isn't a tracked type - {}", receivePath, work)
     }
+    //The worker keeps the original sender with the work and answers with it as the sender
+    numberOfWorkSentToWorker.put(worker, numberOfWorkSentToWorker.getOrElse(worker, 0L) + 1)
+    worker.tell(work, originalSender)
   }
 
-  private def pipeResponseToOriginalSender(routingResp: RoutingResponse): Unit =
-    outstandingWorkIdToOriginalSenderMap.remove(routingResp.requestId) match {
-      case Some(originalSender) => originalSender ! routingResp
-      case None =>
-        log.error(
-          "Received a RoutingResponse that does not match a tracked WorkId: {}",
-          routingResp.requestId
-        )
+  // Workers answer with the original sender as the sender, so work that isn't tracked anymore is answered as well
+  private def passResponseToOriginalSender(workId: WorkId, response: Any): Unit = {
+    if (outstandingWorkIdToOriginalSenderMap.remove(workId).isEmpty) {
+      log.warning("Received a {} that does not match a tracked WorkId: {}", response.getClass.getSimpleName, workId)
     }
+    sender ! response
+  }
 
-  private def logIfResponseTookExcessiveTime(routingResp: RoutingResponse): Unit =
-    outstandingWorkIdToTimeSent.remove(routingResp.requestId) match {
+  private def logIfResponseTookExcessiveTime(workId: WorkId): Unit =
+    outstandingWorkIdToTimeSent.remove(workId) match {
       case Some(timeSent) =>
         val secondsSinceSent = timeSent.until(getCurrentTime, java.time.temporal.ChronoUnit.SECONDS)
         if (secondsSinceSent > 30)
           log.warning(
             "Took longer than 30 seconds to hear back from work id '{}' - {} seconds",
-            routingResp.requestId,
+            workId,
             secondsSinceSent
           )
       case None => //No matching id. No need to log since this is more for analysis
     }
 
-  private def removeAndReturnFirstAvailableWorker(): Worker = {
-    val worker = availableWorkers.head
-    availableWorkers.remove(worker)
-    worker
-  }
-
   private def removeOutstandingWorkBy(workId: Int): Unit = {
     outstandingWorkIdToOriginalSenderMap.remove(workId)
     outstandingWorkIdToTimeSent.remove(workId)
@@ -453,7 +518,7 @@ object BeamRouter {
   case object GetMatSimNetwork
 
   case class TryToSerialize(obj: Object)
-  case class UpdateTravelTimeRemote(linkIdToTravelTimePerHour: java.util.Map[String, Array[Double]])
+  case class UpdateTravelTimeRemote(travelTimeTable: TravelTimeTable)
 
   /**
     * It is use to represent a request object
@@ -498,6 +563,30 @@ object BeamRouter {
     val dummyRoutingResponse = Some(RoutingResponse(Vector(), IdGeneratorImpl.nextId))
   }
 
+  /**
+    * Routes the requests on one worker. Requests that start at the same place with the same mode at about the same
+    * time share one street search from their origin to all of their destinations. The ride hail manager sends the
+    * repositioning routes of a wave as a batch.
+    *
+    * A shared search chooses the paths at the earliest departure time of its requests. The travel times of every leg
+    * are for the departure time of its own request.
+    *
+    * @param requests  routed like they were sent one by one
+    * @param requestId of the batch
+    */
+  case class BatchRoutingRequest(
+    requests: IndexedSeq[RoutingRequest],
+    requestId: Int = IdGeneratorImpl.nextId
+  )
+
+  /**
+    * @param responses one for every request of the batch, in the same order
+    */
+  case class BatchRoutingResponse(
+    responses: IndexedSeq[RoutingResponse],
+    requestId: Int
+  )
+
   def props(
     beamServices: BeamServices,
     transportNetwork: TransportNetwork,
@@ -627,8 +716,41 @@ object BeamRouter {
   }
 
   sealed trait WorkMessage
-  case object GimmeWork extends WorkMessage
+
+  /**
+    * A worker asks for work. Its credits are set to `room` less the requests sent to it that it hadn't received yet.
+    *
+    * @param room                 requests the worker has room for besides the ones it holds
+    * @param numberOfReceivedWork requests the worker has received so far
+    * @param throughput           requests the worker completed per second since it last asked
+    * @param queueDepth           requests the worker holds and hasn't started routing
+    */
+  case class GimmeWork(room: Int, numberOfReceivedWork: Long, throughput: Double, queueDepth: Int) extends WorkMessage
   case object WorkAvailable extends WorkMessage
 
+  /**
+    * Asks a worker to give back up to `numberOfWork` of the requests it hasn't started routing.
+    */
+  case class StealWork(numberOfWork: Int) extends WorkMessage
+
+  /**
+    * @param work with whom to answer it
+    */
+  case class StolenWork(work: IndexedSeq[(Any, ActorRef)]) extends WorkMessage
+
+  /**
+    * Answers work that failed at a worker, so the router stops tracking it.
+    */
+  case class WorkFailed(workId: Int, cause: Throwable) extends WorkMessage
+
+  case class WorkerStatus(throughput: Double, queueDepth: Int, lastHeardFrom: ZonedDateTime)
+
+  def workIdOf(work: Any): Option[Int] = work match {
+    case routingRequest: RoutingRequest                           => Some(routingRequest.requestId)
+    case batchRoutingRequest: BatchRoutingRequest                 => Some(batchRoutingRequest.requestId)
+    case embodyWithCurrentTravelTime: EmbodyWithCurrentTravelTime => Some(embodyWithCurrentTravelTime.requestId)
+    case _                                                        => None
+  }
+
   def oneSecondTravelTime(a: Int, b: Int, c: StreetMode) = 1
 }
@@ -1,10 +1,14 @@
 package beam.router
 
 import java.io._
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 import java.util.zip.GZIPInputStream
 
 import scala.collection.concurrent.TrieMap
+import scala.collection.mutable
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, Future}
 import beam.agentsim.agents.choice.mode.DrivingCost
 import beam.agentsim.agents.vehicles.BeamVehicleType
 import beam.agentsim.infrastructure.TAZTreeMap.TAZ
@@ -27,7 +31,7 @@ import beam.router.model.{BeamLeg, BeamPath, EmbodiedBeamTrip}
 import beam.sim.{BeamServices, BeamWarmStart}
 import beam.sim.common.GeoUtils
 import beam.sim.config.BeamConfig
-import beam.utils.FileUtils
+import beam.utils.{FileUtils, ParallelGzipOutputStream}
 import com.google.inject.Inject
 import org.matsim.api.core.v01.{Coord, Id}
 import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup
@@ -41,27 +45,77 @@ import org.supercsv.prefs.CsvPreference
 class BeamSkimmer @Inject()(val beamConfig: BeamConfig) extends IterationEndsListener {
 
   private val SKIMS_FILE_NAME = "skims.csv.gz"
+  private val SKIMS_BINARY_FILE_NAME = "skims.bin"
 
   private var beamServicesOpt: Option[BeamServices] = None
 
+  // TAZs are numbered in the order they are first seen, the skim tables address them by these indices
+  private val tazIndices = new ConcurrentHashMap[Id[TAZ], Integer]()
+  private val nextTazIndex = new AtomicInteger()
+
   // The OD/Mode/Time Matrix
-  private var previousSkims: TrieMap[(Int, BeamMode, Id[TAZ], Id[TAZ]), SkimInternal] = initialPreviousSkims()
-  private var skims: TrieMap[(Int, BeamMode, Id[TAZ], Id[TAZ]), SkimInternal] = TrieMap()
+  private var previousSkims: SkimLookup = initialPreviousSkims()
+  private var skims: SkimTable = new SkimTable()
   private val modalAverage: TrieMap[BeamMode, SkimInternal] = TrieMap()
 
-  private def skimsFilePath: Option[String] = {
-    val maxHour = TimeUnit.SECONDS.toHours(new TravelTimeCalculatorConfigGroup().getMaxTime).toInt
-    BeamWarmStart(beamConfig, maxHour).getWarmStartFilePath(SKIMS_FILE_NAME)
+  private def initialPreviousSkims(): SkimLookup = {
+    if (beamConfig.beam.warmStart.enabled) {
+      val maxHour = TimeUnit.SECONDS.toHours(new TravelTimeCalculatorConfigGroup().getMaxTime).toInt
+      val warmStart = BeamWarmStart(beamConfig, maxHour)
+      warmStart.getWarmStartFilePath(SKIMS_BINARY_FILE_NAME) match {
+        case Some(filePath) =>
+          mapBinarySkims(filePath)
+        case None =>
+          // runs that only exported csv skims
+          warmStart.getWarmStartFilePath(SKIMS_FILE_NAME).map(readCsvSkims).getOrElse(new SkimTable())
+      }
+    } else {
+      new SkimTable()
+    }
   }
 
-  private def initialPreviousSkims(): TrieMap[(Int, BeamMode, Id[TAZ], Id[TAZ]), SkimInternal] = {
-    if (beamConfig.beam.warmStart.enabled) {
-      skimsFilePath
-        .map(BeamSkimmer.readCsvFile)
-        .getOrElse(TrieMap.empty)
+  private def mapBinarySkims(filePath: String): SkimLookup = {
+    val skimFile = SkimFile.map(filePath)
+    // Nothing has been observed yet, so the TAZs get the indices they have in the file
+    skimFile.tazIds.foreach(tazId => tazIndex(Id.create(tazId, classOf[TAZ])))
+    if (skimFile.modes == BeamMode.values.map(_.value)) {
+      skimFile
     } else {
-      TrieMap.empty
+      // the file was written with other modes, so its cells are copied with the current mode indices
+      val currentModeIndices = skimFile.modes.map(mode => BeamMode.withValueOpt(mode).map(modeIndex))
+      val previous = new SkimTable()
+      skimFile.foreach { (cell, skim) =>
+        currentModeIndices(SkimTable.modeIndexOf(cell)).foreach { currentModeIndex =>
+          val currentCell = SkimTable.cellIndex(
+            SkimTable.timeBinOf(cell),
+            currentModeIndex,
+            SkimTable.originIndexOf(cell),
+            SkimTable.destinationIndexOf(cell)
+          )
+          previous.put(currentCell, skim)
+        }
+      }
+      previous
+    }
+  }
+
+  private def readCsvSkims(filePath: String): SkimLookup = {
+    val previous = new SkimTable()
+    BeamSkimmer.readCsvFile(filePath) { (timeBin, mode, orig, dest, skim) =>
+      previous.put(SkimTable.cellIndex(timeBin, modeIndex(mode), tazIndex(orig), tazIndex(dest)), skim)
     }
+    previous
+  }
+
+  private def tazIndex(tazId: Id[TAZ]): Int = {
+    val index = tazIndices.get(tazId)
+    if (index != null) index else tazIndices.computeIfAbsent(tazId, _ => nextTazIndex.getAndIncrement())
+  }
+
+  private def tazIdsByIndex: Array[Id[TAZ]] = {
+    val tazIds = new Array[Id[TAZ]](nextTazIndex.get)
+    tazIndices.forEach((tazId, index) => tazIds(index) = tazId)
+    tazIds
   }
 
   def setBeamServices(newBeamServices: BeamServices) = {
@@ -175,16 +229,25 @@ class BeamSkimmer @Inject()(val beamConfig: BeamConfig) extends IterationEndsLis
     (travelDistance, travelTime)
   }
 
-  private def getSkimValue(time: Int, mode: BeamMode, orig: Id[TAZ], dest: Id[TAZ]): Option[SkimInternal] = {
-    skims.get((timeToBin(time), mode, orig, dest)) match {
-      case someSkim @ Some(_) =>
-        someSkim
-      case None =>
-        previousSkims.get((timeToBin(time), mode, orig, dest))
+  private def getSkimValue(time: Int, mode: BeamMode, orig: Id[TAZ], dest: Id[TAZ]): Option[SkimInternal] =
+    skimValue(timeToBin(time), mode, tazIndices.get(orig), tazIndices.get(dest))
+
+  // TAZ indices are null for TAZs that have never been seen, so no table can contain their cells
+  private def skimValue(timeBin: Int, mode: BeamMode, origIndex: Integer, destIndex: Integer): Option[SkimInternal] = {
+    if (origIndex == null || destIndex == null) {
+      None
+    } else {
+      val cell = SkimTable.cellIndex(timeBin, modeIndex(mode), origIndex, destIndex)
+      skims.get(cell) match {
+        case someSkim @ Some(_) =>
+          someSkim
+        case None =>
+          previousSkims.get(cell)
+      }
     }
   }
 
-  def observeTrip(trip: EmbodiedBeamTrip, beamServices: BeamServices): Option[SkimInternal] = {
+  def observeTrip(trip: EmbodiedBeamTrip, beamServices: BeamServices): Unit = {
     val mode = trip.tripClassifier
     val correctedTrip = mode match {
       case WALK =>
@@ -203,213 +266,186 @@ class BeamSkimmer @Inject()(val beamConfig: BeamConfig) extends IterationEndsLis
       .getTAZ(destCoord.getX, destCoord.getY)
       .tazId
     val timeBin = timeToBin(origLeg.startTime)
-    val key = (timeBin, mode, origTaz, destTaz)
-    val payload =
-      SkimInternal(
-        trip.totalTravelTimeInSecs.toDouble,
-        trip.beamLegs().map(_.travelPath.distanceInM).sum,
-        trip.costEstimate,
-        1
-      )
-    skims.get(key) match {
-      case Some(existingSkim) =>
-        val newPayload = SkimInternal(
-          mergeAverage(existingSkim.time, existingSkim.count, payload.time),
-          mergeAverage(existingSkim.distance, existingSkim.count, payload.distance),
-          mergeAverage(existingSkim.cost, existingSkim.count, payload.cost),
-          existingSkim.count + 1
-        )
-        skims.put(key, newPayload)
-      case None =>
-        skims.put(key, payload)
-    }
+    skims.observe(
+      SkimTable.cellIndex(timeBin, modeIndex(mode), tazIndex(origTaz), tazIndex(destTaz)),
+      trip.totalTravelTimeInSecs.toDouble,
+      trip.beamLegs().map(_.travelPath.distanceInM).sum,
+      trip.costEstimate
+    )
   }
 
   def timeToBin(departTime: Int): Int = {
     Math.floorMod(Math.floor(departTime.toDouble / 3600.0).toInt, 24)
   }
 
-  def mergeAverage(existingAverage: Double, existingCount: Int, newValue: Double): Double = {
-    (existingAverage * existingCount + newValue) / (existingCount + 1)
-  }
-
   override def notifyIterationEnds(event: IterationEndsEvent): Unit = {
-    writeObservedSkims(event)
-    if (beamServicesOpt.isDefined) writeCarSkimsForPeakNonPeakPeriods(event)
-    // Writing full skims are very large, but code is preserved here in case we want to enable it.
-    // TODO make this a configurable output "writeFullSkimsInterval" with default of 0
-//    if(beamServicesOpt.isDefined)writeFullSkims(event)
+    writeBinarySkims(event)
+    if (beamConfig.beam.outputs.writeSkimsCsv) writeObservedSkims(event)
+    if (beamServicesOpt.isDefined) {
+      // Full skims are very large, so they are only written every writeFullSkimsInterval iterations
+      val fullSkimsInterval = beamConfig.beam.outputs.writeFullSkimsInterval
+      writeTazPairSkims(event, fullSkimsInterval > 0 && event.getIteration % fullSkimsInterval == 0)
+    }
     previousSkims = skims
-    skims = new TrieMap()
+    skims = new SkimTable()
   }
 
-  def averageAndWriteSkims(
-    timePeriodString: String,
-    hoursIncluded: List[Int],
+  /**
+    * Writes the car skims of the peak and off-peak periods and, if requested, the skims of every observed mode and
+    * hour for all pairs of TAZs. Both files are written in one pass, which computes the rows of several ranges of
+    * destinations of an origin in parallel.
+    */
+  def writeTazPairSkims(event: IterationEndsEvent, writeFull: Boolean): Unit = {
+    val beamServices = beamServicesOpt.get
+    val tazs = beamServices.tazTreeMap.getTAZs.toIndexedSeq
+    val fullModes = if (writeFull) observedModes else Nil
+    val dummyId = Id.create("NA", classOf[BeamVehicleType])
+    val excerptWriter = skimsCsvWriter(
+      event,
+      BeamSkimmer.excerptSkimsFileBaseName,
+      "period,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
+    )
+    val fullWriters =
+      if (writeFull)
+        Vector(
+          skimsCsvWriter(
+            event,
+            BeamSkimmer.fullSkimsFileBaseName,
+            "hour,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
+          )
+        )
+      else Vector()
+    val rowsPerDestination = 3 + fullModes.size * 24
+    val destinationsPerPart = Math.max(1, maxRowsPerPart / rowsPerDestination)
+    val partsPerOrigin = (tazs.size + destinationsPerPart - 1) / destinationsPerPart
+    writeInParallel(excerptWriter +: fullWriters, tazs.size * partsPerOrigin) { (part, rows) =>
+      val origin = tazs(part / partsPerOrigin)
+      val origIndex = tazIndices.get(origin.tazId)
+      val firstDestination = part % partsPerOrigin * destinationsPerPart
+      tazs.slice(firstDestination, firstDestination + destinationsPerPart).foreach { destination =>
+        val destIndex = tazIndices.get(destination.tazId)
+        val skimOfHour = (timeBin: Int, mode: BeamMode) =>
+          skimValue(timeBin, mode, origIndex, destIndex)
+            .map(_.toSkimExternal)
+            .getOrElse(defaultSkimBetween(origin, destination, timeBin, mode, dummyId, beamServices))
+        appendAveragedSkim(rows(0), "AM", morningPeakHours, origin, destination, CAR, skimOfHour)
+        appendAveragedSkim(rows(0), "PM", afternoonPeakHours, origin, destination, CAR, skimOfHour)
+        appendAveragedSkim(rows(0), "OffPeak", nonPeakHours, origin, destination, CAR, skimOfHour)
+        fullModes.foreach { mode =>
+          (0 to 23).foreach { timeBin =>
+            val skim = skimOfHour(timeBin, mode)
+            appendRow(rows(1), timeBin, mode, origin.tazId, destination.tazId, skim.time, skim.cost, skim.distance)
+              .append(skim.count)
+              .append('\n')
+          }
+        }
+      }
+    }
+  }
+
+  private def observedModes: List[BeamMode] = {
+    val observedModeIndices = mutable.BitSet()
+    skims.foreach((cell, _) => observedModeIndices += SkimTable.modeIndexOf(cell))
+    observedModeIndices.toList.map(BeamMode.values(_))
+  }
+
+  // Unobserved skims within a TAZ go from its center to half its size away
+  private def defaultSkimBetween(
     origin: TAZ,
     destination: TAZ,
-    mode: BeamMode.CAR.type,
-    get: BeamServices,
+    timeBin: Int,
+    mode: BeamMode,
     dummyId: Id[BeamVehicleType],
-    writer: BufferedWriter
-  ) = {
-    val individualSkims = hoursIncluded.map { timeBin =>
-      getSkimValue(timeBin * 3600, mode, origin.tazId, destination.tazId)
-        .map(_.toSkimExternal)
-        .getOrElse {
-          val adjustedDestCoord = if (origin.equals(destination)) {
-            new Coord(
-              origin.coord.getX,
-              origin.coord.getY + Math.sqrt(origin.areaInSquareMeters) / 2.0
-            )
-          } else {
-            destination.coord
-          }
-          getSkimDefaultValue(
-            mode,
-            origin.coord,
-            adjustedDestCoord,
-            timeBin * 3600,
-            dummyId,
-            beamServicesOpt.get
-          )
-        }
+    beamServices: BeamServices
+  ): Skim = {
+    val destinationCoord = if (origin.equals(destination)) {
+      new Coord(origin.coord.getX, origin.coord.getY + Math.sqrt(origin.areaInSquareMeters) / 2.0)
+    } else {
+      destination.coord
     }
-    val weights = individualSkims.map(sk => Math.max(sk.count, 1).toDouble)
-    val sumWeights = weights.sum
-    val weightedDistance = individualSkims.map(_.distance).zip(weights).map(tup => tup._1 * tup._2).sum / sumWeights
-    val weightedTime = individualSkims.map(_.time).zip(weights).map(tup => tup._1 * tup._2).sum / sumWeights
-    val weightedCost = individualSkims.map(_.cost).zip(weights).map(tup => tup._1 * tup._2).sum / sumWeights
-    writer.write(
-      s"$timePeriodString,$mode,${origin.tazId},${destination.tazId},${weightedTime},${weightedCost},${weightedDistance},${sumWeights}\n"
-    )
+    getSkimDefaultValue(mode, origin.coord, destinationCoord, timeBin * 3600, dummyId, beamServices)
   }
 
-  def writeCarSkimsForPeakNonPeakPeriods(event: IterationEndsEvent) = {
-    val morningPeakHours = (7 to 8).toList
-    val afternoonPeakHours = (15 to 16).toList
-    val nonPeakHours = (0 to 6).toList ++ (9 to 14).toList ++ (17 to 23).toList
-    val modes = List(CAR)
-    val fileHeader = "period,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
-    val filePath = event.getServices.getControlerIO.getIterationFilename(
-      event.getServices.getIterationNumber,
-      BeamSkimmer.excerptSkimsFileBaseName + ".csv.gz"
-    )
-    val dummyId = Id.create("NA", classOf[BeamVehicleType])
-    val writer = IOUtils.getBufferedWriter(filePath)
-    writer.write(fileHeader)
-    writer.write("\n")
-    beamServicesOpt.get.tazTreeMap.getTAZs
-      .foreach { origin =>
-        beamServicesOpt.get.tazTreeMap.getTAZs.foreach { destination =>
-          modes.foreach { mode =>
-            averageAndWriteSkims(
-              "AM",
-              morningPeakHours,
-              origin,
-              destination,
-              mode,
-              beamServicesOpt.get,
-              dummyId,
-              writer
-            )
-            averageAndWriteSkims(
-              "PM",
-              afternoonPeakHours,
-              origin,
-              destination,
-              mode,
-              beamServicesOpt.get,
-              dummyId,
-              writer
-            )
-            averageAndWriteSkims(
-              "OffPeak",
-              nonPeakHours,
-              origin,
-              destination,
-              mode,
-              beamServicesOpt.get,
-              dummyId,
-              writer
-            )
-          }
-        }
-      }
-    writer.close()
+  private def appendAveragedSkim(
+    rows: java.lang.StringBuilder,
+    timePeriodString: String,
+    hoursIncluded: Array[Int],
+    origin: TAZ,
+    destination: TAZ,
+    mode: BeamMode,
+    skimOfHour: (Int, BeamMode) => Skim
+  ): Unit = {
+    var sumWeights = 0.0
+    var weightedDistance = 0.0
+    var weightedTime = 0.0
+    var weightedCost = 0.0
+    hoursIncluded.foreach { timeBin =>
+      val skim = skimOfHour(timeBin, mode)
+      val weight = Math.max(skim.count, 1).toDouble
+      sumWeights += weight
+      weightedDistance += skim.distance * weight
+      weightedTime += skim.time * weight
+      weightedCost += skim.cost * weight
+    }
+    appendRow(
+      rows,
+      timePeriodString,
+      mode,
+      origin.tazId,
+      destination.tazId,
+      weightedTime / sumWeights,
+      weightedCost / sumWeights,
+      weightedDistance / sumWeights
+    ).append(sumWeights).append('\n')
   }
 
-  def writeFullSkims(event: IterationEndsEvent) = {
-    val fileHeader = "hour,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
+  def writeBinarySkims(event: IterationEndsEvent): Unit = {
     val filePath = event.getServices.getControlerIO.getIterationFilename(
       event.getServices.getIterationNumber,
-      BeamSkimmer.fullSkimsFileBaseName + ".csv.gz"
+      BeamSkimmer.observedSkimsFileBaseName + ".bin"
     )
-    val uniqueModes = skims.map(keyVal => keyVal._1._2).toList.distinct
-    val uniqueTimeBins = (0 to 23)
+    SkimFile.write(filePath, skims, BeamMode.values.map(_.value), tazIdsByIndex.map(_.toString))
+  }
 
-    val dummyId = Id.create("NA", classOf[BeamVehicleType])
-    val writer = IOUtils.getBufferedWriter(filePath)
-    writer.write(fileHeader)
-    writer.write("\n")
-    beamServicesOpt.get.tazTreeMap.getTAZs
-      .foreach { origin =>
-        beamServicesOpt.get.tazTreeMap.getTAZs.foreach { destination =>
-          uniqueModes.foreach { mode =>
-            uniqueTimeBins
-              .foreach { timeBin =>
-                val theSkim = getSkimValue(timeBin * 3600, mode, origin.tazId, destination.tazId)
-                  .map(_.toSkimExternal)
-                  .getOrElse {
-                    if (origin.equals(destination)) {
-                      val newDestCoord = new Coord(
-                        origin.coord.getX,
-                        origin.coord.getY + Math.sqrt(origin.areaInSquareMeters) / 2.0
-                      )
-                      getSkimDefaultValue(
-                        mode,
-                        origin.coord,
-                        newDestCoord,
-                        timeBin * 3600,
-                        dummyId,
-                        beamServicesOpt.get
-                      )
-                    } else {
-                      getSkimDefaultValue(
-                        mode,
-                        origin.coord,
-                        destination.coord,
-                        timeBin * 3600,
-                        dummyId,
-                        beamServicesOpt.get
-                      )
-                    }
-                  }
-                writer.write(
-                  s"$timeBin,$mode,${origin.tazId},${destination.tazId},${theSkim.time},${theSkim.cost},${theSkim.distance},${theSkim.count}\n"
-                )
-              }
-          }
-        }
+  def writeObservedSkims(event: IterationEndsEvent): Unit = {
+    val writer = skimsCsvWriter(
+      event,
+      BeamSkimmer.observedSkimsFileBaseName,
+      "hour,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
+    )
+    val tazIds = tazIdsByIndex
+    // a part is a range of slots of a segment, each slot holds at most one row
+    val parts = (0 until skims.numberOfSegments).flatMap { segment =>
+      (0 until skims.numberOfSlots(segment) by maxRowsPerPart).map(fromSlot => (segment, fromSlot))
+    }
+    writeInParallel(Vector(writer), parts.size) { (part, rows) =>
+      val (segment, fromSlot) = parts(part)
+      skims.foreachInSlots(segment, fromSlot, fromSlot + maxRowsPerPart) { (cell, skim) =>
+        appendRow(
+          rows(0),
+          SkimTable.timeBinOf(cell),
+          BeamMode.values(SkimTable.modeIndexOf(cell)),
+          tazIds(SkimTable.originIndexOf(cell)),
+          tazIds(SkimTable.destinationIndexOf(cell)),
+          skim.time,
+          skim.cost,
+          skim.distance
+        ).append(skim.count).append('\n')
       }
-    writer.close()
+    }
   }
 
-  def writeObservedSkims(event: IterationEndsEvent) = {
-    val fileHeader = "hour,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
+  private def skimsCsvWriter(event: IterationEndsEvent, fileBaseName: String, header: String): BufferedWriter = {
     val filePath = event.getServices.getControlerIO.getIterationFilename(
       event.getServices.getIterationNumber,
-      BeamSkimmer.observedSkimsFileBaseName + ".csv.gz"
+      fileBaseName + ".csv.gz"
     )
-    val writer = IOUtils.getBufferedWriter(filePath)
-    writer.write(fileHeader)
+    val writer =
+      if (beamConfig.beam.outputs.parallelGzip) ParallelGzipOutputStream.getBufferedWriter(filePath)
+      else IOUtils.getBufferedWriter(filePath)
+    writer.write(header)
     writer.write("\n")
-    skims.foreach { keyVal =>
-      writer.write(
-        s"${keyVal._1._1},${keyVal._1._2},${keyVal._1._3},${keyVal._1._4},${keyVal._2.time},${keyVal._2.cost},${keyVal._2.distance},${keyVal._2.count}\n"
-      )
-    }
-    writer.close
+    writer
   }
 }
 
@@ -448,15 +484,110 @@ object BeamSkimmer {
     TRANSIT           -> transitSpeedMeterPerSec
   )
 
+  private val morningPeakHours: Array[Int] = (7 to 8).toArray
+  private val afternoonPeakHours: Array[Int] = (15 to 16).toArray
+  private val nonPeakHours: Array[Int] = ((0 to 6) ++ (9 to 14) ++ (17 to 23)).toArray
+
+  private val modeIndices: Map[BeamMode, Int] = BeamMode.values.zipWithIndex.toMap
+
+  // Index of the mode in the skim tables
+  private def modeIndex(mode: BeamMode): Int = modeIndices(mode)
+
   case class SkimInternal(time: Double, distance: Double, cost: Double, count: Int) {
     def toSkimExternal: Skim = Skim(time.toInt, distance, cost, count)
   }
 
   case class Skim(time: Int, distance: Double, cost: Double, count: Int)
 
-  private def readCsvFile(filePath: String): TrieMap[(Int, BeamMode, Id[TAZ], Id[TAZ]), SkimInternal] = {
+  // Rows of a part of a file computed by writeInParallel
+  private val maxRowsPerPart = 10000
+
+  /**
+    * Computes the rows of the parts on all cores and writes them in the order of the parts, one buffer per writer.
+    * Only a few parts are computed ahead of the writers, and none has more than `maxRowsPerPart` rows per writer, so
+    * the rows of a file never pile up in memory. Closes the writers.
+    */
+  private def writeInParallel(writers: IndexedSeq[Writer], numberOfParts: Int)(
+    rows: (Int, IndexedSeq[java.lang.StringBuilder]) => Unit
+  ): Unit = {
+    import scala.concurrent.ExecutionContext.Implicits.global
+    val maxPartsAhead = 2 * Runtime.getRuntime.availableProcessors()
+    val partsAhead = mutable.Queue[Future[IndexedSeq[java.lang.StringBuilder]]]()
+    def writeFirstPart(): Unit = {
+      val partRows = Await.result(partsAhead.dequeue(), Duration.Inf)
+      writers.indices.foreach(i => writers(i).append(partRows(i)))
+    }
+    try {
+      (0 until numberOfParts).foreach { part =>
+        if (partsAhead.size >= maxPartsAhead) writeFirstPart()
+        partsAhead += Future {
+          val partRows = writers.map(_ => new java.lang.StringBuilder())
+          rows(part, partRows)
+          partRows
+        }
+      }
+      while (partsAhead.nonEmpty) writeFirstPart()
+    } finally {
+      writers.foreach(_.close())
+    }
+  }
+
+  // Appends the columns of a skim row of an hour up to the number of observations
+  private def appendRow(
+    rows: java.lang.StringBuilder,
+    hour: Int,
+    mode: BeamMode,
+    orig: Id[TAZ],
+    dest: Id[TAZ],
+    time: Int,
+    cost: Double,
+    distance: Double
+  ): java.lang.StringBuilder =
+    appendCostAndDistance(appendTazPair(rows.append(hour), mode, orig, dest).append(time), cost, distance)
+
+  // Appends the columns of a skim row of an hour up to the number of observations
+  private def appendRow(
+    rows: java.lang.StringBuilder,
+    hour: Int,
+    mode: BeamMode,
+    orig: Id[TAZ],
+    dest: Id[TAZ],
+    time: Double,
+    cost: Double,
+    distance: Double
+  ): java.lang.StringBuilder =
+    appendCostAndDistance(appendTazPair(rows.append(hour), mode, orig, dest).append(time), cost, distance)
+
+  // Appends the columns of a skim row of a period of the day up to the number of observations
+  private def appendRow(
+    rows: java.lang.StringBuilder,
+    period: String,
+    mode: BeamMode,
+    orig: Id[TAZ],
+    dest: Id[TAZ],
+    time: Double,
+    cost: Double,
+    distance: Double
+  ): java.lang.StringBuilder =
+    appendCostAndDistance(appendTazPair(rows.append(period), mode, orig, dest).append(time), cost, distance)
+
+  private def appendTazPair(
+    rows: java.lang.StringBuilder,
+    mode: BeamMode,
+    orig: Id[TAZ],
+    dest: Id[TAZ]
+  ): java.lang.StringBuilder =
+    rows.append(',').append(mode).append(',').append(orig).append(',').append(dest).append(',')
+
+  private def appendCostAndDistance(
+    rows: java.lang.StringBuilder,
+    cost: Double,
+    distance: Double
+  ): java.lang.StringBuilder =
+    rows.append(',').append(cost).append(',').append(distance).append(',')
+
+  private def readCsvFile(filePath: String)(f: (Int, BeamMode, Id[TAZ], Id[TAZ], SkimInternal) => Unit): Unit = {
     var mapReader: ICsvMapReader = null
-    val res = TrieMap[(Int, BeamMode, Id[TAZ], Id[TAZ]), SkimInternal]()
     try {
       val reader = buildReader(filePath)
       mapReader = new CsvMapReader(reader, CsvPreference.STANDARD_PREFERENCE)
@@ -465,20 +596,20 @@ object BeamSkimmer {
       while (null != line) {
         val hour = line.get("hour")
         val mode = line.get("mode")
+        val travelTimeInS = line.get("travelTimeInS")
         val origTazId = line.get("origTaz")
         val destTazId = line.get("destTaz")
         val cost = line.get("cost")
         val distanceInMeters = line.get("distanceInM")
         val numObservations = line.get("numObservations")
 
-        val key = (
+        f(
           hour.toInt,
           BeamMode.fromString(mode.toLowerCase()).get,
           Id.create(origTazId, classOf[TAZ]),
           Id.create(destTazId, classOf[TAZ]),
+          SkimInternal(travelTimeInS.toDouble, distanceInMeters.toDouble, cost.toDouble, numObservations.toInt)
         )
-        val value = SkimInternal(hour.toDouble, distanceInMeters.toDouble, cost.toDouble, numObservations.toInt)
-        res.put(key, value)
         line = mapReader.read(header: _*)
       }
 
@@ -486,7 +617,6 @@ object BeamSkimmer {
       if (null != mapReader)
         mapReader.close()
     }
-    res
   }
 
   private def buildReader(filePath: String): Reader = {
@@ -0,0 +1,150 @@
+package beam.router
+
+import java.io._
+import java.nio.channels.FileChannel
+import java.nio.file.{Paths, StandardOpenOption}
+import java.nio.{DoubleBuffer, IntBuffer, LongBuffer}
+
+import beam.router.BeamSkimmer.SkimInternal
+
+/**
+  * Binary skim file that is memory-mapped when read, so a warm start neither parses text nor copies the skims of the
+  * former run onto the heap.
+  *
+  * Layout (big endian): magic number, version, length of the header, the header (names of the modes and ids of the
+  * TAZs, in the order of the indices the cells refer to), number of cells and then one column per field: cell indices
+  * in ascending order, average travel times, distances and costs and the numbers of observations.
+  */
+object SkimFile {
+
+  private val Magic = 0x42534b4d // "BSKM"
+  private val Version = 1
+
+  def write(filePath: String, skims: SkimLookup, modes: IndexedSeq[String], tazIds: IndexedSeq[String]): Unit = {
+    val cellsBuilder = Array.newBuilder[Long]
+    skims.foreach((cell, _) => cellsBuilder += cell)
+    val cells = cellsBuilder.result()
+    java.util.Arrays.sort(cells)
+    val times = new Array[Double](cells.length)
+    val distances = new Array[Double](cells.length)
+    val costs = new Array[Double](cells.length)
+    val counts = new Array[Int](cells.length)
+    cells.indices.foreach { i =>
+      val skim = skims.get(cells(i)).get
+      times(i) = skim.time
+      distances(i) = skim.distance
+      costs(i) = skim.cost
+      counts(i) = skim.count
+    }
+
+    val headerBytes = new ByteArrayOutputStream()
+    val header = new DataOutputStream(headerBytes)
+    header.writeInt(modes.size)
+    modes.foreach(header.writeUTF)
+    header.writeInt(tazIds.size)
+    tazIds.foreach(header.writeUTF)
+    header.close()
+
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16))
+    try {
+      out.writeInt(Magic)
+      out.writeInt(Version)
+      out.writeInt(headerBytes.size)
+      headerBytes.writeTo(out)
+      out.writeInt(cells.length)
+      cells.foreach(out.writeLong)
+      times.foreach(out.writeDouble)
+      distances.foreach(out.writeDouble)
+      costs.foreach(out.writeDouble)
+      counts.foreach(out.writeInt)
+    } finally {
+      out.close()
+    }
+  }
+
+  def map(filePath: String): MappedSkimFile = {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))
+    val (modes, tazIds, numberOfCells, dataOffset) = try {
+      val magic = in.readInt()
+      if (magic != Magic) throw new IOException(s"$filePath is not a binary skim file")
+      val version = in.readInt()
+      if (version != Version) throw new IOException(s"$filePath has unsupported skim file version $version")
+      val headerLength = in.readInt()
+      val modes = IndexedSeq.fill(in.readInt())(in.readUTF())
+      val tazIds = IndexedSeq.fill(in.readInt())(in.readUTF())
+      val numberOfCells = in.readInt()
+      (modes, tazIds, numberOfCells, 4L * 3 + headerLength + 4)
+    } finally {
+      in.close()
+    }
+
+    val channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)
+    try {
+      var offset = dataOffset
+      def column(bytesPerValue: Int) = {
+        val buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, numberOfCells.toLong * bytesPerValue)
+        offset += numberOfCells.toLong * bytesPerValue
+        buffer
+      }
+      new MappedSkimFile(
+        modes,
+        tazIds,
+        column(8).asLongBuffer(),
+        column(8).asDoubleBuffer(),
+        column(8).asDoubleBuffer(),
+        column(8).asDoubleBuffer(),
+        column(4).asIntBuffer()
+      )
+    } finally {
+      // the mappings stay valid after the channel is closed
+      channel.close()
+    }
+  }
+}
+
+/**
+  * Read-only skims of a [[SkimFile]]. Cells are found by binary search over the mapped cell indices, reads only use
+  * absolute positions, so the skims can be shared between threads.
+  *
+  * @param modes  names of the modes the mode indices of the cells refer to
+  * @param tazIds ids of the TAZs the origin and destination indices of the cells refer to
+  */
+class MappedSkimFile private[router] (
+  val modes: IndexedSeq[String],
+  val tazIds: IndexedSeq[String],
+  cells: LongBuffer,
+  times: DoubleBuffer,
+  distances: DoubleBuffer,
+  costs: DoubleBuffer,
+  counts: IntBuffer
+) extends SkimLookup {
+
+  val numberOfCells: Int = cells.limit()
+
+  override def get(cell: Long): Option[SkimInternal] = {
+    var low = 0
+    var high = numberOfCells - 1
+    while (low <= high) {
+      val middle = (low + high) >>> 1
+      val middleCell = cells.get(middle)
+      if (middleCell < cell) {
+        low = middle + 1
+      } else if (middleCell > cell) {
+        high = middle - 1
+      } else {
+        return Some(skimAt(middle))
+      }
+    }
+    None
+  }
+
+  override def foreach(f: (Long, SkimInternal) => Unit): Unit = {
+    var i = 0
+    while (i < numberOfCells) {
+      f(cells.get(i), skimAt(i))
+      i += 1
+    }
+  }
+
+  private def skimAt(i: Int): SkimInternal = SkimInternal(times.get(i), distances.get(i), costs.get(i), counts.get(i))
+}
@@ -0,0 +1,298 @@
+package beam.router
+
+import java.util.concurrent.atomic.{AtomicInteger, AtomicIntegerArray, AtomicLongArray}
+import java.util.concurrent.locks.StampedLock
+
+import beam.router.BeamSkimmer.SkimInternal
+
+/**
+  * Skims of cells addressed by the packed cell index of [[SkimTable.cellIndex]].
+  */
+trait SkimLookup {
+
+  /**
+    * @return the averages of the cell, None if it has no observations
+    */
+  def get(cell: Long): Option[SkimInternal]
+
+  /**
+    * Calls `f` with every cell that has observations.
+    */
+  def foreach(f: (Long, SkimInternal) => Unit): Unit
+}
+
+/**
+  * Skims of cells addressed by time bin, mode index, origin TAZ index and destination TAZ index, packed into one long
+  * by [[SkimTable.cellIndex]]. Sums of travel time, distance and cost and the number of observations of every cell are
+  * kept in primitive arrays, so neither lookups nor observations allocate keys or entries.
+  *
+  * A dense matrix over all cells would not fit into memory for regions with thousands of TAZs (most of which are never
+  * observed between each other), so the slot of a cell is found by open addressing in one of several hash tables,
+  * chosen by the hash of the cell. Observations are added lock-free: a new cell claims its slot with a compare-and-set
+  * of the key, sums and count are updated atomically. Only growing a table excludes concurrent updates of it. Readers
+  * read the sums and the count of a cell again while an observation of the cell is being added, so an average never
+  * mixes the sums of one observation with the count of another.
+  */
+class SkimTable(val numberOfSegments: Int = SkimTable.DefaultNumberOfSegments) extends SkimLookup {
+  import SkimTable._
+
+  require(Integer.bitCount(numberOfSegments) == 1, s"numberOfSegments has to be a power of two, but was $numberOfSegments")
+
+  private val segments = Array.fill(numberOfSegments)(new Segment)
+
+  /**
+    * Adds one observation to the averages of the cell.
+    */
+  def observe(cell: Long, time: Double, distance: Double, cost: Double): Unit = add(cell, time, distance, cost, 1)
+
+  /**
+    * Sets a cell that was not observed yet to the given averages, e.g. when loading skims of a former run. A skim
+    * without a count of observations (a count of zero) is taken as one observation, so that it can be read.
+    */
+  def put(cell: Long, skim: SkimInternal): Unit = {
+    val count = math.max(skim.count, 1)
+    add(cell, skim.time * count, skim.distance * count, skim.cost * count, count)
+  }
+
+  override def get(cell: Long): Option[SkimInternal] = {
+    val key = cell + 1
+    val hash = mix(cell)
+    val segment = segments(segmentIndex(hash))
+    val stamp = segment.lock.tryOptimisticRead()
+    val result = segment.table.get(key, hash)
+    if (segment.lock.validate(stamp)) {
+      result
+    } else {
+      val readStamp = segment.lock.readLock()
+      try {
+        segment.table.get(key, hash)
+      } finally {
+        segment.lock.unlockRead(readStamp)
+      }
+    }
+  }
+
+  /**
+    * @return number of cells with observations
+    */
+  def size: Int = {
+    var count = 0
+    foreach((_, _) => count += 1)
+    count
+  }
+
+  // Meant to run while no observations are added
+  override def foreach(f: (Long, SkimInternal) => Unit): Unit = segments.foreach(_.table.foreach(f))
+
+  /**
+    * @return number of slots of one of the `numberOfSegments` segments, each slot holds at most one cell
+    */
+  def numberOfSlots(segment: Int): Int = segments(segment).table.capacity
+
+  /**
+    * Calls `f` with every cell in the slots `fromSlot` until `untilSlot` of one of the `numberOfSegments` segments, so
+    * the cells can be visited in parallel and in parts of a bounded number of cells.
+    */
+  def foreachInSlots(segment: Int, fromSlot: Int, untilSlot: Int)(f: (Long, SkimInternal) => Unit): Unit =
+    segments(segment).table.foreachInSlots(fromSlot, untilSlot)(f)
+
+  private def add(cell: Long, timeSum: Double, distanceSum: Double, costSum: Double, count: Int): Unit = {
+    val key = cell + 1
+    val hash = mix(cell)
+    val segment = segments(segmentIndex(hash))
+    var added = false
+    while (!added) {
+      val stamp = segment.lock.readLock()
+      val table = segment.table
+      try {
+        val slot = table.findOrClaim(key, hash)
+        if (slot >= 0) {
+          table.add(slot, timeSum, distanceSum, costSum, count)
+          added = true
+        }
+      } finally {
+        segment.lock.unlockRead(stamp)
+      }
+      if (!added || table.isCrowded) segment.grow(table)
+    }
+  }
+
+  private def segmentIndex(hash: Long): Int = (hash >>> 40).toInt & (numberOfSegments - 1)
+}
+
+object SkimTable {
+
+  val DefaultNumberOfSegments: Int = 64
+
+  private val InitialCapacity = 256
+
+  private val TimeBinBits = 5
+  private val ModeBits = 6
+  private val TazBits = 26
+
+  val MaxNumberOfTimeBins: Int = 1 << TimeBinBits
+  val MaxNumberOfModes: Int = 1 << ModeBits
+  val MaxNumberOfTazs: Int = 1 << TazBits
+
+  def cellIndex(timeBin: Int, modeIndex: Int, originIndex: Int, destinationIndex: Int): Long =
+    (timeBin.toLong << (ModeBits + 2 * TazBits)) | (modeIndex.toLong << (2 * TazBits)) |
+    (originIndex.toLong << TazBits) | destinationIndex.toLong
+
+  def timeBinOf(cell: Long): Int = (cell >>> (ModeBits + 2 * TazBits)).toInt
+
+  def modeIndexOf(cell: Long): Int = (cell >>> (2 * TazBits)).toInt & (MaxNumberOfModes - 1)
+
+  def originIndexOf(cell: Long): Int = (cell >>> TazBits).toInt & (MaxNumberOfTazs - 1)
+
+  def destinationIndexOf(cell: Long): Int = cell.toInt & (MaxNumberOfTazs - 1)
+
+  // finalizer of MurmurHash3, spreads the bits of the cell index over the whole hash
+  private def mix(cell: Long): Long = {
+    var h = cell
+    h ^= h >>> 33
+    h *= 0xff51afd7ed558ccdL
+    h ^= h >>> 33
+    h *= 0xc4ceb9fe1a85ec53L
+    h ^= h >>> 33
+    h
+  }
+
+  private final class Segment {
+    val lock = new StampedLock()
+    @volatile var table = new Table(InitialCapacity)
+
+    def grow(crowdedTable: Table): Unit = {
+      val stamp = lock.writeLock()
+      try {
+        if (table eq crowdedTable) {
+          val newTable = new Table(crowdedTable.capacity * 2)
+          crowdedTable.copyTo(newTable)
+          table = newTable
+        }
+      } finally {
+        lock.unlockWrite(stamp)
+      }
+    }
+  }
+
+  /**
+    * Open addressing table with linear probing. Keys are cell indices plus one, zero marks a free slot. The three sums
+    * of a slot are stored as raw bits of doubles.
+    */
+  private final class Table(val capacity: Int) {
+    private val mask = capacity - 1
+    private val keys = new AtomicLongArray(capacity)
+    private val sums = new AtomicLongArray(3 * capacity)
+    private val counts = new AtomicIntegerArray(capacity)
+    // number of observations of a slot that are being added right now
+    private val writers = new AtomicIntegerArray(capacity)
+    private val claimed = new AtomicInteger()
+
+    def isCrowded: Boolean = claimed.get > capacity / 4 * 3
+
+    def findOrClaim(key: Long, hash: Long): Int = {
+      var slot = hash.toInt & mask
+      var probes = 0
+      while (probes < capacity) {
+        val existingKey = keys.get(slot)
+        if (existingKey == key) {
+          return slot
+        } else if (existingKey == 0L) {
+          if (keys.compareAndSet(slot, 0L, key)) {
+            claimed.incrementAndGet()
+            return slot
+          }
+          // another cell claimed the slot in the meantime, look at it again
+        } else {
+          slot = (slot + 1) & mask
+          probes += 1
+        }
+      }
+      -1
+    }
+
+    def add(slot: Int, timeSum: Double, distanceSum: Double, costSum: Double, count: Int): Unit = {
+      writers.incrementAndGet(slot)
+      addDouble(3 * slot, timeSum)
+      addDouble(3 * slot + 1, distanceSum)
+      addDouble(3 * slot + 2, costSum)
+      counts.addAndGet(slot, count)
+      writers.decrementAndGet(slot)
+    }
+
+    def get(key: Long, hash: Long): Option[SkimInternal] = {
+      var slot = hash.toInt & mask
+      var probes = 0
+      while (probes < capacity) {
+        val existingKey = keys.get(slot)
+        if (existingKey == key) {
+          return skimAt(slot)
+        } else if (existingKey == 0L) {
+          return None
+        }
+        slot = (slot + 1) & mask
+        probes += 1
+      }
+      None
+    }
+
+    def foreach(f: (Long, SkimInternal) => Unit): Unit = foreachInSlots(0, capacity)(f)
+
+    def foreachInSlots(fromSlot: Int, untilSlot: Int)(f: (Long, SkimInternal) => Unit): Unit = {
+      var slot = fromSlot
+      while (slot < Math.min(untilSlot, capacity)) {
+        val key = keys.get(slot)
+        if (key != 0L) {
+          skimAt(slot).foreach(skim => f(key - 1, skim))
+        }
+        slot += 1
+      }
+    }
+
+    def copyTo(other: Table): Unit = {
+      var slot = 0
+      while (slot < capacity) {
+        val key = keys.get(slot)
+        if (key != 0L) {
+          val otherSlot = other.findOrClaim(key, mix(key - 1))
+          other.sums.set(3 * otherSlot, sums.get(3 * slot))
+          other.sums.set(3 * otherSlot + 1, sums.get(3 * slot + 1))
+          other.sums.set(3 * otherSlot + 2, sums.get(3 * slot + 2))
+          other.counts.set(otherSlot, counts.get(slot))
+        }
+        slot += 1
+      }
+    }
+
+    // The sums and the count belong together if no observation was being added after they were read and the count
+    // did not change while they were read. Otherwise they are read again.
+    private def skimAt(slot: Int): Option[SkimInternal] = {
+      while (true) {
+        val count = counts.get(slot)
+        if (count <= 0) {
+          return None
+        }
+        val timeSum = java.lang.Double.longBitsToDouble(sums.get(3 * slot))
+        val distanceSum = java.lang.Double.longBitsToDouble(sums.get(3 * slot + 1))
+        val costSum = java.lang.Double.longBitsToDouble(sums.get(3 * slot + 2))
+        if (writers.get(slot) == 0 && counts.get(slot) == count) {
+          val weight = count.toDouble
+          return Some(SkimInternal(timeSum / weight, distanceSum / weight, costSum / weight, count))
+        }
+      }
+      None
+    }
+
+    private def addDouble(index: Int, value: Double): Unit = {
+      var done = false
+      while (!done) {
+        val bits = sums.get(index)
+        done = sums.compareAndSet(
+          index,
+          bits,
+          java.lang.Double.doubleToRawLongBits(java.lang.Double.longBitsToDouble(bits) + value)
+        )
+      }
+    }
+  }
+}
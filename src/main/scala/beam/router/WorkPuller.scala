@@ -0,0 +1,135 @@
+package beam.router
+
+import java.util
+
+import akka.actor.ActorRef
+import akka.pattern._
+import beam.router.BeamRouter.{workIdOf, GimmeWork, StolenWork, WorkFailed}
+import beam.router.WorkPuller.WorkCompleted
+import beam.sim.config.BeamConfig
+
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.{ExecutionContext, Future}
+
+/**
+  * The side of a worker in the work pulling of the [[BeamRouter]]: asks the work assigner for as much work as there is
+  * room for, queues the work until one of the threads is free, and gives queued work back when it is stolen.
+  *
+  * Work is sent with the actor to answer as its sender. The answer goes back through the work assigner, with that
+  * actor as its sender, so the assigner can always pass it on. Work that fails is answered with [[WorkFailed]], so the
+  * assigner stops tracking it. Not thread safe, it belongs to the worker actor.
+  *
+  * The worker tells the assigner how much room it has and how much work it has received so far. The assigner sets the
+  * credits of the worker to that room less the work it sent that the worker hadn't received yet, so telling it more
+  * than once never gives it more credits than there is room for.
+  *
+  * @param worker          the actor of the worker, which is to call [[completed]] when it receives [[WorkCompleted]]
+  * @param workAssigner    until a work assigner tells that it has work available
+  * @param numberOfThreads how much work is done at the same time
+  * @param doWork          does the work and gives the answer
+  */
+class WorkPuller(
+  worker: ActorRef,
+  var workAssigner: ActorRef,
+  numberOfThreads: Int,
+  config: BeamConfig.Beam.Routing.WorkPull,
+  doWork: Any => Future[Any]
+)(implicit executionContext: ExecutionContext) {
+
+  // Work received and not started yet, with whom to answer. It is started when a thread is free, or stolen.
+  private val queuedWork = new util.ArrayDeque[(Any, ActorRef)]()
+  private var numberOfWorkInProgress = 0
+  // Work received since the worker started, which the work assigner counts the work it sent against
+  private var numberOfReceivedWork = 0L
+  // Work asked for and not received yet: the room last told to the work assigner less the work received since
+  private var numberOfCredits = 0
+  private var numberOfCompletedWork = 0
+  private var lastAskedForWorkNanoTime = System.nanoTime()
+
+  def numberOfHeldWork: Int = numberOfWorkInProgress + queuedWork.size
+
+  /**
+    * Tells the assigner about any room there is, even less than a batch, since it may have lost track of this worker.
+    */
+  def workAvailable(assigner: ActorRef): Unit = {
+    workAssigner = assigner
+    if (room > 0) askForWork()
+  }
+
+  def received(work: Any, replyTo: ActorRef): Unit = {
+    numberOfReceivedWork += 1
+    numberOfCredits = math.max(numberOfCredits - 1, 0)
+    queuedWork.addLast((work, replyTo))
+    startQueuedWork()
+    askForMoreWork()
+  }
+
+  /**
+    * Answers work that was done right when it was received, without queueing it.
+    */
+  def answer(response: Any, replyTo: ActorRef): Unit = {
+    numberOfReceivedWork += 1
+    numberOfCredits = math.max(numberOfCredits - 1, 0)
+    workAssigner.tell(response, replyTo)
+    askForMoreWork()
+  }
+
+  def completed(): Unit = {
+    numberOfWorkInProgress -= 1
+    numberOfCompletedWork += 1
+    startQueuedWork()
+    askForMoreWork()
+  }
+
+  /**
+    * Takes up to `numberOfWork` of the queued work, the most recently received first, with whom to answer it.
+    */
+  def steal(numberOfWork: Int): StolenWork = {
+    val stolenWork = ArrayBuffer[(Any, ActorRef)]()
+    while (stolenWork.size < numberOfWork && !queuedWork.isEmpty) {
+      stolenWork += queuedWork.pollLast()
+    }
+    StolenWork(stolenWork.reverse)
+  }
+
+  /**
+    * Asks for as much work as there is room for, once there is room for a batch more than asked for. There is room for
+    * a piece of work per thread and for `maxQueuedWorkPerWorker` more.
+    */
+  def askForMoreWork(): Unit =
+    if (room - numberOfCredits >= math.max(math.min(config.batchSize, capacity), 1)) askForWork()
+
+  private def capacity: Int = numberOfThreads + config.maxQueuedWorkPerWorker
+
+  private def room: Int = capacity - numberOfHeldWork
+
+  private def askForWork(): Unit =
+    if (workAssigner != null) {
+      val now = System.nanoTime()
+      val throughput = numberOfCompletedWork / math.max((now - lastAskedForWorkNanoTime) / 1e9, 1e-3)
+      numberOfCompletedWork = 0
+      lastAskedForWorkNanoTime = now
+      numberOfCredits = room
+      //Master will retry if it hasn't heard
+      workAssigner.tell(GimmeWork(room, numberOfReceivedWork, throughput, queuedWork.size), worker)
+    }
+
+  // Starts queued work while there are free threads
+  private def startQueuedWork(): Unit =
+    while (numberOfWorkInProgress < numberOfThreads && !queuedWork.isEmpty) {
+      val (work, replyTo) = queuedWork.pollFirst()
+      numberOfWorkInProgress += 1
+      val eventualResponse = workIdOf(work) match {
+        case Some(workId) => doWork(work).recover { case cause => WorkFailed(workId, cause) }
+        case None         => doWork(work)
+      }
+      eventualResponse.onComplete(_ => worker ! WorkCompleted)
+      eventualResponse.pipeTo(workAssigner)(replyTo)
+    }
+}
+
+object WorkPuller {
+
+  // A piece of work of the worker has been done
+  case object WorkCompleted
+}
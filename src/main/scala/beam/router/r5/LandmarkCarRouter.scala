@@ -0,0 +1,391 @@
+package beam.router.r5
+
+import beam.router.r5.LandmarkCarRouter._
+import com.conveyal.r5.profile.StreetMode
+import com.conveyal.r5.streets.{Split, StreetLayer}
+
+/**
+  * Car router on the street network of R5 that searches with A*, guided by lower bounds from landmarks and the
+  * triangle inequality (ALT), instead of the Dijkstra search of R5's StreetRouter.
+  *
+  * The travel times of all car edges are read once per time bin when the router is built, so a search only looks up
+  * arrays. The lower bounds are distances to and from a few landmarks far apart from each other with the shortest
+  * travel time of every edge over the day, so they hold for every departure time. Tolls only add to the cost.
+  * Routers are immutable; build a new one when the travel times change. Turn restrictions are not taken into account.
+  * The travel times take 4 bytes per edge and time bin, which makes up most of the memory of a router.
+  *
+  * @param travelTime travel time in seconds of a car edge when entered at a time
+  */
+class LandmarkCarRouter(
+  streetLayer: StreetLayer,
+  travelTime: (Int, Int) => Double,
+  timeBinSizeInSeconds: Int,
+  numberOfTimeBins: Int,
+  numberOfLandmarks: Int
+) {
+
+  private val numberOfVertices = streetLayer.getVertexCount
+  private val numberOfEdges = streetLayer.edgeStore.nEdges()
+  private val fromVertex = new Array[Int](numberOfEdges)
+  private val toVertex = new Array[Int](numberOfEdges)
+  private val isCarEdge = new Array[Boolean](numberOfEdges)
+  private val edgeTravelTimes = new Array[Float](numberOfEdges * numberOfTimeBins)
+  private val minEdgeTravelTimes = new Array[Float](numberOfEdges)
+
+  {
+    val edge = streetLayer.edgeStore.getCursor
+    var e = 0
+    while (e < numberOfEdges) {
+      edge.seek(e)
+      fromVertex(e) = edge.getFromVertex
+      toVertex(e) = edge.getToVertex
+      isCarEdge(e) = edge.allowsStreetMode(StreetMode.CAR)
+      if (isCarEdge(e)) {
+        var minTravelTime = Float.PositiveInfinity
+        var bin = 0
+        while (bin < numberOfTimeBins) {
+          val binTravelTime = travelTime(e, bin * timeBinSizeInSeconds).toFloat
+          edgeTravelTimes(e * numberOfTimeBins + bin) = binTravelTime
+          minTravelTime = math.min(minTravelTime, binTravelTime)
+          bin += 1
+        }
+        minEdgeTravelTimes(e) = minTravelTime
+      }
+      e += 1
+    }
+  }
+
+  // Car edges out of and into every vertex
+  private val (outOffsets, outEdges) = adjacency(fromVertex)
+  private val (inOffsets, inEdges) = adjacency(toVertex)
+
+  val landmarks: IndexedSeq[Int] = selectLandmarks()
+
+  // Travel times from every landmark to every vertex and back, vertex by vertex
+  private val fromLandmarks = new Array[Float](numberOfVertices * landmarks.size)
+  private val toLandmarks = new Array[Float](numberOfVertices * landmarks.size)
+
+  landmarks.indices.foreach { l =>
+    val from = minTravelTimes(landmarks(l), forward = true)
+    val to = minTravelTimes(landmarks(l), forward = false)
+    var v = 0
+    while (v < numberOfVertices) {
+      fromLandmarks(v * landmarks.size + l) = from(v)
+      toLandmarks(v * landmarks.size + l) = to(v)
+      v += 1
+    }
+  }
+
+  private val workspaces = new ThreadLocal[Workspace] {
+    override def initialValue(): Workspace = new Workspace(numberOfVertices)
+  }
+
+  /**
+    * @param toll cost of entering an edge at a time, in seconds
+    * @return the edges from the one of the origin to the one of the destination, if the destination can be reached
+    */
+  def route(from: Split, to: Split, departureTime: Int, toll: (Int, Int) => Double): Option[IndexedSeq[Int]] = {
+    val workspace = workspaces.get()
+    workspace.startSearch()
+    val targets = Array(to.vertex0, to.vertex1)
+    val targetCanBeEntered = Array(isCarEdge(to.edge), isCarEdge(to.edge + 1))
+    val targetFromLandmarks = targets.map(landmarkTimes(fromLandmarks, _))
+    val targetToLandmarks = targets.map(landmarkTimes(toLandmarks, _))
+
+    def lowerBound(vertex: Int): Double = {
+      var bound = Double.PositiveInfinity
+      var t = 0
+      while (t < 2) {
+        if (targetCanBeEntered(t)) {
+          var targetBound = 0.0
+          var l = 0
+          while (l < landmarks.size) {
+            val i = vertex * landmarks.size + l
+            targetBound = math.max(
+              targetBound,
+              math.max(
+                difference(toLandmarks(i), targetToLandmarks(t)(l)),
+                difference(targetFromLandmarks(t)(l), fromLandmarks(i))
+              )
+            )
+            l += 1
+          }
+          bound = math.min(bound, targetBound)
+        }
+        t += 1
+      }
+      bound
+    }
+
+    def enter(edge: Int, time: Double): Double = edgeTravelTime(edge, time)
+
+    def reach(vertex: Int, cost: Double, arrival: Double, edge: Int, isSource: Boolean): Unit =
+      if (!workspace.isReached(vertex) || cost < workspace.cost(vertex)) {
+        workspace.reach(vertex, cost, arrival, edge, isSource)
+        val bound = lowerBound(vertex)
+        if (!bound.isPosInfinity) workspace.heap.push(cost + bound, vertex)
+      }
+
+    def fraction(split: Split, toVertex1: Boolean): Double = {
+      val lengthInMm = split.distance0_mm.toDouble + split.distance1_mm
+      if (lengthInMm <= 0) 0.0
+      else (if (toVertex1) split.distance1_mm else split.distance0_mm) / lengthInMm
+    }
+
+    // Start on the edge of the origin in either direction
+    var bestCost = Double.PositiveInfinity
+    var bestPath: Option[IndexedSeq[Int]] = None
+    if (isCarEdge(from.edge)) {
+      val time = fraction(from, toVertex1 = true) * enter(from.edge, departureTime)
+      reach(from.vertex1, time + toll(from.edge, departureTime), departureTime + time, from.edge, isSource = true)
+    }
+    if (isCarEdge(from.edge + 1)) {
+      val time = fraction(from, toVertex1 = false) * enter(from.edge + 1, departureTime)
+      val cost = time + toll(from.edge + 1, departureTime)
+      reach(from.vertex0, cost, departureTime + time, from.edge + 1, isSource = true)
+    }
+    // Origin and destination on the same edge
+    if (from.edge == to.edge) {
+      val lengthInMm = from.distance0_mm.toDouble + from.distance1_mm
+      val edge = if (from.distance0_mm <= to.distance0_mm) from.edge else from.edge + 1
+      if (isCarEdge(edge) && lengthInMm > 0) {
+        bestCost = math.abs(to.distance0_mm - from.distance0_mm) / lengthInMm * enter(edge, departureTime) +
+        toll(edge, departureTime)
+        bestPath = Some(Vector(edge))
+      }
+    }
+
+    var bestLastVertex = -1
+    var bestLastEdge = -1
+    val heap = workspace.heap
+    while (heap.nonEmpty && heap.minKey < bestCost) {
+      val vertex = heap.pop()
+      if (!workspace.isSettled(vertex)) {
+        workspace.settle(vertex)
+        val cost = workspace.cost(vertex)
+        val arrival = workspace.arrival(vertex)
+        // Leave to the destination on its edge
+        var t = 0
+        while (t < 2) {
+          if (vertex == targets(t) && targetCanBeEntered(t)) {
+            val lastEdge = to.edge + t
+            val lastCost = cost + fraction(to, toVertex1 = t == 1) * enter(lastEdge, arrival) + toll(lastEdge, arrival)
+            if (lastCost < bestCost) {
+              bestCost = lastCost
+              bestLastVertex = vertex
+              bestLastEdge = lastEdge
+            }
+          }
+          t += 1
+        }
+        var i = outOffsets(vertex)
+        while (i < outOffsets(vertex + 1)) {
+          val edge = outEdges(i)
+          val next = toVertex(edge)
+          if (!workspace.isSettled(next)) {
+            val time = enter(edge, arrival)
+            reach(next, cost + time + toll(edge, arrival), arrival + time, edge, isSource = false)
+          }
+          i += 1
+        }
+      }
+    }
+
+    if (bestLastVertex >= 0) Some(path(workspace, bestLastVertex, bestLastEdge)) else bestPath
+  }
+
+  def edgeTravelTime(edge: Int, time: Double): Double = {
+    val bin = math.min(math.max((time / timeBinSizeInSeconds).toInt, 0), numberOfTimeBins - 1)
+    edgeTravelTimes(edge * numberOfTimeBins + bin)
+  }
+
+  private def landmarkTimes(times: Array[Float], vertex: Int): Array[Float] =
+    Array.tabulate(landmarks.size)(l => times(vertex * landmarks.size + l))
+
+  private def path(workspace: Workspace, lastVertex: Int, lastEdge: Int): IndexedSeq[Int] = {
+    var edges = List(lastEdge)
+    var vertex = lastVertex
+    var atOrigin = false
+    while (!atOrigin) {
+      val edge = workspace.previousEdge(vertex)
+      edges = edge :: edges
+      atOrigin = workspace.isSource(vertex)
+      vertex = fromVertex(edge)
+    }
+    edges.toVector
+  }
+
+  private def adjacency(vertexOfEdge: Array[Int]): (Array[Int], Array[Int]) = {
+    val offsets = new Array[Int](numberOfVertices + 1)
+    (0 until numberOfEdges).foreach(e => if (isCarEdge(e)) offsets(vertexOfEdge(e) + 1) += 1)
+    (0 until numberOfVertices).foreach(v => offsets(v + 1) += offsets(v))
+    val edges = new Array[Int](offsets(numberOfVertices))
+    val next = offsets.clone()
+    (0 until numberOfEdges).foreach { e =>
+      if (isCarEdge(e)) {
+        edges(next(vertexOfEdge(e))) = e
+        next(vertexOfEdge(e)) += 1
+      }
+    }
+    (offsets, edges)
+  }
+
+  // Shortest travel times over the day from the vertex to all others, or from all others to it
+  private def minTravelTimes(source: Int, forward: Boolean): Array[Float] = {
+    val times = Array.fill(numberOfVertices)(Float.PositiveInfinity)
+    val heap = new Heap
+    val (offsets, edges, otherVertex) =
+      if (forward) (outOffsets, outEdges, toVertex) else (inOffsets, inEdges, fromVertex)
+    times(source) = 0
+    heap.push(0, source)
+    while (heap.nonEmpty) {
+      val time = heap.minKey
+      val vertex = heap.pop()
+      if (time <= times(vertex)) {
+        var i = offsets(vertex)
+        while (i < offsets(vertex + 1)) {
+          val edge = edges(i)
+          val other = otherVertex(edge)
+          val otherTime = (time + minEdgeTravelTimes(edge)).toFloat
+          if (otherTime < times(other)) {
+            times(other) = otherTime
+            heap.push(otherTime, other)
+          }
+          i += 1
+        }
+      }
+    }
+    times
+  }
+
+  /**
+    * Farthest landmark selection: every landmark is the car vertex farthest from the ones selected before.
+    */
+  private def selectLandmarks(): IndexedSeq[Int] = {
+    val carVertices = (0 until numberOfVertices).filter(v => outOffsets(v + 1) > outOffsets(v))
+    if (carVertices.isEmpty) {
+      IndexedSeq()
+    } else {
+      val distanceToSelected = Array.fill(numberOfVertices)(Float.PositiveInfinity)
+      var farthest = carVertices.head
+      (0 until math.min(numberOfLandmarks, carVertices.size)).map { _ =>
+        val times = minTravelTimes(farthest, forward = true)
+        val selected = farthest
+        carVertices.foreach { v =>
+          distanceToSelected(v) = math.min(distanceToSelected(v), times(v))
+        }
+        // unreachable vertices are not good landmarks
+        farthest = carVertices.maxBy(v => if (distanceToSelected(v).isInfinite) -1f else distanceToSelected(v))
+        selected
+      }
+    }
+  }
+}
+
+object LandmarkCarRouter {
+
+  // a - b, where a lower bound that can't be told is 0
+  private def difference(a: Float, b: Float): Double =
+    if (a.isInfinite && b.isInfinite) 0.0 else a.toDouble - b
+
+  /**
+    * Binary min-heap of vertices, vertices are pushed again instead of decreasing their keys.
+    */
+  private class Heap {
+    private var keys = new Array[Double](64)
+    private var values = new Array[Int](64)
+    private var size = 0
+
+    def nonEmpty: Boolean = size > 0
+
+    def clear(): Unit = size = 0
+
+    def minKey: Double = keys(0)
+
+    def push(key: Double, value: Int): Unit = {
+      if (size == keys.length) {
+        keys = java.util.Arrays.copyOf(keys, 2 * size)
+        values = java.util.Arrays.copyOf(values, 2 * size)
+      }
+      var i = size
+      size += 1
+      while (i > 0 && keys((i - 1) / 2) > key) {
+        keys(i) = keys((i - 1) / 2)
+        values(i) = values((i - 1) / 2)
+        i = (i - 1) / 2
+      }
+      keys(i) = key
+      values(i) = value
+    }
+
+    def pop(): Int = {
+      val result = values(0)
+      size -= 1
+      val key = keys(size)
+      val value = values(size)
+      var i = 0
+      var done = size == 0
+      while (!done) {
+        var child = 2 * i + 1
+        if (child >= size) {
+          done = true
+        } else {
+          if (child + 1 < size && keys(child + 1) < keys(child)) child += 1
+          if (keys(child) < key) {
+            keys(i) = keys(child)
+            values(i) = values(child)
+            i = child
+          } else {
+            done = true
+          }
+        }
+      }
+      if (size > 0) {
+        keys(i) = key
+        values(i) = value
+      }
+      result
+    }
+  }
+
+  /**
+    * State of the search of one thread. Searches are told apart by a number, so nothing needs to be cleared.
+    */
+  private class Workspace(numberOfVertices: Int) {
+    private val costs = new Array[Double](numberOfVertices)
+    private val arrivals = new Array[Double](numberOfVertices)
+    private val previousEdges = new Array[Int](numberOfVertices)
+    private val reachedIn = new Array[Int](numberOfVertices)
+    private val settledIn = new Array[Int](numberOfVertices)
+    private val sourceIn = new Array[Int](numberOfVertices)
+    private var search = 0
+    val heap = new Heap
+
+    def startSearch(): Unit = {
+      search += 1
+      heap.clear()
+    }
+
+    def isReached(vertex: Int): Boolean = reachedIn(vertex) == search
+
+    def isSettled(vertex: Int): Boolean = settledIn(vertex) == search
+
+    def isSource(vertex: Int): Boolean = sourceIn(vertex) == search
+
+    def cost(vertex: Int): Double = costs(vertex)
+
+    def arrival(vertex: Int): Double = arrivals(vertex)
+
+    def previousEdge(vertex: Int): Int = previousEdges(vertex)
+
+    def reach(vertex: Int, cost: Double, arrival: Double, edge: Int, isSource: Boolean): Unit = {
+      reachedIn(vertex) = search
+      costs(vertex) = cost
+      arrivals(vertex) = arrival
+      previousEdges(vertex) = edge
+      sourceIn(vertex) = if (isSource) search else 0
+    }
+
+    def settle(vertex: Int): Unit = settledIn(vertex) = search
+  }
+}
@@ -23,7 +23,8 @@ import beam.router.model.BeamLeg._
 import beam.router.model.RoutingModel.LinksTimesDistances
 import beam.router.model.{EmbodiedBeamTrip, RoutingModel, _}
 import beam.router.osm.TollCalculator
-import beam.router.r5.R5RoutingWorker.{R5Request, TripWithFares}
+import beam.router.r5.R5RoutingWorker.{LandmarkCarRouterBuilt, R5Request, TripWithFares}
+import beam.router.r5.StreetRouteCache.CachedRoute
 import beam.router.r5.profile.BeamMcRaptorSuboptimalPathProfileRouter
 import beam.sim.BeamServices
 import beam.sim.common.{GeoUtils, GeoUtilsImpl}
@@ -32,18 +33,19 @@ import beam.sim.metrics.{Metrics, MetricsSupport}
 import beam.sim.population.AttributesOfIndividual
 import beam.utils.BeamVehicleUtils.{readBeamVehicleTypeFile, readFuelTypeFile}
 import beam.utils._
+import beam.utils.TravelTimeCalculatorHelper.TravelTimePerHour
 import beam.utils.reflection.ReflectionUtils
 import com.conveyal.r5.api.ProfileResponse
 import com.conveyal.r5.api.util._
 import com.conveyal.r5.profile._
 import com.conveyal.r5.streets._
 import com.conveyal.r5.transit.{RouteInfo, TransportNetwork}
-import com.google.common.cache.{CacheBuilder, CacheLoader}
 import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.typesafe.config.Config
 import org.matsim.api.core.v01.network.Network
 import org.matsim.api.core.v01.population.Person
 import org.matsim.api.core.v01.{Coord, Id, Scenario}
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup
 import org.matsim.core.controler.ControlerI
 import org.matsim.core.router.util.TravelTime
 import org.matsim.core.scenario.{MutableScenario, ScenarioUtils}
@@ -221,29 +223,36 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
 
   def getNameAndHashCode: String = s"R5RoutingWorker_v2[${hashCode()}], Path: `${self.path}`"
 
-  var workAssigner: ActorRef = context.parent
+  private val workPuller =
+    new WorkPuller(self, context.parent, numOfThreads, beamServices.beamConfig.beam.routing.workPull, route)
 
   private var maybeTravelTime: Option[TravelTime] = None
 
   private var transitSchedule: Map[Id[BeamVehicle], (RouteInfo, Seq[BeamLeg])] = transitMap
 
-  private val cache = CacheBuilder
-    .newBuilder()
-    .recordStats()
-    .maximumSize(1000)
-    .build(new CacheLoader[R5Request, ProfileResponse] {
-      override def load(key: R5Request): ProfileResponse = {
-        getPlanFromR5(key)
-      }
-    })
+  private val routeCache = new StreetRouteCache(
+    beamServices.beamConfig.beam.routing.r5.routeCache,
+    transportNetwork.streetLayer,
+    beamServices.geo
+  )
+
+  // Builds the landmark car router, so that neither the actor nor the routes wait for it
+  private val landmarkCarRouterBuilder: ExecutorService = Executors.newSingleThreadExecutor(
+    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("landmark-car-router-builder-%d").build()
+  )
+
+  // Only for the current travel times, car routes come from R5 while it is being built
+  @volatile private var landmarkCarRouter: Option[LandmarkCarRouter] = None
 
   override def preStart(): Unit = {
-    askForMoreWork()
+    buildLandmarkCarRouterInTheBackground()
+    workPuller.askForMoreWork()
   }
 
   override def postStop(): Unit = {
     tickTask.cancel()
     execSvc.shutdown()
+    landmarkCarRouterBuilder.shutdown()
   }
 
   // Let the dispatcher on which the Future in receive will be running
@@ -267,58 +276,81 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
                 rate,
                 firstMsgTime
               )
+              log.info("Route cache: {}", routeCache.statistics)
             } else {
               log.debug(
                 "Receiving {} per seconds of RoutingRequest with first message time set to {} for the next round",
                 rate,
                 firstMsgTime
               )
+              log.debug("Route cache: {}", routeCache.statistics)
             }
           }
         case None => //
       }
     case WorkAvailable =>
-      workAssigner = sender
-      askForMoreWork()
+      workPuller.workAvailable(sender)
 
     case TransitInited(newTransitSchedule) =>
       transitSchedule = newTransitSchedule
-      askForMoreWork()
+      workPuller.askForMoreWork()
 
     case request: RoutingRequest =>
       msgs += 1
       if (firstMsgTime.isEmpty) firstMsgTime = Some(ZonedDateTime.now(ZoneOffset.UTC))
-      val eventualResponse = Future {
-        latency("request-router-time", Metrics.RegularLevel) {
-          calcRoute(request)
-            .copy(requestId = request.requestId)
-        }
-      }
-      eventualResponse.onComplete {
-        case scala.util.Failure(ex) =>
-          log.error(ex, "calcRoute failed")
-        case _ =>
-      }
-      eventualResponse pipeTo sender
-      askForMoreWork()
+      workPuller.received(request, sender)
+
+    case request: BatchRoutingRequest =>
+      msgs += request.requests.size
+      if (firstMsgTime.isEmpty) firstMsgTime = Some(ZonedDateTime.now(ZoneOffset.UTC))
+      workPuller.received(request, sender)
+
+    case WorkPuller.WorkCompleted =>
+      workPuller.completed()
+
+    case StealWork(numberOfWork) =>
+      sender ! workPuller.steal(numberOfWork)
 
     case UpdateTravelTimeLocal(travelTime) =>
+      val previousTravelTime = maybeTravelTime
       maybeTravelTime = Some(travelTime)
       log.info(s"{} UpdateTravelTimeLocal. Set new travel time", getNameAndHashCode)
-      cache.invalidateAll()
-      askForMoreWork()
+      invalidateOutdatedRoutes(previousTravelTime, travelTime)
+      buildLandmarkCarRouterInTheBackground()
+      workPuller.askForMoreWork()
 
-    case UpdateTravelTimeRemote(map) =>
+    case UpdateTravelTimeRemote(travelTimeTable) =>
       val travelTimeCalc =
-        TravelTimeCalculatorHelper.CreateTravelTimeCalculator(beamServices.beamConfig.beam.agentsim.timeBinSize, map)
+        TravelTimeCalculatorHelper.CreateTravelTimeCalculator(
+          beamServices.beamConfig.beam.agentsim.timeBinSize,
+          travelTimeTable
+        )
+      val previousTravelTime = maybeTravelTime
       maybeTravelTime = Some(travelTimeCalc)
       log.info(
-        s"{} UpdateTravelTimeRemote. Set new travel time from map with size {}",
+        s"{} UpdateTravelTimeRemote. Set new travel time from table with {} links",
         getNameAndHashCode,
-        map.keySet().size()
+        travelTimeTable.getNumberOfLinks
       )
-      cache.invalidateAll()
-      askForMoreWork
+      invalidateOutdatedRoutes(previousTravelTime, travelTimeCalc)
+      buildLandmarkCarRouterInTheBackground()
+      workPuller.askForMoreWork()
+
+    case LandmarkCarRouterBuilt(travelTime, builtRouter) =>
+      builtRouter match {
+        case Success((router, numberOfTimeBins, nanoTime)) if travelTime == maybeTravelTime =>
+          landmarkCarRouter = Some(router)
+          log.info(
+            "{} Built landmark car router with {} time bins and {} landmarks in {} ms",
+            getNameAndHashCode,
+            numberOfTimeBins,
+            router.landmarks.size,
+            nanoTime / 1000000
+          )
+        case Success(_) => // for travel times that have changed since, the router for the current ones is on its way
+        case Failure(e) =>
+          log.error(e, "{} Could not build landmark car router, car routes come from R5", getNameAndHashCode)
+      }
 
     case EmbodyWithCurrentTravelTime(
         leg: BeamLeg,
@@ -338,7 +370,7 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
             )).toInt
       }
       val updatedLeg = updateLegWithCurrentTravelTime(leg)
-      sender ! RoutingResponse(
+      val response = RoutingResponse(
         Vector(
           EmbodiedBeamTrip(
             Vector(
@@ -355,11 +387,29 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
         ),
         embodyRequestId
       )
-      askForMoreWork()
+      workPuller.answer(response, sender)
   }
 
-  private def askForMoreWork(): Unit =
-    if (workAssigner != null) workAssigner ! GimmeWork //Master will retry if it hasn't heard
+  // Routes a request on one of the threads of the worker
+  private def route(work: Any): Future[Any] = {
+    val eventualResponse = work match {
+      case request: RoutingRequest =>
+        Future {
+          latency("request-router-time", Metrics.RegularLevel) {
+            calcRoute(request)
+              .copy(requestId = request.requestId)
+          }
+        }
+      case BatchRoutingRequest(requests, batchRequestId) =>
+        Future {
+          latency("batch-request-router-time", Metrics.RegularLevel) {
+            BatchRoutingResponse(calcRoutes(requests), batchRequestId)
+          }
+        }
+    }
+    eventualResponse.failed.foreach(ex => log.error(ex, "calcRoute failed"))
+    eventualResponse
+  }
 
   def updateLegWithCurrentTravelTime(leg: BeamLeg): BeamLeg = {
     val linksTimesAndDistances = RoutingModel.linksToTimeAndDistance(
@@ -378,25 +428,73 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
     edge.getLengthM
   }
 
-  private def getPlanUsingCache(request: R5Request) = {
-    var plan = latencyIfNonNull("cache-router-time", Metrics.VerboseLevel) {
-      cache.getIfPresent(request)
+  /**
+    * Street-only routes come from the route cache, see [[StreetRouteCache]]. Their legs are built at the actual
+    * departure time of the request, so the response is built for it, too.
+    */
+  private def getPlanUsingCache(request: R5Request): ProfileResponse =
+    routeCache.keyOf(request) match {
+      case Some(key) =>
+        val maybeRoute = routeCache.get(key) match {
+          case Some(cachedRoute) =>
+            countOccurrence("cache-router-hit", level = Metrics.VerboseLevel)
+            Some(cachedRoute)
+          case None =>
+            countOccurrence("cache-router-miss", level = Metrics.VerboseLevel)
+            val representativeRequest = routeCache.representativeRequest(key, request)
+            val (computedRoute, nanoTime) = measure(getStreetRouteFromR5(representativeRequest))
+            record("noncache-nontransit-router-time", Metrics.VerboseLevel, nanoTime)
+            record("noncache-router-time", Metrics.VerboseLevel, nanoTime)
+            computedRoute.foreach(routeCache.put(key, _))
+            computedRoute
+        }
+        maybeRoute.fold(new ProfileResponse)(route => directResponse(toProfileRequest(request), route.segment))
+      case None =>
+        val (plan, nanoTime) = measure(getPlanFromR5(request))
+        val nt = if (request.transitModes.isEmpty) "non" else ""
+        record(s"noncache-${nt}transit-router-time", Metrics.VerboseLevel, nanoTime)
+        record("noncache-router-time", Metrics.VerboseLevel, nanoTime)
+        plan
     }
-    if (plan == null) {
-      val planWithTime = measure(cache.get(request))
-      plan = planWithTime._1
-
-      var nt = ""
-      if (request.transitModes.isEmpty) nt = "non"
 
-      record(s"noncache-${nt}transit-router-time", Metrics.VerboseLevel, planWithTime._2)
-      record("noncache-router-time", Metrics.VerboseLevel, planWithTime._2)
+  def getPlanFromR5(request: R5Request): ProfileResponse = {
+    countOccurrence("r5-plans-count")
+    val profileRequest = toProfileRequest(request)
+    //    log.debug(profileRequest.toString)
+    val result = try {
+      getPlan(profileRequest, request.timeValueOfMoney)
+    } catch {
+      case _: IllegalStateException =>
+        new ProfileResponse
+      case _: ArrayIndexOutOfBoundsException =>
+        new ProfileResponse
     }
-    plan
+    //    log.debug(s"# options found = ${result.options.size()}")
+    result
   }
 
-  def getPlanFromR5(request: R5Request): ProfileResponse = {
+  /**
+    * @return None if R5 failed, like [[getPlanFromR5]] returning an empty response
+    */
+  private def getStreetRouteFromR5(request: R5Request): Option[CachedRoute] = {
     countOccurrence("r5-plans-count")
+    val profileRequest = toProfileRequest(request)
+    profileRequest.reverseSearch = false
+    try {
+      Some(
+        CachedRoute(
+          getDirectStreetSegment(profileRequest, request.directMode, request.timeValueOfMoney),
+          request.time,
+          request.directMode
+        )
+      )
+    } catch {
+      case _: IllegalStateException | _: ArrayIndexOutOfBoundsException =>
+        None
+    }
+  }
+
+  private def toProfileRequest(request: R5Request): ProfileRequest = {
     val maxStreetTime = 2 * 60
     // If we already have observed travel times, probably from the pre
     // let R5 use those. Otherwise, let R5 use its own travel time estimates.
@@ -427,20 +525,52 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
       profileRequest.accessModes = util.EnumSet.of(request.accessMode)
       profileRequest.egressModes = util.EnumSet.of(request.egressMode)
     }
-    //    log.debug(profileRequest.toString)
-    val result = try {
-      getPlan(profileRequest, request.timeValueOfMoney)
-    } catch {
-      case _: IllegalStateException =>
-        new ProfileResponse
-      case _: ArrayIndexOutOfBoundsException =>
-        new ProfileResponse
+    profileRequest
+  }
+
+  // The same response getPlan gives for a request without transit
+  private def directResponse(request: ProfileRequest, segment: Option[StreetSegment]): ProfileResponse = {
+    val profileResponse = new ProfileResponse
+    val option = new ProfileOption
+    segment.foreach(option.addDirect(_, request.getFromTimeDateZD))
+    option.summary = option.generateSummary
+    profileResponse.addOption(option)
+    profileResponse.recomputeStats(request)
+    profileResponse
+  }
+
+  /**
+    * Drops the cached car routes that would take a different time now. Routes of the other modes don't depend on the
+    * travel times. Links R5 has but the MATSim network hasn't keep their travel times, too.
+    */
+  private def invalidateOutdatedRoutes(previousTravelTime: Option[TravelTime], travelTime: TravelTime): Unit = {
+    val threshold = beamServices.beamConfig.beam.routing.r5.routeCache.invalidationThreshold
+
+    def travelTimesChanged(route: CachedRoute, previous: TravelTime): Boolean = {
+      var time = route.time
+      route.linkIds.iterator.exists { linkId =>
+        beamServices.networkHelper.getLink(linkId).isDefined && {
+          val previousLinkTravelTime = getTravelTime(time, linkId, previous)
+          val linkTravelTime = getTravelTime(time, linkId, travelTime)
+          time += previousLinkTravelTime.round.toInt
+          math.abs(linkTravelTime - previousLinkTravelTime) > threshold * previousLinkTravelTime
+        }
+      }
     }
-    //    log.debug(s"# options found = ${result.options.size()}")
-    result
+
+    val dropped = routeCache.invalidate { route =>
+      route.mode == LegMode.CAR && previousTravelTime.forall(travelTimesChanged(route, _))
+    }
+    log.info("{} Dropped {} cached routes. Route cache: {}", getNameAndHashCode, dropped, routeCache.statistics)
   }
 
-  def calcRoute(routingRequest: RoutingRequest): RoutingResponse = {
+  /**
+    * @param precomputedPlan plan of the main route, if it is known already
+    */
+  def calcRoute(
+    routingRequest: RoutingRequest,
+    precomputedPlan: R5Request => Option[ProfileResponse] = _ => None
+  ): RoutingResponse = {
     //    log.debug(routingRequest.toString)
 
     // For each street vehicle (including body, if available): Route from origin to street vehicle, from street vehicle to destination.
@@ -472,7 +602,6 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
       // First classify the main route type
       val mainRouteFromVehicle = routingRequest.streetVehiclesUseIntermodalUse == Access && isRouteForPerson && vehicle.mode != WALK
       val mainRouteToVehicle = routingRequest.streetVehiclesUseIntermodalUse == Egress && isRouteForPerson && vehicle.mode != WALK
-      val mainRouteRideHailTransit = routingRequest.streetVehiclesUseIntermodalUse == AccessAndEgress && isRouteForPerson && vehicle.mode != WALK
 
       val maybeWalkToVehicle: Option[BeamLeg] = if (mainRouteFromVehicle) {
         if (beamServices.geo.distUTMInMeters(vehicle.locationUTM.loc, routingRequest.originUTM) > distanceThresholdToIgnoreWalking) {
@@ -492,7 +621,7 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
           val transitModes = Nil
           val profileResponse =
             latency("walkToVehicleRoute-router-time", Metrics.RegularLevel) {
-              cache.get(
+              getPlanUsingCache(
                 R5Request(
                   from,
                   to,
@@ -553,7 +682,7 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
           val transitModes = Nil
           val profileResponse =
             latency("vehicleOnEgressRoute-router-time", Metrics.RegularLevel) {
-              cache.get(
+              getPlanUsingCache(
                 R5Request(
                   from,
                   to,
@@ -579,68 +708,24 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
 
       maybeUseVehicleOnEgressTry match {
         case Success(maybeUseVehicleOnEgress) => {
-          val theOrigin = if (mainRouteToVehicle || mainRouteRideHailTransit) {
-            routingRequest.originUTM
-          } else {
-            vehicle.locationUTM.loc
-          }
-          val theDestination = if (mainRouteToVehicle) {
-            vehicle.locationUTM.loc
-          } else {
-            routingRequest.destinationUTM
-          }
-          val from = beamServices.geo.snapToR5Edge(
-            transportNetwork.streetLayer,
-            beamServices.geo.utm2Wgs(theOrigin),
-            10E3
-          )
-          val to = beamServices.geo.snapToR5Edge(
-            transportNetwork.streetLayer,
-            beamServices.geo.utm2Wgs(theDestination),
-            10E3
-          )
-          val directMode = if (mainRouteToVehicle) {
-            LegMode.WALK
-          } else if (mainRouteRideHailTransit) {
-            null
-          } else {
-            vehicle.mode.r5Mode.get.left.get
-          }
-          val accessMode = if (mainRouteRideHailTransit) {
-            LegMode.CAR
-          } else {
-            directMode
-          }
-          val egressMode = if (mainRouteRideHailTransit) {
-            LegMode.CAR
-          } else {
-            LegMode.WALK
-          }
           val walkToVehicleDuration =
             maybeWalkToVehicle.map(leg => leg.duration).getOrElse(0)
-          val time = routingRequest.departureTime + walkToVehicleDuration
-          val transitModes: IndexedSeq[TransitModes] =
-            routingRequest.transitModes.map(_.r5Mode.get.right.get)
-          val latencyTag = (if (transitModes.isEmpty)
+          val mainRequest = mainRouteRequest(routingRequest, vehicle, isRouteForPerson, walkToVehicleDuration)
+          val time = mainRequest.time
+          val latencyTag = (if (mainRequest.transitModes.isEmpty)
                               "mainVehicleToDestinationRoute"
                             else "mainTransitRoute") + "-router-time"
+          val maybeLandmarkCarLeg = getLandmarkCarLeg(mainRequest)
           val profileResponse: ProfileResponse =
-            latency(latencyTag, Metrics.RegularLevel) {
-              cache.get(
-                R5Request(
-                  from,
-                  to,
-                  time,
-                  directMode,
-                  accessMode,
-                  transitModes,
-                  egressMode,
-                  routingRequest.timeValueOfMoney
-                )
-              )
-            }
+            if (maybeLandmarkCarLeg.isDefined) new ProfileResponse
+            else
+              latency(latencyTag, Metrics.RegularLevel) {
+                precomputedPlan(mainRequest).getOrElse(getPlanUsingCache(mainRequest))
+              }
 
-          val tripsWithFares = profileResponse.options.asScala.flatMap { option =>
+          val tripsWithFares = maybeLandmarkCarLeg.map { carLeg =>
+            toDirectTrip(isRouteForPerson, maybeWalkToVehicle, maybeUseVehicleOnEgress, carLeg)
+          }.toSeq ++ profileResponse.options.asScala.flatMap { option =>
             /*
              * Iterating all itinerary from a ProfileOption to construct the BeamTrip,
              * itinerary has a PointToPointConnection object that help relating access,
@@ -757,19 +842,170 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
     }
   }
 
+  /**
+    * Routes the requests like [[calcRoute]], except that the street-only main routes of requests that start at the
+    * same place with the same mode within a departure time bin come from one street search to all of their
+    * destinations.
+    */
+  def calcRoutes(routingRequests: IndexedSeq[RoutingRequest]): IndexedSeq[RoutingResponse] = {
+    val sharedPlans = getPlansFromSharedStreetSearches(routingRequests.flatMap { routingRequest =>
+      routingRequest.streetVehicles.flatMap(predictedMainRouteRequest(routingRequest, _))
+    })
+    routingRequests.map { routingRequest =>
+      calcRoute(routingRequest, sharedPlans.get).copy(requestId = routingRequest.requestId)
+    }
+  }
+
+  private def mainRouteRequest(
+    routingRequest: RoutingRequest,
+    vehicle: StreetVehicle,
+    isRouteForPerson: Boolean,
+    walkToVehicleDuration: Int
+  ): R5Request = {
+    val mainRouteToVehicle =
+      routingRequest.streetVehiclesUseIntermodalUse == Egress && isRouteForPerson && vehicle.mode != WALK
+    val mainRouteRideHailTransit =
+      routingRequest.streetVehiclesUseIntermodalUse == AccessAndEgress && isRouteForPerson && vehicle.mode != WALK
+    val theOrigin = if (mainRouteToVehicle || mainRouteRideHailTransit) {
+      routingRequest.originUTM
+    } else {
+      vehicle.locationUTM.loc
+    }
+    val theDestination = if (mainRouteToVehicle) {
+      vehicle.locationUTM.loc
+    } else {
+      routingRequest.destinationUTM
+    }
+    val from = beamServices.geo.snapToR5Edge(
+      transportNetwork.streetLayer,
+      beamServices.geo.utm2Wgs(theOrigin),
+      10E3
+    )
+    val to = beamServices.geo.snapToR5Edge(
+      transportNetwork.streetLayer,
+      beamServices.geo.utm2Wgs(theDestination),
+      10E3
+    )
+    val directMode = if (mainRouteToVehicle) {
+      LegMode.WALK
+    } else if (mainRouteRideHailTransit) {
+      null
+    } else {
+      vehicle.mode.r5Mode.get.left.get
+    }
+    val accessMode = if (mainRouteRideHailTransit) {
+      LegMode.CAR
+    } else {
+      directMode
+    }
+    val egressMode = if (mainRouteRideHailTransit) {
+      LegMode.CAR
+    } else {
+      LegMode.WALK
+    }
+    val transitModes: IndexedSeq[TransitModes] =
+      routingRequest.transitModes.map(_.r5Mode.get.right.get)
+    R5Request(
+      from,
+      to,
+      routingRequest.departureTime + walkToVehicleDuration,
+      directMode,
+      accessMode,
+      transitModes,
+      egressMode,
+      routingRequest.timeValueOfMoney
+    )
+  }
+
+  // The main route request of calcRoute, unless it starts after a walk to the vehicle that is still to be routed
+  private def predictedMainRouteRequest(routingRequest: RoutingRequest, vehicle: StreetVehicle): Option[R5Request] = {
+    val isRouteForPerson = routingRequest.streetVehicles.exists(_.mode == WALK)
+    val mainRouteFromVehicle =
+      routingRequest.streetVehiclesUseIntermodalUse == Access && isRouteForPerson && vehicle.mode != WALK
+    if (vehicle.locationUTM == null) {
+      None
+    } else if (mainRouteFromVehicle &&
+               beamServices.geo.distUTMInMeters(vehicle.locationUTM.loc, routingRequest.originUTM) >
+               distanceThresholdToIgnoreWalking) {
+      None
+    } else {
+      Some(mainRouteRequest(routingRequest, vehicle, isRouteForPerson, 0))
+    }
+  }
+
+  /**
+    * Street-only requests the route cache can't answer, grouped by origin snapped to the street network, mode and
+    * departure time bin. Every group with more than one destination gets one street search.
+    */
+  private def getPlansFromSharedStreetSearches(requests: IndexedSeq[R5Request]): Map[R5Request, ProfileResponse] = {
+    val timeBinSize = beamServices.beamConfig.beam.routing.r5.batchDepartureTimeBinSizeInSeconds
+    requests.distinct
+      .filter { request =>
+        request.transitModes.isEmpty && request.directMode != null && !routeCache.contains(request) &&
+        !(landmarkCarRouter.isDefined && request.directMode == LegMode.CAR)
+      }
+      .groupBy(request => (request.from, request.directMode, request.timeValueOfMoney, request.time / timeBinSize))
+      .values
+      .filter(_.map(_.to).distinct.size > 1)
+      .flatMap(getPlansFromOneToManyStreetSearch)
+      .toMap
+  }
+
+  /**
+    * Searches from the common origin of the requests until the street vertices of all of their destinations are
+    * reached, at the earliest departure time of the requests. The responses are for the departure time of each request.
+    *
+    * @return nothing if R5 failed, so the requests are routed one by one
+    */
+  private def getPlansFromOneToManyStreetSearch(requests: IndexedSeq[R5Request]): Seq[(R5Request, ProfileResponse)] = {
+    countOccurrence("r5-shared-street-searches-count")
+    val mode = requests.head.directMode
+    val streetMode = toR5StreetMode(mode)
+    val profileRequest = toProfileRequest(requests.minBy(_.time))
+    profileRequest.zoneId = transportNetwork.getTimeZone
+    profileRequest.reverseSearch = false
+    try {
+      val streetRouter = createStreetRouter(profileRequest, mode, requests.head.timeValueOfMoney)
+      val destinationSplits = requests.map { request =>
+        request -> Option(
+          transportNetwork.streetLayer
+            .findSplit(request.to.getY, request.to.getX, StreetLayer.LINK_RADIUS_METERS, streetMode)
+        )
+      }.toMap
+      val originFound = streetRouter.setOrigin(profileRequest.fromLat, profileRequest.fromLon)
+      if (originFound) {
+        val unreachedVertices = mutable.Set[Int]()
+        destinationSplits.values.flatten.foreach { split =>
+          unreachedVertices += split.vertex0
+          unreachedVertices += split.vertex1
+        }
+        streetRouter.setRoutingVisitor(new RoutingVisitor {
+          override def visitVertex(state: StreetRouter.State): Unit = unreachedVertices -= state.vertex
+          override def shouldBreakSearch(): Boolean = unreachedVertices.isEmpty
+        })
+        latency("route-shared-street-time", Metrics.VerboseLevel) {
+          streetRouter.route()
+        }
+      }
+      requests.map { request =>
+        val streetSegment = for {
+          split     <- destinationSplits(request) if originFound
+          lastState <- Option(streetRouter.getState(split))
+        } yield {
+          val streetPath = new StreetPath(lastState, transportNetwork, false)
+          new StreetSegment(streetPath, mode, transportNetwork.streetLayer)
+        }
+        request -> directResponse(toProfileRequest(request), streetSegment)
+      }
+    } catch {
+      case _: IllegalStateException | _: ArrayIndexOutOfBoundsException =>
+        Seq()
+    }
+  }
+
   def buildStreetBasedLegs(r5Leg: StreetSegment, tripStartTime: Int): Vector[LegWithFare] = {
     val theTravelPath = buildStreetPath(r5Leg, tripStartTime, toR5StreetMode(r5Leg.mode))
-    val toll = if (r5Leg.mode == LegMode.CAR) {
-      val osm = r5Leg.streetEdges.asScala
-        .map(
-          e =>
-            transportNetwork.streetLayer.edgeStore
-              .getCursor(e.edgeId)
-              .getOSMID
-        )
-        .toVector
-      tollCalculator.calcTollByOsmIds(osm) + tollCalculator.calcTollByLinkIds(theTravelPath)
-    } else 0.0
+    val toll = if (r5Leg.mode == LegMode.CAR) carToll(theTravelPath) else 0.0
     val theLeg = BeamLeg(
       tripStartTime,
       mapLegMode(r5Leg.mode),
@@ -779,6 +1015,114 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
     Vector(LegWithFare(theLeg, toll))
   }
 
+  private def carToll(travelPath: BeamPath): Double = {
+    val osm = travelPath.linkIds.map(
+      linkId =>
+        transportNetwork.streetLayer.edgeStore
+          .getCursor(linkId)
+          .getOSMID
+    )
+    tollCalculator.calcTollByOsmIds(osm) + tollCalculator.calcTollByLinkIds(travelPath)
+  }
+
+  /**
+    * @return the car leg of the request from the landmark car router, if it is a car route without transit and the
+    *         router is on and finds one
+    */
+  private def getLandmarkCarLeg(request: R5Request): Option[LegWithFare] =
+    landmarkCarRouter.filter(_ => request.directMode == LegMode.CAR && request.transitModes.isEmpty).flatMap { router =>
+      val streetLayer = transportNetwork.streetLayer
+      def split(coordWGS: Coord): Option[Split] =
+        Option(streetLayer.findSplit(coordWGS.getY, coordWGS.getX, StreetLayer.LINK_RADIUS_METERS, StreetMode.CAR))
+      for {
+        from <- split(request.from)
+        to   <- split(request.to)
+        linkIds <- latency("landmarkCarRoute-router-time", Metrics.RegularLevel) {
+          router.route(from, to, request.time, carTollCost(request.timeValueOfMoney))
+        }
+      } yield {
+        val linksTimesDistances = RoutingModel.linksToTimeAndDistance(
+          linkIds,
+          request.time,
+          travelTimeByLinkCalculator,
+          StreetMode.CAR,
+          streetLayer
+        )
+        val travelPath = buildStreetPath(linksTimesDistances, request.time)
+        LegWithFare(BeamLeg(request.time, CAR, travelPath.duration, travelPath), carToll(travelPath))
+      }
+    }
+
+  // Toll of entering a car edge at a time, in seconds
+  private def carTollCost(timeValueOfMoney: Double)(linkId: Int, time: Int): Double =
+    timeValueOfMoney * tollCalculator.calcTollByLinkId(linkId, time)
+
+  /**
+    * Drops the landmark car router, which has outdated travel times, and builds one for the current ones on its own
+    * thread. It is used once it is built, unless the travel times have changed again by then.
+    */
+  private def buildLandmarkCarRouterInTheBackground(): Unit = {
+    landmarkCarRouter = None
+    val config = beamServices.beamConfig.beam.routing.r5.landmarkCarRouter
+    if (config.enabled) {
+      val travelTime = maybeTravelTime
+      Future {
+        LandmarkCarRouterBuilt(travelTime, Try(measure(buildLandmarkCarRouter(travelTime, config))).map {
+          case ((router, numberOfTimeBins), nanoTime) => (router, numberOfTimeBins, nanoTime)
+        })
+      }(ExecutionContext.fromExecutor(landmarkCarRouterBuilder)) pipeTo self
+    }
+  }
+
+  /**
+    * The time bins of the router are the ones of the travel times, merged into coarser ones with their average travel
+    * times if there are more than the maximum number of them. Free flow travel times don't change during the day.
+    *
+    * @return the router and its number of time bins
+    */
+  private def buildLandmarkCarRouter(
+    travelTime: Option[TravelTime],
+    config: BeamConfig.Beam.Routing.R5.LandmarkCarRouter
+  ): (LandmarkCarRouter, Int) = {
+    val travelTimeBinSize = beamServices.beamConfig.beam.agentsim.timeBinSize
+    val numberOfTravelTimeBins = travelTime.fold(1) { _ =>
+      math.max(1, new TravelTimeCalculatorConfigGroup().getMaxTime.toInt / travelTimeBinSize)
+    }
+    val maxNumberOfTimeBins = math.max(1, config.maxNumberOfTimeBins)
+    val travelTimeBinsPerBin = (numberOfTravelTimeBins + maxNumberOfTimeBins - 1) / maxNumberOfTimeBins
+    val numberOfTimeBins = (numberOfTravelTimeBins + travelTimeBinsPerBin - 1) / travelTimeBinsPerBin
+
+    def averageCarTravelTime(edgeIndex: Int, time: Int): Double = {
+      var sum = 0.0
+      var i = 0
+      while (i < travelTimeBinsPerBin) {
+        sum += carTravelTime(travelTime)(edgeIndex, time + i * travelTimeBinSize)
+        i += 1
+      }
+      sum / travelTimeBinsPerBin
+    }
+
+    val router = new LandmarkCarRouter(
+      transportNetwork.streetLayer,
+      averageCarTravelTime,
+      travelTimeBinSize * travelTimeBinsPerBin,
+      numberOfTimeBins,
+      config.numberOfLandmarks
+    )
+    (router, numberOfTimeBins)
+  }
+
+  // The travel time of a car entering the edge at the time, like the travel time calculator of R5
+  private def carTravelTime(travelTime: Option[TravelTime])(edgeIndex: Int, time: Int): Double = {
+    val edge = transportNetwork.streetLayer.edgeStore.getCursor(edgeIndex)
+    travelTime match {
+      case Some(matsimTravelTime) if edge.getOSMID >= 0 && beamServices.networkHelper.getLink(edgeIndex).isDefined =>
+        getTravelTime(time, edgeIndex, matsimTravelTime)
+      case _ =>
+        edge.getLengthM / edge.calculateSpeed(new ProfileRequest, StreetMode.CAR)
+    }
+  }
+
   private def buildStreetPath(
     segment: StreetSegment,
     tripStartTime: Int,
@@ -959,7 +1303,11 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
   private def getTravelTime(time: Int, linkId: Int, travelTime: TravelTime): Double = {
     val link = beamServices.networkHelper.getLinkUnsafe(linkId)
     assert(link != null)
-    val tt = travelTime.getLinkTravelTime(link, time, null, null)
+    val tt = travelTime match {
+      case travelTimePerHour: TravelTimePerHour if travelTimePerHour.getTravelTimeTable.isIndexedByLinkId =>
+        travelTimePerHour.getLinkTravelTime(linkId, time, link)
+      case _ => travelTime.getLinkTravelTime(link, time, null, null)
+    }
     val travelSpeed = link.getLength / tt
     if (travelSpeed < beamServices.beamConfig.beam.physsim.quick_fix_minCarSpeedInMetersPerSecond) {
       link.getLength / beamServices.beamConfig.beam.physsim.quick_fix_minCarSpeedInMetersPerSecond
@@ -993,36 +1341,8 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
     //For direct modes
 
     for (mode <- request.directModes.asScala) {
-      val streetRouter = new StreetRouter(
-        transportNetwork.streetLayer,
-        travelTimeCalculator(request.fromTime),
-        turnCostCalculator,
-        travelCostCalculator(timeValueOfMoney, request.fromTime)
-      )
-      var streetPath: StreetPath = null
-      streetRouter.profileRequest = request
-      streetRouter.streetMode = toR5StreetMode(mode)
-      streetRouter.timeLimitSeconds = request.streetTime * 60
-      if (streetRouter.setOrigin(request.fromLat, request.fromLon)) {
-        if (streetRouter.setDestination(request.toLat, request.toLon)) {
-          latency("route-transit-time", Metrics.VerboseLevel) {
-            streetRouter.route() //latency 1
-          }
-          val lastState =
-            streetRouter.getState(streetRouter.getDestinationSplit)
-          if (lastState != null) {
-            streetPath = new StreetPath(lastState, transportNetwork, false)
-            val streetSegment =
-              new StreetSegment(streetPath, mode, transportNetwork.streetLayer)
-            option.addDirect(streetSegment, request.getFromTimeDateZD)
-          } else {
-            //            log.debug("Direct mode {} last state wasn't found", mode)
-          }
-        } else {
-          //          log.debug("Direct mode {} destination wasn't found!", mode)
-        }
-      } else {
-        //        log.debug("Direct mode {} origin wasn't found!", mode)
+      getDirectStreetSegment(request, mode, timeValueOfMoney).foreach { streetSegment =>
+        option.addDirect(streetSegment, request.getFromTimeDateZD)
       }
     }
     option.summary = option.generateSummary
@@ -1094,6 +1414,49 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
     profileResponse
   }
 
+  private def createStreetRouter(request: ProfileRequest, mode: LegMode, timeValueOfMoney: Double): StreetRouter = {
+    val streetRouter = new StreetRouter(
+      transportNetwork.streetLayer,
+      travelTimeCalculator(request.fromTime),
+      turnCostCalculator,
+      travelCostCalculator(timeValueOfMoney, request.fromTime)
+    )
+    streetRouter.profileRequest = request
+    streetRouter.streetMode = toR5StreetMode(mode)
+    streetRouter.timeLimitSeconds = request.streetTime * 60
+    streetRouter
+  }
+
+  private def getDirectStreetSegment(
+    request: ProfileRequest,
+    mode: LegMode,
+    timeValueOfMoney: Double
+  ): Option[StreetSegment] = {
+    val streetRouter = createStreetRouter(request, mode, timeValueOfMoney)
+    if (streetRouter.setOrigin(request.fromLat, request.fromLon)) {
+      if (streetRouter.setDestination(request.toLat, request.toLon)) {
+        latency("route-transit-time", Metrics.VerboseLevel) {
+          streetRouter.route() //latency 1
+        }
+        val lastState =
+          streetRouter.getState(streetRouter.getDestinationSplit)
+        if (lastState != null) {
+          val streetPath = new StreetPath(lastState, transportNetwork, false)
+          Some(new StreetSegment(streetPath, mode, transportNetwork.streetLayer))
+        } else {
+          //            log.debug("Direct mode {} last state wasn't found", mode)
+          None
+        }
+      } else {
+        //          log.debug("Direct mode {} destination wasn't found!", mode)
+        None
+      }
+    } else {
+      //        log.debug("Direct mode {} origin wasn't found!", mode)
+      None
+    }
+  }
+
   /**
     * Finds all egress paths from to coordinate to end stop and adds routers to egressRouter
     *
@@ -1234,6 +1597,36 @@ class R5RoutingWorker(workerParams: WorkerParameters) extends Actor with ActorLo
           )
       }
     }
+    completeTrip(legsWithFares, maybeUseVehicleOnEgress, isRouteForPerson)
+  }
+
+  /**
+    * Like [[toBeamTrip]] for a trip with a single leg instead of the access leg of a profile option
+    */
+  private def toDirectTrip(
+    isRouteForPerson: Boolean,
+    maybeWalkToVehicle: Option[BeamLeg],
+    maybeUseVehicleOnEgress: Seq[LegWithFare],
+    legWithFare: LegWithFare
+  ): TripWithFares = {
+    val legsWithFares = mutable.ArrayBuffer.empty[LegWithFare]
+    maybeWalkToVehicle.foreach(walkLeg => legsWithFares += LegWithFare(walkLeg, 0.0))
+    legsWithFares += legWithFare
+    if (isRouteForPerson && legWithFare.leg.mode != BeamMode.WALK) {
+      legsWithFares += LegWithFare(
+        dummyLeg(legsWithFares.last.leg.endTime, legsWithFares.last.leg.travelPath.endPoint.loc),
+        0.0
+      )
+    }
+    completeTrip(legsWithFares, maybeUseVehicleOnEgress, isRouteForPerson)
+  }
+
+  // Adds the legs with the vehicle on egress and overrides the travel times and costs of the legs
+  private def completeTrip(
+    legsWithFares: mutable.ArrayBuffer[LegWithFare],
+    maybeUseVehicleOnEgress: Seq[LegWithFare],
+    isRouteForPerson: Boolean
+  ): TripWithFares = {
     maybeUseVehicleOnEgress.foreach { legWithFare =>
       val departAt = legsWithFares.last.leg.endTime
       val updatedLeg = legWithFare.leg.updateStartTime(departAt)
@@ -1363,6 +1756,14 @@ object R5RoutingWorker {
 
   case class TripWithFares(trip: BeamTrip, legFares: Map[Int, Double])
 
+  /**
+    * @param builtRouter the router, its number of time bins and the nanoseconds it took to build it
+    */
+  private case class LandmarkCarRouterBuilt(
+    travelTime: Option[TravelTime],
+    builtRouter: Try[(LandmarkCarRouter, Int, Long)]
+  )
+
   case class R5Request(
     from: Coord,
     to: Coord,
@@ -0,0 +1,163 @@
+package beam.router.r5
+
+import beam.router.Modes
+import beam.router.r5.R5RoutingWorker.R5Request
+import beam.router.r5.StreetRouteCache._
+import beam.sim.common.GeoUtils
+import beam.sim.config.BeamConfig
+import com.conveyal.r5.api.util.{LegMode, StreetSegment}
+import com.conveyal.r5.profile.StreetMode
+import com.conveyal.r5.streets.{Split, StreetLayer}
+import com.google.common.cache.{Cache, CacheBuilder, Weigher}
+import com.vividsolutions.jts.linearref.LengthIndexedLine
+import org.matsim.api.core.v01.Coord
+
+import scala.collection.JavaConverters._
+
+/**
+  * Cache of street-only routes of a routing worker.
+  *
+  * Origins and destinations are snapped to the street edge R5 would start or end the route on, and then to one of
+  * the pieces of about `snapDistanceInMeters` the edge is cut into. Departure times are put into bins. Requests with
+  * the same pieces, time bin and modes share one route, which is routed from the middle of the origin piece to the
+  * middle of the destination piece at the middle of the time bin. The worker times the legs of the route at the
+  * actual departure time, so only the choice of the route and its end points are approximate.
+  *
+  * The size of the cache is bounded by an estimate of the memory of its routes.
+  */
+class StreetRouteCache(
+  config: BeamConfig.Beam.Routing.R5.RouteCache,
+  streetLayer: StreetLayer,
+  geo: GeoUtils
+) {
+
+  private val snapDistanceInMm = math.max(config.snapDistanceInMeters * 1000, 1.0)
+
+  private val routes: Cache[RouteKey, CachedRoute] = CacheBuilder
+    .newBuilder()
+    .recordStats()
+    .maximumWeight(config.maxSizeInMB.toLong * 1024 * 1024)
+    .weigher(new Weigher[RouteKey, CachedRoute] {
+      override def weigh(key: RouteKey, value: CachedRoute): Int = value.estimatedSizeInBytes
+    })
+    .build[RouteKey, CachedRoute]()
+
+  def isEnabled: Boolean = config.maxSizeInMB > 0
+
+  /**
+    * @return the key of the request, if it only asks for a street route and both ends are near a street edge
+    */
+  def keyOf(request: R5Request): Option[RouteKey] =
+    if (!isEnabled || request.transitModes.nonEmpty || request.directMode == null) {
+      None
+    } else {
+      val streetMode = Modes.toR5StreetMode(request.directMode)
+      for {
+        from <- pieceOf(request.from, streetMode)
+        to   <- pieceOf(request.to, streetMode)
+      } yield
+        RouteKey(
+          from,
+          to,
+          request.time / config.timeBinSizeInSeconds,
+          request.directMode,
+          request.accessMode,
+          request.egressMode,
+          request.timeValueOfMoney
+        )
+    }
+
+  /**
+    * @return the request the route of the key is computed for
+    */
+  def representativeRequest(key: RouteKey, request: R5Request): R5Request =
+    request.copy(
+      from = middleOf(key.from),
+      to = middleOf(key.to),
+      time = key.timeBin * config.timeBinSizeInSeconds + config.timeBinSizeInSeconds / 2
+    )
+
+  def get(key: RouteKey): Option[CachedRoute] = Option(routes.getIfPresent(key))
+
+  // Doesn't count as a hit or miss
+  def contains(request: R5Request): Boolean = keyOf(request).exists(routes.asMap().containsKey)
+
+  def put(key: RouteKey, route: CachedRoute): Unit = routes.put(key, route)
+
+  /**
+    * @return the number of routes dropped
+    */
+  def invalidate(isOutdated: CachedRoute => Boolean): Int = {
+    val outdated = routes.asMap().asScala.collect { case (key, route) if isOutdated(route) => key }
+    routes.invalidateAll(outdated.asJava)
+    outdated.size
+  }
+
+  def size: Long = routes.size()
+
+  def hitRate: Double = routes.stats().hitRate()
+
+  def statistics: String = {
+    val stats = routes.stats()
+    f"${routes.size()} routes, ${stats.hitCount()} hits, ${stats.missCount()} misses " +
+    f"(hit rate ${stats.hitRate() * 100}%.1f%%), ${stats.evictionCount()} evicted"
+  }
+
+  private def pieceOf(coordWGS: Coord, streetMode: StreetMode): Option[EdgePiece] =
+    Option(geo.getR5Split(streetLayer, coordWGS, 10E3, streetMode)).map { split: Split =>
+      val lengthInMm = math.max(split.distance0_mm.toLong + split.distance1_mm, 1L)
+      val numberOfPieces = math.max(1, math.round(lengthInMm / snapDistanceInMm).toInt)
+      val piece = math.min((split.distance0_mm.toLong * numberOfPieces / lengthInMm).toInt, numberOfPieces - 1)
+      EdgePiece(split.edge, piece, numberOfPieces)
+    }
+
+  // Never a vertex of the street network, so R5 splits the same edge again
+  private def middleOf(piece: EdgePiece): Coord = {
+    val geometry = streetLayer.edgeStore.getCursor(piece.edge).getGeometry
+    val point = new LengthIndexedLine(geometry)
+      .extractPoint(geometry.getLength * (piece.piece + 0.5) / piece.numberOfPieces)
+    new Coord(point.x, point.y)
+  }
+}
+
+object StreetRouteCache {
+
+  case class EdgePiece(edge: Int, piece: Int, numberOfPieces: Int)
+
+  case class RouteKey(
+    from: EdgePiece,
+    to: EdgePiece,
+    timeBin: Int,
+    directMode: LegMode,
+    accessMode: LegMode,
+    egressMode: LegMode,
+    timeValueOfMoney: Double
+  )
+
+  /**
+    * @param segment the route, if there is one
+    * @param linkIds the edges of the route
+    * @param time    departure time the route was computed for
+    */
+  case class CachedRoute(segment: Option[StreetSegment], linkIds: IndexedSeq[Int], time: Int, mode: LegMode) {
+
+    // Rough: the objects of the segment and of its edges, plus the coordinates of their geometries
+    val estimatedSizeInBytes: Int = segment.fold(200) { streetSegment =>
+      val edges = streetSegment.streetEdges.asScala
+      val numberOfCoordinates = Option(streetSegment.geometry).fold(0)(_.getNumPoints) +
+        edges.map(edge => Option(edge.geometry).fold(0)(_.getNumPoints)).sum
+      400 + 200 * edges.size + 40 * numberOfCoordinates
+    }
+  }
+
+  object CachedRoute {
+
+    def apply(segment: Option[StreetSegment], time: Int, mode: LegMode): CachedRoute =
+      CachedRoute(
+        segment,
+        segment.fold(IndexedSeq.empty[Int])(_.streetEdges.asScala.map(_.edgeId.intValue()).toIndexedSeq),
+        time,
+        mode
+      )
+  }
+}
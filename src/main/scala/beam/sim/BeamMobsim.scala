@@ -11,9 +11,14 @@ import beam.agentsim.agents.ridehail.RideHailManager.{BufferedRideHailRequestsTr
 import beam.agentsim.agents.ridehail.{RideHailIterationHistory, RideHailManager, RideHailSurgePricingManager}
 import beam.agentsim.agents.{BeamAgent, InitializeTrigger, Population}
 import beam.agentsim.infrastructure.ParkingManager.ParkingStockAttributes
-import beam.agentsim.infrastructure.ZonalParkingManager
-import beam.agentsim.scheduler.BeamAgentScheduler
-import beam.agentsim.scheduler.BeamAgentScheduler.{CompletionNotice, ScheduleTrigger, StartSchedule}
+import beam.agentsim.infrastructure.{ShardedParkingManager, ZonalParkingManager}
+import beam.agentsim.scheduler.{BeamAgentScheduler, ShardedBeamAgentScheduler}
+import beam.agentsim.scheduler.BeamAgentScheduler.{
+  CompletionNotice,
+  ScheduleTrigger,
+  ScheduleTriggers,
+  StartSchedule
+}
 import beam.router.BeamRouter.InitTransit
 import beam.router.{BeamSkimmer, FreeFlowTravelTime, RouteHistory}
 import beam.router.osm.TollCalculator
@@ -78,16 +83,32 @@ class BeamMobsim @Inject()(
         private val errorListener = context.actorOf(ErrorListener.props())
         context.watch(errorListener)
         context.system.eventStream.subscribe(errorListener, classOf[BeamAgent.TerminatedPrematurelyEvent])
-        private val scheduler = context.actorOf(
-          Props(
-            classOf[BeamAgentScheduler],
-            beamServices.beamConfig,
-            Time.parseTime(beamServices.beamConfig.matsim.modules.qsim.endTime).toInt,
-            config.schedulerParallelismWindow,
-            new StuckFinder(beamServices.beamConfig.beam.debug.stuckAgentDetection)
-          ),
+        private val schedulerActor = context.actorOf(
+          if (config.schedulerShards > 1) {
+            ShardedBeamAgentScheduler.props(
+              Time.parseTime(beamServices.beamConfig.matsim.modules.qsim.endTime).toInt,
+              config.schedulerParallelismWindow,
+              config.schedulerShards
+            )
+          } else {
+            Props(
+              classOf[BeamAgentScheduler],
+              beamServices.beamConfig,
+              Time.parseTime(beamServices.beamConfig.matsim.modules.qsim.endTime).toInt,
+              config.schedulerParallelismWindow,
+              new StuckFinder(beamServices.beamConfig.beam.debug.stuckAgentDetection)
+            )
+          },
           "scheduler"
         )
+        context.watch(schedulerActor)
+        // Agents talk to the shards of a sharded scheduler through its router, which stops the shards when stopped
+        private val scheduler =
+          if (config.schedulerShards > 1) {
+            Await.result((schedulerActor ? ShardedBeamAgentScheduler.GetShardRouter).mapTo[ActorRef], timeout.duration)
+          } else {
+            schedulerActor
+          }
         context.system.eventStream.subscribe(errorListener, classOf[DeadLetter])
         context.watch(scheduler)
 
@@ -96,8 +117,16 @@ class BeamMobsim @Inject()(
         envelopeInUTM.expandBy(beamServices.beamConfig.beam.spatial.boundingBoxBuffer)
 
         private val parkingManager = context.actorOf(
-          ZonalParkingManager
-            .props(beamServices, beamServices.beamRouter, ParkingStockAttributes(100)),
+          if (config.parkingManagerShards > 1) {
+            ShardedParkingManager.props(
+              beamServices,
+              beamServices.beamRouter,
+              ParkingStockAttributes(100),
+              config.parkingManagerShards
+            )
+          } else {
+            ZonalParkingManager.props(beamServices, beamServices.beamRouter, ParkingStockAttributes(100))
+          },
           "ParkingManager"
         )
         context.watch(parkingManager)
@@ -139,7 +168,7 @@ class BeamMobsim @Inject()(
           context.actorOf(Fleets.lookup(fleetConfig).props(beamServices, parkingManager), fleetConfig.name)
         }
         sharedVehicleFleets.foreach(context.watch)
-        sharedVehicleFleets.foreach(scheduler ! ScheduleTrigger(InitializeTrigger(0), _))
+        scheduler ! ScheduleTriggers(sharedVehicleFleets.map(ScheduleTrigger(InitializeTrigger(0), _)))
 
         private val population = context.actorOf(
           Population.props(
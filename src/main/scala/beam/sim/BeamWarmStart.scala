@@ -194,12 +194,12 @@ object BeamWarmStart {
   def apply(beamConfig: BeamConfig, maxHour: Int): BeamWarmStart = new BeamWarmStart(beamConfig, maxHour)
 
   def updateRemoteRouter(scenario: Scenario, travelTime: TravelTime, maxHour: Int, beamRouter: ActorRef): Unit = {
-    val map = TravelTimeCalculatorHelper.GetLinkIdToTravelTimeArray(
+    val travelTimeTable = TravelTimeCalculatorHelper.GetLinkTravelTimeTable(
       scenario.getNetwork.getLinks.values(),
       travelTime,
       maxHour
     )
-    beamRouter ! UpdateTravelTimeRemote(map)
+    beamRouter ! UpdateTravelTimeRemote(travelTimeTable)
   }
 
 }
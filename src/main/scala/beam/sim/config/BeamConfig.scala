@@ -36,10 +36,12 @@ object BeamConfig {
       firstIteration: scala.Int,
       lastIteration: scala.Int,
       numAgents: scala.Int,
+      parkingManagerShards: scala.Int,
       populationAdjustment: java.lang.String,
       scenarios: BeamConfig.Beam.Agentsim.Scenarios,
       scheduleMonitorTask: BeamConfig.Beam.Agentsim.ScheduleMonitorTask,
       schedulerParallelismWindow: scala.Int,
+      schedulerShards: scala.Int,
       simulationName: java.lang.String,
       startTime: java.lang.String,
       taz: BeamConfig.Beam.Agentsim.Taz,
@@ -1173,6 +1175,7 @@ object BeamConfig {
           firstIteration = if (c.hasPathOrNull("firstIteration")) c.getInt("firstIteration") else 0,
           lastIteration = if (c.hasPathOrNull("lastIteration")) c.getInt("lastIteration") else 0,
           numAgents = if (c.hasPathOrNull("numAgents")) c.getInt("numAgents") else 100,
+          parkingManagerShards = if (c.hasPathOrNull("parkingManagerShards")) c.getInt("parkingManagerShards") else 1,
           populationAdjustment =
             if (c.hasPathOrNull("populationAdjustment")) c.getString("populationAdjustment") else "DEFAULT_ADJUSTMENT",
           scenarios = BeamConfig.Beam.Agentsim.Scenarios(
@@ -1185,6 +1188,7 @@ object BeamConfig {
           ),
           schedulerParallelismWindow =
             if (c.hasPathOrNull("schedulerParallelismWindow")) c.getInt("schedulerParallelismWindow") else 30,
+          schedulerShards = if (c.hasPathOrNull("schedulerShards")) c.getInt("schedulerShards") else 1,
           simulationName = if (c.hasPathOrNull("simulationName")) c.getString("simulationName") else "beamville",
           startTime = if (c.hasPathOrNull("startTime")) c.getString("startTime") else "00:00:00",
           taz = BeamConfig.Beam.Agentsim.Taz(
@@ -1551,15 +1555,21 @@ object BeamConfig {
       events: BeamConfig.Beam.Outputs.Events,
       generalizedLinkStats: BeamConfig.Beam.Outputs.GeneralizedLinkStats,
       generalizedLinkStatsInterval: scala.Int,
+      parallelGzip: scala.Boolean,
       stats: BeamConfig.Beam.Outputs.Stats,
       writeEventsInterval: scala.Int,
+      writeFullSkimsInterval: scala.Int,
       writeGraphs: scala.Boolean,
       writeLinkTraversalInterval: scala.Int,
-      writePlansInterval: scala.Int
+      writePlansInterval: scala.Int,
+      writeSkimsCsv: scala.Boolean
     )
 
     object Outputs {
       case class Events(
+        asyncWriter: scala.Boolean,
+        asyncWriterQueueCapacity: scala.Int,
+        bufferedCsvWriter: scala.Boolean,
         eventsToWrite: java.lang.String,
         fileOutputFormats: java.lang.String
       )
@@ -1568,6 +1578,10 @@ object BeamConfig {
 
         def apply(c: com.typesafe.config.Config): BeamConfig.Beam.Outputs.Events = {
           BeamConfig.Beam.Outputs.Events(
+            asyncWriter = c.hasPathOrNull("asyncWriter") && c.getBoolean("asyncWriter"),
+            asyncWriterQueueCapacity =
+              if (c.hasPathOrNull("asyncWriterQueueCapacity")) c.getInt("asyncWriterQueueCapacity") else 1048576,
+            bufferedCsvWriter = !c.hasPathOrNull("bufferedCsvWriter") || c.getBoolean("bufferedCsvWriter"),
             eventsToWrite =
               if (c.hasPathOrNull("eventsToWrite")) c.getString("eventsToWrite")
               else
@@ -1626,15 +1640,19 @@ object BeamConfig {
           ),
           generalizedLinkStatsInterval =
             if (c.hasPathOrNull("generalizedLinkStatsInterval")) c.getInt("generalizedLinkStatsInterval") else 0,
+          parallelGzip = c.hasPathOrNull("parallelGzip") && c.getBoolean("parallelGzip"),
           stats = BeamConfig.Beam.Outputs.Stats(
             if (c.hasPathOrNull("stats")) c.getConfig("stats")
             else com.typesafe.config.ConfigFactory.parseString("stats{}")
           ),
           writeEventsInterval = if (c.hasPathOrNull("writeEventsInterval")) c.getInt("writeEventsInterval") else 1,
+          writeFullSkimsInterval =
+            if (c.hasPathOrNull("writeFullSkimsInterval")) c.getInt("writeFullSkimsInterval") else 0,
           writeGraphs = !c.hasPathOrNull("writeGraphs") || c.getBoolean("writeGraphs"),
           writeLinkTraversalInterval =
             if (c.hasPathOrNull("writeLinkTraversalInterval")) c.getInt("writeLinkTraversalInterval") else 0,
-          writePlansInterval = if (c.hasPathOrNull("writePlansInterval")) c.getInt("writePlansInterval") else 0
+          writePlansInterval = if (c.hasPathOrNull("writePlansInterval")) c.getInt("writePlansInterval") else 0,
+          writeSkimsCsv = !c.hasPathOrNull("writeSkimsCsv") || c.getBoolean("writeSkimsCsv")
         )
       }
     }
@@ -1659,7 +1677,10 @@ object BeamConfig {
     object Physsim {
       case class Jdeqsim(
         agentSimPhysSimInterfaceDebugger: BeamConfig.Beam.Physsim.Jdeqsim.AgentSimPhysSimInterfaceDebugger,
-        cacc: BeamConfig.Beam.Physsim.Jdeqsim.Cacc
+        cacc: BeamConfig.Beam.Physsim.Jdeqsim.Cacc,
+        minimumLookaheadInSeconds: scala.Double,
+        numberOfEventHandlerThreads: scala.Int,
+        numberOfPartitions: scala.Int
       )
 
       object Jdeqsim {
@@ -1706,7 +1727,12 @@ object BeamConfig {
             cacc = BeamConfig.Beam.Physsim.Jdeqsim.Cacc(
               if (c.hasPathOrNull("cacc")) c.getConfig("cacc")
               else com.typesafe.config.ConfigFactory.parseString("cacc{}")
-            )
+            ),
+            minimumLookaheadInSeconds =
+              if (c.hasPathOrNull("minimumLookaheadInSeconds")) c.getDouble("minimumLookaheadInSeconds") else 1.0,
+            numberOfEventHandlerThreads =
+              if (c.hasPathOrNull("numberOfEventHandlerThreads")) c.getInt("numberOfEventHandlerThreads") else 1,
+            numberOfPartitions = if (c.hasPathOrNull("numberOfPartitions")) c.getInt("numberOfPartitions") else 1
           )
         }
       }
@@ -1784,20 +1810,42 @@ object BeamConfig {
       baseDate: java.lang.String,
       r5: BeamConfig.Beam.Routing.R5,
       startingIterationForTravelTimesMSA: scala.Int,
-      transitOnStreetNetwork: scala.Boolean
+      transitOnStreetNetwork: scala.Boolean,
+      travelTimesMSAWeight: scala.Double,
+      workPull: BeamConfig.Beam.Routing.WorkPull
     )
 
     object Routing {
       case class R5(
+        batchDepartureTimeBinSizeInSeconds: scala.Int,
         departureWindow: scala.Double,
         directory: java.lang.String,
+        landmarkCarRouter: BeamConfig.Beam.Routing.R5.LandmarkCarRouter,
         mNetBuilder: BeamConfig.Beam.Routing.R5.MNetBuilder,
         numberOfSamples: scala.Int,
         osmFile: java.lang.String,
-        osmMapdbFile: java.lang.String
+        osmMapdbFile: java.lang.String,
+        routeCache: BeamConfig.Beam.Routing.R5.RouteCache
       )
 
       object R5 {
+        case class LandmarkCarRouter(
+          enabled: scala.Boolean,
+          maxNumberOfTimeBins: scala.Int,
+          numberOfLandmarks: scala.Int
+        )
+
+        object LandmarkCarRouter {
+
+          def apply(c: com.typesafe.config.Config): BeamConfig.Beam.Routing.R5.LandmarkCarRouter = {
+            BeamConfig.Beam.Routing.R5.LandmarkCarRouter(
+              enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled"),
+              maxNumberOfTimeBins = if (c.hasPathOrNull("maxNumberOfTimeBins")) c.getInt("maxNumberOfTimeBins") else 30,
+              numberOfLandmarks = if (c.hasPathOrNull("numberOfLandmarks")) c.getInt("numberOfLandmarks") else 16
+            )
+          }
+        }
+
         case class MNetBuilder(
           fromCRS: java.lang.String,
           toCRS: java.lang.String
@@ -1813,10 +1861,39 @@ object BeamConfig {
           }
         }
 
+        case class RouteCache(
+          invalidationThreshold: scala.Double,
+          maxSizeInMB: scala.Int,
+          snapDistanceInMeters: scala.Double,
+          timeBinSizeInSeconds: scala.Int
+        )
+
+        object RouteCache {
+
+          def apply(c: com.typesafe.config.Config): BeamConfig.Beam.Routing.R5.RouteCache = {
+            BeamConfig.Beam.Routing.R5.RouteCache(
+              invalidationThreshold =
+                if (c.hasPathOrNull("invalidationThreshold")) c.getDouble("invalidationThreshold") else 0.1,
+              maxSizeInMB = if (c.hasPathOrNull("maxSizeInMB")) c.getInt("maxSizeInMB") else 256,
+              snapDistanceInMeters =
+                if (c.hasPathOrNull("snapDistanceInMeters")) c.getDouble("snapDistanceInMeters") else 25.0,
+              timeBinSizeInSeconds =
+                if (c.hasPathOrNull("timeBinSizeInSeconds")) c.getInt("timeBinSizeInSeconds") else 900
+            )
+          }
+        }
+
         def apply(c: com.typesafe.config.Config): BeamConfig.Beam.Routing.R5 = {
           BeamConfig.Beam.Routing.R5(
+            batchDepartureTimeBinSizeInSeconds =
+              if (c.hasPathOrNull("batchDepartureTimeBinSizeInSeconds")) c.getInt("batchDepartureTimeBinSizeInSeconds")
+              else 300,
             departureWindow = if (c.hasPathOrNull("departureWindow")) c.getDouble("departureWindow") else 15.0,
             directory = if (c.hasPathOrNull("directory")) c.getString("directory") else "/test/input/beamville/r5",
+            landmarkCarRouter = BeamConfig.Beam.Routing.R5.LandmarkCarRouter(
+              if (c.hasPathOrNull("landmarkCarRouter")) c.getConfig("landmarkCarRouter")
+              else com.typesafe.config.ConfigFactory.parseString("landmarkCarRouter{}")
+            ),
             mNetBuilder = BeamConfig.Beam.Routing.R5.MNetBuilder(
               if (c.hasPathOrNull("mNetBuilder")) c.getConfig("mNetBuilder")
               else com.typesafe.config.ConfigFactory.parseString("mNetBuilder{}")
@@ -1825,7 +1902,29 @@ object BeamConfig {
             osmFile =
               if (c.hasPathOrNull("osmFile")) c.getString("osmFile") else "/test/input/beamville/r5/beamville.osm.pbf",
             osmMapdbFile =
-              if (c.hasPathOrNull("osmMapdbFile")) c.getString("osmMapdbFile") else "/test/input/beamville/r5/osm.mapdb"
+              if (c.hasPathOrNull("osmMapdbFile")) c.getString("osmMapdbFile") else "/test/input/beamville/r5/osm.mapdb",
+            routeCache = BeamConfig.Beam.Routing.R5.RouteCache(
+              if (c.hasPathOrNull("routeCache")) c.getConfig("routeCache")
+              else com.typesafe.config.ConfigFactory.parseString("routeCache{}")
+            )
+          )
+        }
+      }
+
+      case class WorkPull(
+        batchSize: scala.Int,
+        maxQueuedWorkPerWorker: scala.Int,
+        minQueuedWorkToSteal: scala.Int
+      )
+
+      object WorkPull {
+
+        def apply(c: com.typesafe.config.Config): BeamConfig.Beam.Routing.WorkPull = {
+          BeamConfig.Beam.Routing.WorkPull(
+            batchSize = if (c.hasPathOrNull("batchSize")) c.getInt("batchSize") else 16,
+            maxQueuedWorkPerWorker =
+              if (c.hasPathOrNull("maxQueuedWorkPerWorker")) c.getInt("maxQueuedWorkPerWorker") else 64,
+            minQueuedWorkToSteal = if (c.hasPathOrNull("minQueuedWorkToSteal")) c.getInt("minQueuedWorkToSteal") else 8
           )
         }
       }
@@ -1839,7 +1938,13 @@ object BeamConfig {
           startingIterationForTravelTimesMSA =
             if (c.hasPathOrNull("startingIterationForTravelTimesMSA")) c.getInt("startingIterationForTravelTimesMSA")
             else 0,
-          transitOnStreetNetwork = !c.hasPathOrNull("transitOnStreetNetwork") || c.getBoolean("transitOnStreetNetwork")
+          transitOnStreetNetwork = !c.hasPathOrNull("transitOnStreetNetwork") || c.getBoolean("transitOnStreetNetwork"),
+          travelTimesMSAWeight =
+            if (c.hasPathOrNull("travelTimesMSAWeight")) c.getDouble("travelTimesMSAWeight") else 0.5,
+          workPull = BeamConfig.Beam.Routing.WorkPull(
+            if (c.hasPathOrNull("workPull")) c.getConfig("workPull")
+            else com.typesafe.config.ConfigFactory.parseString("workPull{}")
+          )
         )
       }
     }
@@ -0,0 +1,68 @@
+package beam.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void compressedDataShouldBeReadableByGzipInputStream() throws IOException {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            text.append(i).append(',').append(random.nextInt(1000)).append(",car,").append(random.nextDouble()).append('\n');
+        }
+        byte[] data = text.toString().getBytes();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new ParallelGzipOutputStream(compressed, executor, 64 * 1024, 3)) {
+                // mix single bytes and chunks crossing block boundaries
+                int offset = 0;
+                while (offset < data.length) {
+                    if (offset % 3 == 0) {
+                        out.write(data[offset++]);
+                    } else {
+                        int length = Math.min(random.nextInt(100000), data.length - offset);
+                        out.write(data, offset, length);
+                        offset += length;
+                    }
+                }
+            }
+            assertArrayEquals(data, gunzip(compressed.toByteArray()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void emptyInputShouldGiveValidGzipFile() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed).close();
+        assertArrayEquals(new byte[0], gunzip(compressed.toByteArray()));
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                result.write(buffer, 0, read);
+            }
+        }
+        return result.toByteArray();
+    }
+}
@@ -1,30 +1,85 @@
 package beam.utils;
 
 import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.router.util.TravelTime;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TravelTimeCalculatorHelperTest {
     double error = 1E-6;
 
     @Test
-    public void AverageTravelTimesMapShouldWorkProperly() {
+    public void GetLinkTravelTimeMSATableShouldAverageEqualWeights() {
         int hours = 10;
-        // The same numbers in both arrays, so it will be easy to test average
-        double[] times1 = new double[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 0};
-        double[] times2 = new double[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 0};
-        Map<String, double[]> map1 = new HashMap<>();
-        map1.put("1", times1);
-
-        Map<String, double[]> map2 = new HashMap<>();
-        map2.put("1", times2);
+        // The same numbers in both iterations, so it will be easy to test average
+        double[] times = new double[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 0};
+        List<Link> links = Collections.singletonList(mockLink(1));
+        TravelTime travelTime = (link, time, person, vehicle) -> times[(int) (time / 3600)];
 
-        Map<String, double[]> result = TravelTimeCalculatorHelper.AverageTravelTimesMap(map1, map2, hours);
-        double[] resArr = result.get("1");
+        TravelTimeTable previous = TravelTimeCalculatorHelper.GetLinkTravelTimeTable(links, travelTime, hours);
+        TravelTimeTable result = TravelTimeCalculatorHelper.GetLinkTravelTimeMSATable(links, travelTime, previous,
+                0.5, hours);
         for(int i = 0; i < hours; i++) {
-            double diff = Math.abs(resArr[i] - times1[i]);
+            double diff = Math.abs(result.get(1, i) - times[i]);
             assert diff <= error;
         }
     }
+
+    @Test
+    public void GetLinkTravelTimeMSATableShouldBlendWithPreviousIteration() {
+        int hours = 3;
+        List<Link> links = Arrays.asList(mockLink(1), mockLink(3));
+        TravelTime previousTravelTime = (link, time, person, vehicle) -> 100;
+        TravelTime currentTravelTime = (link, time, person, vehicle) -> time / 3600 * 10;
+
+        TravelTimeTable previous = TravelTimeCalculatorHelper.GetLinkTravelTimeTable(links, previousTravelTime, hours);
+        TravelTimeTable result = TravelTimeCalculatorHelper.GetLinkTravelTimeMSATable(links, currentTravelTime,
+                previous, 0.25, hours);
+
+        assert result.getNumberOfLinks() == 2;
+        assert !result.containsLink(0);
+        assert !result.containsLink(2);
+        for (int hour = 0; hour < hours; hour++) {
+            double expected = 0.25 * hour * 10 + 0.75 * 100;
+            assert Math.abs(result.get(1, hour) - expected) <= error;
+            assert Math.abs(result.get(3, hour) - expected) <= error;
+        }
+    }
+
+    @Test
+    public void TravelTimePerHourShouldWorkWithLinkIdsThatAreNotNumbers() {
+        int hours = 2;
+        List<Link> links = Arrays.asList(mockLink("1-2"), mockLink("2-3"));
+        TravelTime travelTime = (link, time, person, vehicle) -> link.getId().toString().equals("1-2") ? 10 : 20;
+
+        TravelTimeTable table = TravelTimeCalculatorHelper.GetLinkTravelTimeTable(links, travelTime, hours);
+        TravelTime travelTimePerHour = TravelTimeCalculatorHelper.CreateTravelTimeCalculator(3600, table);
+
+        assert !table.isIndexedByLinkId();
+        assert table.getNumberOfLinks() == 2;
+        assert Math.abs(travelTimePerHour.getLinkTravelTime(links.get(0), 3600, null, null) - 10) <= error;
+        assert Math.abs(travelTimePerHour.getLinkTravelTime(links.get(1), 0, null, null) - 20) <= error;
+        // unknown links take their free-flow time
+        Link unknownLink = mockLink("3-4");
+        when(unknownLink.getLength()).thenReturn(100.0);
+        when(unknownLink.getFreespeed()).thenReturn(10.0);
+        assert Math.abs(travelTimePerHour.getLinkTravelTime(unknownLink, 0, null, null) - 10) <= error;
+    }
+
+    private static Link mockLink(int linkIndex) {
+        return mockLink(String.valueOf(linkIndex));
+    }
+
+    private static Link mockLink(String linkId) {
+        Link link = mock(Link.class);
+        when(link.getId()).thenReturn(Id.createLinkId(linkId));
+        return link;
+    }
 }
@@ -0,0 +1,251 @@
+package beam.agentsim.agents.choice.logit
+
+import java.util
+
+import beam.agentsim.agents.choice.logit.MultinomialLogit.MnlData
+import beam.tags.{ExcludeRegular, Performance}
+import com.typesafe.scalalogging.LazyLogging
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.util.Random
+
+class CompiledLogitSpec extends WordSpecLike with Matchers with LazyLogging {
+
+  private val nestedLogitXml = """<nestedLogit name="top">
+      <elasticity>1</elasticity>
+      <alternative name="alternative1">
+        <elasticity>1</elasticity>
+        <utility>
+          <param name="intercept" type="INTERCEPT">1.0</param>
+          <param name="time" type="MULTIPLIER">-0.1</param>
+          <param name="cost" type="MULTIPLIER">-0.2</param>
+        </utility>
+      </alternative>
+      <alternative name="alternative2">
+        <elasticity>1</elasticity>
+        <utility>
+          <param name="intercept" type="INTERCEPT">0.0</param>
+          <param name="time" type="MULTIPLIER">-0.1</param>
+          <param name="cost" type="MULTIPLIER">-0.2</param>
+        </utility>
+      </alternative>
+      <nestedLogit name="nest1">
+        <elasticity>0.5</elasticity>
+        <alternative name="alternative3">
+          <elasticity>0.5</elasticity>
+          <utility>
+            <param name="intercept" type="INTERCEPT">-1.0</param>
+            <param name="time" type="MULTIPLIER">-0.1</param>
+            <param name="cost" type="MULTIPLIER">-0.2</param>
+          </utility>
+        </alternative>
+        <alternative name="alternative4">
+          <elasticity>0.5</elasticity>
+          <utility>
+            <param name="intercept" type="INTERCEPT">-2.0</param>
+            <param name="time" type="MULTIPLIER">-0.1</param>
+            <param name="cost" type="MULTIPLIER">-0.2</param>
+          </utility>
+        </alternative>
+      </nestedLogit>
+    </nestedLogit>"""
+
+  private val timesAndCosts = Seq(
+    "alternative1" -> (5.0, 5.0),
+    "alternative2" -> (10.0, 0.0),
+    "alternative3" -> (0.0, 15.0),
+    "alternative4" -> (7.5, 2.5)
+  )
+
+  private val mnl = MultinomialLogit(
+    Vector(
+      new MnlData("COMMON", "cost", "multiplier", -0.01),
+      new MnlData("COMMON", "time", "multiplier", -0.02),
+      new MnlData("car", "intercept", "intercept", 3.0),
+      new MnlData("walk", "intercept", "intercept", 4.0),
+      new MnlData("bike", "asc", "multiplier", 1.0),
+      new MnlData("walk_transit", "transfer", "multiplier", -0.5)
+    )
+  )
+
+  private val mnlAlternatives = Vector(
+    AlternativeAttributes("car", Map("cost"          -> 30.0, "time" -> 50.0)),
+    AlternativeAttributes("walk", Map("cost"         -> 0.0, "time" -> 40.0)),
+    AlternativeAttributes("bike", Map("cost"         -> 0.0, "time" -> 45.0)),
+    AlternativeAttributes("walk_transit", Map("cost" -> 2.0, "time" -> 35.0, "transfer" -> 1.0))
+  )
+
+  "A compiled nested logit model" should {
+    "evaluate the probabilities and expected maximum utility of the nested logit model" in {
+      val tree = NestedLogit.nestedLogitFactory(nestedLogitXml)
+      val inputData = nestedLogitInputData(timesAndCosts)
+      val expectedProbabilities = tree.evaluateProbabilities(inputData).getProbabilityDensityMap
+
+      val model = CompiledLogit(tree)
+      val input = nestedLogitInput(model, timesAndCosts)
+      model.evaluateProbabilities(input) shouldBe tree.getExpectedMaximumUtility.doubleValue() +- 1e-9
+      timesAndCosts.foreach {
+        case (alternativeName, _) =>
+          input.probabilities(model.alternativeIndex(alternativeName)) shouldBe
+          expectedProbabilities.get(alternativeName).doubleValue() +- 1e-9
+      }
+      input.probabilities.sum shouldBe 1.0 +- 1e-9
+    }
+
+    "give no probability to alternatives without input" in {
+      val model = CompiledLogit(NestedLogit.nestedLogitFactory(nestedLogitXml))
+      val input = nestedLogitInput(model, timesAndCosts.filterNot(_._1 == "alternative3"))
+      model.evaluateProbabilities(input)
+      input.probabilities(model.alternativeIndex("alternative3")) shouldBe 0.0
+      input.probabilities.sum shouldBe 1.0 +- 1e-9
+      val random = new Random(3)
+      (1 to 1000).map(_ => model.sample(input, random)).toSet should not contain model.alternativeIndex("alternative3")
+    }
+
+    "fail on a missing variable of a multiplier like the nested logit model" in {
+      val model = CompiledLogit(NestedLogit.nestedLogitFactory(nestedLogitXml))
+      val input = model.newInput()
+      input.set(model.alternativeIndex("alternative1"), model.variableIndex("time"), 5.0)
+      a[RuntimeException] should be thrownBy model.evaluateProbabilities(input)
+    }
+  }
+
+  "A compiled multinomial logit model" should {
+    "evaluate the utilities and expected maximum utility of the multinomial logit model" in {
+      val model = CompiledLogit(mnl)
+      val input = mnlInput(model, mnlAlternatives)
+      mnlAlternatives.foreach { alternative =>
+        model.utilityOf(input, model.alternativeIndex(alternative.alternativeName)) shouldBe
+        mnl.getUtilityOfAlternative(alternative) +- 1e-9
+      }
+      model.evaluateProbabilities(input) shouldBe mnl.getExpectedMaximumUtility(mnlAlternatives) +- 1e-9
+    }
+
+    "count a missing variable as -1E100 unless it is an intercept" in {
+      val model = CompiledLogit(mnl)
+      val alternatives = Vector(
+        AlternativeAttributes("car", Map("cost"  -> 30.0)),
+        AlternativeAttributes("bike", Map("cost" -> 0.0, "time" -> 45.0))
+      )
+      val input = mnlInput(model, alternatives)
+      alternatives.foreach { alternative =>
+        model.utilityOf(input, model.alternativeIndex(alternative.alternativeName)) shouldBe
+        mnl.getUtilityOfAlternative(alternative) +- 1e-9
+      }
+    }
+
+    "sample alternatives as often as the multinomial logit model" in {
+      val model = CompiledLogit(mnl)
+      val input = mnlInput(model, mnlAlternatives)
+      val random = new Random(11)
+      val numberOfDraws = 100000
+      val compiledDraws = Seq.fill(numberOfDraws)(model.alternativeNames(model.sample(input, random)))
+      val mnlDraws = Seq.fill(numberOfDraws)(mnl.sampleAlternative(mnlAlternatives, random).get)
+      mnlAlternatives.map(_.alternativeName).foreach { alternativeName =>
+        compiledDraws.count(_ == alternativeName).toDouble / numberOfDraws shouldBe
+        mnlDraws.count(_ == alternativeName).toDouble / numberOfDraws +- 0.01
+      }
+    }
+
+    "evaluate and sample faster than the nested and multinomial logit models" taggedAs (
+      Performance,
+      ExcludeRegular
+    ) in {
+      val repetitions = 1000000
+      val random = new Random(5)
+
+      val tree = NestedLogit.nestedLogitFactory(nestedLogitXml)
+      val compiledTree = CompiledLogit(tree)
+      val nestedLogitNanos = time(repetitions) {
+        tree.evaluateProbabilities(nestedLogitInputData(timesAndCosts))
+      }
+      val compiledTreeNanos = time(repetitions) {
+        compiledTree.evaluateProbabilities(nestedLogitInput(compiledTree, timesAndCosts))
+      }
+
+      val compiledMnl = CompiledLogit(mnl)
+      val reusedInput = compiledMnl.newInput()
+      val mnlNanos = time(repetitions) {
+        mnl.sampleAlternative(mnlAlternatives, random)
+        mnl.getExpectedMaximumUtility(mnlAlternatives)
+      }
+      val compiledMnlNanos = time(repetitions) {
+        reusedInput.clear()
+        fillMnlInput(compiledMnl, reusedInput, mnlAlternatives)
+        compiledMnl.sample(reusedInput, random)
+      }
+
+      logger.info(
+        "{} evaluations: nested logit {} ms, compiled {} ms; multinomial logit samples {} ms, compiled {} ms",
+        repetitions.toString,
+        (nestedLogitNanos / 1000000).toString,
+        (compiledTreeNanos / 1000000).toString,
+        (mnlNanos / 1000000).toString,
+        (compiledMnlNanos / 1000000).toString
+      )
+      compiledTreeNanos should be < nestedLogitNanos
+      compiledMnlNanos should be < mnlNanos
+    }
+  }
+
+  // Runs twice, to warm up, and returns the time of the second run
+  private def time(repetitions: Int)(evaluate: => Unit): Long = {
+    def run(): Long = {
+      val start = System.nanoTime()
+      var i = 0
+      while (i < repetitions) {
+        evaluate
+        i += 1
+      }
+      System.nanoTime() - start
+    }
+    run()
+    run()
+  }
+
+  private def nestedLogitInputData(
+    timesAndCosts: Seq[(String, (Double, Double))]
+  ): util.LinkedHashMap[String, util.LinkedHashMap[String, java.lang.Double]] = {
+    val inputData = new util.LinkedHashMap[String, util.LinkedHashMap[String, java.lang.Double]]()
+    timesAndCosts.foreach {
+      case (alternativeName, (time, cost)) =>
+        val alternativeData = new util.LinkedHashMap[String, java.lang.Double]()
+        alternativeData.put("time", time)
+        alternativeData.put("cost", cost)
+        inputData.put(alternativeName, alternativeData)
+    }
+    inputData
+  }
+
+  private def nestedLogitInput(model: CompiledLogit, timesAndCosts: Seq[(String, (Double, Double))]) = {
+    val input = model.newInput()
+    val timeVariable = model.variableIndex("time")
+    val costVariable = model.variableIndex("cost")
+    timesAndCosts.foreach {
+      case (alternativeName, (time, cost)) =>
+        val alternative = model.alternativeIndex(alternativeName)
+        input.set(alternative, timeVariable, time)
+        input.set(alternative, costVariable, cost)
+    }
+    input
+  }
+
+  private def mnlInput(model: CompiledLogit, alternatives: Vector[AlternativeAttributes]) = {
+    val input = model.newInput()
+    fillMnlInput(model, input, alternatives)
+    input
+  }
+
+  private def fillMnlInput(
+    model: CompiledLogit,
+    input: CompiledLogit.Input,
+    alternatives: Vector[AlternativeAttributes]
+  ): Unit =
+    alternatives.foreach { alternative =>
+      val alternativeIndex = model.alternativeIndex(alternative.alternativeName)
+      input.setAvailable(alternativeIndex)
+      alternative.attributes.foreach {
+        case (variableName, value) => input.set(alternativeIndex, model.variableIndex(variableName), value)
+      }
+    }
+}
@@ -19,9 +19,11 @@ import beam.router.r5.DefaultNetworkCoordinator
 import beam.sim.BeamServices
 import beam.sim.common.GeoUtilsImpl
 import beam.sim.config.{BeamConfig, MatSimBeamConfigBuilder}
+import beam.tags.{ExcludeRegular, Performance}
 import beam.utils.NetworkHelperImpl
 import beam.utils.TestConfigUtils.testConfig
 import com.typesafe.config.ConfigFactory
+import com.typesafe.scalalogging.LazyLogging
 import com.vividsolutions.jts.geom.Envelope
 import org.matsim.api.core.v01.{Coord, Id, Scenario}
 import org.matsim.api.core.v01.network.Network
@@ -38,6 +40,7 @@ import org.scalatest.{BeforeAndAfterAll, FunSpecLike, Matchers}
 import scala.collection.JavaConverters._
 import scala.collection.immutable.List
 import scala.concurrent.ExecutionContext
+import scala.util.Random
 
 class AlonsoMoraPoolingAlgForRideHailSpec
     extends TestKit(
@@ -56,7 +59,8 @@ class AlonsoMoraPoolingAlgForRideHailSpec
     with FunSpecLike
     with BeforeAndAfterAll
     with MockitoSugar
-    with ImplicitSender {
+    with ImplicitSender
+    with LazyLogging {
 
   val probe: TestProbe = TestProbe.apply()
   private implicit val timeout: Timeout = Timeout(60, TimeUnit.SECONDS)
@@ -189,6 +193,52 @@ class AlonsoMoraPoolingAlgForRideHailSpec
         assert(row._2.getId == "v2" || row._2.getId == "v1")
       }
     }
+
+    it("assigns a large synthetic demand", Performance, ExcludeRegular) {
+      implicit val skimmer: BeamSkimmer = new BeamSkimmer(beamConfig)
+      val timeWindow = Map[MobilityRequestTrait, Int]((Pickup, 6 * 60), (Dropoff, 10 * 60))
+      Seq((250, 50), (500, 100), (1000, 200), (2000, 400)).foreach {
+        case (numberOfRequests, numberOfVehicles) =>
+          val (supply, demand) =
+            AlonsoMoraPoolingAlgForRideHailSpec.syntheticScenario(numberOfRequests, numberOfVehicles, seed = 17)
+          val alg = new AlonsoMoraPoolingAlgForRideHail(
+            AlonsoMoraPoolingAlgForRideHailSpec.demandSpatialIndex(demand),
+            supply,
+            timeWindow,
+            maxRequestsPerVehicle = 10,
+            beamSvc
+          )
+          val t0 = System.nanoTime()
+          val rvGraph = alg.pairwiseRVGraph
+          val t1 = System.nanoTime()
+          val rtvGraph = alg.rTVGraph(rvGraph, beamSvc)
+          val t2 = System.nanoTime()
+          val assignment = alg.greedyAssignment(rtvGraph)
+          val t3 = System.nanoTime()
+          logger.info(
+            "{} requests, {} vehicles: RV graph {} ms, RTV graph {} ms ({} vertices), assignment {} ms ({} trips)",
+            numberOfRequests.toString,
+            numberOfVehicles.toString,
+            ((t1 - t0) / 1000000).toString,
+            ((t2 - t1) / 1000000).toString,
+            rtvGraph.vertexSet().size().toString,
+            ((t3 - t2) / 1000000).toString,
+            assignment.size.toString
+          )
+
+          assignment.map(_._2) shouldBe assignment.map(_._2).distinct
+          assignment.flatMap(_._1.requests) shouldBe assignment.flatMap(_._1.requests).distinct
+          assignment.foreach {
+            case (trip, vehicle, _) =>
+              trip.requests.size should be <= vehicle.getFreeSeats
+              getRidehailSchedule(
+                timeWindow,
+                vehicle.schedule ++ trip.requests.flatMap(x => List(x.pickup, x.dropoff)),
+                beamSvc
+              ) shouldBe Some(trip.schedule)
+          }
+      }
+    }
   }
 
 }
@@ -233,6 +283,23 @@ object AlonsoMoraPoolingAlgForRideHailSpec {
     (List(v1, v2), List(p1Req, p2Req, p3Req, p4Req))
   }
 
+  /**
+    * Vehicles and requests at random locations of a square of 10 km, the requests within five minutes.
+    */
+  def syntheticScenario(numberOfRequests: Int, numberOfVehicles: Int, seed: Long)(
+    implicit skimmer: BeamSkimmer,
+    mockActorRef: ActorRef
+  ): (List[VehicleAndSchedule], List[CustomerRequest]) = {
+    val random = new Random(seed)
+    val start = 8 * 3600
+    def randomCoord: Coord = new Coord(random.nextDouble() * 10000, random.nextDouble() * 10000)
+    val vehicles = List.tabulate(numberOfVehicles)(i => createVehicleAndSchedule(s"v$i", randomCoord, start))
+    val requests = List.tabulate(numberOfRequests) { i =>
+      createPersonRequest(makeVehPersonId(s"p$i"), randomCoord, start + random.nextInt(5 * 60), randomCoord)
+    }
+    (vehicles, requests)
+  }
+
   def makeVehPersonId(perId: Id[Person])(implicit mockActorRef: ActorRef): VehiclePersonId =
     VehiclePersonId(Id.create(perId, classOf[Vehicle]), perId, mockActorRef)
 
@@ -0,0 +1,90 @@
+package beam.agentsim.agents.ridehail
+
+import akka.actor.ActorRef
+import beam.agentsim.agents.ridehail.RideHailVehicleManager.RideHailAgentLocation
+import beam.agentsim.agents.vehicles.BeamVehicleType
+import beam.agentsim.events.SpaceTime
+import com.vividsolutions.jts.geom.Envelope
+import org.matsim.api.core.v01.{Coord, Id}
+import org.matsim.vehicles.Vehicle
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.mutable
+import scala.util.Random
+
+class IdleVehicleIndexSpec extends WordSpecLike with Matchers {
+
+  "IdleVehicleIndex" should {
+    "find the same vehicles as looking at all of them while vehicles come, move and go" in {
+      val random = new Random(11)
+      (1 to 20).foreach { _ =>
+        val extent = 1000 + random.nextDouble() * 30000
+        val cellSize = Seq(50.0, 500.0, 2000.0)(random.nextInt(3))
+        val index = new IdleVehicleIndex(new Envelope(0, extent, 0, extent), cellSize)
+        val vehicles = mutable.Map[Id[Vehicle], RideHailAgentLocation]()
+        (1 to 2000).foreach { _ =>
+          val vehicleId = Id.createVehicleId(random.nextInt(300))
+          random.nextInt(5) match {
+            case 0 | 1 | 2 =>
+              // some vehicles end up outside of the bounding box
+              val location = agentLocation(vehicleId, randomCoord(random, extent, 0.1), random.nextInt(200))
+              index.put(location)
+              vehicles.put(vehicleId, location)
+            case 3 =>
+              index.remove(vehicleId)
+              vehicles.remove(vehicleId)
+            case 4 =>
+              val pickup = randomCoord(random, extent, 0.2)
+              val radius = Seq(100.0, 1000.0, 5000.0, 1e9)(random.nextInt(4))
+              val k = Seq(1, 2, 5, 1000)(random.nextInt(4))
+              val secondsPerMeter = Seq(0.0, 0.1, 1.0)(random.nextInt(3))
+              val exclude = Vector.fill(5)(Id.createVehicleId(random.nextInt(300))).toSet
+              val found = index.nearestByETA(pickup, radius, 100, secondsPerMeter, k, exclude)
+              val expected = vehicles.values.toVector
+                .filter(location => !exclude.contains(location.vehicleId) && distance(location, pickup) <= radius)
+                .map { location =>
+                  distance(location, pickup) * secondsPerMeter + math.max(location.currentLocationUTM.time - 100, 0)
+                }
+                .sorted
+                .take(k)
+              found.map(_.timeToCustomer) shouldBe expected
+              index.withinRadius(pickup, radius).map(_._1.vehicleId).toSet shouldBe
+              vehicles.values.filter(distance(_, pickup) <= radius).map(_.vehicleId).toSet
+          }
+          index.size shouldBe vehicles.size
+        }
+      }
+    }
+
+    "return the moved location of a vehicle" in {
+      val index = new IdleVehicleIndex(new Envelope(0, 10000, 0, 10000))
+      val vehicleId = Id.createVehicleId("1")
+      index.put(agentLocation(vehicleId, new Coord(100, 100), 0))
+      index.put(agentLocation(vehicleId, new Coord(9000, 9000), 0))
+      index.nearestByETA(new Coord(100, 100), 1000, 0, 0.1, 1) shouldBe empty
+      val found = index.nearestByETA(new Coord(9000, 9100), 1000, 0, 0.1, 1)
+      found.map(_.agentLocation.currentLocationUTM.loc) shouldBe Vector(new Coord(9000, 9000))
+      found.map(_.distance) shouldBe Vector(100.0)
+    }
+  }
+
+  private def agentLocation(vehicleId: Id[Vehicle], coord: Coord, time: Int): RideHailAgentLocation =
+    RideHailAgentLocation(
+      ActorRef.noSender,
+      vehicleId,
+      Id.create("car", classOf[BeamVehicleType]),
+      SpaceTime(coord, time)
+    )
+
+  private def randomCoord(random: Random, extent: Double, margin: Double): Coord =
+    new Coord(
+      (random.nextDouble() * (1 + 2 * margin) - margin) * extent,
+      (random.nextDouble() * (1 + 2 * margin) - margin) * extent
+    )
+
+  private def distance(location: RideHailAgentLocation, coord: Coord): Double = {
+    val dx = location.currentLocationUTM.loc.getX - coord.getX
+    val dy = location.currentLocationUTM.loc.getY - coord.getY
+    math.sqrt(dx * dx + dy * dy)
+  }
+}
@@ -0,0 +1,58 @@
+package beam.agentsim.events.handling
+
+import java.io.File
+import java.nio.file.Files
+
+import beam.sim.BeamServices
+import org.matsim.api.core.v01.Id
+import org.matsim.api.core.v01.events.{ActivityEndEvent, LinkEnterEvent}
+import org.matsim.api.core.v01.network.Link
+import org.matsim.api.core.v01.population.Person
+import org.matsim.vehicles.Vehicle
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.JavaConverters._
+
+class AsyncBeamEventsWriterSpec extends WordSpecLike with Matchers with MockitoSugar {
+
+  private def eventsLogger: BeamEventsLogger = {
+    val logger = mock[BeamEventsLogger](CALLS_REAL_METHODS)
+    doReturn(Set[Class[_]](classOf[ActivityEndEvent]).asJava).when(logger).getAllEventsToLog
+    doReturn(true).when(logger).shouldLogThisEventType(classOf[ActivityEndEvent])
+    doReturn(false).when(logger).shouldLogThisEventType(classOf[LinkEnterEvent])
+    logger
+  }
+
+  "AsyncBeamEventsWriter" should {
+    "write exactly the events the wrapped writer would write, in order" in {
+      val dir = Files.createTempDirectory("async-events-writer").toFile
+      val expectedFile = new File(dir, "expected.csv").getPath
+      val actualFile = new File(dir, "actual.csv").getPath
+      val events = (0 until 5000).flatMap { i =>
+        Seq(
+          new ActivityEndEvent(i, Id.create(i, classOf[Person]), Id.create(i, classOf[Link]), null, "Work"),
+          new LinkEnterEvent(i, Id.create(i, classOf[Vehicle]), Id.create(i, classOf[Link]))
+        )
+      }
+
+      val syncWriter = new BufferedBeamEventsWriterCSV(expectedFile, eventsLogger, mock[BeamServices], null)
+      events.foreach(syncWriter.handleEvent)
+      syncWriter.closeFile()
+
+      // a queue smaller than the number of events forces the events thread to wait for the writer
+      val asyncWriter = new AsyncBeamEventsWriter(
+        new BufferedBeamEventsWriterCSV(actualFile, eventsLogger, mock[BeamServices], null),
+        2 * AsyncBeamEventsWriter.BATCH_SIZE
+      )
+      events.foreach(asyncWriter.handleEvent)
+      asyncWriter.closeFile()
+
+      val expected = Files.readAllLines(new File(expectedFile).toPath).asScala
+      val actual = Files.readAllLines(new File(actualFile).toPath).asScala
+      actual.size shouldBe 5001
+      actual shouldBe expected
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package beam.agentsim.events.handling
+
+import java.io.File
+import java.nio.file.Files
+
+import beam.sim.BeamServices
+import beam.tags.{ExcludeRegular, Performance}
+import com.typesafe.scalalogging.LazyLogging
+import org.matsim.api.core.v01.Id
+import org.matsim.api.core.v01.events.{ActivityEndEvent, Event, PersonEntersVehicleEvent}
+import org.matsim.api.core.v01.network.Link
+import org.matsim.api.core.v01.population.Person
+import org.matsim.core.events.handler.BasicEventHandler
+import org.matsim.vehicles.Vehicle
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+class BeamEventsReaderBinarySpec extends WordSpecLike with Matchers with MockitoSugar with LazyLogging {
+
+  private def eventsLogger: BeamEventsLogger = {
+    val logger = mock[BeamEventsLogger](CALLS_REAL_METHODS)
+    doReturn(Set[Class[_]](classOf[ActivityEndEvent], classOf[PersonEntersVehicleEvent]).asJava)
+      .when(logger)
+      .getAllEventsToLog
+    doReturn(true).when(logger).shouldLogThisEventType(classOf[ActivityEndEvent])
+    doReturn(true).when(logger).shouldLogThisEventType(classOf[PersonEntersVehicleEvent])
+    logger
+  }
+
+  private def events(n: Int): IndexedSeq[Event] = (0 until n).map { i =>
+    if (i % 2 == 0)
+      new ActivityEndEvent(i / 2, Id.create(i, classOf[Person]), Id.create(i % 100, classOf[Link]), null, "Work")
+    else
+      new PersonEntersVehicleEvent(i / 2 + 0.5, Id.create(i, classOf[Person]), Id.create(i % 10, classOf[Vehicle]))
+  }
+
+  private def write(writer: BeamEventsWriterBase, toWrite: IndexedSeq[Event]): Long = {
+    val start = System.nanoTime()
+    toWrite.foreach(writer.handleEvent)
+    writer.closeFile()
+    System.nanoTime() - start
+  }
+
+  "BeamEventsReaderBinary" should {
+    "replay the events written by BeamEventsWriterBinary with all their attributes" in {
+      val file = new File(Files.createTempDirectory("binary-events").toFile, "events.bin").getPath
+      val written = events(10000)
+      write(new BeamEventsWriterBinary(file, eventsLogger, mock[BeamServices], null), written)
+
+      val replayed = new ArrayBuffer[Event]
+      BeamEventsReaderBinary.replay(file, new BasicEventHandler {
+        override def handleEvent(event: Event): Unit = replayed += event
+      })
+
+      replayed.size shouldBe written.size
+      replayed.zip(written).foreach {
+        case (actual, expected) =>
+          actual.getTime shouldBe expected.getTime
+          actual.getEventType shouldBe expected.getEventType
+          actual.getAttributes.asScala shouldBe expected.getAttributes.asScala
+      }
+    }
+
+    "write and read events faster than csv.gz" taggedAs (Performance, ExcludeRegular) in {
+      val dir = Files.createTempDirectory("binary-events-benchmark").toFile
+      val csvFile = new File(dir, "events.csv.gz").getPath
+      val binaryFile = new File(dir, "events.bin").getPath
+      val toWrite = events(2000000)
+
+      val csvWriteNanos = write(new BufferedBeamEventsWriterCSV(csvFile, eventsLogger, mock[BeamServices], null), toWrite)
+      val binaryWriteNanos = write(new BeamEventsWriterBinary(binaryFile, eventsLogger, mock[BeamServices], null), toWrite)
+
+      var csvRows = 0
+      val csvReadStart = System.nanoTime()
+      val csvReader = org.matsim.core.utils.io.IOUtils.getBufferedReader(csvFile)
+      try {
+        val header = csvReader.readLine().split(",")
+        var line = csvReader.readLine()
+        while (line != null) {
+          // what the csv based post-processing tools do for every row
+          val columns = line.split(",")
+          header.indices.filter(_ < columns.length).map(i => header(i) -> columns(i)).toMap
+          csvRows += 1
+          line = csvReader.readLine()
+        }
+      } finally {
+        csvReader.close()
+      }
+      val csvReadNanos = System.nanoTime() - csvReadStart
+
+      var binaryEvents = 0
+      val binaryReadStart = System.nanoTime()
+      BeamEventsReaderBinary.replay(binaryFile, new BasicEventHandler {
+        override def handleEvent(event: Event): Unit = binaryEvents += 1
+      })
+      val binaryReadNanos = System.nanoTime() - binaryReadStart
+
+      logger.info(
+        "{} events, csv.gz: write {} ms, read {} ms, {} bytes; bin: write {} ms, read {} ms, {} bytes",
+        toWrite.size.toString,
+        (csvWriteNanos / 1000000).toString,
+        (csvReadNanos / 1000000).toString,
+        new File(csvFile).length().toString,
+        (binaryWriteNanos / 1000000).toString,
+        (binaryReadNanos / 1000000).toString,
+        new File(binaryFile).length().toString
+      )
+      csvRows shouldBe toWrite.size
+      binaryEvents shouldBe toWrite.size
+      binaryWriteNanos should be < csvWriteNanos
+      binaryReadNanos should be < csvReadNanos
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package beam.agentsim.events.handling
+
+import java.io.File
+import java.nio.file.Files
+
+import beam.sim.BeamServices
+import beam.tags.{ExcludeRegular, Performance}
+import com.typesafe.scalalogging.LazyLogging
+import org.matsim.api.core.v01.Id
+import org.matsim.api.core.v01.events.{ActivityEndEvent, Event, PersonEntersVehicleEvent}
+import org.matsim.api.core.v01.network.Link
+import org.matsim.api.core.v01.population.Person
+import org.matsim.vehicles.Vehicle
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.JavaConverters._
+
+class BufferedBeamEventsWriterCSVSpec extends WordSpecLike with Matchers with MockitoSugar with LazyLogging {
+
+  private val eventClasses: java.util.Set[Class[_]] =
+    Set[Class[_]](classOf[ActivityEndEvent], classOf[PersonEntersVehicleEvent]).asJava
+
+  private def eventsLogger: BeamEventsLogger = {
+    val logger = mock[BeamEventsLogger](CALLS_REAL_METHODS)
+    doReturn(eventClasses).when(logger).getAllEventsToLog
+    doReturn(true).when(logger).shouldLogThisEventType(classOf[ActivityEndEvent])
+    doReturn(true).when(logger).shouldLogThisEventType(classOf[PersonEntersVehicleEvent])
+    logger
+  }
+
+  private def events(n: Int): IndexedSeq[Event] = (0 until n).map { i =>
+    if (i % 2 == 0)
+      new ActivityEndEvent(i, Id.create(i, classOf[Person]), Id.create(i % 100, classOf[Link]), null, "Work,Shop")
+    else
+      new PersonEntersVehicleEvent(i, Id.create(i, classOf[Person]), Id.create(i % 10, classOf[Vehicle]))
+  }
+
+  private def write(writer: BeamEventsWriterBase, toWrite: IndexedSeq[Event]): Long = {
+    val start = System.nanoTime()
+    toWrite.foreach(writer.handleEvent)
+    writer.closeFile()
+    System.nanoTime() - start
+  }
+
+  "BufferedBeamEventsWriterCSV" should {
+    "write the same rows as BeamEventsWriterCSV" in {
+      val dir = Files.createTempDirectory("buffered-events-writer").toFile
+      val expectedFile = new File(dir, "expected.csv").getPath
+      val actualFile = new File(dir, "actual.csv").getPath
+      val toWrite = events(1000)
+
+      write(new BeamEventsWriterCSV(expectedFile, eventsLogger, mock[BeamServices], null), toWrite)
+      write(new BufferedBeamEventsWriterCSV(actualFile, eventsLogger, mock[BeamServices], null), toWrite)
+
+      val expected = Files.readAllLines(new File(expectedFile).toPath).asScala
+      val actual = Files.readAllLines(new File(actualFile).toPath).asScala
+      actual.size shouldBe 1001
+      actual shouldBe expected
+    }
+
+    "write events faster than BeamEventsWriterCSV" taggedAs (Performance, ExcludeRegular) in {
+      val dir = Files.createTempDirectory("buffered-events-writer-benchmark").toFile
+      val toWrite = events(2000000)
+
+      // warm up both writers before measuring
+      write(new BeamEventsWriterCSV(new File(dir, "warmup.csv.gz").getPath, eventsLogger, mock[BeamServices], null),
+        toWrite.take(100000))
+      write(new BufferedBeamEventsWriterCSV(new File(dir, "warmup.csv.gz").getPath, eventsLogger, mock[BeamServices],
+        null), toWrite.take(100000))
+
+      val flushingNanos = write(
+        new BeamEventsWriterCSV(new File(dir, "flushing.csv.gz").getPath, eventsLogger, mock[BeamServices], null),
+        toWrite
+      )
+      val bufferedNanos = write(
+        new BufferedBeamEventsWriterCSV(new File(dir, "buffered.csv.gz").getPath, eventsLogger, mock[BeamServices], null),
+        toWrite
+      )
+      logger.info(
+        "Wrote {} events: BeamEventsWriterCSV {} events/s, BufferedBeamEventsWriterCSV {} events/s",
+        toWrite.size.toString,
+        (toWrite.size * 1e9 / flushingNanos).toLong.toString,
+        (toWrite.size * 1e9 / bufferedNanos).toLong.toString
+      )
+      bufferedNanos should be < flushingNanos
+    }
+  }
+}
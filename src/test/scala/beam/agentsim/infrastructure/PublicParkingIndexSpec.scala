@@ -0,0 +1,157 @@
+package beam.agentsim.infrastructure
+
+import beam.agentsim.infrastructure.ParkingStall._
+import beam.agentsim.infrastructure.TAZTreeMap.TAZ
+import beam.agentsim.infrastructure.ZonalParkingManager.ParkingAlternative
+import beam.sim.common.GeoUtils
+import beam.tags.{ExcludeRegular, Performance}
+import com.typesafe.scalalogging.LazyLogging
+import org.matsim.api.core.v01.Coord
+import org.matsim.core.utils.collections.QuadTree
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+class PublicParkingIndexSpec extends WordSpecLike with Matchers with LazyLogging {
+
+  "PublicParkingIndex" should {
+    "find the same best stalls as looking at all TAZs" in {
+      val random = new Random(7)
+      (1 to 20).foreach { _ =>
+        val tazs = randomTazs(random, 1 + random.nextInt(300), 1000 + random.nextInt(30000))
+        val resources = publicResources(tazs, random)
+        val index = new PublicParkingIndex(tazs, resources, ZonalParkingManager.maxStallDistanceFromTazCenter)
+        (1 to 50).foreach { _ =>
+          val location = new Coord(random.nextDouble() * 40000 - 5000, random.nextDouble() * 40000 - 5000)
+          val weightPerMeter = Seq(0.0, 0.001, 1.0)(random.nextInt(3))
+          val k = 1 + random.nextInt(3)
+          val maxDistance = Seq(500.0, 5000.0, 10000.0)(random.nextInt(3))
+          val rank = rankByCenterDistance(location, weightPerMeter) _
+          val found = index.findBest(location, maxDistance, k, weightPerMeter)(rank).map(_.rankingWeight)
+          found shouldBe bruteForce(tazs, resources, location, maxDistance, k, rank).map(_.rankingWeight)
+        }
+      }
+    }
+
+    "skip TAZs without stalls left" in {
+      val tazs = Vector(new TAZ("1", new Coord(0, 0), 10000), new TAZ("2", new Coord(1000, 0), 10000))
+      val resources = tazs.map { taz =>
+        StallAttributes(taz.tazId, Public, FlatFee, NoCharger, Any) -> StallValues(10, 0)
+      }.toMap
+      val index = new PublicParkingIndex(tazs, resources, ZonalParkingManager.maxStallDistanceFromTazCenter)
+      val location = new Coord(10, 0)
+      val rank = rankByCenterDistance(location, 1.0) _
+      index.findBest(location, 5000, 1, 1.0)(rank).map(_.stallAttributes.tazId.toString) shouldBe Vector("1")
+
+      resources.foreach {
+        case (attributes, values) => if (attributes.tazId.toString == "1") values._numStalls = 0
+      }
+      index.findBest(location, 5000, 1, 1.0)(rank).map(_.stallAttributes.tazId.toString) shouldBe Vector("2")
+    }
+
+    "answer more inquiries per second than a disk search over all nearby TAZs" taggedAs (Performance, ExcludeRegular) in {
+      val random = new Random(42)
+      val tazs = randomTazs(random, 5000, 60000)
+      val resources = publicResources(tazs, random)
+      val index = new PublicParkingIndex(tazs, resources, ZonalParkingManager.maxStallDistanceFromTazCenter)
+      val quadTree = new QuadTree[TAZ](0, 0, 60000, 60000)
+      tazs.foreach(taz => quadTree.put(taz.coord.getX, taz.coord.getY, taz))
+      val locations = Vector.fill(100000)(new Coord(random.nextDouble() * 60000, random.nextDouble() * 60000))
+
+      def diskSearch(location: Coord): Option[ParkingAlternative] = {
+        val rank = rankByCenterDistance(location, 0.002) _
+        quadTree
+          .getDisk(location.getX, location.getY, ZonalParkingManager.maxSearchRadius)
+          .asScala
+          .toVector
+          .flatMap { taz =>
+            IndexerForZonalParkingManager.allPricingModels.flatMap { pricingModel =>
+              resources.get(StallAttributes(taz.tazId, Public, pricingModel, NoCharger, Any)).collect {
+                case values if values.numStalls > 0 && values.feeInCents == 0 => rank(taz, pricingModel, values)
+              }
+            }
+          }
+          .sortBy(_.rankingWeight)
+          .headOption
+      }
+
+      def inquiriesPerSecond(search: Coord => Option[ParkingAlternative]): Double = {
+        locations.take(10000).foreach(search)
+        val start = System.nanoTime()
+        locations.foreach(search)
+        locations.size / ((System.nanoTime() - start) / 1e9)
+      }
+
+      val diskSearchRate = inquiriesPerSecond(diskSearch)
+      val indexRate = inquiriesPerSecond { location =>
+        index
+          .findBest(location, ZonalParkingManager.maxSearchRadius, 1, 0.002)(rankByCenterDistance(location, 0.002))
+          .headOption
+      }
+      logger.info(
+        "Disk search: {} inquiries/s, PublicParkingIndex: {} inquiries/s",
+        diskSearchRate.toInt.toString,
+        indexRate.toInt.toString
+      )
+      indexRate should be > diskSearchRate
+    }
+  }
+
+  private def randomTazs(random: Random, numberOfTazs: Int, extent: Double): Vector[TAZ] =
+    Vector.tabulate(numberOfTazs) { i =>
+      new TAZ(
+        i.toString,
+        new Coord(random.nextDouble() * extent, random.nextDouble() * extent),
+        random.nextDouble() * 1e6
+      )
+    }
+
+  private def publicResources(tazs: Seq[TAZ], random: Random): Map[StallAttributes, StallValues] =
+    (for {
+      taz          <- tazs
+      pricingModel <- IndexerForZonalParkingManager.allPricingModels
+    } yield {
+      StallAttributes(taz.tazId, Public, pricingModel, NoCharger, Any) ->
+      StallValues(if (random.nextInt(4) == 0) 0 else 10, if (random.nextInt(4) == 0) 100 else 0)
+    }).toMap
+
+  // Ranks by the distance of the TAZ center, which is never more than the distance of any of its stalls
+  private def rankByCenterDistance(location: Coord, weightPerMeter: Double)(
+    taz: TAZ,
+    pricingModel: PricingModel,
+    stallValues: StallValues
+  ): ParkingAlternative = {
+    val distanceOfClosestStall =
+      math.max(GeoUtils.distFormula(taz.coord, location) - ZonalParkingManager.maxStallDistanceFromTazCenter(taz), 0)
+    ParkingAlternative(
+      StallAttributes(taz.tazId, Public, pricingModel, NoCharger, Any),
+      taz.coord,
+      0.0,
+      weightPerMeter * distanceOfClosestStall,
+      stallValues
+    )
+  }
+
+  private def bruteForce(
+    tazs: Seq[TAZ],
+    resources: Map[StallAttributes, StallValues],
+    location: Coord,
+    maxDistance: Double,
+    k: Int,
+    rank: (TAZ, PricingModel, StallValues) => ParkingAlternative
+  ): Vector[ParkingAlternative] = {
+    tazs
+      .filter(taz => GeoUtils.distFormula(taz.coord, location) <= maxDistance)
+      .flatMap { taz =>
+        IndexerForZonalParkingManager.allPricingModels.flatMap { pricingModel =>
+          resources.get(StallAttributes(taz.tazId, Public, pricingModel, NoCharger, Any)).collect {
+            case values if values.numStalls > 0 && values.feeInCents == 0 => rank(taz, pricingModel, values)
+          }
+        }
+      }
+      .sortBy(_.rankingWeight)
+      .take(k)
+      .toVector
+  }
+}
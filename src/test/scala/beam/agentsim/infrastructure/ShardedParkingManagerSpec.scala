@@ -0,0 +1,183 @@
+package beam.agentsim.infrastructure
+
+import akka.actor.{Actor, ActorRef, ActorSystem, Props}
+import akka.testkit.{ImplicitSender, TestKit, TestProbe}
+import beam.agentsim.Resource.ReleaseParkingStall
+import beam.agentsim.infrastructure.ParkingManager._
+import beam.agentsim.infrastructure.ParkingStall.{FlatFee, NoCharger, NoNeed, Public, StallAttributes}
+import beam.agentsim.infrastructure.ShardedParkingManager._
+import beam.agentsim.infrastructure.TAZTreeMap.TAZ
+import beam.sim.BeamServices
+import beam.sim.population.AttributesOfIndividual
+import org.matsim.api.core.v01.{Coord, Id}
+import org.matsim.core.utils.collections.QuadTree
+import org.matsim.vehicles.Vehicle
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{BeforeAndAfterAll, Matchers, WordSpecLike}
+
+class ShardedParkingManagerSpec
+    extends TestKit(ActorSystem("ShardedParkingManagerSpec"))
+    with WordSpecLike
+    with Matchers
+    with BeforeAndAfterAll
+    with MockitoSugar
+    with ImplicitSender {
+
+  // Two TAZs in the western region 0 and two in the eastern region 1, with stalls up to 354 m from their centers
+  private val tazs = Vector(
+    new TAZ("west-1", new Coord(0, 0), 250000),
+    new TAZ("west-2", new Coord(1000, 0), 250000),
+    new TAZ("east-1", new Coord(2000, 0), 250000),
+    new TAZ("east-2", new Coord(3000, 0), 250000)
+  )
+
+  private val westStall = stall("10", tazs(1))
+  private val eastStall = stall("11", tazs(2))
+
+  // Nearest to west-2, 600 m from the eastern region
+  private val borderLocation = new Coord(1400, 0)
+
+  "ShardedParkingManager.spatialRegions" should {
+    "split the TAZs into regions of about the same size" in {
+      val tazs = (0 until 1000).map(i => new TAZ(i.toString, new Coord((i * 7919) % 1000, (i * 104729) % 997), 1.0))
+      Seq(1, 2, 3, 5, 8).foreach { numberOfRegions =>
+        val regions = ShardedParkingManager.spatialRegions(tazs, numberOfRegions)
+        regions.keySet shouldBe tazs.map(_.tazId).toSet
+        val sizes = regions.values.groupBy(identity).mapValues(_.size)
+        sizes.keySet shouldBe (0 until numberOfRegions).toSet
+        sizes.values.max - sizes.values.min should be <= 1
+      }
+    }
+
+    "cut along x first" in {
+      val tazs = Vector(
+        new TAZ("west-south", new Coord(0, 0), 1.0),
+        new TAZ("west-north", new Coord(0, 10), 1.0),
+        new TAZ("east-south", new Coord(10, 0), 1.0),
+        new TAZ("east-north", new Coord(10, 10), 1.0)
+      )
+      val regions = ShardedParkingManager.spatialRegions(tazs, 2).map { case (tazId, region) => tazId.toString -> region }
+      regions("west-south") shouldBe regions("west-north")
+      regions("east-south") shouldBe regions("east-north")
+      regions("west-south") should not be regions("east-south")
+    }
+  }
+
+  "A ShardedParkingManager" should {
+    "give the better stall of another region to an inquiry near the border" in {
+      val shardProbe = TestProbe()
+      val parkingManager = shardedParkingManager(Some((westStall, 2.0)), Some((eastStall, 1.0)), shardProbe.ref)
+
+      // 2.0 is worth 2000 m of walking, so the eastern region may have a better stall
+      val inquiry = parkingInquiry(borderLocation)
+      parkingManager ! inquiry
+      expectMsg(ParkingInquiryResponse(eastStall, inquiry.requestId))
+      shardProbe.expectMsg((0, OfferParkingStall(inquiry)))
+      shardProbe.expectMsg((1, OfferParkingStall(inquiry)))
+      shardProbe.expectMsg((1, AcceptParkingStall(inquiry, eastStall, self)))
+    }
+
+    "only ask the region of the nearest TAZ if no other region is closer than the walk its offer is worth" in {
+      val shardProbe = TestProbe()
+      val parkingManager = shardedParkingManager(Some((westStall, 0.1)), Some((eastStall, 0.0)), shardProbe.ref)
+
+      // 0.1 is worth 100 m of walking, and the eastern stalls are at least 600 - 354 m away
+      val inquiry = parkingInquiry(borderLocation)
+      parkingManager ! inquiry
+      expectMsg(ParkingInquiryResponse(westStall, inquiry.requestId))
+      shardProbe.expectMsg((0, OfferParkingStall(inquiry)))
+      shardProbe.expectMsg((0, AcceptParkingStall(inquiry, westStall, self)))
+      shardProbe.expectNoMessage()
+    }
+
+    "answer a depot inquiry without a stall if no region offers one" in {
+      val shardProbe = TestProbe()
+      val parkingManager = shardedParkingManager(None, None, shardProbe.ref)
+
+      val inquiry = DepotParkingInquiry(Id.create("ride-hail-1", classOf[Vehicle]), borderLocation, ParkingStall.Any)
+      parkingManager ! inquiry
+      expectMsg(DepotParkingInquiryResponse(None, inquiry.requestId))
+      shardProbe.expectMsg((0, OfferDepotParkingStall(inquiry)))
+      shardProbe.expectMsg((1, OfferDepotParkingStall(inquiry)))
+    }
+
+    "release a stall at the shard that gave it" in {
+      val shardProbe = TestProbe()
+      val parkingManager = shardedParkingManager(None, None, shardProbe.ref)
+
+      parkingManager ! ReleaseParkingStall(Id.create("7", classOf[ParkingStall]))
+      shardProbe.expectMsg((1, ReleaseParkingStall(Id.create("7", classOf[ParkingStall]))))
+      parkingManager ! ReleaseParkingStall(Id.create("8", classOf[ParkingStall]))
+      shardProbe.expectMsg((0, ReleaseParkingStall(Id.create("8", classOf[ParkingStall]))))
+    }
+  }
+
+  // Offers its stall, gives it to whoever accepts it, and tells the probe what it was asked
+  private class OfferingShard(shard: Int, offer: Option[(ParkingStall, Double)], probe: ActorRef) extends Actor {
+
+    def receive: Receive = {
+      case message @ OfferParkingStall(inquiry) =>
+        probe ! ((shard, message))
+        sender() ! ParkingStallOffer(inquiry.requestId, offer.map(_._1), offer.fold(Double.PositiveInfinity)(_._2))
+      case message @ OfferDepotParkingStall(inquiry) =>
+        probe ! ((shard, message))
+        sender() ! ParkingStallOffer(inquiry.requestId, offer.map(_._1), offer.fold(Double.PositiveInfinity)(_._2))
+      case message @ AcceptParkingStall(inquiry, stall, replyTo) =>
+        probe ! ((shard, message))
+        replyTo ! ParkingInquiryResponse(stall, inquiry.requestId)
+      case message =>
+        probe ! ((shard, message))
+    }
+  }
+
+  private def shardedParkingManager(
+    westOffer: Option[(ParkingStall, Double)],
+    eastOffer: Option[(ParkingStall, Double)],
+    probe: ActorRef
+  ): ActorRef = {
+    val offers = Map(0 -> westOffer, 1 -> eastOffer)
+    system.actorOf(
+      Props(
+        new ShardedParkingManager(
+          beamServices(),
+          2,
+          (shard, _) => Props(new OfferingShard(shard, offers(shard), probe))
+        )
+      )
+    )
+  }
+
+  private def beamServices(): BeamServices = {
+    val services = mock[BeamServices](withSettings().stubOnly())
+    val quadTree = new QuadTree[TAZ](-10000, -10000, 10000, 10000)
+    tazs.foreach(taz => quadTree.put(taz.coord.getX, taz.coord.getY, taz))
+    when(services.tazTreeMap).thenReturn(new TAZTreeMap(quadTree))
+    services
+  }
+
+  // Walking a kilometer is worth 1.0
+  private def parkingInquiry(destination: Coord): ParkingInquiry =
+    ParkingInquiry(
+      destination,
+      destination,
+      "shopping",
+      AttributesOfIndividual.EMPTY.copy(valueOfTime = 1.4 * 3.6),
+      NoNeed,
+      0,
+      3600
+    )
+
+  private def stall(id: String, taz: TAZ): ParkingStall =
+    ParkingStall(
+      Id.create(id, classOf[ParkingStall]),
+      StallAttributes(taz.tazId, Public, FlatFee, NoCharger, ParkingStall.Any),
+      taz.coord,
+      0.0,
+      None
+    )
+
+  override def afterAll: Unit = {
+    shutdown()
+  }
+}
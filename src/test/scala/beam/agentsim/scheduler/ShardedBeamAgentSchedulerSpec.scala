@@ -0,0 +1,235 @@
+package beam.agentsim.scheduler
+
+import akka.actor.{Actor, ActorRef, ActorSystem, Props}
+import akka.testkit.{ImplicitSender, TestKit}
+import beam.agentsim.agents.BeamAgent.Finish
+import beam.agentsim.scheduler.BeamAgentScheduler._
+import beam.agentsim.scheduler.ShardedBeamAgentScheduler.GetShardRouter
+import beam.agentsim.scheduler.ShardedBeamAgentSchedulerSpec._
+import beam.agentsim.scheduler.Trigger.TriggerWithId
+import beam.sim.config.BeamConfig
+import beam.tags.{ExcludeRegular, Performance}
+import beam.utils.StuckFinder
+import beam.utils.TestConfigUtils.testConfig
+import com.typesafe.scalalogging.LazyLogging
+import org.scalatest.{BeforeAndAfterAll, Matchers, WordSpecLike}
+
+import scala.collection.mutable
+import scala.concurrent.duration._
+import scala.util.Random
+
+class ShardedBeamAgentSchedulerSpec
+    extends TestKit(
+      ActorSystem("ShardedBeamAgentSchedulerSpec", testConfig("test/input/beamville/beam.conf").resolve())
+    )
+    with WordSpecLike
+    with Matchers
+    with BeforeAndAfterAll
+    with ImplicitSender
+    with LazyLogging {
+
+  private lazy val config = BeamConfig(system.settings.config)
+
+  "A ShardedBeamAgentScheduler" should {
+    "send every agent the same triggers as the single scheduler" in {
+      val expected = ticks(run(singleScheduler(stopTick = 2000, maxWindow = 10), 50, 2000, new WindowChecker))
+      Seq(1, 2, 3, 4).foreach { numberOfShards =>
+        ticks(run(shardedScheduler(2000, 10, numberOfShards), 50, 2000, new WindowChecker)) shouldBe expected
+      }
+    }
+
+    "send every agent the triggers of a tick in the same order and with the same first ids as the single scheduler" in {
+      val expected = run(singleScheduler(stopTick = 1000, maxWindow = 1), 50, 1000, new WindowChecker)
+      expected.values.map(_.firstTriggerId).toSet shouldBe (1L to 50L).toSet
+      Seq(1, 2, 3, 4).foreach { numberOfShards =>
+        run(shardedScheduler(1000, 1, numberOfShards), 50, 1000, new WindowChecker) shouldBe expected
+      }
+    }
+
+    "not release a tick before all earlier ticks are completed with a window of one" in {
+      val windowChecker = new WindowChecker
+      run(shardedScheduler(500, 1, 4), 50, 500, windowChecker)
+      windowChecker.violations shouldBe 0
+      windowChecker.startedTriggers should be > 300
+    }
+
+    "scale with the number of shards" taggedAs (Performance, ExcludeRegular) in {
+      val numberOfAgents = 20000
+      val stopTick = 3 * 3600
+      val (expected, singleNanos) = time(
+        ticks(run(singleScheduler(stopTick, maxWindow = 30), numberOfAgents, stopTick, new WindowChecker, false))
+      )
+      logger.info("BeamAgentScheduler: {} ms", (singleNanos / 1000000).toString)
+      val shardedNanos = Iterator
+        .iterate(1)(_ * 2)
+        .takeWhile(_ <= Runtime.getRuntime.availableProcessors())
+        .map { numberOfShards =>
+          val (shardedTicks, nanos) = time(
+            ticks(
+              run(shardedScheduler(stopTick, 30, numberOfShards), numberOfAgents, stopTick, new WindowChecker, false)
+            )
+          )
+          logger.info(
+            "ShardedBeamAgentScheduler with {} shards: {} ms",
+            numberOfShards.toString,
+            (nanos / 1000000).toString
+          )
+          shardedTicks shouldBe expected
+          numberOfShards -> nanos
+        }
+        .toMap
+      if (shardedNanos.size > 1) {
+        shardedNanos(shardedNanos.keys.max) should be < shardedNanos(1)
+      }
+    }
+  }
+
+  private def singleScheduler(stopTick: Int, maxWindow: Int): ActorRef =
+    system.actorOf(
+      SchedulerProps(config, stopTick, maxWindow, new StuckFinder(config.beam.debug.stuckAgentDetection))
+    )
+
+  private def shardedScheduler(stopTick: Int, maxWindow: Int, numberOfShards: Int): ActorRef = {
+    system.actorOf(ShardedBeamAgentScheduler.props(stopTick, maxWindow, numberOfShards)) ! GetShardRouter
+    expectMsgType[ActorRef]
+  }
+
+  /**
+    * Runs agents that step through time with random, but seeded, durations and poke each other, and returns the
+    * triggers every agent got.
+    */
+  private def run(
+    scheduler: ActorRef,
+    numberOfAgents: Int,
+    stopTick: Int,
+    windowChecker: WindowChecker,
+    completeLater: Boolean = true
+  ): Map[Int, ReceivedTriggers] = {
+    val agents = (0 until numberOfAgents).map { seed =>
+      system.actorOf(Props(new SteppingAgent(seed, stopTick, scheduler, windowChecker, completeLater)))
+    }
+    agents.foreach(_ ! agents)
+    scheduler ! ScheduleTriggers(agents.map(ScheduleTrigger(Step(0), _)))
+    scheduler ! StartSchedule(0)
+    expectMsg(5.minutes, CompletionNotice(0L))
+    agents.zipWithIndex.map {
+      case (agent, seed) =>
+        agent ! ReportTicks
+        seed -> expectMsgType[ReceivedTriggers]
+    }.toMap
+  }
+
+  // Which agent gets which trigger first depends on the timing once the window is wider than one tick
+  private def ticks(receivedTriggers: Map[Int, ReceivedTriggers]): Map[Int, List[Int]] =
+    receivedTriggers.mapValues(_.triggers.map(_._1).sorted)
+
+  private def time[T](thunk: => T): (T, Long) = {
+    val start = System.nanoTime()
+    val result = thunk
+    (result, System.nanoTime() - start)
+  }
+
+  override def afterAll: Unit = {
+    shutdown()
+  }
+}
+
+object ShardedBeamAgentSchedulerSpec {
+
+  case class Step(tick: Int) extends Trigger
+
+  case class Poke(tick: Int) extends Trigger
+
+  case class Complete(tick: Int, triggerId: Long, newTriggers: Vector[ScheduleTrigger], scheduler: ActorRef)
+
+  case object ReportTicks
+
+  /**
+    * @param triggers tick and name of the triggers an agent got, in the order it got them
+    * @param firstTriggerId id of the first trigger it got
+    */
+  case class ReceivedTriggers(triggers: List[(Int, String)], firstTriggerId: Long)
+
+  /**
+    * Counts the triggers agents received but did not complete yet, to detect triggers of a tick that were sent while
+    * triggers of an earlier tick were still running.
+    */
+  class WindowChecker {
+    private val runningPerTick = mutable.TreeMap[Int, Int]()
+    private var violationCount = 0
+    private var startedCount = 0
+
+    def started(tick: Int): Unit = synchronized {
+      if (runningPerTick.nonEmpty && runningPerTick.firstKey < tick) violationCount += 1
+      runningPerTick(tick) = runningPerTick.getOrElse(tick, 0) + 1
+      startedCount += 1
+    }
+
+    def completed(tick: Int): Unit = synchronized {
+      val running = runningPerTick(tick) - 1
+      if (running == 0) runningPerTick.remove(tick) else runningPerTick(tick) = running
+    }
+
+    def violations: Int = synchronized(violationCount)
+
+    def startedTriggers: Int = synchronized(startedCount)
+  }
+
+  /**
+    * Steps to a random later tick, and pokes a random other agent, which likely belongs to another shard, at a random
+    * later tick, through the scheduler and before completing. Pokes have a higher priority than steps, so the order in
+    * which an agent gets the triggers of a tick doesn't depend on the timing. Unless told otherwise, it completes a
+    * while after it received the trigger, so that triggers released too early are running at the same time as earlier
+    * ones.
+    */
+  class SteppingAgent(
+    seed: Int,
+    stopTick: Int,
+    scheduler: ActorRef,
+    windowChecker: WindowChecker,
+    completeLater: Boolean
+  ) extends Actor {
+    import context.dispatcher
+
+    private val random = new Random(seed)
+    // apart from the random steps, as the order of steps and pokes depends on the timing
+    private val delays = new Random(seed)
+    private val triggers = mutable.ListBuffer[(Int, String)]()
+    private var firstTriggerId = 0L
+    private var agents: IndexedSeq[ActorRef] = Vector()
+
+    def receive: Receive = {
+      case allAgents: IndexedSeq[ActorRef @unchecked] =>
+        agents = allAgents
+      case TriggerWithId(Step(tick), triggerId) =>
+        received(tick, "step", triggerId)
+        val nextTick = tick + 1 + random.nextInt(if (random.nextBoolean()) 5 else 300)
+        val pokeTick = tick + 1 + random.nextInt(10)
+        if (pokeTick <= stopTick) {
+          scheduler ! ScheduleTrigger(Poke(pokeTick), agents(random.nextInt(agents.size)), 1)
+        }
+        val newTriggers = if (nextTick <= stopTick) Vector(ScheduleTrigger(Step(nextTick), self)) else Vector()
+        complete(Complete(tick, triggerId, newTriggers, sender()))
+      case TriggerWithId(Poke(tick), triggerId) =>
+        received(tick, "poke", triggerId)
+        complete(Complete(tick, triggerId, Vector(), sender()))
+      case Complete(tick, triggerId, newTriggers, replyTo) =>
+        windowChecker.completed(tick)
+        replyTo ! CompletionNotice(triggerId, newTriggers)
+      case ReportTicks =>
+        sender() ! ReceivedTriggers(triggers.toList, firstTriggerId)
+      case Finish =>
+    }
+
+    private def received(tick: Int, name: String, triggerId: Long): Unit = {
+      windowChecker.started(tick)
+      if (triggers.isEmpty) firstTriggerId = triggerId
+      triggers += tick -> name
+    }
+
+    private def complete(completion: Complete): Unit = {
+      if (completeLater) context.system.scheduler.scheduleOnce(delays.nextInt(3).milliseconds, self, completion)
+      else self ! completion
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package beam.agentsim.scheduler
+
+import beam.agentsim.scheduler.BeamAgentScheduler.{ScheduledTrigger, ScheduledTriggerComparator}
+import beam.agentsim.scheduler.Trigger.TriggerWithId
+import beam.agentsim.scheduler.TriggerCalendarQueueSpec._
+import beam.tags.{ExcludeRegular, Performance}
+import com.typesafe.scalalogging.LazyLogging
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.util.Random
+
+class TriggerCalendarQueueSpec extends WordSpecLike with Matchers with LazyLogging {
+
+  "TriggerCalendarQueue" should {
+    "poll triggers in the same order as a PriorityQueue" in {
+      val random = new Random(42)
+      (1 to 50).foreach { _ =>
+        val calendarQueue = new TriggerCalendarQueue(1 << (1 + random.nextInt(6)))
+        val priorityQueue = new java.util.PriorityQueue[ScheduledTrigger](ScheduledTriggerComparator)
+        var triggerId = 0L
+        var now = random.nextInt(50) - 25
+        (1 to 2000).foreach { _ =>
+          random.nextInt(10) match {
+            case op if op < 5 =>
+              // mostly near future, sometimes far future or slightly in the past
+              val ahead = if (random.nextInt(4) == 0) random.nextInt(500) else random.nextInt(20)
+              val tick = now - random.nextInt(5) + ahead
+              val priority = if (random.nextInt(6) == 0) random.nextInt(3) else 0
+              triggerId += 1
+              val scheduledTrigger = ScheduledTrigger(TriggerWithId(TestTrigger(tick), triggerId), null, priority)
+              calendarQueue.add(scheduledTrigger)
+              priorityQueue.add(scheduledTrigger)
+            case op if op < 9 =>
+              val polled = calendarQueue.poll()
+              polled shouldBe priorityQueue.poll()
+              if (polled != null) now = math.max(now, polled.triggerWithId.trigger.tick)
+            case _ =>
+              calendarQueue.peek() shouldBe priorityQueue.peek()
+          }
+          calendarQueue.size shouldBe priorityQueue.size
+        }
+        while (!priorityQueue.isEmpty) {
+          calendarQueue.poll() shouldBe priorityQueue.poll()
+        }
+        calendarQueue.poll() shouldBe null
+      }
+    }
+
+    "iterate over all pending triggers" in {
+      val calendarQueue = new TriggerCalendarQueue(4)
+      val triggers = Seq(0, 1, 2, 100, 3, 2).zipWithIndex.map {
+        case (tick, id) => ScheduledTrigger(TriggerWithId(TestTrigger(tick), id), null, 0)
+      }
+      triggers.foreach(calendarQueue.add)
+      import scala.collection.JavaConverters._
+      calendarQueue.asScala.toSet shouldBe triggers.toSet
+    }
+
+    "replay a trigger stream faster than a PriorityQueue" taggedAs (Performance, ExcludeRegular) in {
+      val stream = recordTriggerStream(numberOfAgents = 200000, stopTick = 30 * 3600)
+      logger.info("Recorded {} operations", stream.length.toString)
+
+      // warm up both queues before measuring
+      replay(stream, new java.util.PriorityQueue[ScheduledTrigger](ScheduledTriggerComparator))
+      replay(stream, new TriggerCalendarQueue())
+
+      val priorityQueueNanos = replay(stream, new java.util.PriorityQueue[ScheduledTrigger](ScheduledTriggerComparator))
+      val calendarQueueNanos = replay(stream, new TriggerCalendarQueue())
+      logger.info(
+        "PriorityQueue {} ms, TriggerCalendarQueue {} ms",
+        (priorityQueueNanos / 1000000).toString,
+        (calendarQueueNanos / 1000000).toString
+      )
+      calendarQueueNanos should be < priorityQueueNanos
+    }
+  }
+}
+
+object TriggerCalendarQueueSpec {
+
+  case class TestTrigger(tick: Int) extends Trigger
+
+  /**
+    * Records the add and poll operations of agents that, like persons going through their day, reschedule themselves
+    * a random duration after each trigger they receive. `null` stands for a poll.
+    */
+  def recordTriggerStream(numberOfAgents: Int, stopTick: Int): Array[ScheduledTrigger] = {
+    val random = new Random(7)
+    val recorded = Array.newBuilder[ScheduledTrigger]
+    val queue = new java.util.PriorityQueue[ScheduledTrigger](ScheduledTriggerComparator)
+    var triggerId = 0L
+    def schedule(tick: Int, priority: Int): Unit = {
+      triggerId += 1
+      val scheduledTrigger = ScheduledTrigger(TriggerWithId(TestTrigger(tick), triggerId), null, priority)
+      queue.add(scheduledTrigger)
+      recorded += scheduledTrigger
+    }
+    (0 until numberOfAgents).foreach(_ => schedule(0, 0))
+    (0 until stopTick by 300).foreach(tick => schedule(tick, 1)) // a manager with periodic triggers
+    while (!queue.isEmpty) {
+      val next = queue.poll()
+      recorded += null
+      val tick = next.triggerWithId.trigger.tick
+      if (next.priority == 0 && tick < stopTick) {
+        schedule(tick + (if (random.nextBoolean()) random.nextInt(120) else random.nextInt(4 * 3600)), 0)
+      }
+    }
+    recorded.result()
+  }
+
+  def replay(stream: Array[ScheduledTrigger], queue: java.util.Queue[ScheduledTrigger]): Long = {
+    val start = System.nanoTime()
+    var i = 0
+    while (i < stream.length) {
+      if (stream(i) == null) queue.poll() else queue.add(stream(i))
+      i += 1
+    }
+    System.nanoTime() - start
+  }
+}
@@ -0,0 +1,190 @@
+package beam.performance
+
+import java.time.ZonedDateTime
+import java.util.concurrent.TimeUnit
+
+import akka.actor.{ActorRef, ActorSystem}
+import akka.pattern.ask
+import akka.util.Timeout
+import beam.agentsim.agents.choice.mode.PtFares
+import beam.agentsim.agents.choice.mode.PtFares.FareRule
+import beam.agentsim.agents.vehicles.BeamVehicleType
+import beam.agentsim.agents.vehicles.FuelType.FuelType
+import beam.agentsim.agents.vehicles.VehicleProtocol.StreetVehicle
+import beam.agentsim.events.SpaceTime
+import beam.router.BeamRouter
+import beam.router.BeamRouter._
+import beam.router.Modes.BeamMode.{CAR, WALK}
+import beam.router.gtfs.FareCalculator
+import beam.router.gtfs.FareCalculator.BeamFareSegment
+import beam.router.osm.TollCalculator
+import beam.router.r5.DefaultNetworkCoordinator
+import beam.sim.BeamServices
+import beam.sim.common.GeoUtilsImpl
+import beam.sim.config.BeamConfig
+import beam.tags.{ExcludeRegular, Performance}
+import beam.utils.TestConfigUtils.testConfig
+import beam.utils.{DateUtils, NetworkHelperImpl}
+import com.typesafe.config.ConfigValueFactory
+import com.typesafe.scalalogging.LazyLogging
+import org.matsim.api.core.v01.{Coord, Id}
+import org.matsim.core.config.ConfigUtils
+import org.matsim.core.events.EventsManagerImpl
+import org.matsim.core.scenario.ScenarioUtils
+import org.matsim.vehicles.Vehicle
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.JavaConverters._
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+import scala.util.Random
+
+class BatchRoutingPerformanceSpec extends WordSpecLike with Matchers with MockitoSugar with LazyLogging {
+
+  private implicit val timeout: Timeout = Timeout(30, TimeUnit.MINUTES)
+
+  "A router" should {
+    Seq("test/input/beamville/beam.conf", "test/input/sf-light/sf-light.conf").foreach { confPath =>
+      s"route batches of requests from the same origins like single requests ($confPath)" taggedAs (
+        Performance,
+        ExcludeRegular
+      ) in {
+        // without the route cache, so both ways do all of their street searches
+        val config = testConfig(confPath)
+          .withValue("beam.routing.r5.routeCache.maxSizeInMB", ConfigValueFactory.fromAnyRef(0))
+          .resolve()
+        val system = ActorSystem("BatchRoutingPerformanceSpec", config)
+        try {
+          val (router, origins) = createRouter(system, BeamConfig(config))
+          import system.dispatcher
+          val random = new Random(5)
+          // like households: everybody leaves home within a few minutes, with a car and on foot
+          val batches = Vector.fill(300) {
+            val origin = origins(random.nextInt(origins.size))
+            Vector.fill(8) {
+              val departureTime = 8 * 3600 + random.nextInt(180)
+              RoutingRequest(
+                origin,
+                origins(random.nextInt(origins.size)),
+                departureTime,
+                Vector(),
+                Vector(
+                  StreetVehicle(
+                    Id.createVehicleId("car"),
+                    BeamVehicleType.defaultCarBeamVehicleType.id,
+                    SpaceTime(origin, departureTime),
+                    CAR,
+                    asDriver = true
+                  ),
+                  StreetVehicle(
+                    Id.createVehicleId("body"),
+                    BeamVehicleType.defaultHumanBodyBeamVehicleType.id,
+                    SpaceTime(origin, departureTime),
+                    WALK,
+                    asDriver = true
+                  )
+                )
+              )
+            }
+          }
+          val requests = batches.flatten
+
+          def oneByOne(requests: Seq[RoutingRequest]): Seq[RoutingResponse] =
+            Await.result(
+              Future.sequence(requests.map(request => (router ? request).mapTo[RoutingResponse])),
+              30.minutes
+            )
+
+          def inBatches(batches: Seq[IndexedSeq[RoutingRequest]]): Seq[RoutingResponse] =
+            Await
+              .result(
+                Future.sequence(batches.map { batch =>
+                  (router ? BatchRoutingRequest(batch)).mapTo[BatchRoutingResponse]
+                }),
+                30.minutes
+              )
+              .flatMap(_.responses)
+
+          def routesPerSecond(route: => Seq[RoutingResponse]): (Seq[RoutingResponse], Double) = {
+            val start = System.nanoTime()
+            val responses = route
+            (responses, responses.size / ((System.nanoTime() - start) / 1e9))
+          }
+
+          // warm up
+          oneByOne(requests.take(200))
+          inBatches(batches.take(25))
+
+          val (oneByOneResponses, oneByOneRate) = routesPerSecond(oneByOne(requests))
+          val (batchResponses, batchRate) = routesPerSecond(inBatches(batches))
+          logger.info(
+            "{}: one by one {} routes/s, in batches {} routes/s",
+            confPath,
+            oneByOneRate.toInt.toString,
+            batchRate.toInt.toString
+          )
+          batchResponses.map(_.requestId) shouldBe requests.map(_.requestId)
+          // the departures are within one time bin and the travel times don't change, so the paths are the same
+          batchResponses.map(legsAndTravelTimes) shouldBe oneByOneResponses.map(legsAndTravelTimes)
+        } finally {
+          Await.result(system.terminate(), 1.minute)
+        }
+      }
+    }
+  }
+
+  private def legsAndTravelTimes(response: RoutingResponse) =
+    response.itineraries.map { trip =>
+      (
+        trip.tripClassifier,
+        trip.totalTravelTimeInSecs,
+        trip.legs.map { leg =>
+          (leg.beamLeg.mode, leg.beamLeg.startTime, leg.beamLeg.duration, leg.beamLeg.travelPath.linkIds)
+        }
+      )
+    }.toSet
+
+  // The router and the locations of the nodes of its network
+  private def createRouter(system: ActorSystem, beamConfig: BeamConfig): (ActorRef, IndexedSeq[Coord]) = {
+    val services: BeamServices = mock[BeamServices](withSettings().stubOnly())
+    when(services.beamConfig).thenReturn(beamConfig)
+    when(services.geo).thenReturn(new GeoUtilsImpl(beamConfig))
+    when(services.agencyAndRouteByVehicleIds).thenReturn(TrieMap[Id[Vehicle], (String, String)]())
+    when(services.ptFares).thenReturn(PtFares(List[FareRule]()))
+    when(services.dates).thenReturn(
+      DateUtils(
+        ZonedDateTime.parse(beamConfig.beam.routing.baseDate).toLocalDateTime,
+        ZonedDateTime.parse(beamConfig.beam.routing.baseDate)
+      )
+    )
+    when(services.vehicleTypes).thenReturn(Map[Id[BeamVehicleType], BeamVehicleType]())
+    when(services.fuelTypePrices).thenReturn(Map[FuelType, Double]().withDefaultValue(0.0))
+    val networkCoordinator = new DefaultNetworkCoordinator(beamConfig)
+    networkCoordinator.loadNetwork()
+    networkCoordinator.convertFrequenciesToTrips()
+    when(services.networkHelper).thenReturn(new NetworkHelperImpl(networkCoordinator.network))
+
+    val fareCalculator = mock[FareCalculator]
+    when(fareCalculator.getFareSegments(any(), any(), any(), any(), any())).thenReturn(Vector[BeamFareSegment]())
+    val tollCalculator = mock[TollCalculator]
+    when(tollCalculator.calcTollByOsmIds(any())).thenReturn(0.0)
+    val scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig())
+    val router = system.actorOf(
+      BeamRouter.props(
+        services,
+        networkCoordinator.transportNetwork,
+        networkCoordinator.network,
+        scenario,
+        new EventsManagerImpl(),
+        scenario.getTransitVehicles,
+        fareCalculator,
+        tollCalculator
+      )
+    )
+    (router, networkCoordinator.network.getNodes.values().asScala.map(_.getCoord).toIndexedSeq)
+  }
+}
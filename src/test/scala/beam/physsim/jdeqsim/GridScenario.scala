@@ -0,0 +1,83 @@
+package beam.physsim.jdeqsim
+
+import java.util
+
+import org.matsim.api.core.v01.network.{Link, Network, Node}
+import org.matsim.api.core.v01.population.Person
+import org.matsim.api.core.v01.{Coord, Id, Scenario}
+import org.matsim.core.config.ConfigUtils
+import org.matsim.core.network.NetworkUtils
+import org.matsim.core.population.routes.RouteUtils
+import org.matsim.core.scenario.ScenarioUtils
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+/**
+  * A grid of links with little capacity, and cars driving between random links in the morning
+  */
+object GridScenario {
+
+  val gridSize = 8
+
+  def create(numberOfPersons: Int = 3000): Scenario = {
+    val scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig())
+    val network = scenario.getNetwork
+    val nodes = for (x <- 0 until gridSize; y <- 0 until gridSize)
+      yield NetworkUtils.createAndAddNode(network, Id.createNodeId(s"$x-$y"), new Coord(x * 500, y * 500))
+    def node(x: Int, y: Int): Node = nodes(x * gridSize + y)
+    for (x <- 0 until gridSize; y <- 0 until gridSize; (dx, dy) <- Seq((1, 0), (-1, 0), (0, 1), (0, -1))) {
+      if (x + dx >= 0 && x + dx < gridSize && y + dy >= 0 && y + dy < gridSize) {
+        createLink(network, node(x, y), node(x + dx, y + dy))
+      }
+    }
+
+    val random = new Random(3)
+    val population = scenario.getPopulation
+    val factory = population.getFactory
+    (1 to numberOfPersons).foreach { i =>
+      val route = randomRoute(random)
+      val person = factory.createPerson(Id.create(i.toString, classOf[Person]))
+      val plan = factory.createPlan()
+      val home = factory.createActivityFromLinkId("DummyActivity", route.head)
+      home.setEndTime(7 * 3600 + random.nextInt(3600))
+      plan.addActivity(home)
+      val leg = factory.createLeg("car")
+      leg.setDepartureTime(home.getEndTime)
+      leg.setRoute(RouteUtils.createNetworkRoute(new util.ArrayList(route.asJava), network))
+      plan.addLeg(leg)
+      plan.addActivity(factory.createActivityFromLinkId("DummyActivity", route.last))
+      person.addPlan(plan)
+      person.setSelectedPlan(plan)
+      population.addPerson(person)
+    }
+    scenario
+  }
+
+  def createLink(network: Network, from: Node, to: Node, length: Double = 500): Link =
+    NetworkUtils.createAndAddLink(
+      network,
+      Id.createLinkId(s"${from.getId}_${to.getId}"),
+      from,
+      to,
+      length,
+      15,
+      300,
+      1
+    )
+
+  // Along x, then along y, between two random nodes
+  private def randomRoute(random: Random): IndexedSeq[Id[Link]] = {
+    def randomCoordinate = random.nextInt(gridSize)
+    val (fromX, fromY, toX, toY) = Iterator
+      .continually((randomCoordinate, randomCoordinate, randomCoordinate, randomCoordinate))
+      .find { case (x1, y1, x2, y2) => math.abs(x2 - x1) + math.abs(y2 - y1) >= 2 }
+      .get
+    val stepX = math.signum(toX - fromX)
+    val stepY = math.signum(toY - fromY)
+    val xs = Iterator.iterate(fromX)(_ + stepX).takeWhile(_ != toX).toIndexedSeq :+ toX
+    val ys = Iterator.iterate(fromY)(_ + stepY).takeWhile(_ != toY).toIndexedSeq :+ toY
+    val nodeIds = xs.map(x => s"$x-$fromY") ++ ys.tail.map(y => s"$toX-$y")
+    nodeIds.sliding(2).map { case Seq(from, to) => Id.createLinkId(s"${from}_$to") }.toIndexedSeq
+  }
+}
@@ -0,0 +1,56 @@
+package beam.physsim.jdeqsim
+
+import org.matsim.api.core.v01.events.Event
+import org.matsim.core.events.handler.BasicEventHandler
+import org.matsim.core.mobsim.jdeqsim.{JDEQSimConfigGroup, JDEQSimulation, Message, Road}
+import org.matsim.core.trafficmonitoring.TravelTimeCalculator
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+class PhysSimEventHandlingSpec extends WordSpecLike with Matchers {
+
+  "The physsim" should {
+    "give the link travel times and events of sequential event handling when handling events on several threads" in {
+      val sequential = runPhysSim(numberOfEventHandlerThreads = 1)
+      val parallel = runPhysSim(numberOfEventHandlerThreads = 4)
+
+      sequential.eventCounts("entered link") should be > 1000
+      parallel.eventCounts shouldBe sequential.eventCounts
+      parallel.travelTimes shouldBe sequential.travelTimes
+    }
+  }
+
+  private case class PhysSimResult(eventCounts: Map[String, Int], travelTimes: Map[(String, Int), Double])
+
+  private class EventCounter extends BasicEventHandler {
+    val eventCounts: mutable.Map[String, Int] = mutable.Map[String, Int]().withDefaultValue(0)
+    override def handleEvent(event: Event): Unit = eventCounts(event.getEventType) += 1
+  }
+
+  private def runPhysSim(numberOfEventHandlerThreads: Int): PhysSimResult = {
+    val scenario = GridScenario.create()
+    val events = AgentSimToPhysSimPlanConverter.createPhysSimEventsManager(numberOfEventHandlerThreads)
+    val travelTimeCalculator =
+      new TravelTimeCalculator(scenario.getNetwork, scenario.getConfig.travelTimeCalculator())
+    val eventCounter = new EventCounter
+    events.addHandler(travelTimeCalculator)
+    events.addHandler(eventCounter)
+
+    val config = new JDEQSimConfigGroup()
+    config.setSimulationEndTime(30 * 3600)
+    new JDEQSimulation(config, scenario, events).run()
+    Road.setAllRoads(null)
+    Message.setEventsManager(null)
+
+    val travelTimes = for {
+      link <- scenario.getNetwork.getLinks.values().asScala
+      hour <- 0 until 30
+    } yield {
+      (link.getId.toString, hour) ->
+      travelTimeCalculator.getLinkTravelTimes.getLinkTravelTime(link, hour * 3600, null, null)
+    }
+    PhysSimResult(eventCounter.eventCounts.toMap, travelTimes.toMap)
+  }
+}
@@ -0,0 +1,60 @@
+package beam.physsim.jdeqsim.cacc.sim
+
+import beam.tags.{ExcludeRegular, Performance}
+import com.typesafe.scalalogging.LazyLogging
+import org.matsim.api.core.v01.network.{Link, Node}
+import org.matsim.api.core.v01.{Coord, Id}
+import org.matsim.core.mobsim.jdeqsim.{JDEQSimConfigGroup, MessageQueue, Scheduler}
+import org.matsim.core.network.NetworkUtils
+import org.scalatest.{Matchers, WordSpecLike}
+
+class RoadPerformanceSpec extends WordSpecLike with Matchers with LazyLogging {
+
+  private val parentFields =
+    Seq("gap", "interestedInEnteringRoad", "deadlockPreventionMessages", "timeOfLastEnteringVehicle", "gapTravelTime")
+
+  // how Road.preLeaveRoad read the state of the matsim road before the fields were cached
+  private def readParentStateByLookup(road: Road): Unit = parentFields.foreach { fieldName =>
+    val field = classOf[org.matsim.core.mobsim.jdeqsim.Road].getDeclaredField(fieldName)
+    field.setAccessible(true)
+    field.get(road)
+  }
+
+  private def roadsOfGridNetwork(size: Int): IndexedSeq[Road] = {
+    org.matsim.core.mobsim.jdeqsim.Road.setConfig(new JDEQSimConfigGroup())
+    val network = NetworkUtils.createNetwork()
+    val nodes = for (x <- 0 until size; y <- 0 until size)
+      yield NetworkUtils.createAndAddNode(network, Id.createNodeId(s"$x-$y"), new Coord(x * 100, y * 100))
+    def node(x: Int, y: Int): Node = nodes(x * size + y)
+    val links = for (x <- 0 until size - 1; y <- 0 until size) yield {
+      NetworkUtils.createAndAddLink(network, Id.create(s"$x-$y", classOf[Link]), node(x, y), node(x + 1, y), 100, 15, 1800, 1)
+    }
+    val scheduler = new Scheduler(new MessageQueue())
+    links.map(link => new Road(scheduler, link, 1.0))
+  }
+
+  private def time(roads: IndexedSeq[Road], repetitions: Int)(readState: Road => Unit): Long = {
+    val start = System.nanoTime()
+    for (_ <- 0 until repetitions) roads.foreach(readState)
+    System.nanoTime() - start
+  }
+
+  "Road" should {
+    "read the matsim road state faster with cached fields than with a lookup per leaving vehicle" taggedAs (Performance, ExcludeRegular) in {
+      val roads = roadsOfGridNetwork(300)
+      // warm up
+      time(roads, 2)(readParentStateByLookup)
+      time(roads, 2)(_.readParentState())
+
+      val lookupNanos = time(roads, 10)(readParentStateByLookup)
+      val cachedNanos = time(roads, 10)(_.readParentState())
+      logger.info(
+        "{} roads x 10 leaving vehicles: field lookup {} ms, cached fields {} ms",
+        roads.size.toString,
+        (lookupNanos / 1000000).toString,
+        (cachedNanos / 1000000).toString
+      )
+      cachedNanos should be < lookupNanos
+    }
+  }
+}
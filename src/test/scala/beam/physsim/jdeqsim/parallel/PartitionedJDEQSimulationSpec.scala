@@ -0,0 +1,82 @@
+package beam.physsim.jdeqsim.parallel
+
+import beam.physsim.jdeqsim.GridScenario
+import org.matsim.api.core.v01.Id
+import org.matsim.api.core.v01.events.Event
+import org.matsim.api.core.v01.population.{Leg, Person}
+import org.matsim.core.events.EventsManagerImpl
+import org.matsim.core.events.handler.BasicEventHandler
+import org.matsim.core.mobsim.jdeqsim.{JDEQSimConfigGroup, Message => MatsimMessage, Road => MatsimRoad}
+import org.matsim.core.population.routes.NetworkRoute
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+class PartitionedJDEQSimulationSpec extends WordSpecLike with Matchers {
+
+  "A partitioned JDEQSim" should {
+    "drive every car along all the links of its route" in {
+      val scenario = GridScenario.create()
+      val events = runPhysSim(numberOfPartitions = 4)
+      val eventCounts = events.groupBy(_.getEventType).mapValues(_.size)
+
+      val routes = scenario.getPopulation.getPersons.values().asScala.map { person =>
+        person.getSelectedPlan.getPlanElements.get(1).asInstanceOf[Leg].getRoute.asInstanceOf[NetworkRoute]
+      }
+      // the first link is entered from the activity, the last link is not driven on
+      eventCounts("vehicle enters traffic") shouldBe routes.size
+      eventCounts("entered link") shouldBe routes.map(_.getLinkIds.size).sum
+      eventCounts("left link") shouldBe routes.map(_.getLinkIds.size + 1).sum
+      eventCounts("arrival") shouldBe routes.size
+    }
+
+    "give the same events in every run" in {
+      val events = runPhysSim(numberOfPartitions = 4).map(_.getAttributes.asScala)
+      runPhysSim(numberOfPartitions = 4).map(_.getAttributes.asScala) shouldBe events
+    }
+
+    "give events in the order of their time" in {
+      val times = runPhysSim(numberOfPartitions = 4).map(_.getTime)
+      times shouldBe times.sorted
+    }
+  }
+
+  "The NetworkPartitioner" should {
+    "split the nodes into regions of about the same size, without cutting links faster than the lookahead" in {
+      val scenario = GridScenario.create(numberOfPersons = 0)
+      val network = scenario.getNetwork
+      // crosses the first cut, which is along x
+      val shortLink = network.getLinks.get(Id.createLinkId("3-0_4-0"))
+      shortLink.setLength(10)
+
+      val partitionOfNode = NetworkPartitioner.partition(network, Seq.empty[Person].asJava, 4, 1.0, 15.0).asScala
+      partitionOfNode(shortLink.getFromNode.getId) shouldBe partitionOfNode(shortLink.getToNode.getId)
+      val sizes = partitionOfNode.values.groupBy(identity).mapValues(_.size)
+      sizes.keySet shouldBe Set(0, 1, 2, 3)
+      sizes.values.foreach(_ should (be >= 15 and be <= 17))
+      network.getLinks
+        .values()
+        .asScala
+        .filter(link => partitionOfNode(link.getFromNode.getId) != partitionOfNode(link.getToNode.getId))
+        .foreach(link => NetworkPartitioner.lookahead(link, 15.0) should be >= 1.0)
+    }
+  }
+
+  private def runPhysSim(numberOfPartitions: Int): IndexedSeq[Event] = {
+    val scenario = GridScenario.create()
+    val collectedEvents = ArrayBuffer[Event]()
+    val events = new EventsManagerImpl()
+    events.addHandler(new BasicEventHandler {
+      override def handleEvent(event: Event): Unit = collectedEvents += event
+    })
+
+    val config = new JDEQSimConfigGroup()
+    config.setSimulationEndTime(30 * 3600)
+    new PartitionedJDEQSimulation(config, scenario, events, numberOfPartitions, 1.0).run()
+    // set by the matsim JDEQSimulation it extends
+    MatsimRoad.setAllRoads(null)
+    MatsimMessage.setEventsManager(null)
+    collectedEvents.toIndexedSeq
+  }
+}
@@ -0,0 +1,254 @@
+package beam.router
+
+import java.io.File
+import java.nio.file.Files
+
+import beam.agentsim.agents.vehicles.BeamVehicleType
+import beam.agentsim.agents.vehicles.FuelType.FuelType
+import beam.agentsim.events.SpaceTime
+import beam.agentsim.infrastructure.TAZTreeMap
+import beam.agentsim.infrastructure.TAZTreeMap.TAZ
+import beam.router.BeamSkimmer.{Skim, SkimInternal}
+import beam.router.Modes.BeamMode
+import beam.router.Modes.BeamMode.{CAR, WALK}
+import beam.router.model.{BeamLeg, BeamPath, EmbodiedBeamLeg, EmbodiedBeamTrip}
+import beam.sim.BeamServices
+import beam.sim.common.GeoUtils
+import beam.sim.config.BeamConfig
+import beam.utils.TestConfigUtils.testConfig
+import org.matsim.api.core.v01.{Coord, Id}
+import org.matsim.core.controler.events.IterationEndsEvent
+import org.matsim.core.controler.{MatsimServices, OutputDirectoryHierarchy}
+import org.matsim.core.utils.collections.QuadTree
+import org.matsim.core.utils.io.IOUtils
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.JavaConverters._
+
+class BeamSkimmerSpec extends WordSpecLike with Matchers with MockitoSugar {
+
+  private val beamConfig = BeamConfig(testConfig("test/input/beamville/beam.conf").resolve())
+
+  private val tazs = Vector(
+    new TAZ("A", new Coord(1000, 1000), 250000),
+    new TAZ("B", new Coord(4000, 1000), 250000),
+    new TAZ("C", new Coord(1000, 5000), 250000)
+  )
+  private val Vector(a, b, c) = tazs
+
+  private val observations = Vector(
+    Observation(CAR, a, b, 8 * 3600 + 100, 600, 5000, 2.0),
+    Observation(CAR, a, b, 8 * 3600 + 900, 800, 7000, 3.0),
+    Observation(CAR, b, a, 16 * 3600, 900, 6000, 1.5),
+    Observation(CAR, a, a, 3 * 3600 + 50, 120, 500, 0.25),
+    Observation(WALK, a, c, 12 * 3600, 1500, 2000, 0.0)
+  )
+
+  "A BeamSkimmer" should {
+    "write the excerpt, full and observed skims of the previous format" in {
+      val services = beamServices()
+      val skimmer = new BeamSkimmer(beamConfig)
+      skimmer.setBeamServices(services)
+      observations.foreach(observation => skimmer.observeTrip(observation.trip, services))
+
+      val event = iterationEndsEvent()
+      skimmer.writeTazPairSkims(event, writeFull = true)
+      skimmer.writeObservedSkims(event)
+
+      val excerpt = readLines(event, BeamSkimmer.excerptSkimsFileBaseName)
+      excerpt.head shouldBe "period,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
+      excerpt.tail shouldBe expectedExcerptRows(skimmer, services)
+      excerpt.tail.size shouldBe tazs.size * tazs.size * 3
+
+      val full = readLines(event, BeamSkimmer.fullSkimsFileBaseName)
+      full.head shouldBe "hour,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
+      full.tail shouldBe expectedFullRows(skimmer, services)
+      full should contain("8,CAR,A,B,700,2.5,6000.0,2")
+      full should contain("12,WALK,A,C,1500,0.0,2000.0,1")
+
+      val observed = readLines(event, BeamSkimmer.observedSkimsFileBaseName)
+      observed.head shouldBe "hour,mode,origTaz,destTaz,travelTimeInS,cost,distanceInM,numObservations"
+      observed.tail.sorted shouldBe Vector(
+        "12,WALK,A,C,1500.0,0.0,2000.0,1",
+        "16,CAR,B,A,900.0,1.5,6000.0,1",
+        "3,CAR,A,A,120.0,0.25,500.0,1",
+        "8,CAR,A,B,700.0,2.5,6000.0,2"
+      )
+    }
+
+    "write only the excerpt unless the full skims are requested" in {
+      val services = beamServices()
+      val skimmer = new BeamSkimmer(beamConfig)
+      skimmer.setBeamServices(services)
+      observations.foreach(observation => skimmer.observeTrip(observation.trip, services))
+
+      val event = iterationEndsEvent()
+      skimmer.writeTazPairSkims(event, writeFull = false)
+      readLines(event, BeamSkimmer.excerptSkimsFileBaseName).tail shouldBe expectedExcerptRows(skimmer, services)
+      new File(skimsFilePath(event, BeamSkimmer.fullSkimsFileBaseName)).exists() shouldBe false
+    }
+  }
+
+  private case class Observation(
+    mode: BeamMode,
+    origin: TAZ,
+    destination: TAZ,
+    departureTime: Int,
+    travelTime: Int,
+    distance: Double,
+    cost: Double
+  ) {
+
+    // Cars are reached and left on foot, like in the trips the skimmer observes
+    def trip: EmbodiedBeamTrip = {
+      val body = Id.createVehicleId("body-1")
+      val bodyType = BeamVehicleType.defaultHumanBodyBeamVehicleType.id
+      val mainLeg = EmbodiedBeamLeg(
+        leg(mode, origin.coord, destination.coord, departureTime, travelTime, distance),
+        if (mode == CAR) Id.createVehicleId("car-1") else body,
+        if (mode == CAR) BeamVehicleType.defaultCarBeamVehicleType.id else bodyType,
+        asDriver = true,
+        cost = cost,
+        unbecomeDriverOnCompletion = true
+      )
+      val legs = if (mode == CAR) {
+        Vector(
+          EmbodiedBeamLeg(leg(WALK, origin.coord, origin.coord, departureTime, 0, 0), body, bodyType, true, 0, false),
+          mainLeg,
+          EmbodiedBeamLeg(
+            leg(WALK, destination.coord, destination.coord, departureTime + travelTime, 0, 0),
+            body,
+            bodyType,
+            true,
+            0,
+            true
+          )
+        )
+      } else {
+        Vector(mainLeg)
+      }
+      EmbodiedBeamTrip(legs)
+    }
+
+    private def leg(mode: BeamMode, from: Coord, to: Coord, startTime: Int, duration: Int, distance: Double) =
+      BeamLeg(
+        startTime,
+        mode,
+        duration,
+        BeamPath(Vector(), Vector(), None, SpaceTime(from, startTime), SpaceTime(to, startTime + duration), distance)
+      )
+  }
+
+  // The rows the excerpt was written with before it was computed in parallel
+  private def expectedExcerptRows(skimmer: BeamSkimmer, services: BeamServices): Vector[String] = {
+    val periods = Vector(
+      "AM"      -> (7 to 8).toList,
+      "PM"      -> (15 to 16).toList,
+      "OffPeak" -> ((0 to 6).toList ++ (9 to 14).toList ++ (17 to 23).toList)
+    )
+    for {
+      origin          <- services.tazTreeMap.getTAZs.toVector
+      destination     <- services.tazTreeMap.getTAZs.toVector
+      (period, hours) <- periods
+    } yield {
+      val individualSkims = hours.map(hour => skimOf(skimmer, services, hour, CAR, origin, destination))
+      val weights = individualSkims.map(sk => Math.max(sk.count, 1).toDouble)
+      val sumWeights = weights.sum
+      val weightedDistance = individualSkims.map(_.distance).zip(weights).map(tup => tup._1 * tup._2).sum / sumWeights
+      val weightedTime = individualSkims.map(_.time).zip(weights).map(tup => tup._1 * tup._2).sum / sumWeights
+      val weightedCost = individualSkims.map(_.cost).zip(weights).map(tup => tup._1 * tup._2).sum / sumWeights
+      s"$period,$CAR,${origin.tazId},${destination.tazId},$weightedTime,$weightedCost,$weightedDistance,$sumWeights"
+    }
+  }
+
+  // The rows the full skims were written with before they were computed in parallel
+  private def expectedFullRows(skimmer: BeamSkimmer, services: BeamServices): Vector[String] =
+    for {
+      origin      <- services.tazTreeMap.getTAZs.toVector
+      destination <- services.tazTreeMap.getTAZs.toVector
+      mode        <- Vector(CAR, WALK).sortBy(BeamMode.values.indexOf(_))
+      hour        <- (0 to 23).toVector
+    } yield {
+      val skim = skimOf(skimmer, services, hour, mode, origin, destination)
+      s"$hour,$mode,${origin.tazId},${destination.tazId},${skim.time},${skim.cost},${skim.distance},${skim.count}"
+    }
+
+  private def skimOf(
+    skimmer: BeamSkimmer,
+    services: BeamServices,
+    hour: Int,
+    mode: BeamMode,
+    origin: TAZ,
+    destination: TAZ
+  ): Skim = {
+    val observed = observations.filter { observation =>
+      observation.mode == mode && observation.origin == origin && observation.destination == destination &&
+      observation.departureTime / 3600 == hour
+    }
+    if (observed.nonEmpty) {
+      SkimInternal(
+        observed.map(_.travelTime).sum.toDouble / observed.size,
+        observed.map(_.distance).sum / observed.size,
+        observed.map(_.cost).sum / observed.size,
+        observed.size
+      ).toSkimExternal
+    } else {
+      val destinationCoord =
+        if (origin == destination)
+          new Coord(origin.coord.getX, origin.coord.getY + Math.sqrt(origin.areaInSquareMeters) / 2.0)
+        else destination.coord
+      skimmer.getSkimDefaultValue(
+        mode,
+        origin.coord,
+        destinationCoord,
+        hour * 3600,
+        Id.create("NA", classOf[BeamVehicleType]),
+        services
+      )
+    }
+  }
+
+  private def beamServices(): BeamServices = {
+    val services = mock[BeamServices](withSettings().stubOnly())
+    val quadTree = new QuadTree[TAZ](0, 0, 10000, 10000)
+    tazs.foreach(taz => quadTree.put(taz.coord.getX, taz.coord.getY, taz))
+    when(services.beamConfig).thenReturn(beamConfig)
+    when(services.tazTreeMap).thenReturn(new TAZTreeMap(quadTree))
+    // the trips are in UTM already
+    when(services.geo).thenReturn(new GeoUtils {
+      override def localCRS: String = "epsg:26910"
+      override def wgs2Utm(coord: Coord): Coord = coord
+    })
+    when(services.vehicleTypes).thenReturn(Map[Id[BeamVehicleType], BeamVehicleType]())
+    when(services.fuelTypePrices).thenReturn(Map[FuelType, Double]().withDefaultValue(3.0))
+    services
+  }
+
+  private def iterationEndsEvent(): IterationEndsEvent = {
+    val outputDirectory = Files.createTempDirectory("skims").toFile
+    outputDirectory.deleteOnExit()
+    val controlerIO = new OutputDirectoryHierarchy(
+      outputDirectory.getPath,
+      OutputDirectoryHierarchy.OverwriteFileSetting.overwriteExistingFiles
+    )
+    controlerIO.createIterationDirectory(0)
+    val matsimServices = mock[MatsimServices](withSettings().stubOnly())
+    when(matsimServices.getControlerIO).thenReturn(controlerIO)
+    when(matsimServices.getIterationNumber).thenReturn(0)
+    new IterationEndsEvent(matsimServices, 0)
+  }
+
+  private def skimsFilePath(event: IterationEndsEvent, fileBaseName: String): String =
+    event.getServices.getControlerIO.getIterationFilename(0, fileBaseName + ".csv.gz")
+
+  private def readLines(event: IterationEndsEvent, fileBaseName: String): Vector[String] = {
+    val reader = IOUtils.getBufferedReader(skimsFilePath(event, fileBaseName))
+    try {
+      reader.lines().iterator().asScala.toVector
+    } finally {
+      reader.close()
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package beam.router
+
+import java.io.File
+
+import beam.router.BeamSkimmer.SkimInternal
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.mutable
+
+class SkimFileSpec extends WordSpecLike with Matchers {
+
+  "SkimFile" should {
+    "map the skims it wrote" in {
+      val table = new SkimTable()
+      val cells = (0 until 1000).map(i => SkimTable.cellIndex(i % 24, i % 3, i, (i * 31) % 500))
+      cells.zipWithIndex.foreach {
+        case (cell, i) =>
+          table.put(cell, SkimInternal(i.toDouble, 10.0 * i, i / 2.0, i % 7 + 1))
+      }
+      val file = File.createTempFile("skims", ".bin")
+      file.deleteOnExit()
+      SkimFile.write(file.getPath, table, Vector("car", "walk", "bike"), (0 until 1000).map(_.toString))
+
+      val mapped = SkimFile.map(file.getPath)
+      mapped.modes shouldBe Vector("car", "walk", "bike")
+      mapped.tazIds shouldBe (0 until 1000).map(_.toString)
+      mapped.numberOfCells shouldBe cells.size
+      cells.foreach(cell => mapped.get(cell) shouldBe table.get(cell))
+      mapped.get(SkimTable.cellIndex(0, 2, 999, 999)) shouldBe None
+
+      val visited = mutable.ArrayBuffer[Long]()
+      mapped.foreach((cell, skim) => if (table.get(cell).contains(skim)) visited += cell)
+      visited shouldBe cells.sorted
+    }
+
+    "map an empty skim file" in {
+      val file = File.createTempFile("skims", ".bin")
+      file.deleteOnExit()
+      SkimFile.write(file.getPath, new SkimTable(), Vector("car"), Vector())
+      val mapped = SkimFile.map(file.getPath)
+      mapped.numberOfCells shouldBe 0
+      mapped.get(0L) shouldBe None
+    }
+  }
+}
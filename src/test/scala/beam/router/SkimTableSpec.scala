@@ -0,0 +1,101 @@
+package beam.router
+
+import java.util.concurrent.{Executors, TimeUnit}
+
+import beam.router.BeamSkimmer.SkimInternal
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.collection.mutable
+
+class SkimTableSpec extends WordSpecLike with Matchers {
+
+  "SkimTable" should {
+    "pack and unpack cell indices" in {
+      val cell = SkimTable.cellIndex(23, 17, SkimTable.MaxNumberOfTazs - 1, 12345)
+      SkimTable.timeBinOf(cell) shouldBe 23
+      SkimTable.modeIndexOf(cell) shouldBe 17
+      SkimTable.originIndexOf(cell) shouldBe SkimTable.MaxNumberOfTazs - 1
+      SkimTable.destinationIndexOf(cell) shouldBe 12345
+    }
+
+    "average the observations of a cell" in {
+      val table = new SkimTable()
+      val cell = SkimTable.cellIndex(8, 0, 1, 2)
+      table.get(cell) shouldBe None
+      table.observe(cell, 100, 1000, 2)
+      table.observe(cell, 200, 3000, 4)
+      table.get(cell) shouldBe Some(SkimInternal(150, 2000, 3, 2))
+      table.get(SkimTable.cellIndex(8, 0, 2, 1)) shouldBe None
+    }
+
+    "keep the averages of cells that were put" in {
+      val table = new SkimTable()
+      val cell = SkimTable.cellIndex(0, 0, 0, 0)
+      table.put(cell, SkimInternal(60, 500, 1.5, 3))
+      table.get(cell) shouldBe Some(SkimInternal(60, 500, 1.5, 3))
+      table.observe(cell, 100, 500, 1.5)
+      table.get(cell) shouldBe Some(SkimInternal(70, 500, 1.5, 4))
+    }
+
+    "take a skim without observations that is put as one observation" in {
+      val table = new SkimTable()
+      val cell = SkimTable.cellIndex(0, 0, 0, 0)
+      table.put(cell, SkimInternal(60, 500, 1.5, 0))
+      table.get(cell) shouldBe Some(SkimInternal(60, 500, 1.5, 1))
+      table.observe(cell, 100, 500, 1.5)
+      table.get(cell) shouldBe Some(SkimInternal(80, 500, 1.5, 2))
+    }
+
+    "never mix the sums and the count of different observations for concurrent readers" in {
+      val table = new SkimTable()
+      val cell = SkimTable.cellIndex(0, 0, 0, 0)
+      val numberOfThreads = 4
+      val executor = Executors.newFixedThreadPool(numberOfThreads + 1)
+      (0 until numberOfThreads).foreach { _ =>
+        executor.execute(() => (0 until 200000).foreach(_ => table.observe(cell, 10.0, 100.0, 1.0)))
+      }
+      val averages = mutable.Set[(Double, Double, Double)]()
+      executor.execute(() => {
+        (0 until 200000).foreach { _ =>
+          table.get(cell).foreach(skim => averages += ((skim.time, skim.distance, skim.cost)))
+        }
+      })
+      executor.shutdown()
+      executor.awaitTermination(1, TimeUnit.MINUTES) shouldBe true
+      averages.foreach {
+        case (time, distance, cost) =>
+          time shouldBe 10.0 +- 1e-9
+          distance shouldBe 100.0 +- 1e-9
+          cost shouldBe 1.0 +- 1e-9
+      }
+    }
+
+    "count every observation of concurrent observers while growing" in {
+      val table = new SkimTable(numberOfSegments = 4)
+      val numberOfCells = 20000
+      val numberOfThreads = 8
+      val observationsPerThread = 100000
+      val executor = Executors.newFixedThreadPool(numberOfThreads)
+      (0 until numberOfThreads).foreach { thread =>
+        executor.execute(() => {
+          (0 until observationsPerThread).foreach { i =>
+            val cellNumber = (i * 7919 + thread) % numberOfCells
+            table.observe(SkimTable.cellIndex(cellNumber % 24, 3, cellNumber, cellNumber / 2), cellNumber, 1.0, 2.0)
+          }
+        })
+      }
+      executor.shutdown()
+      executor.awaitTermination(1, TimeUnit.MINUTES) shouldBe true
+
+      val counts = mutable.Map[Long, Int]()
+      table.foreach { (cell, skim) =>
+        skim.time shouldBe SkimTable.originIndexOf(cell).toDouble +- 1e-6
+        skim.distance shouldBe 1.0 +- 1e-9
+        skim.cost shouldBe 2.0 +- 1e-9
+        counts(cell) = skim.count
+      }
+      counts.size shouldBe numberOfCells
+      counts.values.sum shouldBe numberOfThreads * observationsPerThread
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package beam.router
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import akka.actor.{Actor, ActorRef, ActorSystem, Props}
+import akka.pattern.{after, ask}
+import akka.util.Timeout
+import beam.router.BeamRouter._
+import beam.router.WorkPullSpec._
+import beam.sim.BeamServices
+import beam.sim.config.BeamConfig
+import beam.utils.TestConfigUtils.testConfig
+import com.typesafe.config.ConfigValueFactory
+import org.matsim.api.core.v01.Coord
+import org.mockito.Mockito._
+import org.scalatest.concurrent.Eventually
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.time.{Millis, Seconds, Span}
+import org.scalatest.{Matchers, WordSpecLike}
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+
+class WorkPullSpec extends WordSpecLike with Matchers with MockitoSugar {
+
+  private implicit val timeout: Timeout = Timeout(60, TimeUnit.SECONDS)
+
+  "A router" should {
+    "spread work over workers in several actor systems by their credits and steal from slow ones" in {
+      val config = testConfig("test/input/beamville/beam.conf")
+        .withValue("beam.useLocalWorker", ConfigValueFactory.fromAnyRef(false))
+        .withValue("beam.routing.workPull.batchSize", ConfigValueFactory.fromAnyRef(4))
+        .withValue("beam.routing.workPull.maxQueuedWorkPerWorker", ConfigValueFactory.fromAnyRef(16))
+        .withValue("beam.routing.workPull.minQueuedWorkToSteal", ConfigValueFactory.fromAnyRef(4))
+        .resolve()
+      val beamConfig = BeamConfig(config)
+      val services = mock[BeamServices](withSettings().stubOnly())
+      when(services.beamConfig).thenReturn(beamConfig)
+      val routerSystem = ActorSystem("WorkPullSpec-router", config)
+      val workerSystems = (1 to 3).map(i => ActorSystem(s"WorkPullSpec-worker-$i", config))
+      try {
+        val router = routerSystem.actorOf(BeamRouter.props(services, null, null, null, null, null, null, null))
+        val workers = workerSystems.zip(Seq(50.millis, 2.millis, 2.millis)).map {
+          case (system, routingTime) =>
+            val stats = new FakeWorkerStats
+            system.actorOf(Props(new FakeWorker(router, routingTime, beamConfig.beam.routing.workPull, stats)))
+            stats
+        }
+        import routerSystem.dispatcher
+        val requests = (1 to 1000).map { i =>
+          RoutingRequest(new Coord(i, i), new Coord(i + 1, i + 1), i, Vector(), Vector())
+        }
+        val responses = Await.result(
+          Future.sequence(requests.map(request => (router ? request).mapTo[RoutingResponse])),
+          1.minute
+        )
+
+        responses.map(_.requestId) shouldBe requests.map(_.requestId)
+        // a worker may get to know that its last requests are completed after they are answered
+        Eventually.eventually(Eventually.timeout(Span(10, Seconds)), Eventually.interval(Span(10, Millis))) {
+          workers.map(_.completed.get).sum shouldBe requests.size
+        }
+        val slowWorker = workers.head
+        slowWorker.stolen.get should be > 0
+        slowWorker.completed.get should be < workers(1).completed.get
+        // never more than the room it asked for
+        workers.foreach(_.maxHeld.get should be <= numberOfThreads + 16)
+      } finally {
+        (routerSystem +: workerSystems).foreach(system => Await.result(system.terminate(), 1.minute))
+      }
+    }
+  }
+}
+
+object WorkPullSpec {
+  val numberOfThreads = 2
+
+  class FakeWorkerStats {
+    val completed = new AtomicInteger()
+    val stolen = new AtomicInteger()
+    val maxHeld = new AtomicInteger()
+  }
+
+  /**
+    * Takes `routingTime` for a request on each of its threads, and pulls work like a routing worker.
+    */
+  class FakeWorker(
+    router: ActorRef,
+    routingTime: FiniteDuration,
+    config: BeamConfig.Beam.Routing.WorkPull,
+    stats: FakeWorkerStats
+  ) extends Actor {
+    import context.dispatcher
+
+    private val workPuller = new WorkPuller(self, router, numberOfThreads, config, {
+      case request: RoutingRequest =>
+        after(routingTime, context.system.scheduler)(Future.successful(RoutingResponse(Vector(), request.requestId)))
+    })
+
+    override def preStart(): Unit = workPuller.askForMoreWork()
+
+    override def receive: Receive = {
+      case request: RoutingRequest =>
+        workPuller.received(request, sender)
+        stats.maxHeld.set(math.max(stats.maxHeld.get, workPuller.numberOfHeldWork))
+      case WorkPuller.WorkCompleted =>
+        stats.completed.incrementAndGet()
+        workPuller.completed()
+      case StealWork(numberOfWork) =>
+        val stolenWork = workPuller.steal(numberOfWork)
+        stats.stolen.addAndGet(stolenWork.work.size)
+        sender ! stolenWork
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package beam.router.r5
+
+import beam.sim.config.BeamConfig
+import beam.utils.TestConfigUtils.testConfig
+import com.conveyal.r5.profile.{ProfileRequest, StreetMode}
+import com.conveyal.r5.streets.{Split, StreetLayer}
+import org.scalatest.{BeforeAndAfterAll, Matchers, WordSpecLike}
+
+import scala.util.Random
+
+class LandmarkCarRouterSpec extends WordSpecLike with Matchers with BeforeAndAfterAll {
+
+  private val beamConfig = BeamConfig(testConfig("test/input/beamville/beam.conf").resolve())
+  private var streetLayer: StreetLayer = _
+
+  override def beforeAll: Unit = {
+    val networkCoordinator = new DefaultNetworkCoordinator(beamConfig)
+    networkCoordinator.loadNetwork()
+    streetLayer = networkCoordinator.transportNetwork.streetLayer
+  }
+
+  "LandmarkCarRouter" should {
+    "find routes with the travel times of searching without landmarks, while travel times change during the day" in {
+      val landmarkRouter = router(numberOfLandmarks = 8)
+      val dijkstraRouter = router(numberOfLandmarks = 0)
+      landmarkRouter.landmarks.size shouldBe 8
+      val random = new Random(7)
+      val noToll = (_: Int, _: Int) => 0.0
+      var numberOfRoutes = 0
+      (1 to 300).foreach { _ =>
+        for {
+          from <- split(random)
+          to   <- split(random)
+        } {
+          val departureTime = random.nextInt(86400)
+          val route = landmarkRouter.route(from, to, departureTime, noToll)
+          val dijkstraRoute = dijkstraRouter.route(from, to, departureTime, noToll)
+          route.isDefined shouldBe dijkstraRoute.isDefined
+          route.foreach { linkIds =>
+            numberOfRoutes += 1
+            linkIds.head should (be(from.edge) or be(from.edge + 1))
+            linkIds.last should (be(to.edge) or be(to.edge + 1))
+            linkIds.sliding(2).filter(_.size == 2).foreach { pair =>
+              streetLayer.edgeStore.getCursor(pair.head).getToVertex shouldBe
+              streetLayer.edgeStore.getCursor(pair.last).getFromVertex
+            }
+            travelTime(landmarkRouter, linkIds, from, to, departureTime) shouldBe
+            travelTime(dijkstraRouter, dijkstraRoute.get, from, to, departureTime) +- 1e-3
+          }
+        }
+      }
+      numberOfRoutes should be > 100
+    }
+
+    "drive around tolls like searching without landmarks" in {
+      val landmarkRouter = router(numberOfLandmarks = 8)
+      val dijkstraRouter = router(numberOfLandmarks = 0)
+      val random = new Random(9)
+      (1 to 100).foreach { _ =>
+        for {
+          from  <- split(random)
+          to    <- split(random)
+          route <- landmarkRouter.route(from, to, 3600, (_, _) => 0.0)
+          if route.size > 2
+        } {
+          val tolledEdge = route(route.size / 2)
+          val toll = (edge: Int, _: Int) => if (edge == tolledEdge) 1e6 else 0.0
+          landmarkRouter.route(from, to, 3600, toll).map(_.contains(tolledEdge)) shouldBe
+          dijkstraRouter.route(from, to, 3600, toll).map(_.contains(tolledEdge))
+        }
+      }
+    }
+  }
+
+  private def router(numberOfLandmarks: Int): LandmarkCarRouter =
+    new LandmarkCarRouter(streetLayer, edgeTravelTime, 3600, 30, numberOfLandmarks)
+
+  // Free flow travel times, up to twice as long in some hours
+  private def edgeTravelTime(edgeIndex: Int, time: Int): Double = {
+    val edge = streetLayer.edgeStore.getCursor(edgeIndex)
+    val freeFlowTravelTime = edge.getLengthM / edge.calculateSpeed(new ProfileRequest, StreetMode.CAR)
+    freeFlowTravelTime * (1 + (edgeIndex + time / 3600) % 3 * 0.5)
+  }
+
+  private def split(random: Random): Option[Split] =
+    Option(
+      streetLayer.findSplit(
+        random.nextDouble() * 0.04,
+        random.nextDouble() * 0.04,
+        StreetLayer.LINK_RADIUS_METERS,
+        StreetMode.CAR
+      )
+    )
+
+  private def travelTime(
+    router: LandmarkCarRouter,
+    linkIds: IndexedSeq[Int],
+    from: Split,
+    to: Split,
+    departureTime: Int
+  ): Double = {
+    def fraction(split: Split, edge: Int, toEnd: Boolean): Double = {
+      val lengthInMm = split.distance0_mm.toDouble + split.distance1_mm
+      val forward = edge == split.edge
+      (if (forward == toEnd) split.distance1_mm else split.distance0_mm) / lengthInMm
+    }
+    if (linkIds.size == 1) {
+      val lengthInMm = from.distance0_mm.toDouble + from.distance1_mm
+      math.abs(to.distance0_mm - from.distance0_mm) / lengthInMm * router.edgeTravelTime(linkIds.head, departureTime)
+    } else {
+      var time = departureTime + fraction(from, linkIds.head, toEnd = true) *
+      router.edgeTravelTime(linkIds.head, departureTime)
+      linkIds.tail.init.foreach { edge =>
+        time += router.edgeTravelTime(edge, time)
+      }
+      time += fraction(to, linkIds.last, toEnd = false) * router.edgeTravelTime(linkIds.last, time)
+      time - departureTime
+    }
+  }
+}
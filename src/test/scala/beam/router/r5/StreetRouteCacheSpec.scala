@@ -0,0 +1,70 @@
+package beam.router.r5
+
+import beam.router.r5.R5RoutingWorker.R5Request
+import beam.sim.common.GeoUtilsImpl
+import beam.sim.config.BeamConfig
+import beam.utils.TestConfigUtils.testConfig
+import com.conveyal.r5.api.util.{LegMode, TransitModes}
+import org.matsim.api.core.v01.Coord
+import org.scalatest.{BeforeAndAfterAll, Matchers, WordSpecLike}
+
+import scala.util.Random
+
+class StreetRouteCacheSpec extends WordSpecLike with Matchers with BeforeAndAfterAll {
+
+  private val beamConfig = BeamConfig(testConfig("test/input/beamville/beam.conf").resolve())
+  private val geo = new GeoUtilsImpl(beamConfig)
+  private var networkCoordinator: DefaultNetworkCoordinator = _
+  private var routeCache: StreetRouteCache = _
+
+  override def beforeAll: Unit = {
+    networkCoordinator = new DefaultNetworkCoordinator(beamConfig)
+    networkCoordinator.loadNetwork()
+    routeCache = new StreetRouteCache(
+      beamConfig.beam.routing.r5.routeCache,
+      networkCoordinator.transportNetwork.streetLayer,
+      geo
+    )
+  }
+
+  "StreetRouteCache" should {
+    "compute the route of a key at a location and time with the same key" in {
+      val random = new Random(3)
+      (1 to 200).foreach { _ =>
+        val request = carRequest(
+          new Coord(random.nextDouble() * 0.04, random.nextDouble() * 0.04),
+          new Coord(random.nextDouble() * 0.04, random.nextDouble() * 0.04),
+          random.nextInt(86400)
+        )
+        val key = routeCache.keyOf(request).get
+        routeCache.keyOf(routeCache.representativeRequest(key, request)) shouldBe Some(key)
+      }
+    }
+
+    "put departures of the same time bin together" in {
+      val timeBinSize = beamConfig.beam.routing.r5.routeCache.timeBinSizeInSeconds
+      val request = carRequest(new Coord(0.00005, 0.01995), new Coord(0.02005, 0.01995), 3 * timeBinSize)
+      routeCache.keyOf(request.copy(time = 3 * timeBinSize + timeBinSize - 1)) shouldBe routeCache.keyOf(request)
+      routeCache.keyOf(request.copy(time = 3 * timeBinSize - 1)) should not be routeCache.keyOf(request)
+      routeCache.keyOf(request.copy(directMode = LegMode.WALK)) should not be routeCache.keyOf(request)
+    }
+
+    "not cache transit routes" in {
+      val request = carRequest(new Coord(0.00005, 0.01995), new Coord(0.02005, 0.01995), 3000)
+      routeCache.keyOf(request.copy(transitModes = Vector(TransitModes.BUS))) shouldBe None
+      routeCache.keyOf(request.copy(directMode = null)) shouldBe None
+    }
+
+    "cache nothing when it has no memory" in {
+      val disabled = new StreetRouteCache(
+        beamConfig.beam.routing.r5.routeCache.copy(maxSizeInMB = 0),
+        networkCoordinator.transportNetwork.streetLayer,
+        geo
+      )
+      disabled.keyOf(carRequest(new Coord(0.00005, 0.01995), new Coord(0.02005, 0.01995), 3000)) shouldBe None
+    }
+  }
+
+  private def carRequest(from: Coord, to: Coord, time: Int): R5Request =
+    R5Request(from, to, time, LegMode.CAR, LegMode.CAR, Nil, LegMode.WALK, 0.0)
+}
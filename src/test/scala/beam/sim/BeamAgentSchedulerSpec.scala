@@ -96,6 +96,34 @@ class BeamAgentSchedulerSpec
       scheduler ! CompletionNotice(5)
       expectMsg(CompletionNotice(0L))
     }
+
+    it("should schedule batches of triggers") {
+      val scheduler = TestActorRef[BeamAgentScheduler](
+        SchedulerProps(
+          config,
+          stopTick = 10,
+          maxWindow = 10,
+          new StuckFinder(config.beam.debug.stuckAgentDetection)
+        )
+      )
+      scheduler ! ScheduleTriggers(
+        Vector(
+          ScheduleTrigger(InitializeTrigger(0), self),
+          ScheduleTrigger(ReportState(5), self),
+          ScheduleTrigger(ReportState(3), self)
+        )
+      )
+      scheduler ! StartSchedule(0)
+      expectMsg(TriggerWithId(InitializeTrigger(0), 1))
+      expectMsg(TriggerWithId(ReportState(3), 3))
+      expectMsg(TriggerWithId(ReportState(5), 2))
+      scheduler ! CompletionNotice(1)
+      scheduler ! CompletionNotice(3, Vector(ScheduleTrigger(ReportState(7), self)))
+      scheduler ! CompletionNotice(2)
+      expectMsg(TriggerWithId(ReportState(7), 4))
+      scheduler ! CompletionNotice(4)
+      expectMsg(CompletionNotice(0L))
+    }
   }
 
   override def afterAll: Unit = {